@@ -0,0 +1,167 @@
+package vim;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import static vim.VimD.*;
+import static vim.VimP.*;
+
+/*
+ * Block lookup in mf_hashtab_C, the open addressing table, against the chained table it replaced.
+ *
+ * Keys are consecutive block numbers, like a memfile has.  "get" does what mf_get() does for a
+ * block that is found: the chained table also moved it to the front of its chain.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MfHashBench
+{
+    @Param({ "64", "4096", "262144" })
+    int nblocks;
+
+    static final int NKEYS = 1024;      /* must be a power of two */
+
+    mf_hashtab_C mht;
+    chained_C chained;
+    long[] keys;
+    int next;
+
+    @Setup
+    public void setup()
+    {
+        mht = new mf_hashtab_C();
+        mf_hash_init(mht);
+        chained = new chained_C();
+        for (long nr = 1; nr <= nblocks; nr++)
+        {
+            mf_hash_add_item(mht, nr, Long.valueOf(nr));
+            chained_add(chained, new chained_item_C(nr));
+        }
+
+        Random rnd = new Random(1);
+        keys = new long[NKEYS];
+        for (int i = 0; i < NKEYS; i++)
+            keys[i] = 1 + rnd.nextInt(nblocks);
+    }
+
+    @Benchmark
+    public Object open_get()
+    {
+        return mf_hash_find(mht, keys[next++ & (NKEYS - 1)]);
+    }
+
+    @Benchmark
+    public Object chained_get()
+    {
+        chained_item_C mhi = chained_find(chained, keys[next++ & (NKEYS - 1)]);
+        chained_rem(chained, mhi);          /* put in front of hash list */
+        chained_add(chained, mhi);
+        return mhi;
+    }
+
+    @Benchmark
+    public Object open_add_rem()
+    {
+        long nr = -keys[next++ & (NKEYS - 1)];
+        mf_hash_add_item(mht, nr, mht);
+        mf_hash_rem_item(mht, nr);
+        return mht;
+    }
+
+    @Benchmark
+    public Object chained_add_rem()
+    {
+        chained_item_C mhi = new chained_item_C(-keys[next++ & (NKEYS - 1)]);
+        chained_add(chained, mhi);
+        chained_rem(chained, mhi);
+        return mhi;
+    }
+
+    /*
+     * The chained table as it was, with a node per item and MHT_LOG_LOAD_FACTOR 6.
+     */
+    static final class chained_item_C
+    {
+        chained_item_C  mhi_next;
+        chained_item_C  mhi_prev;
+        long            mhi_key;
+
+        chained_item_C(long key)
+        {
+            mhi_key = key;
+        }
+    }
+
+    static final class chained_C
+    {
+        int                 mht_mask = MHT_INIT_SIZE - 1;
+        int                 mht_count;
+        chained_item_C[]    mht_buckets = new chained_item_C[MHT_INIT_SIZE];
+    }
+
+    static chained_item_C chained_find(chained_C mht, long key)
+    {
+        chained_item_C mhi = mht.mht_buckets[(int)(key & mht.mht_mask)];
+
+        while (mhi != null && mhi.mhi_key != key)
+            mhi = mhi.mhi_next;
+
+        return mhi;
+    }
+
+    static void chained_add(chained_C mht, chained_item_C mhi)
+    {
+        int i = (int)(mhi.mhi_key & mht.mht_mask);
+
+        mhi.mhi_next = mht.mht_buckets[i];
+        mhi.mhi_prev = null;
+        if (mhi.mhi_next != null)
+            mhi.mhi_next.mhi_prev = mhi;
+        mht.mht_buckets[i] = mhi;
+
+        if (mht.mht_mask < (++mht.mht_count >>> 6))
+            chained_grow(mht);
+    }
+
+    static void chained_rem(chained_C mht, chained_item_C mhi)
+    {
+        if (mhi.mhi_prev == null)
+            mht.mht_buckets[(int)(mhi.mhi_key & mht.mht_mask)] = mhi.mhi_next;
+        else
+            mhi.mhi_prev.mhi_next = mhi.mhi_next;
+
+        if (mhi.mhi_next != null)
+            mhi.mhi_next.mhi_prev = mhi.mhi_prev;
+
+        mht.mht_count--;
+    }
+
+    static void chained_grow(chained_C mht)
+    {
+        chained_item_C[] buckets = mht.mht_buckets;
+
+        mht.mht_buckets = new chained_item_C[buckets.length * 2];
+        mht.mht_mask = buckets.length * 2 - 1;
+        mht.mht_count = 0;
+
+        for (int i = buckets.length; 0 < i--; )
+        {
+            /* Re-add from the back, so that each chain keeps its order. */
+            chained_item_C last = buckets[i];
+            while (last != null && last.mhi_next != null)
+                last = last.mhi_next;
+            for (chained_item_C mhi = last; mhi != null; )
+            {
+                chained_item_C prev = mhi.mhi_prev;
+                chained_add(mht, mhi);
+                mhi = prev;
+            }
+        }
+    }
+}
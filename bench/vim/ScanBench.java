@@ -0,0 +1,122 @@
+package vim;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import static vim.VimA.*;
+import static vim.VimC.*;
+
+/*
+ * BINDEX(), BINDEX2(), BINDEX3() and BHIGH() against a loop that looks at one byte at a time.
+ *
+ * The buffer holds ASCII lines of about "linelen" bytes, with a NUL now and then, like readfile()
+ * splits them.  Each operation finds the next NL (or NUL, CR, non-ASCII byte) after the last one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScanBench
+{
+    @Param({ "8", "80", "4096" })
+    int linelen;
+
+    static final int SIZE = 1 << 20;
+
+    byte[] buf;
+    int pos;
+
+    @Setup
+    public void setup()
+    {
+        Random rnd = new Random(1);
+        buf = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++)
+        {
+            if (rnd.nextInt(linelen) == 0)
+                buf[i] = NL;
+            else if (rnd.nextInt(linelen * 4) == 0)
+                buf[i] = (byte)(0x80 | rnd.nextInt(0x40));
+            else if (rnd.nextInt(linelen * 8) == 0)
+                buf[i] = NUL;
+            else
+                buf[i] = (byte)('a' + rnd.nextInt(26));
+        }
+        /* Make sure a scan always finds something before the end. */
+        buf[SIZE - 1] = NL;
+        buf[SIZE - 2] = (byte)0x80;
+        buf[SIZE - 3] = CAR;
+        buf[SIZE - 4] = NUL;
+    }
+
+    /* The next position to scan from, after "i" found something. */
+    int advance(int i)
+    {
+        pos = (SIZE - 8 <= i) ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public int bindex()
+    {
+        return advance(BINDEX(buf, pos, SIZE, NL));
+    }
+
+    @Benchmark
+    public int bytes_bindex()
+    {
+        int i = pos;
+        while (buf[i] != NL)
+            i++;
+        return advance(i);
+    }
+
+    @Benchmark
+    public int bindex2()
+    {
+        return advance(BINDEX2(buf, pos, SIZE, NUL, NL));
+    }
+
+    @Benchmark
+    public int bytes_bindex2()
+    {
+        int i = pos;
+        while (buf[i] != NUL && buf[i] != NL)
+            i++;
+        return advance(i);
+    }
+
+    @Benchmark
+    public int bindex3()
+    {
+        return advance(BINDEX3(buf, pos, SIZE, NUL, CAR, NL));
+    }
+
+    @Benchmark
+    public int bytes_bindex3()
+    {
+        int i = pos;
+        while (buf[i] != NUL && buf[i] != CAR && buf[i] != NL)
+            i++;
+        return advance(i);
+    }
+
+    @Benchmark
+    public int bhigh()
+    {
+        return advance(BHIGH(buf, pos, SIZE));
+    }
+
+    @Benchmark
+    public int bytes_bhigh()
+    {
+        int i = pos;
+        while (0 <= buf[i])
+            i++;
+        return advance(i);
+    }
+}
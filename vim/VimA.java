@@ -1,7 +1,10 @@
 package vim;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -208,13 +211,116 @@ public class VimA
         return (c < 'A' || 'Z' < c) ? c : c + ('a' - 'A');
     }
 
+    /*
+     * Scanning for a byte goes 8 bytes at a time, read from the array as one long ("SWAR").
+     * For a long "w" the bytes that are zero get their high bit set in swar_zeros(w).
+     * A byte above a zero byte may get it set too, by the borrow, but never the lowest one,
+     * so the lowest bit set gives the first zero byte.  Little-endian, it is the first in the array.
+     */
+    /*private*/ static final VarHandle SWAR_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /*private*/ static final long SWAR_ONES  = 0x0101010101010101L;
+    /*private*/ static final long SWAR_HIGHS = 0x8080808080808080L;
+
+    /*private*/ static long swar_zeros(long w)
+    {
+        return (w - SWAR_ONES) & ~w & SWAR_HIGHS;
+    }
+
+    /*
+     * Return the index of the first "b" in "a[from .. to)", or -1 when there is none.
+     */
+    /*private*/ static int BINDEX(byte[] a, int from, int to, byte b)
+    {
+        int i = from;
+
+        long pb = (b & 0xffL) * SWAR_ONES;
+        for (int last = Math.min(to, a.length) - 8; i <= last; i += 8)
+        {
+            long z = swar_zeros((long)SWAR_LONG.get(a, i) ^ pb);
+            if (z != 0)
+                return i + (Long.numberOfTrailingZeros(z) >>> 3);
+        }
+
+        for ( ; i < to; i++)
+            if (a[i] == b)
+                return i;
+
+        return -1;
+    }
+
+    /*
+     * Return the index of the first "b1" or "b2" in "a[from .. to)", or -1 when there is none.
+     */
+    /*private*/ static int BINDEX2(byte[] a, int from, int to, byte b1, byte b2)
+    {
+        int i = from;
+
+        long pb1 = (b1 & 0xffL) * SWAR_ONES, pb2 = (b2 & 0xffL) * SWAR_ONES;
+        for (int last = Math.min(to, a.length) - 8; i <= last; i += 8)
+        {
+            long w = (long)SWAR_LONG.get(a, i);
+            long z = swar_zeros(w ^ pb1) | swar_zeros(w ^ pb2);
+            if (z != 0)
+                return i + (Long.numberOfTrailingZeros(z) >>> 3);
+        }
+
+        for ( ; i < to; i++)
+            if (a[i] == b1 || a[i] == b2)
+                return i;
+
+        return -1;
+    }
+
+    /*
+     * Return the index of the first "b1", "b2" or "b3" in "a[from .. to)", or -1 when there is none.
+     */
+    /*private*/ static int BINDEX3(byte[] a, int from, int to, byte b1, byte b2, byte b3)
+    {
+        int i = from;
+
+        long pb1 = (b1 & 0xffL) * SWAR_ONES, pb2 = (b2 & 0xffL) * SWAR_ONES, pb3 = (b3 & 0xffL) * SWAR_ONES;
+        for (int last = Math.min(to, a.length) - 8; i <= last; i += 8)
+        {
+            long w = (long)SWAR_LONG.get(a, i);
+            long z = swar_zeros(w ^ pb1) | swar_zeros(w ^ pb2) | swar_zeros(w ^ pb3);
+            if (z != 0)
+                return i + (Long.numberOfTrailingZeros(z) >>> 3);
+        }
+
+        for ( ; i < to; i++)
+            if (a[i] == b1 || a[i] == b2 || a[i] == b3)
+                return i;
+
+        return -1;
+    }
+
+    /*
+     * Return the index of the first byte in "a[from .. to)" that is not ASCII, or -1 when there is none.
+     */
+    /*private*/ static int BHIGH(byte[] a, int from, int to)
+    {
+        int i = from;
+
+        for (int last = Math.min(to, a.length) - 8; i <= last; i += 8)
+        {
+            long z = (long)SWAR_LONG.get(a, i) & SWAR_HIGHS;
+            if (z != 0)
+                return i + (Long.numberOfTrailingZeros(z) >>> 3);
+        }
+
+        for ( ; i < to; i++)
+            if (a[i] < 0)
+                return i;
+
+        return -1;
+    }
+
     /*private*/ static Bytes MEMCHR(Bytes p, byte b, int n)
     {
-        for (int i = 0; i < n; i++)
-            if (p.at(i) == b)
-                return p.plus(i);
+        int i = BINDEX(p.array, p.index, p.index + n, b);
 
-        return null;
+        return (i < 0) ? null : new Bytes(p.array, i);
     }
 
     /*private*/ static int MEMCMP(Bytes p1, Bytes p2, int n)
@@ -321,13 +427,11 @@ public class VimA
 
     /*private*/ static Bytes STRCHR(Bytes s, byte b)
     {
-        for ( ; ; s = s.plus(1))
-        {
-            if (s.at(0) == b)
-                return s;
-            if (s.at(0) == NUL)
-                return null;
-        }
+        int i = BINDEX2(s.array, s.index, s.array.length, b, NUL);
+        if (i < 0)
+            throw new ArrayIndexOutOfBoundsException("STRCHR missing NUL");
+
+        return (s.array[i] == b) ? new Bytes(s.array, i) : null;
     }
 
     /*private*/ static int STRCMP(Bytes s1, Bytes s2)
@@ -362,9 +466,11 @@ public class VimA
 
     /*private*/ static int strlen(Bytes s)
     {
-        for (Bytes p = s; ; p = p.plus(1))
-            if (p.at(0) == NUL)
-                return BDIFF(p, s);
+        int i = BINDEX(s.array, s.index, s.array.length, NUL);
+        if (i < 0)
+            throw new ArrayIndexOutOfBoundsException("strlen missing NUL");
+
+        return i - s.index;
     }
 
     /*private*/ static int STRNCASECMP(Bytes s1, Bytes s2, int n)
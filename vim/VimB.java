@@ -119,6 +119,14 @@ public class VimB
 
     /*private*/ static final int FD_CLOEXEC = 1;
 
+    /*private*/ static final int
+        PROT_READ   = 0x1,
+        PROT_WRITE  = 0x2,
+        MAP_PRIVATE = 0x02,
+        MAP_ANONYMOUS = 0x20;
+
+    /*private*/ static final long MAP_FAILED = -1L;    /* (void *)-1 */
+
     /*private*/ static final int
         SEEK_SET = 0,
         SEEK_END = 2;
@@ -171,6 +179,7 @@ public class VimB
     /*private*/ static final int
         ENOENT    = 2,
         EINTR     = 4,
+        EEXIST    = 17,
         EINVAL    = 22,
         EFBIG     = 27,
         EOVERFLOW = 75;
@@ -638,12 +647,17 @@ public class VimB
         @off_t long lseek(int fd, @off_t long offset, int whence);
      // int lstat(ByteBuffer file, stat_C buf);
         int __lxstat64(int version, ByteBuffer file, stat_C buf);
+        Pointer /*void **/mmap(Pointer addr, @size_t long len, int prot, int flags, int fd, @off_t long offset);
+        int munmap(Pointer addr, @size_t long len);
         int nanosleep(timespec_C requested_time, timespec_C remaining);
      // int open(ByteBuffer file, int oflag, ...);
         int open(ByteBuffer file, int oflag, int perm);
+        @ssize_t long pread(int fd, ByteBuffer /*void **/buf, @size_t long nbytes, @off_t long offset);
         int putc(int c, file_C stream);
+        @ssize_t long pwrite(int fd, ByteBuffer /*void **/buf, @size_t long n, @off_t long offset);
         @ssize_t long read(int fd, ByteBuffer /*void **/buf, @size_t long nbytes);
         @ssize_t long readlink(ByteBuffer path, ByteBuffer buf, @size_t long len);
+        int rename(ByteBuffer oldname, ByteBuffer newname);
         int select(int nfds, @fd_set_ptr_t long[] readfds, @fd_set_ptr_t long[] writefds, @fd_set_ptr_t long[] exceptfds, timeval_C timeout);
         int sigaction(int sig, /*sigaction_C*/Pointer act, /*sigaction_C*/Pointer oact);
         int sigemptyset(@sigset_ptr_t Pointer set);
@@ -827,6 +841,16 @@ public class VimB
             return libc.open(file.buf(), oflag, perm);
         }
 
+        long pread(int fd, Bytes buf, long nbytes, long offset)
+        {
+            return libc.pread(fd, buf.buf(), nbytes, offset);
+        }
+
+        long pwrite(int fd, Bytes buf, long n, long offset)
+        {
+            return libc.pwrite(fd, buf.buf(), n, offset);
+        }
+
         long read(int fd, Bytes buf, long nbytes)
         {
             return libc.read(fd, buf.buf(), nbytes);
@@ -837,6 +861,11 @@ public class VimB
             return libc.readlink(path.buf(), buf.buf(), len);
         }
 
+        int rename(Bytes oldname, Bytes newname)
+        {
+            return libc.rename(oldname.buf(), newname.buf());
+        }
+
         /*int*/void sigaction(int _sig, Pointer _act, Pointer _oact)
         {
             // %% not yet, maybe nor ever
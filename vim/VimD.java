@@ -5,6 +5,9 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import jnr.ffi.LibraryLoader;
 import jnr.ffi.mapper.DataConverter;
@@ -319,6 +322,7 @@ public class VimD
     /*private*/ static boolean[] p_awa       = new boolean[1];  /* 'autowriteall' */
     /*private*/ static Bytes[]   p_bs        = new Bytes[1];    /* 'backspace' */
     /*private*/ static Bytes[]   p_bg        = new Bytes[1];    /* 'background' */
+    /*private*/ static boolean[] p_bgw       = new boolean[1];  /* 'backgroundwrite' */
     /*private*/ static Bytes[]   p_breakat   = new Bytes[1];    /* 'breakat' */
     /*private*/ static Bytes[]   p_cedit     = new Bytes[1];    /* 'cedit' */
     /*private*/ static long[]    p_cwh       = new long[1];     /* 'cmdwinheight' */
@@ -353,6 +357,7 @@ public class VimD
     /*private*/ static boolean[] p_fs        = new boolean[1];  /* 'fsync' */
     /*private*/ static boolean[] p_gd        = new boolean[1];  /* 'gdefault' */
     /*private*/ static boolean[] p_prompt    = new boolean[1];  /* 'prompt' */
+    /*private*/ static boolean[] p_hxv       = new boolean[1];  /* 'hexview' */
     /*private*/ static boolean[] p_hid       = new boolean[1];  /* 'hidden' */
     /*private*/ static Bytes[]   p_hl        = new Bytes[1];    /* 'highlight' */
     /*private*/ static boolean[] p_hls       = new boolean[1];  /* 'hlsearch' */
@@ -364,23 +369,29 @@ public class VimD
     /*private*/ static Bytes[]   p_isi       = new Bytes[1];    /* 'isident' */
     /*private*/ static Bytes[]   p_isp       = new Bytes[1];    /* 'isprint' */
     /*private*/ static boolean[] p_js        = new boolean[1];  /* 'joinspaces' */
+    /*private*/ static boolean[] p_jnl       = new boolean[1];  /* 'journal' */
     /*private*/ static Bytes[]   p_kp        = new Bytes[1];    /* 'keywordprg' */
     /*private*/ static Bytes[]   p_km        = new Bytes[1];    /* 'keymodel' */
     /*private*/ static Bytes[]   p_lispwords = new Bytes[1];    /* 'lispwords' */
     /*private*/ static long[]    p_ls        = new long[1];     /* 'laststatus' */
     /*private*/ static long[]    p_stal      = new long[1];     /* 'showtabline' */
     /*private*/ static Bytes[]   p_lcs       = new Bytes[1];    /* 'listchars' */
+    /*private*/ static long[]    p_lzl       = new long[1];     /* 'lazyload' */
     /*private*/ static boolean[] p_lz        = new boolean[1];  /* 'lazyredraw' */
     /*private*/ static boolean[] p_magic     = new boolean[1];  /* 'magic' */
     /*private*/ static long[]    p_mat       = new long[1];     /* 'matchtime' */
     /*private*/ static long[]    p_mco       = new long[1];     /* 'maxcombine' */
     /*private*/ static long[]    p_mfd       = new long[1];     /* 'maxfuncdepth' */
     /*private*/ static long[]    p_mmd       = new long[1];     /* 'maxmapdepth' */
+    /*private*/ static long[]    p_mm        = new long[1];     /* 'maxmem' */
+    /*private*/ static boolean[] p_mcp       = new boolean[1];  /* 'memcompact' */
     /*private*/ static long[]    p_mmp       = new long[1];     /* 'maxmempattern' */
+    /*private*/ static boolean[] p_mmv       = new boolean[1];  /* 'mmapview' */
     /*private*/ static Bytes[]   p_mouse     = new Bytes[1];    /* 'mouse' */
     /*private*/ static Bytes[]   p_mousem    = new Bytes[1];    /* 'mousemodel' */
     /*private*/ static long[]    p_mouset    = new long[1];     /* 'mousetime' */
     /*private*/ static boolean[] p_more      = new boolean[1];  /* 'more' */
+    /*private*/ static boolean[] p_ofh       = new boolean[1];  /* 'offheap' */
     /*private*/ static Bytes[]   p_opfunc    = new Bytes[1];    /* 'operatorfunc' */
     /*private*/ static Bytes[]   p_para      = new Bytes[1];    /* 'paragraphs' */
     /*private*/ static boolean[] p_paste     = new boolean[1];  /* 'paste' */
@@ -388,6 +399,7 @@ public class VimD
     /*private*/ static long[]    p_rdt       = new long[1];     /* 'redrawtime' */
     /*private*/ static boolean[] p_remap     = new boolean[1];  /* 'remap' */
     /*private*/ static long[]    p_re        = new long[1];     /* 'regexpengine' */
+    /*private*/ static long[]    p_rjit      = new long[1];     /* 'regexpjit' */
     /*private*/ static long[]    p_report    = new long[1];     /* 'report' */
     /*private*/ static boolean[] p_ari       = new boolean[1];  /* 'allowrevins' */
     /*private*/ static boolean[] p_ri        = new boolean[1];  /* 'revins' */
@@ -473,6 +485,7 @@ public class VimD
     /*private*/ static Bytes[]   p_vfile = { u8("") };  /* used before options are initialized */
 
     /*private*/ static boolean[] p_warn      = new boolean[1];  /* 'warn' */
+    /*private*/ static boolean[] p_wfs       = new boolean[1];  /* 'watchfiles' */
     /*private*/ static long[]    p_window    = new long[1];     /* 'window' */
     /*private*/ static boolean[] p_wiv       = new boolean[1];  /* 'weirdinvert' */
     /*private*/ static Bytes[]   p_ww        = new Bytes[1];    /* 'whichwrap' */
@@ -880,6 +893,7 @@ public class VimD
     /*private*/ static final int AUTOMATIC_ENGINE    = 0;
     /*private*/ static final int BACKTRACKING_ENGINE = 1;
     /*private*/ static final int NFA_ENGINE          = 2;
+    /*private*/ static final int DFA_ENGINE          = 3;
 
     /*
      * Structure returned by vim_regcomp() to pass on to vim_regexec().
@@ -890,7 +904,7 @@ public class VimD
     {
         regengine_C         engine;
         int                 regflags;
-        int                 re_engine;      /* automatic, backtracking or nfa engine */
+        int                 re_engine;      /* automatic, backtracking, nfa or dfa engine */
         int                 re_flags;       /* second argument for vim_regcomp() */
 
         protected regprog_C()
@@ -927,7 +941,6 @@ public class VimD
         fragnode_C  out0 = new fragnode_C();
         fragnode_C  out1 = new fragnode_C();
         int         id;
-        int[]       lastlist = new int[2];  /* 0: normal, 1: recursive */
         int         val;
 
         /*private*/ nfa_state_C()
@@ -976,11 +989,125 @@ public class VimD
         nfa_state_C[]       states;
         int                 istate;         /* index in states == number of states allocated */
 
+        dfa_C[]             dfa;            /* null or DFA for matching case [0] and ignoring case [1] */
+
+        Bytes[]             must;           /* null or literal texts, one of which is in every match */
+        must_ac_C[]         must_ac = new must_ac_C[2];  /* automaton for "must", matching case [0] and
+                                                         * ignoring case [1], made when first used */
+
+        regjit_C[]          jit;            /* null or bytecode for matching case [0] and ignoring case [1],
+                                             * made after 'regexpjit' executions */
+        int                 jit_count;      /* number of executions before "jit" was made */
+
         /*private*/ nfa_regprog_C()
         {
         }
     }
 
+    /*
+     * In the DFA: how many states are kept before giving up on it.
+     */
+    /*private*/ static final int DFA_MAX_STATES = 2000;
+
+    /*
+     * A state of the lazy DFA: the set of NFA states that are active at a position.
+     * Only states that consume a character, NFA_EOL and NFA_MATCH are in the set,
+     * the others are followed when building it.  Other threads may read a state
+     * while it is built, therefore "ds_next" and "ds_eol" are only set under the lock of the dfa_C.
+     */
+    /*private*/ static final class dfa_state_C
+    {
+        final int           ds_index;       /* order of creation, for dfa_C.wide */
+        final int[]         ds_states;      /* "id" of the NFA states, ascending */
+        final boolean       ds_match;       /* contains NFA_MATCH */
+        final dfa_state_C[] ds_next;        /* next state for characters below 256, null if not known yet */
+        final byte[]        ds_eol;         /* match at end of line, after [0] or at [1] column zero:
+                                             * 0 not known yet, 1 no, 2 yes */
+
+        /*private*/ dfa_state_C(int index, int[] states, boolean match)
+        {
+            ds_index = index;
+            ds_states = states;
+            ds_match = match;
+            ds_next = new dfa_state_C[256];
+            ds_eol = new byte[2];
+        }
+    }
+
+    /*
+     * The lazy DFA of a NFA program, built while it is being used.
+     */
+    /*private*/ static final class dfa_C
+    {
+        nfa_regprog_C       prog;
+        boolean             ic;             /* ignoring case */
+        dfa_state_C[]       init = new dfa_state_C[2];  /* start after [0] or at [1] column zero */
+        /* All states, by their NFA states. */
+        HashMap<String, dfa_state_C> states = new HashMap<String, dfa_state_C>();
+        /* Next states for characters above 255, by "ds_index" and character. */
+        HashMap<Long, dfa_state_C> wide = new HashMap<Long, dfa_state_C>();
+        int                 nstate;         /* number of states made, states.size() until "full" */
+        volatile boolean    full;           /* DFA_MAX_STATES was reached, only use the NFA;
+                                             * the states have been dropped */
+
+        /*private*/ dfa_C()
+        {
+        }
+    }
+
+    /*
+     * Aho-Corasick automaton to find any of the ASCII strings of nfa_regprog_C.must in a line.
+     */
+    /*private*/ static final class must_ac_C
+    {
+        final int[]         ac_next;        /* next node for [node * 128 + byte] */
+        final boolean[]     ac_final;       /* one of the strings ends in this node */
+        final boolean       ac_ic;          /* ignoring case: strings and text are lower case */
+
+        /*private*/ must_ac_C(int[] next, boolean[] fin, boolean ic)
+        {
+            ac_next = next;
+            ac_final = fin;
+            ac_ic = ic;
+        }
+    }
+
+    /*
+     * A program compiled to JVM bytecode by jit_compile().
+     * The class is defined by its own class loader, thus in another runtime package:
+     * this class and "match" must be public to be extended from there.
+     */
+    public static abstract class regjit_C
+    {
+        protected regjit_C()
+        {
+        }
+
+        /*
+         * Try a match in b[start .. end] at the positions up to "last".
+         * "sub" has the start and end of each subexpression, -1 when unset.
+         * Returns the end of the match, -1 when there is none, JIT_GAVE_UP
+         * when "stack" is full or after "limit" steps back.
+         */
+        public abstract int match(byte[] b, int base, int start, int last, int end, int[] sub, int[] stack, int limit);
+    }
+
+    /*
+     * The class loader for one regjit_C class, so that the class goes when the program goes.
+     */
+    /*private*/ static final class regjit_loader_C extends ClassLoader
+    {
+        /*private*/ regjit_loader_C()
+        {
+            super(regjit_C.class.getClassLoader());
+        }
+
+        /*private*/ Class<?> define(String name, byte[] code)
+        {
+            return defineClass(name, code, 0, code.length);
+        }
+    }
+
     /*
      * Structure to be used for single-line matching.
      * Sub-match "no" starts at "startp[no]" and ends just before "endp[no]".
@@ -1053,8 +1180,8 @@ public class VimD
         }
 
         public abstract regprog_C regcomp(Bytes expr, int re_flags);
-        public abstract long regexec_nl(regmatch_C rmp, Bytes line, int col, boolean line_lbr);
-        public abstract long regexec_multi(regmmatch_C rmp, window_C win, buffer_C buf, long lnum, int col, timeval_C tm);
+        public abstract long regexec_nl(regexec_C rex, regmatch_C rmp, Bytes line, int col, boolean line_lbr);
+        public abstract long regexec_multi(regexec_C rex, regmmatch_C rmp, window_C win, buffer_C buf, long lnum, int col, timeval_C tm);
     }
 
     /* ----------------------------------------------------------------------- */
@@ -1259,39 +1386,21 @@ public class VimD
     /*private*/ static final int UH_EMPTYBUF = 0x02;            /* buffer was empty */
 
     /*
-     * mf_hashtab_C is a chained hashtable with blocknr_C key and arbitrary
-     * structures as items.  This is an intrusive data structure: we require
-     * that items begin with mf_hashitem_C which contains the key and linked
-     * list pointers.  List of items in each bucket is doubly-linked.
+     * mf_hashtab_C is a hashtable with block number keys and arbitrary structures as items.
+     * It uses open addressing: the keys and items are kept in two arrays, a key is found
+     * by probing the slots after the one it hashes to, until an empty slot is reached.
+     * There are no nodes for the items and finding an item doesn't move it.
      */
 
-    /*private*/ static final class mf_hashitem_C
-    {
-        mf_hashitem_C   mhi_next;
-        mf_hashitem_C   mhi_prev;
-        long            mhi_key;
-        Object          mhi_data;
-
-        /*private*/ mf_hashitem_C()
-        {
-        }
-    }
-
-    /*private*/ static mf_hashitem_C[] ARRAY_mf_hashitem(int n)
-    {
-        mf_hashitem_C[] a = new mf_hashitem_C[n];
-        for (int i = 0; i < n; i++)
-            a[i] = new mf_hashitem_C();
-        return a;
-    }
-
     /*private*/ static final int MHT_INIT_SIZE = 64;
 
     /*private*/ static final class mf_hashtab_C
     {
-        int             mht_mask;       /* mask used for hash value (nr of items in array is "mht_mask" + 1) */
+        int             mht_mask;       /* mask used for hash value (nr of slots in array is "mht_mask" + 1) */
+        int             mht_shift;      /* shift used for hash value, 64 - log2(nr of slots) */
         int             mht_count;      /* number of items inserted into hashtable */
-        mf_hashitem_C[] mht_buckets;
+        long[]          mht_keys;
+        Object[]        mht_items;      /* null for an empty slot */
 
         /*private*/ mf_hashtab_C()
         {
@@ -1301,19 +1410,21 @@ public class VimD
     /*private*/ static void ZER0_mf_hashtab(mf_hashtab_C mht)
     {
         mht.mht_mask = 0;
+        mht.mht_shift = 0;
         mht.mht_count = 0;
-        mht.mht_buckets = null;
+        mht.mht_keys = null;
+        mht.mht_items = null;
     }
 
     /*
      * For each (previously) used block in the memfile there is one block header.
      *
      * The block may be linked in the used list OR in the free list.
-     * The used blocks are also kept in hash lists.
+     * The used blocks are also kept in a hash table.
      *
      * The used list is a doubly linked list, most recently used block first.
      *      The blocks in the used list have a block of memory allocated.
-     * The hash lists are used to quickly find a block in the used list.
+     * The hash table is used to quickly find a block in the used list.
      * The free list is a single linked list, not sorted.
      *      The blocks in the free list have no block of memory allocated and
      *      the contents of the block in the file (if any) is irrelevant.
@@ -1322,57 +1433,47 @@ public class VimD
     /* 'bh_flags': */
     /*private*/ static final byte
         BH_DIRTY    = 1,
-        BH_LOCKED   = 2;
+        BH_LOCKED   = 2,
+        BH_JOURNAL  = 4;    /* changed since it was last put in the journal */
 
     /*private*/ static final class block_hdr_C
     {
-        mf_hashitem_C bh_hashitem;      /* header for hash table and key */
+        long        bh_blocknr;         /* block number, key in the hash table */
 
         block_hdr_C bh_next;            /* next block_hdr in free or used list */
         block_hdr_C bh_prev;            /* previous block_hdr in used list */
         Object      bh_data;           /* pointer to memory (for used block) */
         int         bh_page_count;      /* number of pages in this block */
 
-        byte        bh_flags;           /* BH_DIRTY or BH_LOCKED */
+        byte        bh_flags;           /* BH_DIRTY, BH_LOCKED or BH_JOURNAL */
 
         /*private*/ block_hdr_C()
         {
-            bh_hashitem = new mf_hashitem_C();
-            bh_hashitem.mhi_data = this;
         }
 
         long bh_bnum()
         {
-            return bh_hashitem.mhi_key; /* block number, part of bh_hashitem */
+            return bh_blocknr;
         }
 
         void bh_bnum(long bnum)
         {
-            bh_hashitem.mhi_key = bnum;
+            bh_blocknr = bnum;
         }
     }
 
     /*
      * When a block with a negative number is flushed to the file, it gets a positive number.
      * Because the reference to the block is still the negative number,
-     * we remember the translation to the new positive number in the double linked trans lists.
-     * The structure is the same as the hash lists.
+     * we remember the translation to the new positive number in the trans hash table.
      */
     /*private*/ static final class nr_trans_C
     {
-        mf_hashitem_C nt_hashitem;              /* header for hash table and key */
-
+        long        nt_old_bnum;                /* old (negative) number, key in the hash table */
         long        nt_new_bnum;                /* new (positive) number */
 
         /*private*/ nr_trans_C()
         {
-            nt_hashitem = new mf_hashitem_C();
-            nt_hashitem.mhi_data = this;
-        }
-
-        void nt_old_bnum(long bnum)
-        {
-            nt_hashitem.mhi_key = bnum;     /* old (negative) number */
         }
     }
 
@@ -1496,13 +1597,20 @@ public class VimD
 
     /*private*/ static final class memfile_C
     {
+        Bytes           mf_fname;               /* name of the swap file */
+        int             mf_fd;                  /* file descriptor, -1 while there is no swap file */
+        block_hdr_C     mf_free_first;          /* first block_hdr in free list */
         block_hdr_C     mf_used_first;          /* mru block_hdr in used list */
         block_hdr_C     mf_used_last;           /* lru block_hdr in used list */
-        mf_hashtab_C    mf_hash;                /* hash lists */
+        long            mf_used_count;          /* number of pages in used list */
+        mf_hashtab_C    mf_hash;                /* hash table of used blocks */
         mf_hashtab_C    mf_trans;               /* trans lists */
         long            mf_blocknr_max;         /* highest positive block number + 1 */
         long            mf_blocknr_min;         /* lowest negative block number - 1 */
         long            mf_neg_count;           /* number of negative blocks numbers */
+        long            mf_data_count;          /* number of data blocks in used list */
+        long            mf_ptr_count;           /* number of pointer blocks in used list */
+        journal_C       mf_journal;             /* crash-recovery journal, see 'journal' */
 
         /*private*/ memfile_C()
         {
@@ -1511,6 +1619,55 @@ public class VimD
         }
     }
 
+    /*
+     * What the text, undo tree and syntax state of a buffer hold, see buf_memstat().
+     * Byte counts are estimates: the text of the lines, not the objects around it.
+     */
+    /*private*/ static final class memstat_C
+    {
+        long        ms_lines;               /* lines in the buffer */
+        long        ms_data_blocks;         /* data blocks in memory */
+        long        ms_ptr_blocks;          /* pointer blocks in memory */
+        long        ms_pages;               /* pages of the blocks in memory */
+        long        ms_file_pages;          /* pages with a place in the swap file */
+        long        ms_undo_headers;        /* u_header_C in the undo tree */
+        long        ms_undo_entries;        /* u_entry_C in the undo tree */
+        long        ms_undo_lines;          /* lines saved in the u_entry_C */
+        long        ms_undo_bytes;          /* bytes of those lines */
+        long        ms_syn_states;          /* syntax states kept for lines */
+        long        ms_syn_stack;           /* entries on their state stacks */
+
+        /*private*/ memstat_C()
+        {
+        }
+    }
+
+    /*
+     * The journal of a memfile: an append-only file next to the edited file, to which
+     * the blocks that changed are written after each command, so that the text can be
+     * recovered with ":recover" when Vim is killed before the buffer was written.
+     * The records are written and synced by a background thread, see mf_journal_open().
+     */
+    /*private*/ static final class journal_C
+    {
+        Bytes       jn_fname;               /* name of the journal file */
+        int         jn_fd;                  /* the file, closed by the writer */
+        block_hdr_C[] jn_pending;           /* blocks with BH_JOURNAL set, may contain stale ones */
+        int         jn_pending_count;
+        long[]      jn_walk;                /* blocks of the tree still to be journaled, see mf_journal_step() */
+        int[]       jn_walk_pages;          /* their page counts */
+        int         jn_walk_count;          /* zero when the whole tree was journaled */
+        mf_hashtab_C jn_walked;             /* numbers journaled or freed while walking the tree */
+        Thread      jn_thread;
+        LinkedBlockingQueue<Bytes> jn_queue;    /* records to be written, at most JN_QUEUE_MAX;
+                                                 * an empty one stops the writer */
+        volatile boolean jn_error;          /* set by the writer when writing failed */
+
+        /*private*/ journal_C()
+        {
+        }
+    }
+
     /*
      * things used in memline.c
      */
@@ -1582,6 +1739,106 @@ public class VimD
     /*private*/ static final int ML_LOCKED_DIRTY = 4;   /* ml_locked was changed */
     /*private*/ static final int ML_LOCKED_POS   = 8;   /* ml_locked needs positive block number */
 
+    /*
+     * When viewing a file with 'mmapview' set, the lines are not copied into the memfile,
+     * but read from the file when needed, until the buffer is changed.
+     *
+     * The file is divided into chunks of MM_CHUNK_SIZE bytes.  For each chunk, the number
+     * of the line containing its first byte is kept.  Only the first chunk is counted before
+     * the file is shown, a thread counts the others; the lines become available as their chunks
+     * are counted, see ml_map_poll().  Where the lines in a chunk start is only found when that
+     * chunk is needed, the last MM_INDEX_COUNT chunks are cached with their indexes.
+     *
+     * The file is read with pread(), it is not mapped: when the file becomes shorter while it is
+     * viewed, touching a mapping beyond its end raises SIGBUS, a read just returns less.
+     */
+    /*private*/ static final int MM_CHUNK_SHIFT = 20;           /* a chunk is 1 Mbyte */
+    /*private*/ static final int MM_CHUNK_SIZE  = (1 << MM_CHUNK_SHIFT);
+    /*private*/ static final int MM_INDEX_COUNT = 8;
+
+    /*private*/ static final class mapfile_C
+    {
+        int         mm_fd;              /* the file, open for reading */
+        long        mm_size;            /* size of the file in bytes */
+        long        mm_end;             /* end of the text: "mm_size" without a trailing CTRL-Z */
+        boolean     mm_dos;             /* remove the CR before a NL */
+        boolean     mm_bin;             /* 'binary': don't check UTF-8, keep CTRL-Z */
+        long        mm_nl_count;        /* number of NLs in the counted chunks */
+
+        long[]      mm_chunk_lnum;      /* line containing first byte of each chunk,
+                                         * plus an extra entry: mm_nl_count + 1 */
+        int         mm_chunk_count;
+        int         mm_chunks;          /* chunks counted when last polled */
+        boolean     mm_done;            /* counting finished, see ml_map_end() */
+
+        int[]       mm_index_chunk;     /* chunk of each cached index, -1 when unused */
+        int[][]     mm_index;           /* offsets in the chunk just after each NL */
+        byte[][]    mm_data;            /* the bytes of the chunk */
+        int         mm_index_next;      /* next cache entry to replace */
+
+        /* Used by the counter, see ml_map_count(). */
+        Thread      mm_thread;
+        volatile int mm_counted;        /* chunks counted so far */
+        volatile boolean mm_ended;      /* the counter is done, the flags below are set */
+        volatile boolean mm_stop;       /* tells the counter to give up */
+        long        mm_nl_total;        /* NLs counted */
+        long        mm_valid_end;       /* end of the last checked UTF-8 sequence */
+        byte        mm_prev;            /* last byte counted */
+        long        mm_bare_nl;         /* NLs without a CR before them */
+        boolean     mm_illegal;         /* found an illegal UTF-8 byte sequence */
+        boolean     mm_error;           /* read error or the file became shorter */
+
+        /*private*/ mapfile_C()
+        {
+        }
+    }
+
+    /*
+     * With 'hexview' set, a file read with 'binary' is shown as a hex dump, like "xxd" makes it,
+     * HX_LINE_BYTES bytes per line.  The lines are made from the file when needed, which is read
+     * a page of HX_PAGE_SIZE bytes at a time, the last HX_PAGE_COUNT pages are kept.
+     * Changed lines are kept aside, until they are written back into the file, see ml_hex_write().
+     */
+    /*private*/ static final int HX_LINE_BYTES = 16;
+    /*private*/ static final int HX_PAGE_SIZE  = 0x10000;
+    /*private*/ static final int HX_PAGE_COUNT = 8;
+
+    /*private*/ static final class hexview_C
+    {
+        int         hx_fd;              /* the file, open for reading */
+        long        hx_size;            /* size of the file in bytes */
+
+        long[]      hx_page_off;        /* file offset of each cached page, -1 when unused */
+        byte[][]    hx_page;
+        int         hx_page_next;       /* next cache entry to replace */
+
+        TreeMap<Long, Bytes> hx_patch;  /* changed lines, by line number */
+
+        /*private*/ hexview_C()
+        {
+            hx_patch = new TreeMap<Long, Bytes>();
+        }
+    }
+
+    /*
+     * Lines appended in bulk are packed into full data blocks, that are put in the tree
+     * all at once, with pointer blocks built from the bottom up.  See ml_bulk_start().
+     */
+    /*private*/ static final class mlbulk_C
+    {
+        buffer_C    bk_buf;
+        long        bk_lnum;            /* the lines go after this line */
+        boolean     bk_newfile;         /* the lines are read from a new file */
+        block_hdr_C bk_hp;              /* data block being filled, or null */
+        ptr_entry_C[] bk_entries;       /* entries for the blocks filled so far */
+        int         bk_count;           /* number of used entries in bk_entries */
+        long        bk_line_count;      /* number of lines not in the tree yet */
+
+        /*private*/ mlbulk_C()
+        {
+        }
+    }
+
     /*
      * The memline structure holds all the information about a memline.
      */
@@ -1599,6 +1856,10 @@ public class VimD
 
         long        ml_line_lnum;       /* line number of cached line, 0 if not valid */
         Bytes       ml_line_ptr;        /* pointer to cached line */
+        Bytes       ml_line_buf;        /* cached line copied out of a slab, see 'offheap' */
+        long[]      ml_cache_lnum;      /* line numbers of the lines in ml_cache_ptr, see ml_cache_get() */
+        Bytes[]     ml_cache_ptr;       /* recently used lines */
+        boolean     ml_cache_used;      /* some of ml_cache_lnum are set */
 
         block_hdr_C ml_locked;          /* block used by last ml_get() */
         long        ml_locked_low;      /* first line in ml_locked */
@@ -1608,6 +1869,15 @@ public class VimD
         chunksize_C[] ml_chunksize;
         int         ml_numchunks;
         int         ml_usedchunks;
+        int[]       ml_chunktree_lines; /* Fenwick tree of mlcs_numlines, see ml_chunk_tree() */
+        long[]      ml_chunktree_bytes; /* Fenwick tree of mlcs_totalsize */
+        int         ml_chunktree_count; /* number of chunks in the trees, 0 when to be rebuilt */
+
+        mapfile_C   ml_map;             /* mapped file the lines are taken from, or null */
+        hexview_C   ml_hex;             /* file shown as a hex dump the lines are made from, or null */
+        lazyload_C  ml_lazy;            /* background load still appending lines, or null */
+        mlbulk_C    ml_bulk;            /* lines appended in bulk that are not in the tree yet, or null */
+        int         ml_sparse;          /* number of data blocks that became sparse, see ml_compact() */
 
         /*private*/ memline_C()
         {
@@ -2383,6 +2653,7 @@ public class VimD
         boolean[]   b_changed = new boolean[1]; /* 'modified': Set to true if something in the
                                          * file has been changed and not written out. */
         int         b_changedtick;      /* incremented for each change, also for undo */
+        long        b_text_tick;        /* incremented for each change of the text, see ml_cache_clear() */
 
         boolean     b_saving;           /* Set to true if we are in the middle of saving the buffer. */
 
@@ -2403,6 +2674,20 @@ public class VimD
         long        b_mtime_read;       /* last change time when reading */
         long        b_orig_size;        /* size of original file in bytes */
         int         b_orig_mode;        /* mode of original file */
+        boolean     b_hex;              /* lines are a hex dump of the file, see 'hexview' */
+
+        Bytes       b_watch_fname;      /* "b_ffname" when "b_watch" was set, see filewatch_unchanged() */
+        watchdir_C  b_watch;            /* watched directory of the file, null if not watched */
+        String      b_watch_name;       /* name of the file in "b_watch" */
+        int         b_watch_lost;       /* "wd_lost" of "b_watch" when last checked */
+
+        boolean     b_follow;           /* ":follow" appends what is written to the file */
+        long        b_follow_off;       /* file offset of the first byte not yet read */
+        boolean     b_follow_part;      /* last line was read without its line break */
+        long        b_follow_size;      /* "b_orig_size" after the last read */
+        buffer_C    b_follow_next;      /* next followed buffer, see follow_first */
+
+        prefetch_C  b_prefetch;         /* file being read ahead for readfile(), see arg_prefetch() */
 
         pos_C[]     b_namedm;           /* current named marks (mark.c) */
 
@@ -2455,6 +2740,12 @@ public class VimD
         long        b_u_seq_cur;        /* hu_seq of header below which we are now */
         long        b_u_time_cur;       /* uh_time of header below which we are now */
         long        b_u_save_nr_cur;    /* file write nr after which we are now */
+        long[]      b_u_stat;           /* undo entries, lines and bytes counted by u_memstat() */
+        long        b_u_stat_tick;      /* "b_changedtick" when they were counted */
+        long        b_u_stat_seq;       /* "b_u_seq_cur" when they were counted */
+        int         b_u_stat_numhead;   /* "b_u_numhead" when they were counted */
+        Bytes       b_u_hash;           /* hash of the text computed when reading or writing the file */
+        long        b_u_hash_tick;      /* "b_text_tick" when "b_u_hash" was computed */
 
         /*
          * variables for "U" command in undo.c
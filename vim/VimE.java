@@ -211,212 +211,215 @@ public class VimE
         CMD_first = 91,
         CMD_fixdel = 92,
         CMD_for = 93,
-        CMD_function = 94,
-        CMD_global = 95,
-        CMD_goto = 96,
-        CMD_highlight = 97,
-        CMD_hide = 98,
-        CMD_history = 99,
-        CMD_insert = 100,
-        CMD_iabbrev = 101,
-        CMD_iabclear = 102,
-        CMD_if = 103,
-        CMD_imap = 104,
-        CMD_imapclear = 105,
-        CMD_inoremap = 106,
-        CMD_inoreabbrev = 107,
-        CMD_iunmap = 108,
-        CMD_iunabbrev = 109,
-        CMD_join = 110,
-        CMD_jumps = 111,
-        CMD_k = 112,
-        CMD_keepmarks = 113,
-        CMD_keepjumps = 114,
-        CMD_keeppatterns = 115,
-        CMD_keepalt = 116,
-        CMD_list = 117,
-        CMD_last = 118,
-        CMD_later = 119,
-        CMD_left = 120,
-        CMD_leftabove = 121,
-        CMD_let = 122,
-        CMD_lmap = 123,
-        CMD_lmapclear = 124,
-        CMD_lnoremap = 125,
-        CMD_lockmarks = 126,
-        CMD_lockvar = 127,
-        CMD_lunmap = 128,
-        CMD_ls = 129,
-        CMD_move = 130,
-        CMD_mark = 131,
-        CMD_map = 132,
-        CMD_mapclear = 133,
-        CMD_marks = 134,
-        CMD_match = 135,
-        CMD_messages = 136,
-        CMD_mode = 137,
-        CMD_next = 138,
-        CMD_new = 139,
-        CMD_nmap = 140,
-        CMD_nmapclear = 141,
-        CMD_nnoremap = 142,
-        CMD_noremap = 143,
-        CMD_noautocmd = 144,
-        CMD_nohlsearch = 145,
-        CMD_noreabbrev = 146,
-        CMD_normal = 147,
-        CMD_number = 148,
-        CMD_nunmap = 149,
-        CMD_open = 150,
-        CMD_omap = 151,
-        CMD_omapclear = 152,
-        CMD_only = 153,
-        CMD_onoremap = 154,
-        CMD_ounmap = 155,
-        CMD_ownsyntax = 156,
-        CMD_print = 157,
-        CMD_previous = 158,
-        CMD_profdel = 159,
-        CMD_put = 160,
-        CMD_quit = 161,
-        CMD_quitall = 162,
-        CMD_qall = 163,
-        CMD_read = 164,
-        CMD_redo = 165,
-        CMD_redir = 166,
-        CMD_redraw = 167,
-        CMD_redrawstatus = 168,
-        CMD_registers = 169,
-        CMD_resize = 170,
-        CMD_retab = 171,
-        CMD_return = 172,
-        CMD_rewind = 173,
-        CMD_right = 174,
-        CMD_rightbelow = 175,
-        CMD_runtime = 176,
-        CMD_rundo = 177,
-        CMD_substitute = 178,
-        CMD_sNext = 179,
-        CMD_sargument = 180,
-        CMD_sall = 181,
-        CMD_sandbox = 182,
-        CMD_saveas = 183,
-        CMD_sbuffer = 184,
-        CMD_sbNext = 185,
-        CMD_sball = 186,
-        CMD_sbfirst = 187,
-        CMD_sblast = 188,
-        CMD_sbmodified = 189,
-        CMD_sbnext = 190,
-        CMD_sbprevious = 191,
-        CMD_sbrewind = 192,
-        CMD_scriptnames = 193,
-        CMD_set = 194,
-        CMD_setfiletype = 195,
-        CMD_setglobal = 196,
-        CMD_setlocal = 197,
-        CMD_sfirst = 198,
-        CMD_silent = 199,
-        CMD_sleep = 200,
-        CMD_slast = 201,
-        CMD_smagic = 202,
-        CMD_smap = 203,
-        CMD_smapclear = 204,
-        CMD_snext = 205,
-        CMD_snomagic = 206,
-        CMD_snoremap = 207,
-        CMD_source = 208,
-        CMD_sort = 209,
-        CMD_split = 210,
-        CMD_sprevious = 211,
-        CMD_srewind = 212,
-        CMD_stop = 213,
-        CMD_startinsert = 214,
-        CMD_startgreplace = 215,
-        CMD_startreplace = 216,
-        CMD_stopinsert = 217,
-        CMD_sunhide = 218,
-        CMD_sunmap = 219,
-        CMD_suspend = 220,
-        CMD_sview = 221,
-        CMD_syntax = 222,
-        CMD_syncbind = 223,
-        CMD_t = 224,
-        CMD_tab = 225,
-        CMD_tabclose = 226,
-        CMD_tabdo = 227,
-        CMD_tabedit = 228,
-        CMD_tabfirst = 229,
-        CMD_tabmove = 230,
-        CMD_tablast = 231,
-        CMD_tabnext = 232,
-        CMD_tabnew = 233,
-        CMD_tabonly = 234,
-        CMD_tabprevious = 235,
-        CMD_tabNext = 236,
-        CMD_tabrewind = 237,
-        CMD_tabs = 238,
-        CMD_throw = 239,
-        CMD_topleft = 240,
-        CMD_try = 241,
-        CMD_undo = 242,
-        CMD_undojoin = 243,
-        CMD_undolist = 244,
-        CMD_unabbreviate = 245,
-        CMD_unhide = 246,
-        CMD_unlet = 247,
-        CMD_unlockvar = 248,
-        CMD_unmap = 249,
-        CMD_unsilent = 250,
-        CMD_update = 251,
-        CMD_vglobal = 252,
-        CMD_verbose = 253,
-        CMD_vertical = 254,
-        CMD_visual = 255,
-        CMD_view = 256,
-        CMD_vmap = 257,
-        CMD_vmapclear = 258,
-        CMD_vnoremap = 259,
-        CMD_vnew = 260,
-        CMD_vsplit = 261,
-        CMD_vunmap = 262,
-        CMD_write = 263,
-        CMD_wNext = 264,
-        CMD_wall = 265,
-        CMD_while = 266,
-        CMD_winsize = 267,
-        CMD_wincmd = 268,
-        CMD_windo = 269,
-        CMD_winpos = 270,
-        CMD_wnext = 271,
-        CMD_wprevious = 272,
-        CMD_wq = 273,
-        CMD_wqall = 274,
-        CMD_wundo = 275,
-        CMD_xit = 276,
-        CMD_xall = 277,
-        CMD_xmap = 278,
-        CMD_xmapclear = 279,
-        CMD_xnoremap = 280,
-        CMD_xunmap = 281,
-        CMD_yank = 282,
-        CMD_z = 283,
+        CMD_follow = 94,
+        CMD_function = 95,
+        CMD_global = 96,
+        CMD_goto = 97,
+        CMD_highlight = 98,
+        CMD_hide = 99,
+        CMD_history = 100,
+        CMD_insert = 101,
+        CMD_iabbrev = 102,
+        CMD_iabclear = 103,
+        CMD_if = 104,
+        CMD_imap = 105,
+        CMD_imapclear = 106,
+        CMD_inoremap = 107,
+        CMD_inoreabbrev = 108,
+        CMD_iunmap = 109,
+        CMD_iunabbrev = 110,
+        CMD_join = 111,
+        CMD_jumps = 112,
+        CMD_k = 113,
+        CMD_keepmarks = 114,
+        CMD_keepjumps = 115,
+        CMD_keeppatterns = 116,
+        CMD_keepalt = 117,
+        CMD_list = 118,
+        CMD_last = 119,
+        CMD_later = 120,
+        CMD_left = 121,
+        CMD_leftabove = 122,
+        CMD_let = 123,
+        CMD_lmap = 124,
+        CMD_lmapclear = 125,
+        CMD_lnoremap = 126,
+        CMD_lockmarks = 127,
+        CMD_lockvar = 128,
+        CMD_lunmap = 129,
+        CMD_ls = 130,
+        CMD_move = 131,
+        CMD_mark = 132,
+        CMD_map = 133,
+        CMD_mapclear = 134,
+        CMD_marks = 135,
+        CMD_match = 136,
+        CMD_messages = 137,
+        CMD_memstat = 138,
+        CMD_mode = 139,
+        CMD_next = 140,
+        CMD_new = 141,
+        CMD_nmap = 142,
+        CMD_nmapclear = 143,
+        CMD_nnoremap = 144,
+        CMD_noremap = 145,
+        CMD_noautocmd = 146,
+        CMD_nohlsearch = 147,
+        CMD_noreabbrev = 148,
+        CMD_normal = 149,
+        CMD_number = 150,
+        CMD_nunmap = 151,
+        CMD_open = 152,
+        CMD_omap = 153,
+        CMD_omapclear = 154,
+        CMD_only = 155,
+        CMD_onoremap = 156,
+        CMD_ounmap = 157,
+        CMD_ownsyntax = 158,
+        CMD_print = 159,
+        CMD_previous = 160,
+        CMD_profdel = 161,
+        CMD_put = 162,
+        CMD_quit = 163,
+        CMD_quitall = 164,
+        CMD_qall = 165,
+        CMD_read = 166,
+        CMD_recover = 167,
+        CMD_redo = 168,
+        CMD_redir = 169,
+        CMD_redraw = 170,
+        CMD_redrawstatus = 171,
+        CMD_registers = 172,
+        CMD_resize = 173,
+        CMD_retab = 174,
+        CMD_return = 175,
+        CMD_rewind = 176,
+        CMD_right = 177,
+        CMD_rightbelow = 178,
+        CMD_runtime = 179,
+        CMD_rundo = 180,
+        CMD_substitute = 181,
+        CMD_sNext = 182,
+        CMD_sargument = 183,
+        CMD_sall = 184,
+        CMD_sandbox = 185,
+        CMD_saveas = 186,
+        CMD_sbuffer = 187,
+        CMD_sbNext = 188,
+        CMD_sball = 189,
+        CMD_sbfirst = 190,
+        CMD_sblast = 191,
+        CMD_sbmodified = 192,
+        CMD_sbnext = 193,
+        CMD_sbprevious = 194,
+        CMD_sbrewind = 195,
+        CMD_scriptnames = 196,
+        CMD_set = 197,
+        CMD_setfiletype = 198,
+        CMD_setglobal = 199,
+        CMD_setlocal = 200,
+        CMD_sfirst = 201,
+        CMD_silent = 202,
+        CMD_sleep = 203,
+        CMD_slast = 204,
+        CMD_smagic = 205,
+        CMD_smap = 206,
+        CMD_smapclear = 207,
+        CMD_snext = 208,
+        CMD_snomagic = 209,
+        CMD_snoremap = 210,
+        CMD_source = 211,
+        CMD_sort = 212,
+        CMD_split = 213,
+        CMD_sprevious = 214,
+        CMD_srewind = 215,
+        CMD_stop = 216,
+        CMD_startinsert = 217,
+        CMD_startgreplace = 218,
+        CMD_startreplace = 219,
+        CMD_stopinsert = 220,
+        CMD_sunhide = 221,
+        CMD_sunmap = 222,
+        CMD_suspend = 223,
+        CMD_sview = 224,
+        CMD_syntax = 225,
+        CMD_syncbind = 226,
+        CMD_t = 227,
+        CMD_tab = 228,
+        CMD_tabclose = 229,
+        CMD_tabdo = 230,
+        CMD_tabedit = 231,
+        CMD_tabfirst = 232,
+        CMD_tabmove = 233,
+        CMD_tablast = 234,
+        CMD_tabnext = 235,
+        CMD_tabnew = 236,
+        CMD_tabonly = 237,
+        CMD_tabprevious = 238,
+        CMD_tabNext = 239,
+        CMD_tabrewind = 240,
+        CMD_tabs = 241,
+        CMD_throw = 242,
+        CMD_topleft = 243,
+        CMD_try = 244,
+        CMD_undo = 245,
+        CMD_undojoin = 246,
+        CMD_undolist = 247,
+        CMD_unabbreviate = 248,
+        CMD_unhide = 249,
+        CMD_unlet = 250,
+        CMD_unlockvar = 251,
+        CMD_unmap = 252,
+        CMD_unsilent = 253,
+        CMD_update = 254,
+        CMD_vglobal = 255,
+        CMD_verbose = 256,
+        CMD_vertical = 257,
+        CMD_visual = 258,
+        CMD_view = 259,
+        CMD_vmap = 260,
+        CMD_vmapclear = 261,
+        CMD_vnoremap = 262,
+        CMD_vnew = 263,
+        CMD_vsplit = 264,
+        CMD_vunmap = 265,
+        CMD_write = 266,
+        CMD_wNext = 267,
+        CMD_wall = 268,
+        CMD_while = 269,
+        CMD_winsize = 270,
+        CMD_wincmd = 271,
+        CMD_windo = 272,
+        CMD_winpos = 273,
+        CMD_wnext = 274,
+        CMD_wprevious = 275,
+        CMD_wq = 276,
+        CMD_wqall = 277,
+        CMD_wundo = 278,
+        CMD_xit = 279,
+        CMD_xall = 280,
+        CMD_xmap = 281,
+        CMD_xmapclear = 282,
+        CMD_xnoremap = 283,
+        CMD_xunmap = 284,
+        CMD_yank = 285,
+        CMD_z = 286,
 
     /* commands that don't start with a lowercase letter */
 
-        CMD_bang = 284,
-        CMD_pound = 285,
-        CMD_and = 286,
-        CMD_star = 287,
-        CMD_lshift = 288,
-        CMD_equal = 289,
-        CMD_rshift = 290,
-        CMD_at = 291,
-        CMD_Next = 292,
-        CMD_Print = 293,
-        CMD_tilde = 294,
+        CMD_bang = 287,
+        CMD_pound = 288,
+        CMD_and = 289,
+        CMD_star = 290,
+        CMD_lshift = 291,
+        CMD_equal = 292,
+        CMD_rshift = 293,
+        CMD_at = 294,
+        CMD_Next = 295,
+        CMD_Print = 296,
+        CMD_tilde = 297,
 
-        CMD_SIZE = 295,     /* MUST be after all real commands! */
+        CMD_SIZE = 298,     /* MUST be after all real commands! */
         CMD_USER = -1,      /* user-defined command */
         CMD_USER_BUF = -2;  /* user-defined command local to buffer */
 
@@ -332,6 +332,7 @@ public class VimG
          * If opened more than one window, start editing files in the other windows.
          */
         edit_buffers(params);
+        arg_prefetch_end();
 
         /*
          * Shorten any of the filenames, but only when absolute.
@@ -552,6 +553,9 @@ public class VimG
     {
         exiting = true;
 
+        /* Don't leave a file half written. */
+        bgwrite_finish(null);
+
         /* When running in Ex mode an error causes us to exit with a non-zero exit code.
          * POSIX requires this, although it's not 100% clear from the standard. */
         if (exmode_active != 0)
@@ -1072,6 +1076,9 @@ public class VimG
         else
             parmp.window_count = 1;
 
+        /* Read the files for the windows ahead, while they are opened one by one below. */
+        arg_prefetch(global_alist.al_ga, 0, parmp.window_count);
+
         /*
          * Open a buffer for windows that don't have one yet.
          * Commands in the .vimrc might have loaded a file or split the window.
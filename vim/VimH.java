@@ -175,12 +175,31 @@ public class VimH
         }
         else        /* wtime == -1 */
         {
+            /* Keep appending lines of files loaded in the background. */
+            while ((lazy_first != null || map_counting != 0) && waitForChar(LAZY_POLL) == false)
+                lazy_poll();
+
+            /* Report files written in the background. */
+            while (bgwrite_first != null && waitForChar(BGW_POLL) == false)
+                bgwrite_poll();
+
+            /* Rebuild memlines with many sparse blocks while nothing is typed. */
+            if (p_mcp[0] && waitForChar(0L) == false)
+                ml_compact_all();
+
+            /* Hand the blocks changed by the last command to the journal writers,
+             * then go on with the trees of new journals while nothing is typed. */
+            if (waitForChar(0L) == false)
+                ml_journal_sync_all();
+            while (waitForChar(0L) == false && ml_journal_walk_all())
+                ;
+
             /*
              * If there is no character available within 'updatetime' seconds
              * flush all the swap files to disk.
              * Also done when interrupted by SIGWINCH.
              */
-            if (waitForChar(p_ut[0]) == false)
+            if (follow_wait(p_ut[0]) == false)
             {
                 if (trigger_cursorhold() && 3 <= maxlen && !typebuf_changed(tb_change_cnt))
                 {
@@ -202,7 +221,7 @@ public class VimH
              * We want to be interrupted by the winch signal
              * or by an event on the monitored file descriptors.
              */
-            if (waitForChar(-1L) == false)
+            if (follow_wait(-1L) == false)
             {
                 if (do_resize)                      /* interrupted by SIGWINCH signal */
                     handle_resize();
@@ -230,6 +249,29 @@ public class VimH
         shell_resized();
     }
 
+    /*
+     * Like waitForChar(), but append to the followed files every FOLLOW_POLL msec.
+     * Returns false when interrupted by a resize, like waitForChar().
+     */
+    /*private*/ static boolean follow_wait(long msec)
+    {
+        while (follow_first != null)
+        {
+            long wait = (msec < 0 || FOLLOW_POLL < msec) ? FOLLOW_POLL : msec;
+            if (waitForChar(wait))
+                return true;
+            if (do_resize)
+                return false;
+
+            follow_poll();
+
+            if (0 <= msec && (msec -= wait) <= 0)
+                return false;
+        }
+
+        return waitForChar(msec);
+    }
+
     /*private*/ static void mch_delay(long msec, boolean ignoreinput)
     {
         if (ignoreinput)
@@ -4787,6 +4829,10 @@ public class VimH
         (
             u8("background"), u8("bg"), P_RCLR, p_bg, PV_NONE, u8("light")
         ),
+        bool_opt
+        (
+            u8("backgroundwrite"), u8("bgw"), 0, p_bgw, PV_NONE, false
+        ),
         utf8_opt
         (
             u8("backspace"), u8("bs"), P_COMMA|P_NODUP, p_bs, PV_NONE, u8("")
@@ -4992,6 +5038,10 @@ public class VimH
             u8("gdefault"), u8("gd"), 0, p_gd, PV_NONE, false
         ),
         bool_opt
+        (
+            u8("hexview"), u8("hxv"), 0, p_hxv, PV_NONE, false
+        ),
+        bool_opt
         (
             u8("hidden"), u8("hid"), 0, p_hid, PV_NONE, false
         ),
@@ -5059,6 +5109,10 @@ public class VimH
         (
             u8("joinspaces"), u8("js"), 0, p_js, PV_NONE, true
         ),
+        bool_opt
+        (
+            u8("journal"), u8("jnl"), 0, p_jnl, PV_NONE, false
+        ),
         utf8_opt
         (
             u8("keymodel"), u8("km"), P_COMMA|P_NODUP, p_km, PV_NONE, u8("")
@@ -5071,6 +5125,10 @@ public class VimH
         (
             u8("laststatus"), u8("ls"), P_RALL, p_ls, PV_NONE, 1L
         ),
+        long_opt
+        (
+            u8("lazyload"), u8("lzl"), 0, p_lzl, PV_NONE, 0L
+        ),
         bool_opt
         (
             u8("lazyredraw"), u8("lz"), 0, p_lz, PV_NONE, false
@@ -5124,10 +5182,22 @@ public class VimH
             u8("maxmapdepth"), u8("mmd"), 0, p_mmd, PV_NONE, 1000L
         ),
         long_opt
+        (
+            u8("maxmem"), u8("mm"), 0, p_mm, PV_NONE, 0L
+        ),
+        long_opt
         (
             u8("maxmempattern"), u8("mmp"), 0, p_mmp, PV_NONE, 1000L
         ),
         bool_opt
+        (
+            u8("memcompact"), u8("mcp"), 0, p_mcp, PV_NONE, false
+        ),
+        bool_opt
+        (
+            u8("mmapview"), u8("mmv"), 0, p_mmv, PV_NONE, false
+        ),
+        bool_opt
         (
             u8("modifiable"), u8("ma"), P_NOGLOB, p_ma, PV_MA, true
         ),
@@ -5163,6 +5233,10 @@ public class VimH
         (
             u8("numberwidth"), u8("nuw"), P_RWIN, VAR_WIN, PV_NUW, 4L
         ),
+        bool_opt
+        (
+            u8("offheap"), u8("ofh"), 0, p_ofh, PV_NONE, false
+        ),
         utf8_opt
         (
             u8("operatorfunc"), u8("opfunc"), P_SECURE, p_opfunc, PV_NONE, u8("")
@@ -5203,6 +5277,10 @@ public class VimH
         (
             u8("regexpengine"), u8("re"), 0, p_re, PV_NONE, 0L
         ),
+        long_opt
+        (
+            u8("regexpjit"), u8("rjit"), 0, p_rjit, PV_NONE, 0L
+        ),
         bool_opt
         (
             u8("relativenumber"), u8("rnu"), P_RWIN, VAR_WIN, PV_RNU, false
@@ -5464,6 +5542,10 @@ public class VimH
             u8("warn"), null, 0, p_warn, PV_NONE, true
         ),
         bool_opt
+        (
+            u8("watchfiles"), u8("wfs"), 0, p_wfs, PV_NONE, false
+        ),
+        bool_opt
         (
             u8("weirdinvert"), u8("wiv"), P_RCLR, p_wiv, PV_NONE, false
         ),
@@ -8331,11 +8413,16 @@ public class VimH
             errmsg = e_invarg;
             p_hi[0] = 10000;
         }
-        if (p_re[0] < 0 || 2 < p_re[0])
+        if (p_re[0] < 0 || 3 < p_re[0])
         {
             errmsg = e_invarg;
             p_re[0] = 0;
         }
+        if (p_rjit[0] < 0)
+        {
+            errmsg = e_positive;
+            p_rjit[0] = 0;
+        }
         if (p_report[0] < 0)
         {
             errmsg = e_positive;
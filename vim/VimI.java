@@ -1598,6 +1598,7 @@ public class VimI
                         switch (ea.addr_type)
                         {
                             case ADDR_LINES:
+                                lazy_finish(curbuf);
                                 ea.line1 = 1;
                                 ea.line2 = curbuf.b_ml.ml_line_count;
                                 break;
@@ -1735,6 +1736,8 @@ public class VimI
                 }
                 else if (ea.addr_count != 0)
                 {
+                    if (curbuf.b_ml.ml_line_count < ea.line2)
+                        lazy_finish(curbuf);        /* may not be loaded yet */
                     if (curbuf.b_ml.ml_line_count < ea.line2)
                     {
                         /* With '-' in 'cpoptions' a line number past the file is an error,
@@ -2021,6 +2024,7 @@ public class VimI
                 switch (ea.addr_type)
                 {
                     case ADDR_LINES:
+                        lazy_finish(curbuf);
                         ea.line2 = curbuf.b_ml.ml_line_count;
                         break;
 
@@ -3337,6 +3341,7 @@ public class VimI
                     switch (addr_type)
                     {
                         case ADDR_LINES:
+                            lazy_finish(curbuf);
                             lnum = curbuf.b_ml.ml_line_count;
                             break;
 
@@ -3602,7 +3607,11 @@ public class VimI
             {
                 case ADDR_LINES:
                     if ((eap.argt & NOTADR) == 0 && curbuf.b_ml.ml_line_count < eap.line2)
-                        return e_invrange;
+                    {
+                        lazy_finish(curbuf);        /* may not be loaded yet */
+                        if (curbuf.b_ml.ml_line_count < eap.line2)
+                            return e_invrange;
+                    }
                     break;
 
                 case ADDR_ARGUMENTS:
@@ -6779,6 +6788,21 @@ public class VimI
         }
     };
 
+    /*
+     * ":recover[!] [journal]".
+     */
+    /*private*/ static final ex_func_C ex_recover = new ex_func_C()
+    {
+        public void ex(exarg_C eap)
+        {
+            if (!check_changed(curbuf, (p_awa[0] ? CCGD_AW : 0)
+                                    | CCGD_MULTWIN
+                                    | (eap.forceit ? CCGD_FORCEIT : 0)
+                                    | CCGD_EXCMD))
+                ml_recover(eap.arg.at(0) != NUL ? eap.arg : null);
+        }
+    };
+
     /*
      * ":redo".
      */
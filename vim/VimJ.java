@@ -9458,6 +9458,51 @@ public class VimJ
         }
     };
 
+    /*
+     * "memstat([{expr}])" function
+     */
+    /*private*/ static final f_func_C f_memstat = new f_func_C()
+    {
+        public void fun(typval_C[] argvars, typval_C rtv)
+        {
+            buffer_C buf;
+            if (argvars[0].tv_type == VAR_UNKNOWN)
+                buf = curbuf;
+            else
+            {
+                get_tv_number(argvars[0]);      /* issue errmsg if type error */
+                emsg_off++;
+                buf = get_buf_tv(argvars[0], false);
+                --emsg_off;
+            }
+
+            rettv_dict_alloc(rtv);
+            if (buf == null)
+                return;
+
+            memstat_C ms = new memstat_C();
+            buf_memstat(buf, ms);
+            long[] lines = new long[1];
+            long bytes = reg_memstat(lines);
+
+            dict_C dict = rtv.tv_dict;
+
+            dict_add_nr_str(dict, u8("lines"), ms.ms_lines, null);
+            dict_add_nr_str(dict, u8("datablocks"), ms.ms_data_blocks, null);
+            dict_add_nr_str(dict, u8("ptrblocks"), ms.ms_ptr_blocks, null);
+            dict_add_nr_str(dict, u8("memory"), ms.ms_pages * MEMFILE_PAGE_SIZE, null);
+            dict_add_nr_str(dict, u8("swap"), ms.ms_file_pages * MEMFILE_PAGE_SIZE, null);
+            dict_add_nr_str(dict, u8("undoheaders"), ms.ms_undo_headers, null);
+            dict_add_nr_str(dict, u8("undoentries"), ms.ms_undo_entries, null);
+            dict_add_nr_str(dict, u8("undolines"), ms.ms_undo_lines, null);
+            dict_add_nr_str(dict, u8("undobytes"), ms.ms_undo_bytes, null);
+            dict_add_nr_str(dict, u8("synstates"), ms.ms_syn_states, null);
+            dict_add_nr_str(dict, u8("synstack"), ms.ms_syn_stack, null);
+            dict_add_nr_str(dict, u8("reglines"), lines[0], null);
+            dict_add_nr_str(dict, u8("regbytes"), bytes, null);
+        }
+    };
+
     /*
      * "min()" function
      */
@@ -9862,6 +9907,24 @@ public class VimJ
         return !error[0];
     }
 
+    /*
+     * "regcachestat()" function
+     */
+    /*private*/ static final f_func_C f_regcachestat = new f_func_C()
+    {
+        public void fun(typval_C[] argvars, typval_C rtv)
+        {
+            rettv_dict_alloc(rtv);
+
+            dict_C dict = rtv.tv_dict;
+
+            dict_add_nr_str(dict, u8("hits"), regcache_hits, null);
+            dict_add_nr_str(dict, u8("misses"), regcache_misses, null);
+            dict_add_nr_str(dict, u8("entries"), regcache.size(), null);
+            dict_add_nr_str(dict, u8("max"), REGCACHE_MAX, null);
+        }
+    };
+
     /*
      * "reltime()" function
      */
@@ -12710,6 +12773,7 @@ public class VimJ
         new fst_C(u8("matchlist"),       2,  4, f_matchlist      ),
         new fst_C(u8("matchstr"),        2,  4, f_matchstr       ),
         new fst_C(u8("max"),             1,  1, f_max            ),
+        new fst_C(u8("memstat"),         0,  1, f_memstat        ),
         new fst_C(u8("min"),             1,  1, f_min            ),
         new fst_C(u8("mode"),            0,  1, f_mode           ),
         new fst_C(u8("nextnonblank"),    1,  1, f_nextnonblank   ),
@@ -12719,6 +12783,7 @@ public class VimJ
         new fst_C(u8("prevnonblank"),    1,  1, f_prevnonblank   ),
         new fst_C(u8("range"),           1,  3, f_range          ),
         new fst_C(u8("readfile"),        1,  3, f_readfile       ),
+        new fst_C(u8("regcachestat"),    0,  0, f_regcachestat   ),
         new fst_C(u8("reltime"),         0,  2, f_reltime        ),
         new fst_C(u8("reltimestr"),      1,  1, f_reltimestr     ),
         new fst_C(u8("remove"),          2,  3, f_remove         ),
@@ -12884,6 +12949,7 @@ public class VimJ
         {
             if (dollar_lnum)
             {
+                lazy_finish(curbuf);
                 _1_pos.lnum = curbuf.b_ml.ml_line_count;
                 _1_pos.col = 0;
             }
@@ -17490,6 +17556,9 @@ public class VimJ
     {
         boolean forceit = ((flags & CCGD_FORCEIT) != 0);
 
+        /* A write in the background resets 'modified' when done. */
+        bgwrite_finish(buf);
+
         if (!forceit
                 && bufIsChanged(buf)
                 && ((flags & CCGD_MULTWIN) != 0 || buf.b_nwindows <= 1)
@@ -17620,6 +17689,8 @@ public class VimJ
     {
         boolean retval = false;
 
+        bgwrite_finish(null);
+
         int bufnum = 0;
         int bufcount = 0;
 
@@ -18291,6 +18362,7 @@ public class VimJ
                         break;
                     case CMD_argdo:
                         i = (int)(eap.line1 - 1);
+                        arg_prefetch(curwin.w_alist.al_ga, i, (int)eap.line2);
                         break;
                     default:
                         break;
@@ -18408,6 +18480,9 @@ public class VimJ
                         break;
                 }
                 listcmd_busy = false;
+
+                if (eap.cmdidx == CMD_argdo)
+                    arg_prefetch_end();
             }
 
             if (save_ei != null)
@@ -6543,6 +6543,10 @@ public class VimK
     {
         public void nv(cmdarg_C cap)
         {
+            /* The last line, or a line not loaded yet. */
+            if (cap.arg != 0 || curbuf.b_ml.ml_line_count < cap.count0)
+                lazy_finish(curbuf);
+
             long lnum;
             if (cap.arg != 0)
                 lnum = curbuf.b_ml.ml_line_count;
@@ -7301,6 +7305,8 @@ public class VimK
         int         y_size;             /* number of lines in "y_array" */
         byte        y_type;             /* MLINE, MCHAR or MBLOCK */
         int         y_width;            /* only set if y_type == MBLOCK */
+        Bytes[]     y_counted;          /* "y_array" that "y_bytes" was counted for */
+        long        y_bytes;            /* bytes of the lines, see reg_memstat() */
 
         /*private*/ yankreg_C()
         {
@@ -7975,6 +7981,37 @@ public class VimK
         return false;
     }
 
+    /*
+     * Return the number of bytes in the lines of all registers and put the number of lines in "lines".
+     * A register is only counted again when its text was replaced.
+     */
+    /*private*/ static long reg_memstat(long[] lines)
+    {
+        long bytes = 0;
+
+        lines[0] = 0;
+        for (int i = 0; i < NUM_REGISTERS; i++)
+        {
+            yankreg_C reg = y_regs[i];
+            if (reg.y_array == null)
+                continue;
+
+            if (reg.y_counted != reg.y_array)
+            {
+                reg.y_bytes = 0;
+                for (int j = 0; j < reg.y_size; j++)
+                    if (reg.y_array[j] != null)
+                        reg.y_bytes += strlen(reg.y_array[j]) + 1;
+                reg.y_counted = reg.y_array;
+            }
+
+            lines[0] += reg.y_size;
+            bytes += reg.y_bytes;
+        }
+
+        return bytes;
+    }
+
     /*
      * Set y_current and y_append, according to the value of "regname".
      * Cannot handle the '_' register.
@@ -10340,6 +10377,7 @@ public class VimK
                     /*
                     * Insert at least one line.  When y_type is MCHAR, break the first line in two.
                     */
+                    mlbulk_C bulk = null;       /* without fixing indent the lines are appended in bulk */
                     error:
                     for (long cnt = 1; cnt <= count; cnt++)
                     {
@@ -10372,9 +10410,12 @@ public class VimK
                             i = 1;
                         }
 
+                        if ((flags & PUT_FIXINDENT) == 0)
+                            bulk = ml_bulk_start(curbuf, lnum, false);
                         for ( ; i < y_size; i++)
                         {
-                            if ((y_type != MCHAR || i < y_size - 1) && !ml_append(lnum, y_array[i], 0, false))
+                            if ((y_type != MCHAR || i < y_size - 1)
+                                    && !((bulk != null) ? ml_bulk_append(bulk, y_array[i], 0) : ml_append(lnum, y_array[i], 0, false)))
                                 break error;
                             lnum++;
                             nr_lines++;
@@ -10407,6 +10448,8 @@ public class VimK
                             }
                         }
                     }
+                    if (bulk != null)
+                        ml_bulk_end(bulk);
 
                     /* Adjust marks. */
                     if (y_type == MLINE)
@@ -5,6 +5,7 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReference;
 
 import jnr.ffi.LibraryLoader;
 import jnr.ffi.mapper.DataConverter;
@@ -636,9 +637,6 @@ public class VimN
     /*private*/ static boolean  reg_toolong;                /* true when offset out of range */
     /*private*/ static boolean[] had_endbrace = new boolean[NSUBEXP]; /* flags, true if end of () found */
     /*private*/ static int      regflags;                   /* RF_ flags for prog */
-    /*private*/ static long[]   brace_min = new long[10];   /* minimums for complex brace repeats */
-    /*private*/ static long[]   brace_max = new long[10];   /* maximums for complex brace repeats */
-    /*private*/ static int[]    brace_count = new int[10];  /* current counts for complex brace repeats */
     /*private*/ static boolean  had_eol;                    /* true when EOL found by vim_regcomp() */
     /*private*/ static boolean  one_exactly;                /* only do one char for EXACTLY */
 
@@ -716,14 +714,14 @@ public class VimN
             return bt_regcomp(expr, re_flags);
         }
 
-        public long regexec_nl(regmatch_C rmp, Bytes line, int col, boolean line_lbr)
+        public long regexec_nl(regexec_C rex, regmatch_C rmp, Bytes line, int col, boolean line_lbr)
         {
-            return bt_regexec_nl(rmp, line, col, line_lbr);
+            return bt_regexec_nl(rex, rmp, line, col, line_lbr);
         }
 
-        public long regexec_multi(regmmatch_C rmp, window_C win, buffer_C buf, long lnum, int col, timeval_C tm)
+        public long regexec_multi(regexec_C rex, regmmatch_C rmp, window_C win, buffer_C buf, long lnum, int col, timeval_C tm)
         {
-            return bt_regexec_multi(rmp, win, buf, lnum, col, tm);
+            return bt_regexec_multi(rex, rmp, win, buf, lnum, col, tm);
         }
     };
 
@@ -734,14 +732,14 @@ public class VimN
             return nfa_regcomp(expr, re_flags);
         }
 
-        public long regexec_nl(regmatch_C rmp, Bytes line, int col, boolean line_lbr)
+        public long regexec_nl(regexec_C rex, regmatch_C rmp, Bytes line, int col, boolean line_lbr)
         {
-            return nfa_regexec_nl(rmp, line, col, line_lbr);
+            return nfa_regexec_nl(rex, rmp, line, col, line_lbr);
         }
 
-        public long regexec_multi(regmmatch_C rmp, window_C win, buffer_C buf, long lnum, int col, timeval_C tm)
+        public long regexec_multi(regexec_C rex, regmmatch_C rmp, window_C win, buffer_C buf, long lnum, int col, timeval_C tm)
         {
-            return nfa_regexec_multi(rmp, win, buf, lnum, col, tm);
+            return nfa_regexec_multi(rex, rmp, win, buf, lnum, col, tm);
         }
     };
 
@@ -1488,6 +1486,7 @@ public class VimN
             {
                 emsg(u8("E339: Pattern too long"));
                 rc_did_emsg = true;
+                reg_toolong = false;    /* regnext() also checks it when executing */
             }
             return null;
         }
@@ -3515,18 +3514,6 @@ public class VimN
         return true;
     }
 
-    /*
-     * Global work variables for vim_regexec().
-     */
-
-    /* The current match-position is remembered with these variables: */
-    /*private*/ static long     reglnum;                /* line number, relative to first line */
-    /*private*/ static Bytes    regline;                /* start of current line */
-    /*private*/ static Bytes    reginput;               /* current input, points into "regline" */
-
-    /*private*/ static boolean  need_clear_subexpr;     /* subexpressions still need to be cleared */
-    /*private*/ static boolean  need_clear_zsubexpr;    /* extmatch subexpressions still need to be cleared */
-
     /*
      * Structure used to save the current input state, when it needs to be
      * restored after trying a match.  Used by reg_save() and reg_restore().
@@ -3589,62 +3576,6 @@ public class VimN
         }
     }
 
-    /*
-     * Internal copy of 'ignorecase'.  It is set at each call to vim_regexec().
-     * Normally it gets the value of "rm_ic" or "rmm_ic", but when the pattern
-     * contains '\c' or '\C' the value is overruled.
-     */
-    /*private*/ static boolean ireg_ic;
-
-    /*
-     * Similar to ireg_ic, but only for 'combining' characters.  Set with \Z flag
-     * in the regexp.  Defaults to false, always.
-     */
-    /*private*/ static boolean ireg_icombine;
-
-    /*
-     * Copy of "rmm_maxcol": maximum column to search for a match.  Zero when
-     * there is no maximum.
-     */
-    /*private*/ static int     ireg_maxcol;
-
-    /*
-     * Sometimes need to save a copy of a line.  Since calloc()/free() is very
-     * slow, we keep one allocated piece of memory and only re-allocate it when
-     * it's too small.  It's freed in bt_regexec_both() when finished.
-     */
-    /*private*/ static Bytes reg_tofree;
-    /*private*/ static int reg_tofree_len;
-
-    /*
-     * These variables are set when executing a regexp to speed up the execution.
-     * Which ones are set depends on whether a single-line or multi-line match is
-     * done:
-     *                      single-line             multi-line
-     * reg_match            regmatch_C              null
-     * reg_mmatch           null                    regmmatch_C
-     * reg_startp           reg_match.startp        <invalid>
-     * reg_endp             reg_match.endp          <invalid>
-     * reg_startpos         <invalid>               reg_mmatch.startpos
-     * reg_endpos           <invalid>               reg_mmatch.endpos
-     * reg_win              null                    window in which to search
-     * reg_buf              curbuf                  buffer in which to search
-     * reg_firstlnum        <invalid>               first line in which to search
-     * reg_maxline          0                       last line nr
-     * reg_line_lbr         false or true           false
-     */
-    /*private*/ static regmatch_C   reg_match;
-    /*private*/ static regmmatch_C  reg_mmatch;
-    /*private*/ static Bytes[]      reg_startp;
-    /*private*/ static Bytes[]      reg_endp;
-    /*private*/ static lpos_C[]     reg_startpos;
-    /*private*/ static lpos_C[]     reg_endpos;
-    /*private*/ static window_C     reg_win;
-    /*private*/ static buffer_C     reg_buf;
-    /*private*/ static long         reg_firstlnum;
-    /*private*/ static long         reg_maxline;
-    /*private*/ static boolean      reg_line_lbr;       /* "\n" in string is line break */
-
     /* Values for rs_state in regitem_C. */
     /*private*/ static final int
         RS_NOPEN = 0,           /* NOPEN and NCLOSE */
@@ -3709,13 +3640,196 @@ public class VimN
     }
 
     /*
-     * "regstack" and "backpos" are used by regmatch().
-     * They are kept over calls to avoid invoking calloc() and free() often.
-     * "regstack" is a stack with regitem_C items, sometimes preceded by regstar_C or regbehind_C.
-     * "backpos" is a table with backpos_C items for BACK.
+     * The state of one execution of a regexp, instead of global variables.
+     * vim_regexec(), vim_regexec_multi() and vim_regsub() take one with rex_get() and pass it to all
+     * functions of the matchers as "rex".  The program from vim_regcomp() is not changed by executing it,
+     * thus a regexp can be executed recursively and by more than one thread at the same time.
+     * Compiling still uses global variables and is only done by the main thread.
      */
-    /*private*/ static Growing<Object> regstack;
-    /*private*/ static Growing<backpos_C> backpos;
+    /*private*/ static final class regexec_C
+    {
+        /* The current match-position is remembered with these variables: */
+        long            reglnum;                /* line number, relative to first line */
+        Bytes           regline;                /* start of current line */
+        Bytes           reginput;               /* current input, points into "regline" */
+
+        boolean         need_clear_subexpr;     /* subexpressions still need to be cleared */
+        boolean         need_clear_zsubexpr;    /* extmatch subexpressions still need to be cleared */
+
+        /*
+         * Internal copy of 'ignorecase'.  It is set at each call to vim_regexec().
+         * Normally it gets the value of "rm_ic" or "rmm_ic", but when the pattern
+         * contains '\c' or '\C' the value is overruled.
+         */
+        boolean         ireg_ic;
+
+        /*
+         * Similar to ireg_ic, but only for 'combining' characters.  Set with \Z flag
+         * in the regexp.  Defaults to false, always.
+         */
+        boolean         ireg_icombine;
+
+        /*
+         * Copy of "rmm_maxcol": maximum column to search for a match.  Zero when
+         * there is no maximum.
+         */
+        int             ireg_maxcol;
+
+        /*
+         * Sometimes need to save a copy of a line.  Since calloc()/free() is very
+         * slow, we keep one allocated piece of memory and only re-allocate it when
+         * it's too small.  It's freed in bt_regexec_both() when finished.
+         */
+        Bytes           reg_tofree;
+        int             reg_tofree_len;
+
+        /*
+         * These variables are set when executing a regexp to speed up the execution.
+         * Which ones are set depends on whether a single-line or multi-line match is
+         * done:
+         *                      single-line             multi-line
+         * reg_match            regmatch_C              null
+         * reg_mmatch           null                    regmmatch_C
+         * reg_startp           reg_match.startp        <invalid>
+         * reg_endp             reg_match.endp          <invalid>
+         * reg_startpos         <invalid>               reg_mmatch.startpos
+         * reg_endpos           <invalid>               reg_mmatch.endpos
+         * reg_win              null                    window in which to search
+         * reg_buf              curbuf                  buffer in which to search
+         * reg_firstlnum        <invalid>               first line in which to search
+         * reg_maxline          0                       last line nr
+         * reg_line_lbr         false or true           false
+         */
+        regmatch_C      reg_match;
+        regmmatch_C     reg_mmatch;
+        Bytes[]         reg_startp;
+        Bytes[]         reg_endp;
+        lpos_C[]        reg_startpos;
+        lpos_C[]        reg_endpos;
+        window_C        reg_win;
+        buffer_C        reg_buf;
+        long            reg_firstlnum;
+        long            reg_maxline;
+        boolean         reg_line_lbr;           /* "\n" in string is line break */
+
+        /* Copies of re_extmatch_in and re_extmatch_out, which only the caller on the main thread uses. */
+        reg_extmatch_C  reg_extmatch_in;
+        reg_extmatch_C  reg_extmatch_out;
+        boolean         reg_extmatch_set;       /* "reg_extmatch_out" was set by a match */
+
+        /*
+         * "regstack" and "backpos" are used by regmatch().
+         * They are kept with the context over calls to avoid invoking calloc() and free() often.
+         * "regstack" is a stack with regitem_C items, sometimes preceded by regstar_C or regbehind_C.
+         * "backpos" is a table with backpos_C items for BACK.
+         */
+        Growing<Object> regstack;
+        Growing<backpos_C> backpos;
+
+        regsave_C       behind_pos = new regsave_C();
+
+        Bytes[]         reg_startzp = new Bytes[NSUBEXP];       /* Workspace to mark beginning */
+        Bytes[]         reg_endzp = new Bytes[NSUBEXP];         /*   and end of \z(...\) matches */
+        lpos_C[]        reg_startzpos = ARRAY_lpos(NSUBEXP);    /* idem, beginning pos */
+        lpos_C[]        reg_endzpos = ARRAY_lpos(NSUBEXP);      /* idem, end pos */
+
+        /*
+         * The arguments from BRACE_LIMITS are stored here.  They are actually local
+         * to regmatch(), but they are here to reduce the amount of stack space used
+         * (it can be called recursively many times).
+         */
+        long            bl_minval;
+        long            bl_maxval;
+
+        long[]          brace_min = new long[10];   /* minimums for complex brace repeats */
+        long[]          brace_max = new long[10];   /* maximums for complex brace repeats */
+        int[]           brace_count = new int[10];  /* current counts for complex brace repeats */
+
+        /* Copied from the NFA program, see nfa_regexec_both(). */
+        boolean         nfa_has_zend;
+        boolean         nfa_has_backref;
+        boolean         nfa_has_zsubexpr;       /* NFA regexp has \z( ), set zsubexpr */
+
+        /* Number of sub expressions actually being used during execution.
+         * 1 if only the whole match (subexpr 0) is used. */
+        int             nfa_nsubexpr;
+
+        /* If not null match must end at this position. */
+        save_se_C       nfa_endp;
+
+        /* "nfa_listid" increases on recursive calls to nfa_regmatch(),
+         * which means we don't have to clear "nfa_lastlist" for all the states. */
+        int             nfa_listid;
+        int             nfa_alt_listid;
+
+        /* 0 for first call to nfa_regmatch(), 1 for recursive call. */
+        int             nfa_ll_index;
+
+        /* The last list a state was added to, two for each state: [2 * id + nfa_ll_index]. */
+        int[]           nfa_lastlist;
+
+        /* Whether a match has been found. */
+        int             nfa_match;
+        timeval_C       nfa_time_limit;
+        int             nfa_time_count;
+
+        /* Used by addstate() when it has to copy "subs" before the list grows. */
+        regsubs_C       temp_subs = new regsubs_C();
+
+        /* For jit_regtry(): the subexpressions and the backtracking stack of the compiled program. */
+        int[]           jit_sub = new int[2 * NSUBEXP];
+        int[]           jit_stack;
+
+        /*private*/ regexec_C()
+        {
+        }
+    }
+
+    /* A context that is not in use, kept to reuse "regstack" and "backpos" and the arrays.
+     * Nested and concurrent executions find it taken and use a new one. */
+    /*private*/ static AtomicReference<regexec_C> rex_spare = new AtomicReference<regexec_C>();
+
+    /*
+     * Get a context for executing a regexp, the spare one or a new one.
+     */
+    /*private*/ static regexec_C rex_get()
+    {
+        regexec_C rex = rex_spare.getAndSet(null);
+        if (rex == null)
+            rex = new regexec_C();
+
+        rex.reg_extmatch_in = re_extmatch_in;
+        rex.reg_extmatch_out = null;
+        rex.reg_extmatch_set = false;
+        return rex;
+    }
+
+    /*
+     * Done with context "rex": pass on what the caller wants from it and keep it for the next time.
+     */
+    /*private*/ static void rex_put(regexec_C rex)
+    {
+        if (rex.reg_extmatch_set)
+            re_extmatch_out = rex.reg_extmatch_out;
+
+        /* Don't keep the text and buffers alive. */
+        rex.regline = null;
+        rex.reginput = null;
+        rex.reg_match = null;
+        rex.reg_mmatch = null;
+        rex.reg_startp = null;
+        rex.reg_endp = null;
+        rex.reg_startpos = null;
+        rex.reg_endpos = null;
+        rex.reg_win = null;
+        rex.reg_buf = null;
+        rex.reg_extmatch_in = null;
+        rex.reg_extmatch_out = null;
+        rex.nfa_endp = null;
+        rex.nfa_time_limit = null;
+
+        rex_spare.set(rex);
+    }
 
     /*
      * Both for regstack and backpos tables we use the following strategy of allocation
@@ -3735,43 +3849,36 @@ public class VimN
      * We allocate *_INITIAL amount of bytes first and then set the grow size to much bigger value
      * to avoid many calloc calls in case of deep regular expressions.
      */
-    /*private*/ static void create_regstack()
+    /*private*/ static void create_regstack(regexec_C rex)
     {
         /* Use Object item, since we push different things onto the regstack. */
-        regstack = new Growing<Object>(Object.class, REGSTACK_INITIAL);
-        regstack.ga_grow(REGSTACK_INITIAL);
-        regstack.ga_growsize = REGSTACK_INITIAL * 8;
+        rex.regstack = new Growing<Object>(Object.class, REGSTACK_INITIAL);
+        rex.regstack.ga_grow(REGSTACK_INITIAL);
+        rex.regstack.ga_growsize = REGSTACK_INITIAL * 8;
     }
 
-    /*private*/ static void create_backpos()
+    /*private*/ static void create_backpos(regexec_C rex)
     {
-        backpos = new Growing<backpos_C>(backpos_C.class, BACKPOS_INITIAL);
-        backpos.ga_grow(BACKPOS_INITIAL);
-        backpos.ga_growsize = BACKPOS_INITIAL * 8;
+        rex.backpos = new Growing<backpos_C>(backpos_C.class, BACKPOS_INITIAL);
+        rex.backpos.ga_grow(BACKPOS_INITIAL);
+        rex.backpos.ga_growsize = BACKPOS_INITIAL * 8;
     }
 
     /*
      * Get pointer to the line "lnum", which is relative to "reg_firstlnum".
      */
-    /*private*/ static Bytes reg_getline(long lnum)
+    /*private*/ static Bytes reg_getline(regexec_C rex, long lnum)
     {
         /* When looking behind for a match/no-match, lnum is negative, but we can't go before line 1. */
-        if (reg_firstlnum + lnum < 1)
+        if (rex.reg_firstlnum + lnum < 1)
             return null;
-        if (reg_maxline < lnum)
+        if (rex.reg_maxline < lnum)
             /* Must have matched the "\n" in the last line. */
             return u8("");
 
-        return ml_get_buf(reg_buf, reg_firstlnum + lnum, false);
+        return ml_get_buf(rex.reg_buf, rex.reg_firstlnum + lnum, false);
     }
 
-    /*private*/ static regsave_C behind_pos = new regsave_C();
-
-    /*private*/ static Bytes[] reg_startzp = new Bytes[NSUBEXP];      /* Workspace to mark beginning */
-    /*private*/ static Bytes[] reg_endzp = new Bytes[NSUBEXP];        /*   and end of \z(...\) matches */
-    /*private*/ static lpos_C[] reg_startzpos = ARRAY_lpos(NSUBEXP);    /* idem, beginning pos */
-    /*private*/ static lpos_C[] reg_endzpos = ARRAY_lpos(NSUBEXP);      /* idem, end pos */
-
     /*
      * Match a regexp against a string.
      * "rmp.regprog" is a compiled regexp as returned by vim_regcomp().
@@ -3780,21 +3887,21 @@ public class VimN
      *
      * Returns 0 for failure, number of lines contained in the match otherwise.
      */
-    /*private*/ static long bt_regexec_nl(regmatch_C rmp, Bytes line, int col, boolean line_lbr)
+    /*private*/ static long bt_regexec_nl(regexec_C rex, regmatch_C rmp, Bytes line, int col, boolean line_lbr)
         /* line: string to match against */
         /* col: column to start looking for match */
     {
-        reg_match = rmp;
-        reg_mmatch = null;
-        reg_maxline = 0;
-        reg_line_lbr = line_lbr;
-        reg_buf = curbuf;
-        reg_win = null;
-        ireg_ic = rmp.rm_ic;
-        ireg_icombine = false;
-        ireg_maxcol = 0;
-
-        return bt_regexec_both(line, col, null);
+        rex.reg_match = rmp;
+        rex.reg_mmatch = null;
+        rex.reg_maxline = 0;
+        rex.reg_line_lbr = line_lbr;
+        rex.reg_buf = curbuf;
+        rex.reg_win = null;
+        rex.ireg_ic = rmp.rm_ic;
+        rex.ireg_icombine = false;
+        rex.ireg_maxcol = 0;
+
+        return bt_regexec_both(rex, line, col, null);
     }
 
     /*
@@ -3804,25 +3911,25 @@ public class VimN
      *
      * Return zero if there is no match.  Return number of lines contained in the match otherwise.
      */
-    /*private*/ static long bt_regexec_multi(regmmatch_C rmp, window_C win, buffer_C buf, long lnum, int col, timeval_C tm)
+    /*private*/ static long bt_regexec_multi(regexec_C rex, regmmatch_C rmp, window_C win, buffer_C buf, long lnum, int col, timeval_C tm)
         /* win: window in which to search or null */
         /* buf: buffer in which to search */
         /* lnum: nr of line to start looking for match */
         /* col: column to start looking for match */
         /* tm: timeout limit or null */
     {
-        reg_match = null;
-        reg_mmatch = rmp;
-        reg_buf = buf;
-        reg_win = win;
-        reg_firstlnum = lnum;
-        reg_maxline = reg_buf.b_ml.ml_line_count - lnum;
-        reg_line_lbr = false;
-        ireg_ic = rmp.rmm_ic;
-        ireg_icombine = false;
-        ireg_maxcol = rmp.rmm_maxcol;
-
-        return bt_regexec_both(null, col, tm);
+        rex.reg_match = null;
+        rex.reg_mmatch = rmp;
+        rex.reg_buf = buf;
+        rex.reg_win = win;
+        rex.reg_firstlnum = lnum;
+        rex.reg_maxline = rex.reg_buf.b_ml.ml_line_count - lnum;
+        rex.reg_line_lbr = false;
+        rex.ireg_ic = rmp.rmm_ic;
+        rex.ireg_icombine = false;
+        rex.ireg_maxcol = rmp.rmm_maxcol;
+
+        return bt_regexec_both(rex, null, col, tm);
     }
 
     /*
@@ -3830,30 +3937,30 @@ public class VimN
      * or multiple lines ("line" is null, use reg_getline()).
      * Returns 0 for failure, number of lines contained in the match otherwise.
      */
-    /*private*/ static long bt_regexec_both(Bytes line, int col, timeval_C tm)
+    /*private*/ static long bt_regexec_both(regexec_C rex, Bytes line, int col, timeval_C tm)
         /* col: column to start looking for match */
         /* tm: timeout limit or null */
     {
         long retval = 0L;
 
-        if (regstack == null)
-            create_regstack();
-        if (backpos == null)
-            create_backpos();
+        if (rex.regstack == null)
+            create_regstack(rex);
+        if (rex.backpos == null)
+            create_backpos(rex);
 
         bt_regprog_C prog;
-        if (reg_match == null)
+        if (rex.reg_match == null)
         {
-            prog = (bt_regprog_C)reg_mmatch.regprog;
-            line = reg_getline(0);
-            reg_startpos = reg_mmatch.startpos;
-            reg_endpos = reg_mmatch.endpos;
+            prog = (bt_regprog_C)rex.reg_mmatch.regprog;
+            line = reg_getline(rex, 0);
+            rex.reg_startpos = rex.reg_mmatch.startpos;
+            rex.reg_endpos = rex.reg_mmatch.endpos;
         }
         else
         {
-            prog = (bt_regprog_C)reg_match.regprog;
-            reg_startp = reg_match.startp;
-            reg_endp = reg_match.endp;
+            prog = (bt_regprog_C)rex.reg_match.regprog;
+            rex.reg_startp = rex.reg_match.startp;
+            rex.reg_endp = rex.reg_match.endp;
         }
 
         theend:
@@ -3866,22 +3973,22 @@ public class VimN
             }
 
             /* Check validity of program. */
-            if (prog_magic_wrong())
+            if (prog_magic_wrong(rex))
                 break theend;
 
             /* If the start column is past the maximum column: no need to try. */
-            if (0 < ireg_maxcol && ireg_maxcol <= col)
+            if (0 < rex.ireg_maxcol && rex.ireg_maxcol <= col)
                 break theend;
 
             /* If pattern contains "\c" or "\C": overrule value of ireg_ic. */
             if ((prog.regflags & RF_ICASE) != 0)
-                ireg_ic = true;
+                rex.ireg_ic = true;
             else if ((prog.regflags & RF_NOICASE) != 0)
-                ireg_ic = false;
+                rex.ireg_ic = false;
 
             /* If pattern contains "\Z" overrule value of ireg_icombine. */
             if ((prog.regflags & RF_ICOMBINE) != 0)
-                ireg_icombine = true;
+                rex.ireg_icombine = true;
 
             /* If there is a "must appear" string, look for it. */
             if (prog.regmust != null)
@@ -3893,20 +4000,20 @@ public class VimN
                  * This is used very often, esp. for ":global".
                  * Use three versions of the loop to avoid overhead of conditions.
                  */
-                if (!ireg_ic)
+                if (!rex.ireg_ic)
                     while ((s = vim_strchr(s, c)) != null)
                     {
                         int cmp;
-                        { int[] __ = { prog.regmlen }; cmp = cstrncmp(s, prog.regmust, __); prog.regmlen = __[0]; }
+                        { int[] __ = { prog.regmlen }; cmp = cstrncmp(rex, s, prog.regmust, __); }
                         if (cmp == 0)
                             break;              /* Found it. */
                         s = s.plus(us_ptr2len_cc(s));
                     }
                 else
-                    while ((s = cstrchr(s, c)) != null)
+                    while ((s = cstrchr(rex, s, c)) != null)
                     {
                         int cmp;
-                        { int[] __ = { prog.regmlen }; cmp = cstrncmp(s, prog.regmust, __); prog.regmlen = __[0]; }
+                        { int[] __ = { prog.regmlen }; cmp = cstrncmp(rex, s, prog.regmust, __); }
                         if (cmp == 0)
                             break;              /* Found it. */
                         s = s.plus(us_ptr2len_cc(s));
@@ -3915,18 +4022,17 @@ public class VimN
                     break theend;
             }
 
-            regline = line;
-            reglnum = 0;
-            reg_toolong = false;
+            rex.regline = line;
+            rex.reglnum = 0;
 
             /* Simplest case: Anchored match need be tried only once. */
             if (prog.reganch != 0)
             {
-                int c = us_ptr2char(regline.plus(col));
+                int c = us_ptr2char(rex.regline.plus(col));
                 if (prog.regstart == NUL || prog.regstart == c
-                    || (ireg_ic && ((utf_fold(prog.regstart) == utf_fold(c))
+                    || (rex.ireg_ic && ((utf_fold(prog.regstart) == utf_fold(c))
                         || (c < 255 && prog.regstart < 255 && utf_tolower(prog.regstart) == utf_tolower(c)))))
-                    retval = regtry(prog, col);
+                    retval = regtry(rex, prog, col);
                 else
                     retval = 0;
             }
@@ -3940,35 +4046,35 @@ public class VimN
                     {
                         /* Skip until the char we know it must start with.
                          * Used often, do some work to avoid call overhead. */
-                        Bytes s = cstrchr(regline.plus(col), prog.regstart);
+                        Bytes s = cstrchr(rex, rex.regline.plus(col), prog.regstart);
                         if (s == null)
                         {
                             retval = 0;
                             break;
                         }
-                        col = BDIFF(s, regline);
+                        col = BDIFF(s, rex.regline);
                     }
 
                     /* Check for maximum column to try. */
-                    if (0 < ireg_maxcol && ireg_maxcol <= col)
+                    if (0 < rex.ireg_maxcol && rex.ireg_maxcol <= col)
                     {
                         retval = 0;
                         break;
                     }
 
-                    retval = regtry(prog, col);
+                    retval = regtry(rex, prog, col);
                     if (0 < retval)
                         break;
 
                     /* if not currently on the first line, get it again */
-                    if (reglnum != 0)
+                    if (rex.reglnum != 0)
                     {
-                        reglnum = 0;
-                        regline = reg_getline(0);
+                        rex.reglnum = 0;
+                        rex.regline = reg_getline(rex, 0);
                     }
-                    if (regline.at(col) == NUL)
+                    if (rex.regline.at(col) == NUL)
                         break;
-                    col += us_ptr2len_cc(regline.plus(col));
+                    col += us_ptr2len_cc(rex.regline.plus(col));
                     /* Check for timeout once in a twenty times to avoid overhead. */
                     if (tm != null && ++tm_count == 20)
                     {
@@ -3981,25 +4087,25 @@ public class VimN
         }
 
         /* Free "reg_tofree" when it's a bit big. */
-        if (400 < reg_tofree_len)
-            reg_tofree = null;
+        if (400 < rex.reg_tofree_len)
+            rex.reg_tofree = null;
 
         /* Free backpos and regstack if they are bigger than their initial size. */
-        if (BACKPOS_INITIAL < backpos.ga_maxlen)
+        if (BACKPOS_INITIAL < rex.backpos.ga_maxlen)
         {
-            backpos_C[] bpp = backpos.ga_data;
-            while (0 < backpos.ga_len--)
-                bpp[backpos.ga_len] = null;
-            backpos.ga_clear();
-            backpos = null;
+            backpos_C[] bpp = rex.backpos.ga_data;
+            while (0 < rex.backpos.ga_len--)
+                bpp[rex.backpos.ga_len] = null;
+            rex.backpos.ga_clear();
+            rex.backpos = null;
         }
-        if (REGSTACK_INITIAL < regstack.ga_maxlen)
+        if (REGSTACK_INITIAL < rex.regstack.ga_maxlen)
         {
-            Object[] rpp = regstack.ga_data;
-            while (0 < regstack.ga_len--)
-                rpp[regstack.ga_len] = null;
-            regstack.ga_clear();
-            regstack = null;
+            Object[] rpp = rex.regstack.ga_data;
+            while (0 < rex.regstack.ga_len--)
+                rpp[rex.regstack.ga_len] = null;
+            rex.regstack.ga_clear();
+            rex.regstack = null;
         }
 
         return retval;
@@ -4029,78 +4135,79 @@ public class VimN
      * Try match of "prog" with at regline[col].
      * Returns 0 for failure, number of lines contained in the match otherwise.
      */
-    /*private*/ static long regtry(bt_regprog_C prog, int col)
+    /*private*/ static long regtry(regexec_C rex, bt_regprog_C prog, int col)
     {
-        reginput = regline.plus(col);
-        need_clear_subexpr = true;
+        rex.reginput = rex.regline.plus(col);
+        rex.need_clear_subexpr = true;
         /* Clear the external match subpointers if necessary. */
         if (prog.reghasz == REX_SET)
-            need_clear_zsubexpr = true;
+            rex.need_clear_zsubexpr = true;
 
-        if (regmatch(prog.program.plus(1)) == false)
+        if (regmatch(rex, prog.program.plus(1)) == false)
             return 0;
 
-        cleanup_subexpr();
-        if (reg_match == null)
+        cleanup_subexpr(rex);
+        if (rex.reg_match == null)
         {
-            if (reg_startpos[0].lnum < 0)
+            if (rex.reg_startpos[0].lnum < 0)
             {
-                reg_startpos[0].lnum = 0;
-                reg_startpos[0].col = col;
+                rex.reg_startpos[0].lnum = 0;
+                rex.reg_startpos[0].col = col;
             }
-            if (reg_endpos[0].lnum < 0)
+            if (rex.reg_endpos[0].lnum < 0)
             {
-                reg_endpos[0].lnum = reglnum;
-                reg_endpos[0].col = BDIFF(reginput, regline);
+                rex.reg_endpos[0].lnum = rex.reglnum;
+                rex.reg_endpos[0].col = BDIFF(rex.reginput, rex.regline);
             }
             else
                 /* Use line number of "\ze". */
-                reglnum = reg_endpos[0].lnum;
+                rex.reglnum = rex.reg_endpos[0].lnum;
         }
         else
         {
-            if (reg_startp[0] == null)
-                reg_startp[0] = regline.plus(col);
-            if (reg_endp[0] == null)
-                reg_endp[0] = reginput;
+            if (rex.reg_startp[0] == null)
+                rex.reg_startp[0] = rex.regline.plus(col);
+            if (rex.reg_endp[0] == null)
+                rex.reg_endp[0] = rex.reginput;
         }
         /* Package any found \z(...\) matches for export.  Default is none. */
-        re_extmatch_out = null;
+        rex.reg_extmatch_out = null;
+        rex.reg_extmatch_set = true;
 
         if (prog.reghasz == REX_SET)
         {
-            cleanup_zsubexpr();
-            re_extmatch_out = make_extmatch();
+            cleanup_zsubexpr(rex);
+            rex.reg_extmatch_out = make_extmatch();
             for (int i = 0; i < NSUBEXP; i++)
             {
-                if (reg_match == null)
+                if (rex.reg_match == null)
                 {
                     /* Only accept single line matches. */
-                    if (0 <= reg_startzpos[i].lnum
-                            && reg_endzpos[i].lnum == reg_startzpos[i].lnum
-                             && reg_endzpos[i].col >= reg_startzpos[i].col)
-                        re_extmatch_out.matches[i] =
-                            STRNDUP(reg_getline(reg_startzpos[i].lnum).plus(reg_startzpos[i].col),
-                                       reg_endzpos[i].col - reg_startzpos[i].col);
+                    if (0 <= rex.reg_startzpos[i].lnum
+                            && rex.reg_endzpos[i].lnum == rex.reg_startzpos[i].lnum
+                             && rex.reg_endzpos[i].col >= rex.reg_startzpos[i].col)
+                        rex.reg_extmatch_out.matches[i] =
+                            STRNDUP(reg_getline(rex, rex.reg_startzpos[i].lnum).plus(rex.reg_startzpos[i].col),
+                                       rex.reg_endzpos[i].col - rex.reg_startzpos[i].col);
                 }
                 else
                 {
-                    if (reg_startzp[i] != null && reg_endzp[i] != null)
-                        re_extmatch_out.matches[i] =
-                                STRNDUP(reg_startzp[i], BDIFF(reg_endzp[i], reg_startzp[i]));
+                    if (rex.reg_startzp[i] != null && rex.reg_endzp[i] != null)
+                        rex.reg_extmatch_out.matches[i] =
+                                STRNDUP(rex.reg_startzp[i], BDIFF(rex.reg_endzp[i], rex.reg_startzp[i]));
                 }
             }
         }
-        return 1 + reglnum;
+        return 1 + rex.reglnum;
     }
 
     /*
      * Get class of previous character.
      */
-    /*private*/ static int reg_prev_class()
+    /*private*/ static int reg_prev_class(regexec_C rex)
     {
-        if (BLT(regline, reginput))
-            return us_get_class(reginput.minus(1 + us_head_off(regline, reginput.minus(1))), reg_buf);
+        if (BLT(rex.regline, rex.reginput))
+            return us_get_class(rex.reginput.minus(1 + us_head_off(rex.regline, rex.reginput.minus(1))), rex.reg_buf);
 
         return -1;
     }
@@ -4108,12 +4215,12 @@ public class VimN
     /*
      * Return true if the current reginput position matches the Visual area.
      */
-    /*private*/ static boolean reg_match_visual()
+    /*private*/ static boolean reg_match_visual(regexec_C rex)
     {
-        window_C wp = (reg_win == null) ? curwin : reg_win;
+        window_C wp = (rex.reg_win == null) ? curwin : rex.reg_win;
 
         /* Check if the buffer is the current buffer. */
-        if (reg_buf != curbuf || VIsual.lnum == 0)
+        if (rex.reg_buf != curbuf || VIsual.lnum == 0)
             return false;
 
         pos_C top = new pos_C();
@@ -4147,13 +4254,13 @@ public class VimN
             }
             mode = curbuf.b_visual.vi_mode;
         }
-        long lnum = reglnum + reg_firstlnum;
+        long lnum = rex.reglnum + rex.reg_firstlnum;
         if (lnum < top.lnum || bot.lnum < lnum)
             return false;
 
         if (mode == 'v')
         {
-            int col = BDIFF(reginput, regline);
+            int col = BDIFF(rex.reginput, rex.regline);
             if ((lnum == top.lnum && col < top.col)
              || (lnum == bot.lnum && col >= bot.col + ((p_sel[0].at(0) != (byte)'e') ? 1 : 0)))
                 return false;
@@ -4172,7 +4279,7 @@ public class VimN
                 end1[0] = end2[0];
             if (top.col == MAXCOL || bot.col == MAXCOL)
                 end1[0] = MAXCOL;
-            int cols = win_linetabsize(wp, regline, BDIFF(reginput, regline));
+            int cols = win_linetabsize(wp, rex.regline, BDIFF(rex.reginput, rex.regline));
             if (cols < start1[0] || end1[0] - (p_sel[0].at(0) == (byte)'e' ? 1 : 0) < cols)
                 return false;
         }
@@ -4180,14 +4287,6 @@ public class VimN
         return true;
     }
 
-    /*
-     * The arguments from BRACE_LIMITS are stored here.  They are actually local
-     * to regmatch(), but they are here to reduce the amount of stack space used
-     * (it can be called recursively many times).
-     */
-    /*private*/ static long     bl_minval;
-    /*private*/ static long     bl_maxval;
-
     /*private*/ static final int
         RA_FAIL = 1,            /* something failed, abort */
         RA_CONT = 2,            /* continue in inner loop */
@@ -4212,15 +4311,15 @@ public class VimN
      * Returns false when there is no match.
      * Leaves reginput and reglnum in an undefined state!
      */
-    /*private*/ static boolean regmatch(Bytes scan)
+    /*private*/ static boolean regmatch(regexec_C rex, Bytes scan)
         /* scan: Current node. */
     {
         int status;                 /* one of the RA_ values: */
 
         /* Make "regstack" and "backpos" empty.
          * They are allocated and freed in bt_regexec_both() to reduce calloc()/free() calls. */
-        regstack.ga_len = 0;
-        backpos.ga_len = 0;
+        rex.regstack.ga_len = 0;
+        rex.backpos.ga_len = 0;
 
         /*
          * Repeat until "regstack" is empty.
@@ -4247,23 +4346,23 @@ public class VimN
 
                 int op = re_op(scan);
                 /* Check for character class with NL added. */
-                if (!reg_line_lbr && with_nl(op) && reg_match == null && reginput.at(0) == NUL && reglnum <= reg_maxline)
+                if (!rex.reg_line_lbr && with_nl(op) && rex.reg_match == null && rex.reginput.at(0) == NUL && rex.reglnum <= rex.reg_maxline)
                 {
-                    reg_nextline();
+                    reg_nextline(rex);
                 }
-                else if (reg_line_lbr && with_nl(op) && reginput.at(0) == (byte)'\n')
+                else if (rex.reg_line_lbr && with_nl(op) && rex.reginput.at(0) == (byte)'\n')
                 {
-                    reginput = reginput.plus(us_ptr2len_cc(reginput));
+                    rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                 }
                 else
                 {
                     if (with_nl(op))
                         op -= ADD_NL;
-                    int c = us_ptr2char(reginput);
+                    int c = us_ptr2char(rex.reginput);
                     switch (op)
                     {
                         case BOL:
-                            if (BNE(reginput, regline))
+                            if (BNE(rex.reginput, rex.regline))
                                 status = RA_NOMATCH;
                             break;
 
@@ -4276,21 +4375,21 @@ public class VimN
                             /* We're not at the beginning of the file when below the first
                              * line where we started, not at the start of the line or we
                              * didn't start at the first line of the buffer. */
-                            if (reglnum != 0 || BNE(reginput, regline) || (reg_match == null && 1 < reg_firstlnum))
+                            if (rex.reglnum != 0 || BNE(rex.reginput, rex.regline) || (rex.reg_match == null && 1 < rex.reg_firstlnum))
                                 status = RA_NOMATCH;
                             break;
 
                         case RE_EOF:
-                            if (reglnum != reg_maxline || c != NUL)
+                            if (rex.reglnum != rex.reg_maxline || c != NUL)
                                 status = RA_NOMATCH;
                             break;
 
                         case CURSOR:
                             /* Check if the buffer is in a window and compare the
                              * reg_win.w_cursor position to the match position. */
-                            if (reg_win == null
-                                    || reglnum + reg_firstlnum != reg_win.w_cursor.lnum
-                                    || BDIFF(reginput, regline) != reg_win.w_cursor.col)
+                            if (rex.reg_win == null
+                                    || rex.reglnum + rex.reg_firstlnum != rex.reg_win.w_cursor.lnum
+                                    || BDIFF(rex.reginput, rex.regline) != rex.reg_win.w_cursor.col)
                                 status = RA_NOMATCH;
                             break;
 
@@ -4300,16 +4399,16 @@ public class VimN
                             int mark = operand(scan).at(0);
                             int cmp = operand(scan).at(1);
 
-                            pos_C pos = getmark_buf(reg_buf, mark, false);
+                            pos_C pos = getmark_buf(rex.reg_buf, mark, false);
                             if (pos == null                 /* mark doesn't exist */
                                     || pos.lnum <= 0        /* mark isn't set in reg_buf */
-                                    || (pos.lnum == reglnum + reg_firstlnum
-                                            ? (pos.col == BDIFF(reginput, regline)
+                                    || (pos.lnum == rex.reglnum + rex.reg_firstlnum
+                                            ? (pos.col == BDIFF(rex.reginput, rex.regline)
                                                 ? (cmp == '<' || cmp == '>')
-                                                : (pos.col < BDIFF(reginput, regline)
+                                                : (pos.col < BDIFF(rex.reginput, rex.regline)
                                                     ? cmp != '>'
                                                     : cmp != '<'))
-                                            : (pos.lnum < reglnum + reg_firstlnum
+                                            : (pos.lnum < rex.reglnum + rex.reg_firstlnum
                                                 ? cmp != '>'
                                                 : cmp != '<')))
                                 status = RA_NOMATCH;
@@ -4317,23 +4416,23 @@ public class VimN
                         }
 
                         case RE_VISUAL:
-                            if (!reg_match_visual())
+                            if (!reg_match_visual(rex))
                                 status = RA_NOMATCH;
                             break;
 
                         case RE_LNUM:
-                            if (!(reg_match == null) || !re_num_cmp(reglnum + reg_firstlnum, scan))
+                            if (!(rex.reg_match == null) || !re_num_cmp(rex.reglnum + rex.reg_firstlnum, scan))
                                 status = RA_NOMATCH;
                             break;
 
                         case RE_COL:
-                            if (!re_num_cmp(BDIFF(reginput, regline) + 1, scan))
+                            if (!re_num_cmp(BDIFF(rex.reginput, rex.regline) + 1, scan))
                                 status = RA_NOMATCH;
                             break;
 
                         case RE_VCOL:
-                            if (!re_num_cmp((long)win_linetabsize((reg_win == null) ? curwin : reg_win,
-                                            regline, BDIFF(reginput, regline)) + 1, scan))
+                            if (!re_num_cmp((long)win_linetabsize((rex.reg_win == null) ? curwin : rex.reg_win,
+                                            rex.regline, BDIFF(rex.reginput, rex.regline)) + 1, scan))
                                 status = RA_NOMATCH;
                             break;
 
@@ -4346,10 +4445,10 @@ public class VimN
                                 int this_class;
 
                                 /* Get class of current and previous char (if it exists). */
-                                this_class = us_get_class(reginput, reg_buf);
+                                this_class = us_get_class(rex.reginput, rex.reg_buf);
                                 if (this_class <= 1)
                                     status = RA_NOMATCH;    /* not on a word at all */
-                                else if (reg_prev_class() == this_class)
+                                else if (reg_prev_class(rex) == this_class)
                                     status = RA_NOMATCH;    /* previous char is in same word */
                             }
                             break;
@@ -4357,15 +4456,15 @@ public class VimN
 
                         case EOW:                           /* word\>; reginput points after d */
                         {
-                            if (BEQ(reginput, regline))        /* Can't match at start of line */
+                            if (BEQ(rex.reginput, rex.regline))        /* Can't match at start of line */
                                 status = RA_NOMATCH;
                             else
                             {
                                 int this_class, prev_class;
 
                                 /* Get class of current and previous char (if it exists). */
-                                this_class = us_get_class(reginput, reg_buf);
-                                prev_class = reg_prev_class();
+                                this_class = us_get_class(rex.reginput, rex.reg_buf);
+                                prev_class = reg_prev_class(rex);
                                 if (this_class == prev_class || prev_class == 0 || prev_class == 1)
                                     status = RA_NOMATCH;
                             }
@@ -4377,196 +4476,196 @@ public class VimN
                             if (c == NUL)
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case IDENT:
                             if (!vim_isIDc(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case SIDENT:
-                            if (asc_isdigit(reginput.at(0)) || !vim_isIDc(c))
+                            if (asc_isdigit(rex.reginput.at(0)) || !vim_isIDc(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case KWORD:
-                            if (!us_iswordp(reginput, reg_buf))
+                            if (!us_iswordp(rex.reginput, rex.reg_buf))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case SKWORD:
-                            if (asc_isdigit(reginput.at(0)) || !us_iswordp(reginput, reg_buf))
+                            if (asc_isdigit(rex.reginput.at(0)) || !us_iswordp(rex.reginput, rex.reg_buf))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case FNAME:
                             if (!vim_isfilec(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case SFNAME:
-                            if (asc_isdigit(reginput.at(0)) || !vim_isfilec(c))
+                            if (asc_isdigit(rex.reginput.at(0)) || !vim_isfilec(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case PRINT:
-                            if (!vim_isprintc(us_ptr2char(reginput)))
+                            if (!vim_isprintc(us_ptr2char(rex.reginput)))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case SPRINT:
-                            if (asc_isdigit(reginput.at(0)) || !vim_isprintc(us_ptr2char(reginput)))
+                            if (asc_isdigit(rex.reginput.at(0)) || !vim_isprintc(us_ptr2char(rex.reginput)))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case WHITE:
                             if (!vim_iswhite(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case NWHITE:
                             if (c == NUL || vim_iswhite(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case DIGIT:
                             if (!ri_digit(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case NDIGIT:
                             if (c == NUL || ri_digit(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case HEX:
                             if (!ri_hex(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case NHEX:
                             if (c == NUL || ri_hex(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case OCTAL:
                             if (!ri_octal(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case NOCTAL:
                             if (c == NUL || ri_octal(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case WORD:
                             if (!ri_word(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case NWORD:
                             if (c == NUL || ri_word(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case HEAD:
                             if (!ri_head(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case NHEAD:
                             if (c == NUL || ri_head(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case ALPHA:
                             if (!ri_alpha(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case NALPHA:
                             if (c == NUL || ri_alpha(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case LOWER:
                             if (!ri_lower(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case NLOWER:
                             if (c == NUL || ri_lower(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case UPPER:
                             if (!ri_upper(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case NUPPER:
                             if (c == NUL || ri_upper(c))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case EXACTLY:
                         {
                             Bytes opnd = operand(scan);
                             /* Inline the first byte, for speed. */
-                            if (opnd.at(0) != reginput.at(0) && !ireg_ic)
+                            if (opnd.at(0) != rex.reginput.at(0) && !rex.ireg_ic)
                                 status = RA_NOMATCH;
                             else if (opnd.at(0) == NUL)
                             {
@@ -4575,7 +4674,7 @@ public class VimN
                             else
                             {
                                 int[] len = new int[1];
-                                if (opnd.at(1) == NUL && !ireg_ic)
+                                if (opnd.at(1) == NUL && !rex.ireg_ic)
                                 {
                                     len[0] = 1;        /* matched a single byte above */
                                 }
@@ -4583,14 +4682,14 @@ public class VimN
                                 {
                                     /* Need to match first byte again for multi-byte. */
                                     len[0] = strlen(opnd);
-                                    if (cstrncmp(opnd, reginput, len) != 0)
+                                    if (cstrncmp(rex, opnd, rex.reginput, len) != 0)
                                         status = RA_NOMATCH;
                                 }
                                 /* Check for following composing character, unless %C
                                  * follows (skips over all composing chars). */
                                 if (status != RA_NOMATCH
-                                        && utf_iscomposing(us_ptr2char(reginput.plus(len[0])))
-                                        && !ireg_icombine
+                                        && utf_iscomposing(us_ptr2char(rex.reginput.plus(len[0])))
+                                        && !rex.ireg_icombine
                                         && re_op(next) != RE_COMPOSING)
                                 {
                                     /* This code makes a composing character get ignored,
@@ -4599,7 +4698,7 @@ public class VimN
                                     status = RA_NOMATCH;
                                 }
                                 if (status != RA_NOMATCH)
-                                    reginput = reginput.plus(len[0]);
+                                    rex.reginput = rex.reginput.plus(len[0]);
                             }
                             break;
                         }
@@ -4608,10 +4707,10 @@ public class VimN
                         case ANYBUT:
                             if (c == NUL)
                                 status = RA_NOMATCH;
-                            else if ((cstrchr(operand(scan), c) == null) == (op == ANYOF))
+                            else if ((cstrchr(rex, operand(scan), c) == null) == (op == ANYOF))
                                 status = RA_NOMATCH;
                             else
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             break;
 
                         case MULTIBYTECODE:
@@ -4630,9 +4729,9 @@ public class VimN
                                 /* When only a composing char is given match at any
                                  * position where that composing char appears. */
                                 status = RA_NOMATCH;
-                                for (int i = 0; reginput.at(i) != NUL; i += us_ptr2len(reginput.plus(i)))
+                                for (int i = 0; rex.reginput.at(i) != NUL; i += us_ptr2len(rex.reginput.plus(i)))
                                 {
-                                    int inpc = us_ptr2char(reginput.plus(i));
+                                    int inpc = us_ptr2char(rex.reginput.plus(i));
                                     if (!utf_iscomposing(inpc))
                                     {
                                         if (0 < i)
@@ -4641,7 +4740,7 @@ public class VimN
                                     else if (opndc == inpc)
                                     {
                                         /* Include all following composing chars. */
-                                        len = i + us_ptr2len_cc(reginput.plus(i));
+                                        len = i + us_ptr2len_cc(rex.reginput.plus(i));
                                         status = RA_MATCH;
                                         break;
                                     }
@@ -4650,22 +4749,22 @@ public class VimN
                             else
                             {
                                 for (int i = 0; i < len; i++)
-                                    if (opnd.at(i) != reginput.at(i))
+                                    if (opnd.at(i) != rex.reginput.at(i))
                                     {
                                         status = RA_NOMATCH;
                                         break;
                                     }
                             }
 
-                            reginput = reginput.plus(len);
+                            rex.reginput = rex.reginput.plus(len);
                             break;
                         }
 
                         case RE_COMPOSING:
                         {
                             /* Skip composing characters. */
-                            while (utf_iscomposing(us_ptr2char(reginput)))
-                                reginput = reginput.plus(us_ptr2len(reginput));
+                            while (utf_iscomposing(us_ptr2char(rex.reginput)))
+                                rex.reginput = rex.reginput.plus(us_ptr2len(rex.reginput));
                             break;
                         }
 
@@ -4682,26 +4781,26 @@ public class VimN
                              * The positions are stored in "backpos" and found by the
                              * current value of "scan", the position in the RE program.
                              */
-                            backpos_C[] bpp = backpos.ga_data;
+                            backpos_C[] bpp = rex.backpos.ga_data;
 
                             int i;
-                            for (i = 0; i < backpos.ga_len; i++)
+                            for (i = 0; i < rex.backpos.ga_len; i++)
                                 if (BEQ(bpp[i].bp_scan, scan))
                                     break;
-                            if (i == backpos.ga_len)
+                            if (i == rex.backpos.ga_len)
                             {
                                 /* First time at this BACK, make room to store the pos. */
-                                bpp = backpos.ga_grow(1);
+                                bpp = rex.backpos.ga_grow(1);
                                 bpp[i] = new backpos_C();
                                 bpp[i].bp_scan = scan;
-                                backpos.ga_len++;
+                                rex.backpos.ga_len++;
                             }
-                            else if (reg_save_equal(bpp[i].bp_pos))
+                            else if (reg_save_equal(rex, bpp[i].bp_pos))
                                 /* Still at same position as last time, fail. */
                                 status = RA_NOMATCH;
 
                             if (status != RA_FAIL && status != RA_NOMATCH)
-                                reg_save(bpp[i].bp_pos, backpos);
+                                reg_save(rex, bpp[i].bp_pos, rex.backpos);
 
                             break;
                         }
@@ -4718,14 +4817,14 @@ public class VimN
                         case MOPEN + 9:
                         {
                             int no = op - MOPEN;
-                            cleanup_subexpr();
-                            regitem_C rip = push_regitem(RS_MOPEN, scan);
+                            cleanup_subexpr(rex);
+                            regitem_C rip = push_regitem(rex, RS_MOPEN, scan);
                             if (rip == null)
                                 status = RA_FAIL;
                             else
                             {
                                 rip.rs_no = no;
-                                reg_startp[no] = save_se(rip.rs_sesave, reg_startpos[no], reg_startp[no]);
+                                rex.reg_startp[no] = save_se(rex, rip.rs_sesave, rex.reg_startpos[no], rex.reg_startp[no]);
                                 /* We simply continue and handle the result when done. */
                             }
                             break;
@@ -4733,7 +4832,7 @@ public class VimN
 
                         case NOPEN:         /* \%( */
                         case NCLOSE:        /* \) after \%( */
-                            if (push_regitem(RS_NOPEN, scan) == null)
+                            if (push_regitem(rex, RS_NOPEN, scan) == null)
                                 status = RA_FAIL;
                             /* We simply continue and handle the result when done. */
                             break;
@@ -4749,14 +4848,14 @@ public class VimN
                         case ZOPEN + 9:
                         {
                             int no = op - ZOPEN;
-                            cleanup_zsubexpr();
-                            regitem_C rip = push_regitem(RS_ZOPEN, scan);
+                            cleanup_zsubexpr(rex);
+                            regitem_C rip = push_regitem(rex, RS_ZOPEN, scan);
                             if (rip == null)
                                 status = RA_FAIL;
                             else
                             {
                                 rip.rs_no = no;
-                                reg_startzp[no] = save_se(rip.rs_sesave, reg_startzpos[no], reg_startzp[no]);
+                                rex.reg_startzp[no] = save_se(rex, rip.rs_sesave, rex.reg_startzpos[no], rex.reg_startzp[no]);
                                 /* We simply continue and handle the result when done. */
                             }
                             break;
@@ -4774,14 +4873,14 @@ public class VimN
                         case MCLOSE + 9:
                         {
                             int no = op - MCLOSE;
-                            cleanup_subexpr();
-                            regitem_C rip = push_regitem(RS_MCLOSE, scan);
+                            cleanup_subexpr(rex);
+                            regitem_C rip = push_regitem(rex, RS_MCLOSE, scan);
                             if (rip == null)
                                 status = RA_FAIL;
                             else
                             {
                                 rip.rs_no = no;
-                                reg_endp[no] = save_se(rip.rs_sesave, reg_endpos[no], reg_endp[no]);
+                                rex.reg_endp[no] = save_se(rex, rip.rs_sesave, rex.reg_endpos[no], rex.reg_endp[no]);
                                 /* We simply continue and handle the result when done. */
                             }
                             break;
@@ -4798,14 +4897,14 @@ public class VimN
                         case ZCLOSE + 9:
                         {
                             int no = op - ZCLOSE;
-                            cleanup_zsubexpr();
-                            regitem_C rip = push_regitem(RS_ZCLOSE, scan);
+                            cleanup_zsubexpr(rex);
+                            regitem_C rip = push_regitem(rex, RS_ZCLOSE, scan);
                             if (rip == null)
                                 status = RA_FAIL;
                             else
                             {
                                 rip.rs_no = no;
-                                reg_endzp[no] = save_se(rip.rs_sesave, reg_endzpos[no], reg_endzp[no]);
+                                rex.reg_endzp[no] = save_se(rex, rip.rs_sesave, rex.reg_endzpos[no], rex.reg_endzp[no]);
                                 /* We simply continue and handle the result when done. */
                             }
                             break;
@@ -4824,10 +4923,10 @@ public class VimN
                             int[] len = new int[1];
 
                             int no = op - BACKREF;
-                            cleanup_subexpr();
-                            if (!(reg_match == null))       /* Single-line regexp */
+                            cleanup_subexpr(rex);
+                            if (!(rex.reg_match == null))       /* Single-line regexp */
                             {
-                                if (reg_startp[no] == null || reg_endp[no] == null)
+                                if (rex.reg_startp[no] == null || rex.reg_endp[no] == null)
                                 {
                                     /* Backref was not set: Match an empty string. */
                                     len[0] = 0;
@@ -4835,35 +4934,35 @@ public class VimN
                                 else
                                 {
                                     /* Compare current input with back-ref in the same line. */
-                                    len[0] = BDIFF(reg_endp[no], reg_startp[no]);
-                                    if (cstrncmp(reg_startp[no], reginput, len) != 0)
+                                    len[0] = BDIFF(rex.reg_endp[no], rex.reg_startp[no]);
+                                    if (cstrncmp(rex, rex.reg_startp[no], rex.reginput, len) != 0)
                                         status = RA_NOMATCH;
                                 }
                             }
                             else                            /* Multi-line regexp */
                             {
-                                if (reg_startpos[no].lnum < 0 || reg_endpos[no].lnum < 0)
+                                if (rex.reg_startpos[no].lnum < 0 || rex.reg_endpos[no].lnum < 0)
                                 {
                                     /* Backref was not set: Match an empty string. */
                                     len[0] = 0;
                                 }
                                 else
                                 {
-                                    if (reg_startpos[no].lnum == reglnum && reg_endpos[no].lnum == reglnum)
+                                    if (rex.reg_startpos[no].lnum == rex.reglnum && rex.reg_endpos[no].lnum == rex.reglnum)
                                     {
                                         /* Compare back-ref within the current line. */
-                                        len[0] = reg_endpos[no].col - reg_startpos[no].col;
-                                        if (cstrncmp(regline.plus(reg_startpos[no].col), reginput, len) != 0)
+                                        len[0] = rex.reg_endpos[no].col - rex.reg_startpos[no].col;
+                                        if (cstrncmp(rex, rex.regline.plus(rex.reg_startpos[no].col), rex.reginput, len) != 0)
                                             status = RA_NOMATCH;
                                     }
                                     else
                                     {
                                         /* Messy situation: Need to compare between two lines. */
-                                        int r = match_with_backref(
-                                                        reg_startpos[no].lnum,
-                                                        reg_startpos[no].col,
-                                                        reg_endpos[no].lnum,
-                                                        reg_endpos[no].col,
+                                        int r = match_with_backref(rex,
+                                                        rex.reg_startpos[no].lnum,
+                                                        rex.reg_startpos[no].col,
+                                                        rex.reg_endpos[no].lnum,
+                                                        rex.reg_endpos[no].col,
                                                         len);
 
                                         if (r != RA_MATCH)
@@ -4873,7 +4972,7 @@ public class VimN
                             }
 
                             /* Matched the backref, skip over it. */
-                            reginput = reginput.plus(len[0]);
+                            rex.reginput = rex.reginput.plus(len[0]);
                             break;
                         }
 
@@ -4887,15 +4986,15 @@ public class VimN
                         case ZREF + 8:
                         case ZREF + 9:
                         {
-                            cleanup_zsubexpr();
+                            cleanup_zsubexpr(rex);
                             int no = op - ZREF;
-                            if (re_extmatch_in != null && re_extmatch_in.matches[no] != null)
+                            if (rex.reg_extmatch_in != null && rex.reg_extmatch_in.matches[no] != null)
                             {
-                                int[] len = { strlen(re_extmatch_in.matches[no]) };
-                                if (cstrncmp(re_extmatch_in.matches[no], reginput, len) != 0)
+                                int[] len = { strlen(rex.reg_extmatch_in.matches[no]) };
+                                if (cstrncmp(rex, rex.reg_extmatch_in.matches[no], rex.reginput, len) != 0)
                                     status = RA_NOMATCH;
                                 else
-                                    reginput = reginput.plus(len[0]);
+                                    rex.reginput = rex.reginput.plus(len[0]);
                             }
                             else
                             {
@@ -4910,7 +5009,7 @@ public class VimN
                                 next = operand(scan);       /* Avoid recursion. */
                             else
                             {
-                                regitem_C rip = push_regitem(RS_BRANCH, scan);
+                                regitem_C rip = push_regitem(rex, RS_BRANCH, scan);
                                 if (rip == null)
                                     status = RA_FAIL;
                                 else
@@ -4923,15 +5022,15 @@ public class VimN
                         {
                             if (re_op(next) == BRACE_SIMPLE)
                             {
-                                bl_minval = operand_min(scan);
-                                bl_maxval = operand_max(scan);
+                                rex.bl_minval = operand_min(scan);
+                                rex.bl_maxval = operand_max(scan);
                             }
                             else if (BRACE_COMPLEX <= re_op(next) && re_op(next) < BRACE_COMPLEX + 10)
                             {
                                 int no = re_op(next) - BRACE_COMPLEX;
-                                brace_min[no] = operand_min(scan);
-                                brace_max[no] = operand_max(scan);
-                                brace_count[no] = 0;
+                                rex.brace_min[no] = operand_min(scan);
+                                rex.brace_max[no] = operand_max(scan);
+                                rex.brace_count[no] = 0;
                             }
                             else
                             {
@@ -4953,18 +5052,18 @@ public class VimN
                         case BRACE_COMPLEX + 9:
                         {
                             int no = op - BRACE_COMPLEX;
-                            ++brace_count[no];
+                            ++rex.brace_count[no];
 
                             /* If not matched enough times yet, try one more. */
-                            if (brace_count[no] <= (brace_min[no] <= brace_max[no] ? brace_min[no] : brace_max[no]))
+                            if (rex.brace_count[no] <= (rex.brace_min[no] <= rex.brace_max[no] ? rex.brace_min[no] : rex.brace_max[no]))
                             {
-                                regitem_C rip = push_regitem(RS_BRCPLX_MORE, scan);
+                                regitem_C rip = push_regitem(rex, RS_BRCPLX_MORE, scan);
                                 if (rip == null)
                                     status = RA_FAIL;
                                 else
                                 {
                                     rip.rs_no = no;
-                                    reg_save(rip.rs_regsave, backpos);
+                                    reg_save(rex, rip.rs_regsave, rex.backpos);
                                     next = operand(scan);
                                     /* We continue and handle the result when done. */
                                 }
@@ -4972,18 +5071,18 @@ public class VimN
                             }
 
                             /* If matched enough times, may try matching some more. */
-                            if (brace_min[no] <= brace_max[no])
+                            if (rex.brace_min[no] <= rex.brace_max[no])
                             {
                                 /* Range is the normal way around, use longest match. */
-                                if (brace_count[no] <= brace_max[no])
+                                if (rex.brace_count[no] <= rex.brace_max[no])
                                 {
-                                    regitem_C rip = push_regitem(RS_BRCPLX_LONG, scan);
+                                    regitem_C rip = push_regitem(rex, RS_BRCPLX_LONG, scan);
                                     if (rip == null)
                                         status = RA_FAIL;
                                     else
                                     {
                                         rip.rs_no = no;
-                                        reg_save(rip.rs_regsave, backpos);
+                                        reg_save(rex, rip.rs_regsave, rex.backpos);
                                         next = operand(scan);
                                         /* We continue and handle the result when done. */
                                     }
@@ -4992,14 +5091,14 @@ public class VimN
                             else
                             {
                                 /* Range is backwards, use shortest match first. */
-                                if (brace_count[no] <= brace_min[no])
+                                if (rex.brace_count[no] <= rex.brace_min[no])
                                 {
-                                    regitem_C rip = push_regitem(RS_BRCPLX_SHORT, scan);
+                                    regitem_C rip = push_regitem(rex, RS_BRCPLX_SHORT, scan);
                                     if (rip == null)
                                         status = RA_FAIL;
                                     else
                                     {
-                                        reg_save(rip.rs_regsave, backpos);
+                                        reg_save(rex, rip.rs_regsave, rex.backpos);
                                         /* We continue and handle the result when done. */
                                     }
                                 }
@@ -5020,7 +5119,7 @@ public class VimN
                             if (re_op(next) == EXACTLY)
                             {
                                 rst.nextb = operand(next).at(0);
-                                if (ireg_ic)
+                                if (rex.ireg_ic)
                                 {
                                     if (utf_isupper(rst.nextb))
                                         rst.nextb_ic = utf_tolower(rst.nextb);
@@ -5043,8 +5142,8 @@ public class VimN
                             }
                             else
                             {
-                                rst.minval = bl_minval;
-                                rst.maxval = bl_maxval;
+                                rst.minval = rex.bl_minval;
+                                rst.maxval = rex.bl_maxval;
                             }
 
                             /*
@@ -5052,7 +5151,7 @@ public class VimN
                              * When maxval < minval, try matching at least the minimal number
                              * (since the range is backwards, that's also maxval!).
                              */
-                            rst.count = regrepeat(operand(scan), rst.maxval);
+                            rst.count = regrepeat(rex, operand(scan), rst.maxval);
                             if (got_int)
                             {
                                 status = RA_FAIL;
@@ -5064,18 +5163,18 @@ public class VimN
                                 /* It could match.  Prepare for trying to match
                                  * what follows.  The code is below.  Parameters
                                  * are stored in a regstar_C on the regstack. */
-                                if (p_mmp[0] <= (regstack.ga_len >>> 10))
+                                if (p_mmp[0] <= (rex.regstack.ga_len >>> 10))
                                 {
                                     emsg(e_maxmempat);
                                     status = RA_FAIL;
                                 }
                                 else
                                 {
-                                    regstack.ga_grow(1);
-                                    regstack.ga_data[regstack.ga_len++] = rst;
+                                    rex.regstack.ga_grow(1);
+                                    rex.regstack.ga_data[rex.regstack.ga_len++] = rst;
                                     rst = null;
 
-                                    regitem_C rip = push_regitem(rst.minval <= rst.maxval ? RS_STAR_LONG : RS_STAR_SHORT, scan);
+                                    regitem_C rip = push_regitem(rex, rst.minval <= rst.maxval ? RS_STAR_LONG : RS_STAR_SHORT, scan);
                                     if (rip == null)
                                         status = RA_FAIL;
                                     else
@@ -5092,13 +5191,13 @@ public class VimN
                         case MATCH:
                         case SUBPAT:
                         {
-                            regitem_C rip = push_regitem(RS_NOMATCH, scan);
+                            regitem_C rip = push_regitem(rex, RS_NOMATCH, scan);
                             if (rip == null)
                                 status = RA_FAIL;
                             else
                             {
                                 rip.rs_no = op;
-                                reg_save(rip.rs_regsave, backpos);
+                                reg_save(rex, rip.rs_regsave, rex.backpos);
                                 next = operand(scan);
                                 /* We continue and handle the result when done. */
                             }
@@ -5109,7 +5208,7 @@ public class VimN
                         case NOBEHIND:
                         {
                             /* Need a bit of room to store extra positions. */
-                            if (p_mmp[0] <= (regstack.ga_len >>> 10))
+                            if (p_mmp[0] <= (rex.regstack.ga_len >>> 10))
                             {
                                 emsg(e_maxmempat);
                                 status = RA_FAIL;
@@ -5118,20 +5217,20 @@ public class VimN
                             {
                                 regbehind_C rbp = new regbehind_C();
 
-                                regstack.ga_grow(1);
-                                regstack.ga_data[regstack.ga_len++] = rbp;
+                                rex.regstack.ga_grow(1);
+                                rex.regstack.ga_data[rex.regstack.ga_len++] = rbp;
 
-                                regitem_C rip = push_regitem(RS_BEHIND1, scan);
+                                regitem_C rip = push_regitem(rex, RS_BEHIND1, scan);
                                 if (rip == null)
                                     status = RA_FAIL;
                                 else
                                 {
                                     /* Need to save the subexpr to be able to restore them
                                      * when there is a match but we don't use it. */
-                                    save_subexpr(rbp);
+                                    save_subexpr(rex, rbp);
 
                                     rip.rs_no = op;
-                                    reg_save(rip.rs_regsave, backpos);
+                                    reg_save(rex, rip.rs_regsave, rex.backpos);
                                     /* First try if what follows matches.
                                      * If it does, then we check the behind match by looping. */
                                 }
@@ -5141,26 +5240,26 @@ public class VimN
 
                         case BHPOS:
                         {
-                            if (reg_match == null)
+                            if (rex.reg_match == null)
                             {
-                                if (behind_pos.rs_pos.col != BDIFF(reginput, regline)
-                                        || behind_pos.rs_pos.lnum != reglnum)
+                                if (rex.behind_pos.rs_pos.col != BDIFF(rex.reginput, rex.regline)
+                                        || rex.behind_pos.rs_pos.lnum != rex.reglnum)
                                     status = RA_NOMATCH;
                             }
-                            else if (BNE(behind_pos.rs_ptr, reginput))
+                            else if (BNE(rex.behind_pos.rs_ptr, rex.reginput))
                                 status = RA_NOMATCH;
                             break;
                         }
 
                         case NEWL:
                         {
-                            if ((c != NUL || !(reg_match == null) || reg_maxline < reglnum || reg_line_lbr)
-                                    && (c != '\n' || !reg_line_lbr))
+                            if ((c != NUL || !(rex.reg_match == null) || rex.reg_maxline < rex.reglnum || rex.reg_line_lbr)
+                                    && (c != '\n' || !rex.reg_line_lbr))
                                 status = RA_NOMATCH;
-                            else if (reg_line_lbr)
-                                reginput = reginput.plus(us_ptr2len_cc(reginput));
+                            else if (rex.reg_line_lbr)
+                                rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                             else
-                                reg_nextline();
+                                reg_nextline(rex);
                             break;
                         }
 
@@ -5187,78 +5286,78 @@ public class VimN
              * If there is something on the regstack, execute the code for the state.
              * If the state is popped then loop and use the older state.
              */
-            while (0 < regstack.ga_len && status != RA_FAIL)
+            while (0 < rex.regstack.ga_len && status != RA_FAIL)
             {
-                Object vip = (1 < regstack.ga_len) ? regstack.ga_data[regstack.ga_len - 2] : null;
-                regitem_C rip = (regitem_C)regstack.ga_data[regstack.ga_len - 1];
+                Object vip = (1 < rex.regstack.ga_len) ? rex.regstack.ga_data[rex.regstack.ga_len - 2] : null;
+                regitem_C rip = (regitem_C)rex.regstack.ga_data[rex.regstack.ga_len - 1];
 
                 switch (rip.rs_state)
                 {
                     case RS_NOPEN:
                         /* Result is passed on as-is, simply pop the state. */
-                        scan = pop_regitem();
+                        scan = pop_regitem(rex);
                         break;
 
                     case RS_MOPEN:
                         /* Pop the state.  Restore pointers when there is no match. */
                         if (status == RA_NOMATCH)
                         {
-                            reg_startp[rip.rs_no] = restore_se(rip.rs_sesave, reg_startpos[rip.rs_no], reg_startp[rip.rs_no]);
+                            rex.reg_startp[rip.rs_no] = restore_se(rex, rip.rs_sesave, rex.reg_startpos[rip.rs_no], rex.reg_startp[rip.rs_no]);
                         }
-                        scan = pop_regitem();
+                        scan = pop_regitem(rex);
                         break;
 
                     case RS_ZOPEN:
                         /* Pop the state.  Restore pointers when there is no match. */
                         if (status == RA_NOMATCH)
                         {
-                            reg_startzp[rip.rs_no] = restore_se(rip.rs_sesave, reg_startzpos[rip.rs_no], reg_startzp[rip.rs_no]);
+                            rex.reg_startzp[rip.rs_no] = restore_se(rex, rip.rs_sesave, rex.reg_startzpos[rip.rs_no], rex.reg_startzp[rip.rs_no]);
                         }
-                        scan = pop_regitem();
+                        scan = pop_regitem(rex);
                         break;
 
                     case RS_MCLOSE:
                         /* Pop the state.  Restore pointers when there is no match. */
                         if (status == RA_NOMATCH)
                         {
-                            reg_endp[rip.rs_no] = restore_se(rip.rs_sesave, reg_endpos[rip.rs_no], reg_endp[rip.rs_no]);
+                            rex.reg_endp[rip.rs_no] = restore_se(rex, rip.rs_sesave, rex.reg_endpos[rip.rs_no], rex.reg_endp[rip.rs_no]);
                         }
-                        scan = pop_regitem();
+                        scan = pop_regitem(rex);
                         break;
 
                     case RS_ZCLOSE:
                         /* Pop the state.  Restore pointers when there is no match. */
                         if (status == RA_NOMATCH)
                         {
-                            reg_endzp[rip.rs_no] = restore_se(rip.rs_sesave, reg_endzpos[rip.rs_no], reg_endzp[rip.rs_no]);
+                            rex.reg_endzp[rip.rs_no] = restore_se(rex, rip.rs_sesave, rex.reg_endzpos[rip.rs_no], rex.reg_endzp[rip.rs_no]);
                         }
-                        scan = pop_regitem();
+                        scan = pop_regitem(rex);
                         break;
 
                     case RS_BRANCH:
                     {
                         if (status == RA_MATCH)
                             /* this branch matched, use it */
-                            scan = pop_regitem();
+                            scan = pop_regitem(rex);
                         else
                         {
                             if (status != RA_BREAK)
                             {
                                 /* After a non-matching branch: try next one. */
-                                reg_restore(rip.rs_regsave, backpos);
+                                reg_restore(rex, rip.rs_regsave, rex.backpos);
                                 scan = rip.rs_scan;
                             }
                             if (scan == null || re_op(scan) != BRANCH)
                             {
                                 /* no more branches, didn't find a match */
                                 status = RA_NOMATCH;
-                                scan = pop_regitem();
+                                scan = pop_regitem(rex);
                             }
                             else
                             {
                                 /* Prepare to try a branch. */
                                 rip.rs_scan = regnext(scan);
-                                reg_save(rip.rs_regsave, backpos);
+                                reg_save(rex, rip.rs_regsave, rex.backpos);
                                 scan = operand(scan);
                             }
                         }
@@ -5269,10 +5368,10 @@ public class VimN
                         /* Pop the state.  Restore pointers when there is no match. */
                         if (status == RA_NOMATCH)
                         {
-                            reg_restore(rip.rs_regsave, backpos);
-                            --brace_count[rip.rs_no];       /* decrement match count */
+                            reg_restore(rex, rip.rs_regsave, rex.backpos);
+                            --rex.brace_count[rip.rs_no];       /* decrement match count */
                         }
-                        scan = pop_regitem();
+                        scan = pop_regitem(rex);
                         break;
 
                     case RS_BRCPLX_LONG:
@@ -5280,12 +5379,12 @@ public class VimN
                         if (status == RA_NOMATCH)
                         {
                             /* There was no match, but we did find enough matches. */
-                            reg_restore(rip.rs_regsave, backpos);
-                            --brace_count[rip.rs_no];
+                            reg_restore(rex, rip.rs_regsave, rex.backpos);
+                            --rex.brace_count[rip.rs_no];
                             /* continue with the items after "\{}" */
                             status = RA_CONT;
                         }
-                        scan = pop_regitem();
+                        scan = pop_regitem(rex);
                         if (status == RA_CONT)
                             scan = regnext(scan);
                         break;
@@ -5294,8 +5393,8 @@ public class VimN
                         /* Pop the state.  Restore pointers when there is no match. */
                         if (status == RA_NOMATCH)
                             /* There was no match, try to match one more item. */
-                            reg_restore(rip.rs_regsave, backpos);
-                        scan = pop_regitem();
+                            reg_restore(rex, rip.rs_regsave, rex.backpos);
+                        scan = pop_regitem(rex);
                         if (status == RA_NOMATCH)
                         {
                             scan = operand(scan);
@@ -5313,9 +5412,9 @@ public class VimN
                         {
                             status = RA_CONT;
                             if (rip.rs_no != SUBPAT)        /* zero-width */
-                                reg_restore(rip.rs_regsave, backpos);
+                                reg_restore(rex, rip.rs_regsave, rex.backpos);
                         }
-                        scan = pop_regitem();
+                        scan = pop_regitem(rex);
                         if (status == RA_CONT)
                             scan = regnext(scan);
                         break;
@@ -5323,8 +5422,8 @@ public class VimN
                     case RS_BEHIND1:
                         if (status == RA_NOMATCH)
                         {
-                            scan = pop_regitem();
-                            drop_regbehind();
+                            scan = pop_regitem(rex);
+                            drop_regbehind(rex);
                         }
                         else
                         {
@@ -5335,19 +5434,19 @@ public class VimN
                              */
 
                             /* save the position after the found match for next */
-                            reg_save(((regbehind_C)vip).save_after, backpos);
+                            reg_save(rex, ((regbehind_C)vip).save_after, rex.backpos);
 
                             /* Start looking for a match with operand at the current position.
                              * Go back one character until we find the result, hitting the start
                              * of the line or the previous line (for multi-line matching).
                              * Set behind_pos to where the match should end, BHPOS will match it.
                              * Save the current value. */
-                            COPY_regsave(((regbehind_C)vip).save_behind, behind_pos);
-                            COPY_regsave(behind_pos, rip.rs_regsave);
+                            COPY_regsave(((regbehind_C)vip).save_behind, rex.behind_pos);
+                            COPY_regsave(rex.behind_pos, rip.rs_regsave);
 
                             rip.rs_state = RS_BEHIND2;
 
-                            reg_restore(rip.rs_regsave, backpos);
+                            reg_restore(rex, rip.rs_regsave, rex.backpos);
                             scan = operand(rip.rs_scan).plus(4);
                         }
                         break;
@@ -5356,21 +5455,21 @@ public class VimN
                         /*
                          * Looping for BEHIND / NOBEHIND match.
                          */
-                        if (status == RA_MATCH && reg_save_equal(behind_pos))
+                        if (status == RA_MATCH && reg_save_equal(rex, rex.behind_pos))
                         {
                             /* found a match that ends where "next" started */
-                            COPY_regsave(behind_pos, ((regbehind_C)vip).save_behind);
+                            COPY_regsave(rex.behind_pos, ((regbehind_C)vip).save_behind);
                             if (rip.rs_no == BEHIND)
-                                reg_restore(((regbehind_C)vip).save_after, backpos);
+                                reg_restore(rex, ((regbehind_C)vip).save_after, rex.backpos);
                             else
                             {
                                 /* But we didn't want a match.  Need to restore the subexpr,
                                  * because what follows matched, so they have been set. */
                                 status = RA_NOMATCH;
-                                restore_subexpr((regbehind_C)vip);
+                                restore_subexpr(rex, (regbehind_C)vip);
                             }
-                            scan = pop_regitem();
-                            drop_regbehind();
+                            scan = pop_regitem(rex);
+                            drop_regbehind(rex);
                         }
                         else
                         {
@@ -5378,61 +5477,61 @@ public class VimN
                              * go back one character.  May go to previous line once. */
                             boolean no = true;
                             long limit = operand_min(rip.rs_scan);
-                            if (reg_match == null)
+                            if (rex.reg_match == null)
                             {
                                 if (0 < limit
-                                        && ((rip.rs_regsave.rs_pos.lnum < behind_pos.rs_pos.lnum
-                                            ? strlen(regline)
-                                            : behind_pos.rs_pos.col)
+                                        && ((rip.rs_regsave.rs_pos.lnum < rex.behind_pos.rs_pos.lnum
+                                            ? strlen(rex.regline)
+                                            : rex.behind_pos.rs_pos.col)
                                         - rip.rs_regsave.rs_pos.col >= limit))
                                     no = false;
                                 else if (rip.rs_regsave.rs_pos.col == 0)
                                 {
-                                    if (rip.rs_regsave.rs_pos.lnum < behind_pos.rs_pos.lnum
-                                            || reg_getline(--rip.rs_regsave.rs_pos.lnum) == null)
+                                    if (rip.rs_regsave.rs_pos.lnum < rex.behind_pos.rs_pos.lnum
+                                            || reg_getline(rex, --rip.rs_regsave.rs_pos.lnum) == null)
                                         no = false;
                                     else
                                     {
-                                        reg_restore(rip.rs_regsave, backpos);
-                                        rip.rs_regsave.rs_pos.col = strlen(regline);
+                                        reg_restore(rex, rip.rs_regsave, rex.backpos);
+                                        rip.rs_regsave.rs_pos.col = strlen(rex.regline);
                                     }
                                 }
                                 else
                                 {
-                                    rip.rs_regsave.rs_pos.col -= us_head_off(regline, regline.plus(rip.rs_regsave.rs_pos.col - 1)) + 1;
+                                    rip.rs_regsave.rs_pos.col -= us_head_off(rex.regline, rex.regline.plus(rip.rs_regsave.rs_pos.col - 1)) + 1;
                                 }
                             }
                             else
                             {
-                                if (BEQ(rip.rs_regsave.rs_ptr, regline))
+                                if (BEQ(rip.rs_regsave.rs_ptr, rex.regline))
                                     no = false;
                                 else
                                 {
-                                    rip.rs_regsave.rs_ptr = rip.rs_regsave.rs_ptr.minus(us_ptr_back(regline, rip.rs_regsave.rs_ptr));
-                                    if (0 < limit && limit < BDIFF(behind_pos.rs_ptr, rip.rs_regsave.rs_ptr))
+                                    rip.rs_regsave.rs_ptr = rip.rs_regsave.rs_ptr.minus(us_ptr_back(rex.regline, rip.rs_regsave.rs_ptr));
+                                    if (0 < limit && limit < BDIFF(rex.behind_pos.rs_ptr, rip.rs_regsave.rs_ptr))
                                         no = false;
                                 }
                             }
                             if (no == true)
                             {
                                 /* Advanced, prepare for finding match again. */
-                                reg_restore(rip.rs_regsave, backpos);
+                                reg_restore(rex, rip.rs_regsave, rex.backpos);
                                 scan = operand(rip.rs_scan).plus(4);
                                 if (status == RA_MATCH)
                                 {
                                     /* We did match, so subexpr may have been changed,
                                      * need to restore them for the next try. */
                                     status = RA_NOMATCH;
-                                    restore_subexpr((regbehind_C)vip);
+                                    restore_subexpr(rex, (regbehind_C)vip);
                                 }
                             }
                             else
                             {
                                 /* Can't advance.  For NOBEHIND that's a match. */
-                                COPY_regsave(behind_pos, ((regbehind_C)vip).save_behind);
+                                COPY_regsave(rex.behind_pos, ((regbehind_C)vip).save_behind);
                                 if (rip.rs_no == NOBEHIND)
                                 {
-                                    reg_restore(((regbehind_C)vip).save_after, backpos);
+                                    reg_restore(rex, ((regbehind_C)vip).save_after, rex.backpos);
                                     status = RA_MATCH;
                                 }
                                 else
@@ -5442,11 +5541,11 @@ public class VimN
                                     if (status == RA_MATCH)
                                     {
                                         status = RA_NOMATCH;
-                                        restore_subexpr((regbehind_C)vip);
+                                        restore_subexpr(rex, (regbehind_C)vip);
                                     }
                                 }
-                                scan = pop_regitem();
-                                drop_regbehind();
+                                scan = pop_regitem(rex);
+                                drop_regbehind(rex);
                             }
                         }
                         break;
@@ -5458,14 +5557,14 @@ public class VimN
 
                         if (status == RA_MATCH)
                         {
-                            scan = pop_regitem();
-                            drop_regstar();
+                            scan = pop_regitem(rex);
+                            drop_regstar(rex);
                             break;
                         }
 
                         /* Tried once already, restore input pointers. */
                         if (status != RA_BREAK)
-                            reg_restore(rip.rs_regsave, backpos);
+                            reg_restore(rex, rip.rs_regsave, rex.backpos);
 
                         /* Repeat until we found a position where it could match. */
                         for ( ; ; )
@@ -5479,26 +5578,26 @@ public class VimN
                                      * or didn't match -- back up one char. */
                                     if (--rst.count < rst.minval)
                                         break;
-                                    if (BEQ(reginput, regline))
+                                    if (BEQ(rex.reginput, rex.regline))
                                     {
                                         /* backup to last char of previous line */
-                                        --reglnum;
-                                        regline = reg_getline(reglnum);
+                                        --rex.reglnum;
+                                        rex.regline = reg_getline(rex, rex.reglnum);
                                         /* Just in case regrepeat() didn't count right. */
-                                        if (regline == null)
+                                        if (rex.regline == null)
                                             break;
-                                        reginput = regline.plus(strlen(regline));
+                                        rex.reginput = rex.regline.plus(strlen(rex.regline));
                                         fast_breakcheck();
                                     }
                                     else
-                                        reginput = reginput.minus(us_ptr_back(regline, reginput));
+                                        rex.reginput = rex.reginput.minus(us_ptr_back(rex.regline, rex.reginput));
                                 }
                                 else
                                 {
                                     /* Range is backwards, use shortest match first.
                                      * Careful: maxval and minval are exchanged!
                                      * Couldn't or didn't match: try advancing one char. */
-                                    if (rst.count == rst.minval || regrepeat(operand(rip.rs_scan), 1L) == 0)
+                                    if (rst.count == rst.minval || regrepeat(rex, operand(rip.rs_scan), 1L) == 0)
                                         break;
                                     rst.count++;
                                 }
@@ -5509,9 +5608,9 @@ public class VimN
                                 status = RA_NOMATCH;
 
                             /* If it could match, try it. */
-                            if (rst.nextb == NUL || reginput.at(0) == rst.nextb || reginput.at(0) == rst.nextb_ic)
+                            if (rst.nextb == NUL || rex.reginput.at(0) == rst.nextb || rex.reginput.at(0) == rst.nextb_ic)
                             {
-                                reg_save(rip.rs_regsave, backpos);
+                                reg_save(rex, rip.rs_regsave, rex.backpos);
                                 scan = regnext(rip.rs_scan);
                                 status = RA_CONT;
                                 break;
@@ -5520,8 +5619,8 @@ public class VimN
                         if (status != RA_CONT)
                         {
                             /* Failed. */
-                            scan = pop_regitem();
-                            drop_regstar();
+                            scan = pop_regitem(rex);
+                            drop_regstar(rex);
                             status = RA_NOMATCH;
                         }
                     }
@@ -5529,7 +5628,7 @@ public class VimN
                 }
 
                 /* If we want to continue the inner loop or didn't pop a state continue matching loop. */
-                if (status == RA_CONT || rip == (regitem_C)regstack.ga_data[regstack.ga_len - 1])
+                if (status == RA_CONT || rip == (regitem_C)rex.regstack.ga_data[rex.regstack.ga_len - 1])
                     break;
             }
 
@@ -5540,7 +5639,7 @@ public class VimN
             /*
              * If the regstack is empty or something failed we are done.
              */
-            if (regstack.ga_len == 0 || status == RA_FAIL)
+            if (rex.regstack.ga_len == 0 || status == RA_FAIL)
             {
                 if (scan == null)
                 {
@@ -5563,9 +5662,9 @@ public class VimN
      * Push an item onto the regstack.
      * Returns pointer to new item.  Returns null when out of memory.
      */
-    /*private*/ static regitem_C push_regitem(int state, Bytes scan)
+    /*private*/ static regitem_C push_regitem(regexec_C rex, int state, Bytes scan)
     {
-        if (p_mmp[0] <= (regstack.ga_len >>> 10))
+        if (p_mmp[0] <= (rex.regstack.ga_len >>> 10))
         {
             emsg(e_maxmempat);
             return null;
@@ -5573,8 +5672,8 @@ public class VimN
 
         regitem_C rip = new regitem_C();
 
-        regstack.ga_grow(1);
-        regstack.ga_data[regstack.ga_len++] = rip;
+        rex.regstack.ga_grow(1);
+        rex.regstack.ga_data[rex.regstack.ga_len++] = rip;
 
         rip.rs_state = state;
         rip.rs_scan = scan;
@@ -5585,36 +5684,36 @@ public class VimN
     /*
      * Pop an item from the regstack.
      */
-    /*private*/ static Bytes pop_regitem()
+    /*private*/ static Bytes pop_regitem(regexec_C rex)
     {
-        regitem_C rip = (regitem_C)regstack.ga_data[--regstack.ga_len];
-        regstack.ga_data[regstack.ga_len] = null;
+        regitem_C rip = (regitem_C)rex.regstack.ga_data[--rex.regstack.ga_len];
+        rex.regstack.ga_data[rex.regstack.ga_len] = null;
 
         return rip.rs_scan;
     }
 
-    /*private*/ static void drop_regbehind()
+    /*private*/ static void drop_regbehind(regexec_C rex)
     {
-        regstack.ga_data[--regstack.ga_len] = null;
+        rex.regstack.ga_data[--rex.regstack.ga_len] = null;
     }
 
-    /*private*/ static void drop_regstar()
+    /*private*/ static void drop_regstar(regexec_C rex)
     {
-        regstack.ga_data[--regstack.ga_len] = null;
+        rex.regstack.ga_data[--rex.regstack.ga_len] = null;
     }
 
     /*
      * regrepeat - repeatedly match something simple, return how many.
      * Advances reginput (and reglnum) to just after the matched chars.
      */
-    /*private*/ static int regrepeat(Bytes p, long maxcount)
+    /*private*/ static int regrepeat(regexec_C rex, Bytes p, long maxcount)
         /* maxcount: maximum number of matches allowed */
     {
         long count = 0;
         int testval = 0;
         int mask;
 
-        Bytes scan = reginput;     /* Make local copy of reginput for speed. */
+        Bytes scan = rex.reginput;     /* Make local copy of reginput for speed. */
         Bytes opnd = operand(p);
 
         do_class:
@@ -5632,11 +5731,11 @@ public class VimN
                             count++;
                             scan = scan.plus(us_ptr2len_cc(scan));
                         }
-                        if (reg_match != null || !with_nl(re_op(p)) || reg_maxline < reglnum || reg_line_lbr || count == maxcount)
+                        if (rex.reg_match != null || !with_nl(re_op(p)) || rex.reg_maxline < rex.reglnum || rex.reg_line_lbr || count == maxcount)
                             break;
                         count++;                /* count the line-break */
-                        reg_nextline();
-                        scan = reginput;
+                        reg_nextline(rex);
+                        scan = rex.reginput;
                         if (got_int)
                             break;
                     }
@@ -5656,14 +5755,14 @@ public class VimN
                         }
                         else if (scan.at(0) == NUL)
                         {
-                            if (!(reg_match == null) || !with_nl(re_op(p)) || reg_maxline < reglnum || reg_line_lbr)
+                            if (!(rex.reg_match == null) || !with_nl(re_op(p)) || rex.reg_maxline < rex.reglnum || rex.reg_line_lbr)
                                 break;
-                            reg_nextline();
-                            scan = reginput;
+                            reg_nextline(rex);
+                            scan = rex.reginput;
                             if (got_int)
                                 break;
                         }
-                        else if (reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
+                        else if (rex.reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
                             scan = scan.plus(1);
                         else
                             break;
@@ -5679,20 +5778,20 @@ public class VimN
                 case SKWORD + ADD_NL:
                     while (count < maxcount)
                     {
-                        if (us_iswordp(scan, reg_buf) && (testval != 0 || !asc_isdigit(scan.at(0))))
+                        if (us_iswordp(scan, rex.reg_buf) && (testval != 0 || !asc_isdigit(scan.at(0))))
                         {
                             scan = scan.plus(us_ptr2len_cc(scan));
                         }
                         else if (scan.at(0) == NUL)
                         {
-                            if (!(reg_match == null) || !with_nl(re_op(p)) || reg_maxline < reglnum || reg_line_lbr)
+                            if (!(rex.reg_match == null) || !with_nl(re_op(p)) || rex.reg_maxline < rex.reglnum || rex.reg_line_lbr)
                                 break;
-                            reg_nextline();
-                            scan = reginput;
+                            reg_nextline(rex);
+                            scan = rex.reginput;
                             if (got_int)
                                 break;
                         }
-                        else if (reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
+                        else if (rex.reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
                             scan = scan.plus(1);
                         else
                             break;
@@ -5714,14 +5813,14 @@ public class VimN
                         }
                         else if (scan.at(0) == NUL)
                         {
-                            if (!(reg_match == null) || !with_nl(re_op(p)) || reg_maxline < reglnum || reg_line_lbr)
+                            if (!(rex.reg_match == null) || !with_nl(re_op(p)) || rex.reg_maxline < rex.reglnum || rex.reg_line_lbr)
                                 break;
-                            reg_nextline();
-                            scan = reginput;
+                            reg_nextline(rex);
+                            scan = rex.reginput;
                             if (got_int)
                                 break;
                         }
-                        else if (reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
+                        else if (rex.reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
                             scan = scan.plus(1);
                         else
                             break;
@@ -5739,10 +5838,10 @@ public class VimN
                     {
                         if (scan.at(0) == NUL)
                         {
-                            if (!(reg_match == null) || !with_nl(re_op(p)) || reg_maxline < reglnum || reg_line_lbr)
+                            if (!(rex.reg_match == null) || !with_nl(re_op(p)) || rex.reg_maxline < rex.reglnum || rex.reg_line_lbr)
                                 break;
-                            reg_nextline();
-                            scan = reginput;
+                            reg_nextline(rex);
+                            scan = rex.reginput;
                             if (got_int)
                                 break;
                         }
@@ -5750,7 +5849,7 @@ public class VimN
                         {
                             scan = scan.plus(us_ptr2len_cc(scan));
                         }
-                        else if (reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
+                        else if (rex.reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
                             scan = scan.plus(1);
                         else
                             break;
@@ -5852,7 +5951,7 @@ public class VimN
                 {
                     /* This doesn't do a multi-byte character, because a MULTIBYTECODE would have
                      * been used for it.  It does handle single-byte characters, such as latin1. */
-                    if (ireg_ic)
+                    if (rex.ireg_ic)
                     {
                         int cu = utf_toupper(opnd.at(0));
                         int cl = utf_tolower(opnd.at(0));
@@ -5881,7 +5980,7 @@ public class VimN
                     if (1 < len)
                     {
                         int cf = 0;
-                        if (ireg_ic)
+                        if (rex.ireg_ic)
                             cf = utf_fold(us_ptr2char(opnd));
                         while (count < maxcount)
                         {
@@ -5889,7 +5988,7 @@ public class VimN
                             for (i = 0; i < len; i++)
                                 if (opnd.at(i) != scan.at(i))
                                     break;
-                            if (i < len && (!ireg_ic || utf_fold(us_ptr2char(scan)) != cf))
+                            if (i < len && (!rex.ireg_ic || utf_fold(us_ptr2char(scan)) != cf))
                                 break;
                             scan = scan.plus(len);
                             count++;
@@ -5909,24 +6008,24 @@ public class VimN
                         int len;
                         if (scan.at(0) == NUL)
                         {
-                            if (!(reg_match == null) || !with_nl(re_op(p)) || reg_maxline < reglnum || reg_line_lbr)
+                            if (!(rex.reg_match == null) || !with_nl(re_op(p)) || rex.reg_maxline < rex.reglnum || rex.reg_line_lbr)
                                 break;
-                            reg_nextline();
-                            scan = reginput;
+                            reg_nextline(rex);
+                            scan = rex.reginput;
                             if (got_int)
                                 break;
                         }
-                        else if (reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
+                        else if (rex.reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
                             scan = scan.plus(1);
                         else if (1 < (len = us_ptr2len_cc(scan)))
                         {
-                            if ((cstrchr(opnd, us_ptr2char(scan)) == null) == (testval != 0))
+                            if ((cstrchr(rex, opnd, us_ptr2char(scan)) == null) == (testval != 0))
                                 break;
                             scan = scan.plus(len);
                         }
                         else
                         {
-                            if ((cstrchr(opnd, scan.at(0)) == null) == (testval != 0))
+                            if ((cstrchr(rex, opnd, scan.at(0)) == null) == (testval != 0))
                                 break;
                             scan = scan.plus(1);
                         }
@@ -5936,15 +6035,15 @@ public class VimN
 
                 case NEWL:
                     while (count < maxcount
-                        && ((scan.at(0) == NUL && reglnum <= reg_maxline && !reg_line_lbr && reg_match == null)
-                            || (scan.at(0) == (byte)'\n' && reg_line_lbr)))
+                        && ((scan.at(0) == NUL && rex.reglnum <= rex.reg_maxline && !rex.reg_line_lbr && rex.reg_match == null)
+                            || (scan.at(0) == (byte)'\n' && rex.reg_line_lbr)))
                     {
                         count++;
-                        if (reg_line_lbr)
-                            reginput = reginput.plus(us_ptr2len_cc(reginput));
+                        if (rex.reg_line_lbr)
+                            rex.reginput = rex.reginput.plus(us_ptr2len_cc(rex.reginput));
                         else
-                            reg_nextline();
-                        scan = reginput;
+                            reg_nextline(rex);
+                        scan = rex.reginput;
                         if (got_int)
                             break;
                     }
@@ -5960,10 +6059,10 @@ public class VimN
                 int l;
                 if (scan.at(0) == NUL)
                 {
-                    if (reg_match != null || !with_nl(re_op(p)) || reg_maxline < reglnum || reg_line_lbr)
+                    if (rex.reg_match != null || !with_nl(re_op(p)) || rex.reg_maxline < rex.reglnum || rex.reg_line_lbr)
                         break;
-                    reg_nextline();
-                    scan = reginput;
+                    reg_nextline(rex);
+                    scan = rex.reginput;
                     if (got_int)
                         break;
                 }
@@ -5975,7 +6074,7 @@ public class VimN
                 }
                 else if ((class_tab[char_u(scan.at(0))] & mask) == testval)
                     scan = scan.plus(1);
-                else if (reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
+                else if (rex.reg_line_lbr && scan.at(0) == (byte)'\n' && with_nl(re_op(p)))
                     scan = scan.plus(1);
                 else
                     break;
@@ -5983,7 +6082,7 @@ public class VimN
             }
         }
 
-        reginput = scan;
+        rex.reginput = scan;
 
         return (int)count;
     }
@@ -6011,9 +6110,9 @@ public class VimN
      * Check the regexp program for its magic number.
      * Return true if it's wrong.
      */
-    /*private*/ static boolean prog_magic_wrong()
+    /*private*/ static boolean prog_magic_wrong(regexec_C rex)
     {
-        regprog_C prog = (reg_match == null) ? reg_mmatch.regprog : reg_match.regprog;
+        regprog_C prog = (rex.reg_match == null) ? rex.reg_mmatch.regprog : rex.reg_match.regprog;
         if (prog.engine == nfa_regengine)
             /* For NFA matcher we don't check the magic. */
             return false;
@@ -6032,77 +6131,77 @@ public class VimN
      * This construction is used to clear the subexpressions
      * only when they are used (to increase speed).
      */
-    /*private*/ static void cleanup_subexpr()
+    /*private*/ static void cleanup_subexpr(regexec_C rex)
     {
-        if (need_clear_subexpr)
+        if (rex.need_clear_subexpr)
         {
-            if (reg_match == null)
+            if (rex.reg_match == null)
             {
                 for (int i = 0; i < NSUBEXP; i++)
                 {
                     /* Use 0xff to set lnum to -1. */
-                    MIN1_lpos(reg_startpos[i]);
-                    MIN1_lpos(reg_endpos[i]);
+                    MIN1_lpos(rex.reg_startpos[i]);
+                    MIN1_lpos(rex.reg_endpos[i]);
                 }
             }
             else
             {
                 for (int i = 0; i < NSUBEXP; i++)
                 {
-                    reg_startp[i] = null;
-                    reg_endp[i] = null;
+                    rex.reg_startp[i] = null;
+                    rex.reg_endp[i] = null;
                 }
             }
-            need_clear_subexpr = false;
+            rex.need_clear_subexpr = false;
         }
     }
 
-    /*private*/ static void cleanup_zsubexpr()
+    /*private*/ static void cleanup_zsubexpr(regexec_C rex)
     {
-        if (need_clear_zsubexpr)
+        if (rex.need_clear_zsubexpr)
         {
-            if (reg_match == null)
+            if (rex.reg_match == null)
             {
                 for (int i = 0; i < NSUBEXP; i++)
                 {
                     /* Use 0xff to set lnum to -1. */
-                    MIN1_lpos(reg_startzpos[i]);
-                    MIN1_lpos(reg_endzpos[i]);
+                    MIN1_lpos(rex.reg_startzpos[i]);
+                    MIN1_lpos(rex.reg_endzpos[i]);
                 }
             }
             else
             {
                 for (int i = 0; i < NSUBEXP; i++)
                 {
-                    reg_startzp[i] = null;
-                    reg_endzp[i] = null;
+                    rex.reg_startzp[i] = null;
+                    rex.reg_endzp[i] = null;
                 }
             }
-            need_clear_zsubexpr = false;
+            rex.need_clear_zsubexpr = false;
         }
     }
 
     /*
      * Save the current subexpr to "bp", so that they can be restored later by restore_subexpr().
      */
-    /*private*/ static void save_subexpr(regbehind_C bp)
+    /*private*/ static void save_subexpr(regexec_C rex, regbehind_C bp)
     {
         /* When "need_clear_subexpr" is set we don't need to save the values,
          * only remember that this flag needs to be set again when restoring. */
-        bp.save_need_clear_subexpr = need_clear_subexpr;
-        if (!need_clear_subexpr)
+        bp.save_need_clear_subexpr = rex.need_clear_subexpr;
+        if (!rex.need_clear_subexpr)
         {
             for (int i = 0; i < NSUBEXP; i++)
             {
-                if (reg_match == null)
+                if (rex.reg_match == null)
                 {
-                    COPY_lpos(bp.save_start[i].se_pos, reg_startpos[i]);
-                    COPY_lpos(bp.save_end[i].se_pos, reg_endpos[i]);
+                    COPY_lpos(bp.save_start[i].se_pos, rex.reg_startpos[i]);
+                    COPY_lpos(bp.save_end[i].se_pos, rex.reg_endpos[i]);
                 }
                 else
                 {
-                    bp.save_start[i].se_ptr = reg_startp[i];
-                    bp.save_end[i].se_ptr = reg_endp[i];
+                    bp.save_start[i].se_ptr = rex.reg_startp[i];
+                    bp.save_end[i].se_ptr = rex.reg_endp[i];
                 }
             }
         }
@@ -6111,23 +6210,23 @@ public class VimN
     /*
      * Restore the subexpr from "bp".
      */
-    /*private*/ static void restore_subexpr(regbehind_C bp)
+    /*private*/ static void restore_subexpr(regexec_C rex, regbehind_C bp)
     {
         /* Only need to restore saved values when they are not to be cleared. */
-        need_clear_subexpr = bp.save_need_clear_subexpr;
-        if (!need_clear_subexpr)
+        rex.need_clear_subexpr = bp.save_need_clear_subexpr;
+        if (!rex.need_clear_subexpr)
         {
             for (int i = 0; i < NSUBEXP; i++)
             {
-                if (reg_match == null)
+                if (rex.reg_match == null)
                 {
-                    COPY_lpos(reg_startpos[i], bp.save_start[i].se_pos);
-                    COPY_lpos(reg_endpos[i], bp.save_end[i].se_pos);
+                    COPY_lpos(rex.reg_startpos[i], bp.save_start[i].se_pos);
+                    COPY_lpos(rex.reg_endpos[i], bp.save_end[i].se_pos);
                 }
                 else
                 {
-                    reg_startp[i] = bp.save_start[i].se_ptr;
-                    reg_endp[i] = bp.save_end[i].se_ptr;
+                    rex.reg_startp[i] = bp.save_start[i].se_ptr;
+                    rex.reg_endp[i] = bp.save_end[i].se_ptr;
                 }
             }
         }
@@ -6136,57 +6235,57 @@ public class VimN
     /*
      * Advance "reglnum", "regline" and "reginput" to the next line.
      */
-    /*private*/ static void reg_nextline()
+    /*private*/ static void reg_nextline(regexec_C rex)
     {
-        regline = reg_getline(++reglnum);
-        reginput = regline;
+        rex.regline = reg_getline(rex, ++rex.reglnum);
+        rex.reginput = rex.regline;
         fast_breakcheck();
     }
 
     /*
      * Save the input line and position in a regsave_C.
      */
-    /*private*/ static void reg_save(regsave_C save, Growing<backpos_C> gap)
+    /*private*/ static void reg_save(regexec_C rex, regsave_C save, Growing<backpos_C> gap)
     {
-        if (reg_match == null)
+        if (rex.reg_match == null)
         {
-            save.rs_pos.col = BDIFF(reginput, regline);
-            save.rs_pos.lnum = reglnum;
+            save.rs_pos.col = BDIFF(rex.reginput, rex.regline);
+            save.rs_pos.lnum = rex.reglnum;
         }
         else
-            save.rs_ptr = reginput;
+            save.rs_ptr = rex.reginput;
         save.rs_len = gap.ga_len;
     }
 
     /*
      * Restore the input line and position from a regsave_C.
      */
-    /*private*/ static void reg_restore(regsave_C save, Growing<backpos_C> gap)
+    /*private*/ static void reg_restore(regexec_C rex, regsave_C save, Growing<backpos_C> gap)
     {
-        if (reg_match == null)
+        if (rex.reg_match == null)
         {
-            if (reglnum != save.rs_pos.lnum)
+            if (rex.reglnum != save.rs_pos.lnum)
             {
                 /* only call reg_getline() when the line number changed to save a bit of time */
-                reglnum = save.rs_pos.lnum;
-                regline = reg_getline(reglnum);
+                rex.reglnum = save.rs_pos.lnum;
+                rex.regline = reg_getline(rex, rex.reglnum);
             }
-            reginput = regline.plus(save.rs_pos.col);
+            rex.reginput = rex.regline.plus(save.rs_pos.col);
         }
         else
-            reginput = save.rs_ptr;
+            rex.reginput = save.rs_ptr;
         gap.ga_len = save.rs_len;
     }
 
     /*
      * Return true if current position is equal to saved position.
      */
-    /*private*/ static boolean reg_save_equal(regsave_C save)
+    /*private*/ static boolean reg_save_equal(regexec_C rex, regsave_C save)
     {
-        if (reg_match == null)
-            return (reglnum == save.rs_pos.lnum && BEQ(reginput, regline.plus(save.rs_pos.col)));
+        if (rex.reg_match == null)
+            return (rex.reglnum == save.rs_pos.lnum && BEQ(rex.reginput, rex.regline.plus(save.rs_pos.col)));
 
-        return BEQ(reginput, save.rs_ptr);
+        return BEQ(rex.reginput, save.rs_ptr);
     }
 
     /*
@@ -6195,35 +6294,35 @@ public class VimN
      * Use se_save() to use pointer (save_se_multi()) or position (save_se_one()),
      * depending on REG_MULTI.
      */
-    /*private*/ static void save_se_multi(save_se_C savep, lpos_C posp)
+    /*private*/ static void save_se_multi(regexec_C rex, save_se_C savep, lpos_C posp)
     {
         COPY_lpos(savep.se_pos, posp);
-        posp.lnum = reglnum;
-        posp.col = BDIFF(reginput, regline);
+        posp.lnum = rex.reglnum;
+        posp.col = BDIFF(rex.reginput, rex.regline);
     }
 
-    /*private*/ static Bytes save_se_one(save_se_C savep, Bytes pp)
+    /*private*/ static Bytes save_se_one(regexec_C rex, save_se_C savep, Bytes pp)
     {
         savep.se_ptr = pp;
-        pp = reginput;
+        pp = rex.reginput;
         return pp;
     }
 
     /* Save the sub-expressions before attempting a match. */
-    /*private*/ static Bytes save_se(save_se_C savep, lpos_C posp, Bytes pp)
+    /*private*/ static Bytes save_se(regexec_C rex, save_se_C savep, lpos_C posp, Bytes pp)
     {
-        if (reg_match == null)
-            save_se_multi(savep, posp);
+        if (rex.reg_match == null)
+            save_se_multi(rex, savep, posp);
         else
-            pp = save_se_one(savep, pp);
+            pp = save_se_one(rex, savep, pp);
 
         return pp;
     }
 
     /* After a failed match restore the sub-expressions. */
-    /*private*/ static Bytes restore_se(save_se_C savep, lpos_C posp, Bytes pp)
+    /*private*/ static Bytes restore_se(regexec_C rex, save_se_C savep, lpos_C posp, Bytes pp)
     {
-        if (reg_match == null)
+        if (rex.reg_match == null)
             COPY_lpos(posp, savep.se_pos);
         else
             pp = savep.se_ptr;
@@ -6251,7 +6350,7 @@ public class VimN
      * Returns RA_FAIL, RA_NOMATCH or RA_MATCH.
      * If "bytelen" is not null, it is set to the byte length of the match in the last line.
      */
-    /*private*/ static int match_with_backref(long start_lnum, int start_col, long end_lnum, int end_col, int[] bytelen)
+    /*private*/ static int match_with_backref(regexec_C rex, long start_lnum, int start_col, long end_lnum, int end_col, int[] bytelen)
     {
         long clnum = start_lnum;
         int ccol = start_col;
@@ -6263,39 +6362,39 @@ public class VimN
         {
             /* Since getting one line may invalidate the other, need to make copy.
              * Slow! */
-            if (BNE(regline, reg_tofree))
+            if (BNE(rex.regline, rex.reg_tofree))
             {
-                int len = strlen(regline);
-                if (reg_tofree == null || reg_tofree_len <= len)
+                int len = strlen(rex.regline);
+                if (rex.reg_tofree == null || rex.reg_tofree_len <= len)
                 {
                     len += 50;                              /* get some extra */
-                    reg_tofree = new Bytes(len);
-                    reg_tofree_len = len;
+                    rex.reg_tofree = new Bytes(len);
+                    rex.reg_tofree_len = len;
                 }
-                STRCPY(reg_tofree, regline);
-                reginput = reg_tofree.plus(BDIFF(reginput, regline));
-                regline = reg_tofree;
+                STRCPY(rex.reg_tofree, rex.regline);
+                rex.reginput = rex.reg_tofree.plus(BDIFF(rex.reginput, rex.regline));
+                rex.regline = rex.reg_tofree;
             }
 
             /* Get the line to compare with. */
-            Bytes p = reg_getline(clnum);
+            Bytes p = reg_getline(rex, clnum);
             int[] len = new int[1];
             if (clnum == end_lnum)
                 len[0] = end_col - ccol;
             else
                 len[0] = strlen(p, ccol);
 
-            if (cstrncmp(p.plus(ccol), reginput, len) != 0)
+            if (cstrncmp(rex, p.plus(ccol), rex.reginput, len) != 0)
                 return RA_NOMATCH;                          /* doesn't match */
             if (bytelen != null)
                 bytelen[0] += len[0];
             if (clnum == end_lnum)
                 break;                                      /* match and at end! */
-            if (reg_maxline <= reglnum)
+            if (rex.reg_maxline <= rex.reglnum)
                 return RA_NOMATCH;                          /* text too short */
 
             /* Advance to next line. */
-            reg_nextline();
+            reg_nextline(rex);
             if (bytelen != null)
                 bytelen[0] = 0;
             clnum++;
@@ -6409,17 +6508,17 @@ public class VimN
      * Return 0 if strings match, non-zero otherwise.
      * Correct the length "*n" when composing characters are ignored.
      */
-    /*private*/ static int cstrncmp(Bytes s1, Bytes s2, int[] n)
+    /*private*/ static int cstrncmp(regexec_C rex, Bytes s1, Bytes s2, int[] n)
     {
         int result;
 
-        if (!ireg_ic)
+        if (!rex.ireg_ic)
             result = STRNCMP(s1, s2, n[0]);
         else
             result = us_strnicmp(s1, s2, n[0]);
 
         /* if it failed and it's utf8 and we want to combineignore */
-        if (result != 0 && ireg_icombine)
+        if (result != 0 && rex.ireg_icombine)
         {
             Bytes[] str1 = { s1 };
             Bytes[] str2 = { s2 };
@@ -6435,7 +6534,7 @@ public class VimN
                 /* Decompose the character if necessary into 'base' characters,
                  * because I don't care about Arabic, I will hard-code the Hebrew
                  * which I *do* care about!  So sue me... */
-                if (c1 != c2 && (!ireg_ic || utf_fold(c1) != utf_fold(c2)))
+                if (c1 != c2 && (!rex.ireg_ic || utf_fold(c1) != utf_fold(c2)))
                 {
                     int[] c11 = new int[1];
                     int[] c12 = new int[1];
@@ -6446,7 +6545,7 @@ public class VimN
                     mb_decompose(c2, c12, junk, junk);
                     c1 = c11[0];
                     c2 = c12[0];
-                    if (c11[0] != c12[0] && (!ireg_ic || utf_fold(c11[0]) != utf_fold(c12[0])))
+                    if (c11[0] != c12[0] && (!rex.ireg_ic || utf_fold(c11[0]) != utf_fold(c12[0])))
                         break;
                 }
             }
@@ -6461,9 +6560,9 @@ public class VimN
     /*
      * This function is used a lot for simple searches, keep it fast!
      */
-    /*private*/ static Bytes cstrchr(Bytes s, int c)
+    /*private*/ static Bytes cstrchr(regexec_C rex, Bytes s, int c)
     {
-        if (!ireg_ic)
+        if (!rex.ireg_ic)
             return vim_strchr(s, c);
 
         int cc;
@@ -6593,6 +6692,7 @@ public class VimN
      */
     /*private*/ static regmatch_C       submatch_match;
     /*private*/ static regmmatch_C      submatch_mmatch;
+    /*private*/ static buffer_C         submatch_buf;
     /*private*/ static long             submatch_firstlnum;
     /*private*/ static long             submatch_maxline;
     /*private*/ static boolean          submatch_line_lbr;
@@ -6613,28 +6713,40 @@ public class VimN
      */
     /*private*/ static int vim_regsub(regmatch_C rmp, Bytes source, Bytes dest, boolean copy, boolean magic, boolean backslash)
     {
-        reg_match = rmp;
-        reg_mmatch = null;
-        reg_maxline = 0;
-        reg_buf = curbuf;
-        reg_line_lbr = true;
-        return vim_regsub_both(source, dest, copy, magic, backslash);
+        regexec_C rex = rex_get();
+
+        rex.reg_match = rmp;
+        rex.reg_mmatch = null;
+        rex.reg_maxline = 0;
+        rex.reg_buf = curbuf;
+        rex.reg_line_lbr = true;
+
+        int len = vim_regsub_both(rex, source, dest, copy, magic, backslash);
+
+        rex_put(rex);
+        return len;
     }
 
     /*private*/ static int vim_regsub_multi(regmmatch_C rmp, long lnum, Bytes source, Bytes dest, boolean copy, boolean magic, boolean backslash)
     {
-        reg_match = null;
-        reg_mmatch = rmp;
-        reg_buf = curbuf;           /* always works on the current buffer! */
-        reg_firstlnum = lnum;
-        reg_maxline = curbuf.b_ml.ml_line_count - lnum;
-        reg_line_lbr = false;
-        return vim_regsub_both(source, dest, copy, magic, backslash);
+        regexec_C rex = rex_get();
+
+        rex.reg_match = null;
+        rex.reg_mmatch = rmp;
+        rex.reg_buf = curbuf;           /* always works on the current buffer! */
+        rex.reg_firstlnum = lnum;
+        rex.reg_maxline = curbuf.b_ml.ml_line_count - lnum;
+        rex.reg_line_lbr = false;
+
+        int len = vim_regsub_both(rex, source, dest, copy, magic, backslash);
+
+        rex_put(rex);
+        return len;
     }
 
     /*private*/ static Bytes eval_result;
 
-    /*private*/ static int vim_regsub_both(Bytes source, Bytes dest, boolean copy, boolean magic, boolean backslash)
+    /*private*/ static int vim_regsub_both(regexec_C rex, Bytes source, Bytes dest, boolean copy, boolean magic, boolean backslash)
     {
         /* Be paranoid... */
         if (source == null || dest == null)
@@ -6642,7 +6754,7 @@ public class VimN
             emsg(e_null);
             return 0;
         }
-        if (prog_magic_wrong())
+        if (prog_magic_wrong(rex))
             return 0;
 
         Bytes dst = dest;
@@ -6666,18 +6778,16 @@ public class VimN
             }
             else
             {
-                /* The expression may contain substitute(), which calls us recursively.
+                /* The expression may contain substitute(), which calls us recursively with another context.
                  * Make sure submatch() gets the text from the first level.
-                 * Don't need to save "reg_buf", because vim_regexec_multi() can't be called recursively.
                  */
-                submatch_match = reg_match;
-                submatch_mmatch = reg_mmatch;
-                submatch_firstlnum = reg_firstlnum;
-                submatch_maxline = reg_maxline;
-                submatch_line_lbr = reg_line_lbr;
-
-                window_C save_reg_win = reg_win;
-                boolean save_ireg_ic = ireg_ic;
+                submatch_match = rex.reg_match;
+                submatch_mmatch = rex.reg_mmatch;
+                submatch_buf = rex.reg_buf;
+                submatch_firstlnum = rex.reg_firstlnum;
+                submatch_maxline = rex.reg_maxline;
+                submatch_line_lbr = rex.reg_line_lbr;
+
                 can_f_submatch = true;
 
                 eval_result = eval_to_string(source.plus(2), null, true);
@@ -6715,13 +6825,6 @@ public class VimN
                     dst = dst.plus(strlen(eval_result));
                 }
 
-                reg_match = submatch_match;
-                reg_mmatch = submatch_mmatch;
-                reg_firstlnum = submatch_firstlnum;
-                reg_maxline = submatch_maxline;
-                reg_line_lbr = submatch_line_lbr;
-                reg_win = save_reg_win;
-                ireg_ic = save_ireg_ic;
                 can_f_submatch = false;
             }
         }
@@ -6849,27 +6952,27 @@ public class VimN
                 else
                 {
                     Bytes s;
-                    if (reg_match == null)
+                    if (rex.reg_match == null)
                     {
-                        clnum = reg_mmatch.startpos[no].lnum;
-                        if (clnum < 0 || reg_mmatch.endpos[no].lnum < 0)
+                        clnum = rex.reg_mmatch.startpos[no].lnum;
+                        if (clnum < 0 || rex.reg_mmatch.endpos[no].lnum < 0)
                             s = null;
                         else
                         {
-                            s = reg_getline(clnum).plus(reg_mmatch.startpos[no].col);
-                            if (reg_mmatch.endpos[no].lnum == clnum)
-                                len = reg_mmatch.endpos[no].col - reg_mmatch.startpos[no].col;
+                            s = reg_getline(rex, clnum).plus(rex.reg_mmatch.startpos[no].col);
+                            if (rex.reg_mmatch.endpos[no].lnum == clnum)
+                                len = rex.reg_mmatch.endpos[no].col - rex.reg_mmatch.startpos[no].col;
                             else
                                 len = strlen(s);
                         }
                     }
                     else
                     {
-                        s = reg_match.startp[no];
-                        if (reg_match.endp[no] == null)
+                        s = rex.reg_match.startp[no];
+                        if (rex.reg_match.endp[no] == null)
                             s = null;
                         else
-                            len = BDIFF(reg_match.endp[no], s);
+                            len = BDIFF(rex.reg_match.endp[no], s);
                     }
                     if (s != null)
                     {
@@ -6877,16 +6980,16 @@ public class VimN
                         {
                             if (len == 0)
                             {
-                                if (reg_match == null)
+                                if (rex.reg_match == null)
                                 {
-                                    if (reg_mmatch.endpos[no].lnum == clnum)
+                                    if (rex.reg_mmatch.endpos[no].lnum == clnum)
                                         break;
                                     if (copy)
                                         dst.be(0, CAR);
                                     dst = dst.plus(1);
-                                    s = reg_getline(++clnum);
-                                    if (reg_mmatch.endpos[no].lnum == clnum)
-                                        len = reg_mmatch.endpos[no].col;
+                                    s = reg_getline(rex, ++clnum);
+                                    if (rex.reg_mmatch.endpos[no].lnum == clnum)
+                                        len = rex.reg_mmatch.endpos[no].col;
                                     else
                                         len = strlen(s);
                                 }
@@ -6956,22 +7059,19 @@ public class VimN
     }
 
     /*
-     * Call reg_getline() with the line numbers from the submatch.
-     * If a substitute() was used the reg_maxline and other values have been overwritten.
+     * Call reg_getline() with the buffer and line numbers from the submatch.
      */
     /*private*/ static Bytes reg_getline_submatch(long lnum)
     {
-        long save_first = reg_firstlnum;
-        long save_max = reg_maxline;
-
-        reg_firstlnum = submatch_firstlnum;
-        reg_maxline = submatch_maxline;
+        regexec_C rex = rex_get();
 
-        Bytes s = reg_getline(lnum);
+        rex.reg_buf = submatch_buf;
+        rex.reg_firstlnum = submatch_firstlnum;
+        rex.reg_maxline = submatch_maxline;
 
-        reg_firstlnum = save_first;
-        reg_maxline = save_max;
+        Bytes s = reg_getline(rex, lnum);
 
+        rex_put(rex);
         return s;
     }
 
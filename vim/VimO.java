@@ -5,6 +5,8 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 import jnr.ffi.LibraryLoader;
 import jnr.ffi.mapper.DataConverter;
@@ -17,6 +19,11 @@ import jnr.ffi.StructLayout;
 import jnr.ffi.Variable;
 import jnr.ffi.types.*;
 
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
 import static vim.VimA.*;
 import static vim.VimB.*;
 import static vim.VimC.*;
@@ -296,27 +303,9 @@ public class VimO
     /* NFA regexp \1 .. \9 encountered. */
     /*private*/ static boolean nfa_has_backref;
 
-    /* NFA regexp has \z( ), set zsubexpr. */
-    /*private*/ static boolean nfa_has_zsubexpr;
-
-    /* Number of sub expressions actually being used during execution.
-     * 1 if only the whole match (subexpr 0) is used. */
-    /*private*/ static int nfa_nsubexpr;
-
     /*private*/ static int[] post_array;    /* holds the postfix form of r.e. */
     /*private*/ static int post_index;
 
-    /* If not null match must end at this position. */
-    /*private*/ static save_se_C nfa_endp;
-
-    /* 'listid' is global, so that it increases on recursive calls to nfa_regmatch(),
-     * which means we don't have to clear the lastlist field of all the states. */
-    /*private*/ static int nfa_listid;
-    /*private*/ static int nfa_alt_listid;
-
-    /* 0 for first call to nfa_regmatch(), 1 for recursive call. */
-    /*private*/ static int nfa_ll_index;
-
     /*
      * Initialize internal variables before NFA compilation.
      * Return true on success, false otherwise.
@@ -513,6 +502,186 @@ public class VimO
         return ret;
     }
 
+    /*
+     * Return true if "state" consumes no character and only goes on to "out0",
+     * thus the literal text before and after it must be next to each other in a match.
+     */
+    /*private*/ static boolean nfa_is_zero_width(nfa_state_C state)
+    {
+        switch (state.c)
+        {
+            case NFA_EMPTY:
+            case NFA_NOPEN:
+            case NFA_NCLOSE:
+            case NFA_ZSTART:
+            case NFA_ZEND:
+            case NFA_BOL:
+            case NFA_EOL:
+            case NFA_BOW:
+            case NFA_EOW:
+                return true;
+
+            default:
+                return (NFA_MOPEN <= state.c && state.c <= NFA_ZCLOSE9);
+        }
+    }
+
+    /*
+     * Return true if no path through the NFA from "start" to NFA_MATCH avoids all states "cut".
+     */
+    /*private*/ static boolean nfa_is_cut(nfa_regprog_C prog, boolean[] cut)
+    {
+        boolean[] seen = new boolean[prog.nstate];
+        nfa_state_C[] stack = new nfa_state_C[1 + 2 * prog.nstate];
+        int sp = 0;
+
+        stack[sp++] = prog.start;
+        while (0 < sp)
+        {
+            nfa_state_C p = stack[--sp];
+            if (seen[p.id] || cut[p.id])
+                continue;
+            seen[p.id] = true;
+
+            if (p.c == NFA_MATCH)
+                return false;
+
+            if (p.c == NFA_START_COLL || p.c == NFA_START_NEG_COLL)
+                stack[sp++] = p.out1().out0();
+            else
+            {
+                if (p.out0() != null)
+                    stack[sp++] = p.out0();
+                if (p.out1() != null)
+                    stack[sp++] = p.out1();
+            }
+        }
+
+        return true;
+    }
+
+    /*private*/ static final int
+        MUST_MIN_LEN = 2,       /* shortest literal text worth looking for */
+        MUST_MAX_LEN = 32,      /* longest literal text kept */
+        MUST_MAX_COUNT = 8,     /* maximum number of literal texts */
+        MUST_MAX_TRIES = 32;    /* maximum number of literal texts tried alone */
+
+    /*
+     * Figure out literal text that is in every match of the NFA, for skipping lines that
+     * can't match.  A sequence of ASCII characters, with only zero-width states in between,
+     * must all be in the match when its first character is.  When every path from the
+     * start to NFA_MATCH goes through that character, return the text.  Otherwise look for
+     * a few of those texts that together are on every path, like for "foo\|bar".
+     * Non-ASCII characters are not used, they also match an illegal byte with that value.
+     * Returns null when there is nothing useful.
+     */
+    /*private*/ static Bytes[] nfa_get_must(nfa_regprog_C prog)
+    {
+        /* Only for matches in one line, and the composing characters are complicated. */
+        if ((prog.regflags & RF_HASNL) != 0 || prog.match_text != null || 0x10000 <= prog.nstate)
+            return null;
+
+        boolean[] literal = new boolean[prog.nstate];
+        for (int i = 0; i < prog.nstate; i++)
+        {
+            nfa_state_C state = prog.states[i];
+            if (state == null)
+                continue;
+            if (state.c == NFA_NEWL || (NFA_FIRST_NL <= state.c && state.c <= NFA_LAST_NL) || state.c == NFA_COMPOSING)
+                return null;
+            if (0 < state.c && state.c < 0x80)
+                literal[i] = true;
+        }
+
+        /* The characters of a collection are not literal text. */
+        for (int i = 0; i < prog.nstate; i++)
+        {
+            nfa_state_C state = prog.states[i];
+            if (state != null && (state.c == NFA_START_COLL || state.c == NFA_START_NEG_COLL))
+                for (nfa_state_C p = state.out0(); p.c != NFA_END_COLL; p = p.out0())
+                    literal[p.id] = false;
+        }
+
+        /* The text starting at each literal character, and which ones are inside such a text. */
+        Bytes[] text = new Bytes[prog.nstate];
+        boolean[] inner = new boolean[prog.nstate];
+        for (int i = 0; i < prog.nstate; i++)
+        {
+            if (!literal[i])
+                continue;
+
+            Bytes s = new Bytes(MUST_MAX_LEN + 1);
+            int len = 0;
+            for (nfa_state_C p = prog.states[i]; p != null && len < MUST_MAX_LEN; p = p.out0())
+            {
+                if (literal[p.id])
+                {
+                    if (0 < len)
+                        inner[p.id] = true;
+                    s.be(len++, p.c);
+                }
+                else if (!nfa_is_zero_width(p))
+                    break;
+            }
+            s.be(len, NUL);
+
+            if (MUST_MIN_LEN <= len)
+                text[i] = s;
+        }
+
+        /* The longest text that is in every match. */
+        boolean[] cut = new boolean[prog.nstate];
+        boolean[] tried = new boolean[prog.nstate];
+        for (int tries = 0; tries < MUST_MAX_TRIES; tries++)
+        {
+            int best = -1;
+            for (int i = 0; i < prog.nstate; i++)
+                if (text[i] != null && !tried[i] && (best < 0 || strlen(text[best]) < strlen(text[i])))
+                    best = i;
+            if (best < 0)
+                break;
+
+            tried[best] = true;
+            cut[best] = true;
+            if (nfa_is_cut(prog, cut))
+            {
+                Bytes[] must = { text[best] };
+                return must;
+            }
+            cut[best] = false;
+        }
+
+        /* Otherwise the texts that don't start inside another one, when together they are in every match. */
+        int n = 0;
+        for (int i = 0; i < prog.nstate; i++)
+            if (text[i] != null && !inner[i])
+            {
+                cut[i] = true;
+                n++;
+            }
+        if (n == 0 || MUST_MAX_COUNT < n || !nfa_is_cut(prog, cut))
+            return null;
+
+        /* Leave out the shorter ones, as long as the others are still in every match. */
+        for (int len = MUST_MIN_LEN; len <= MUST_MAX_LEN; len++)
+            for (int i = 0; i < prog.nstate; i++)
+                if (cut[i] && strlen(text[i]) == len)
+                {
+                    cut[i] = false;
+                    if (nfa_is_cut(prog, cut))
+                        n--;
+                    else
+                        cut[i] = true;
+                }
+
+        Bytes[] must = new Bytes[n];
+        n = 0;
+        for (int i = 0; i < prog.nstate; i++)
+            if (cut[i])
+                must[n++] = text[i];
+        return must;
+    }
+
     /*
      * Allocate more space for post_array.
      * Called when running above the estimated number of states.
@@ -2383,8 +2552,6 @@ public class VimO
         state.val = 0;
 
         state.id = prog.istate;
-        state.lastlist[0] = 0;
-        state.lastlist[1] = 0;
 
         return state;
     }
@@ -3528,36 +3695,31 @@ public class VimO
         return a;
     }
 
-    /* Used during execution: whether a match has been found. */
-    /*private*/ static int nfa_match;
-    /*private*/ static timeval_C nfa_time_limit;
-    /*private*/ static int nfa_time_count;
-
     /*
      * Copy postponed invisible match info from "from" to "to".
      */
-    /*private*/ static void copy_pim(nfa_pim_C to, nfa_pim_C from)
+    /*private*/ static void copy_pim(regexec_C rex, nfa_pim_C to, nfa_pim_C from)
     {
         to.result = from.result;
         to.state = from.state;
-        copy_sub(to.np_subs.rs_norm, from.np_subs.rs_norm);
-        if (nfa_has_zsubexpr)
-            copy_sub(to.np_subs.rs_synt, from.np_subs.rs_synt);
+        copy_sub(rex, to.np_subs.rs_norm, from.np_subs.rs_norm);
+        if (rex.nfa_has_zsubexpr)
+            copy_sub(rex, to.np_subs.rs_synt, from.np_subs.rs_synt);
         COPY_lpos(to.end_pos, from.end_pos);
         to.end_ptr = from.end_ptr;
     }
 
-    /*private*/ static void clear_sub(regsub_C sub)
+    /*private*/ static void clear_sub(regexec_C rex, regsub_C sub)
     {
-        if (reg_match == null)
+        if (rex.reg_match == null)
         {
             /* Use 0xff to set lnum to -1. */
-            for (int i = 0; i < nfa_nsubexpr; i++)
+            for (int i = 0; i < rex.nfa_nsubexpr; i++)
                 MIN1_multipos(sub.rs_multi[i]);
         }
         else
         {
-            for (int i = 0; i < nfa_nsubexpr; i++)
+            for (int i = 0; i < rex.nfa_nsubexpr; i++)
                 ZER0_linepos(sub.rs_line[i]);
         }
         sub.in_use = 0;
@@ -3566,13 +3728,13 @@ public class VimO
     /*
      * Copy the submatches from "from" to "to".
      */
-    /*private*/ static void copy_sub(regsub_C to, regsub_C from)
+    /*private*/ static void copy_sub(regexec_C rex, regsub_C to, regsub_C from)
     {
         to.in_use = from.in_use;
         if (0 < from.in_use)
         {
             /* Copy the match start and end positions. */
-            if (reg_match == null)
+            if (rex.reg_match == null)
             {
                 for (int i = 0; i < from.in_use; i++)
                     COPY_multipos(to.rs_multi[i], from.rs_multi[i]);
@@ -3588,14 +3750,14 @@ public class VimO
     /*
      * Like copy_sub() but exclude the main match.
      */
-    /*private*/ static void copy_sub_off(regsub_C to, regsub_C from)
+    /*private*/ static void copy_sub_off(regexec_C rex, regsub_C to, regsub_C from)
     {
         if (to.in_use < from.in_use)
             to.in_use = from.in_use;
         if (1 < from.in_use)
         {
             /* Copy the match start and end positions. */
-            if (reg_match == null)
+            if (rex.reg_match == null)
             {
                 for (int i = 1; i < from.in_use; i++)
                     COPY_multipos(to.rs_multi[i], from.rs_multi[i]);
@@ -3611,11 +3773,11 @@ public class VimO
     /*
      * Like copy_sub() but only do the end of the main match if \ze is present.
      */
-    /*private*/ static void copy_ze_off(regsub_C to, regsub_C from)
+    /*private*/ static void copy_ze_off(regexec_C rex, regsub_C to, regsub_C from)
     {
-        if (nfa_has_zend)
+        if (rex.nfa_has_zend)
         {
-            if (reg_match == null)
+            if (rex.reg_match == null)
             {
                 if (0 <= from.rs_multi[0].end_lnum)
                 {
@@ -3635,11 +3797,11 @@ public class VimO
      * Return true if "sub1" and "sub2" have the same start positions.
      * When using back-references also check the end position.
      */
-    /*private*/ static boolean sub_equal(regsub_C sub1, regsub_C sub2)
+    /*private*/ static boolean sub_equal(regexec_C rex, regsub_C sub1, regsub_C sub2)
     {
         int todo = (sub2.in_use < sub1.in_use) ? sub1.in_use : sub2.in_use;
 
-        if (reg_match == null)
+        if (rex.reg_match == null)
         {
             for (int i = 0; i < todo; i++)
             {
@@ -3658,7 +3820,7 @@ public class VimO
                 if (s1 != -1 && sub1.rs_multi[i].start_col != sub2.rs_multi[i].start_col)
                     return false;
 
-                if (nfa_has_backref)
+                if (rex.nfa_has_backref)
                 {
                     if (i < sub1.in_use)
                         s1 = sub1.rs_multi[i].end_lnum;
@@ -3691,7 +3853,7 @@ public class VimO
                     sp2 = null;
                 if (BNE(sp1, sp2))
                     return false;
-                if (nfa_has_backref)
+                if (rex.nfa_has_backref)
                 {
                     if (i < sub1.in_use)
                         sp1 = sub1.rs_line[i].end;
@@ -3713,7 +3875,7 @@ public class VimO
     /*
      * Return true if the same state is already in list "nfl" with the same positions as "subs".
      */
-    /*private*/ static boolean has_state_with_pos(nfa_list_C nfl, nfa_state_C state, regsubs_C subs, nfa_pim_C pim)
+    /*private*/ static boolean has_state_with_pos(regexec_C rex, nfa_list_C nfl, nfa_state_C state, regsubs_C subs, nfa_pim_C pim)
         /* nfl: runtime state list */
         /* state: state to update */
         /* subs: pointers to subexpressions */
@@ -3724,9 +3886,9 @@ public class VimO
             nfa_thread_C thread = nfl.threads[i];
 
             if (thread.state.id == state.id
-                    && sub_equal(thread.th_subs.rs_norm, subs.rs_norm)
-                    && (!nfa_has_zsubexpr || sub_equal(thread.th_subs.rs_synt, subs.rs_synt))
-                    && pim_equal(thread.th_pim, pim))
+                    && sub_equal(rex, thread.th_subs.rs_norm, subs.rs_norm)
+                    && (!rex.nfa_has_zsubexpr || sub_equal(rex, thread.th_subs.rs_synt, subs.rs_synt))
+                    && pim_equal(rex, thread.th_pim, pim))
                 return true;
         }
 
@@ -3736,7 +3898,7 @@ public class VimO
     /*
      * Return true if "one" and "two" are equal.  That includes when both are not set.
      */
-    /*private*/ static boolean pim_equal(nfa_pim_C one, nfa_pim_C two)
+    /*private*/ static boolean pim_equal(regexec_C rex, nfa_pim_C one, nfa_pim_C two)
     {
         boolean one_unused = (one == null || one.result == NFA_PIM_UNUSED);
         boolean two_unused = (two == null || two.result == NFA_PIM_UNUSED);
@@ -3751,7 +3913,7 @@ public class VimO
         if (one.state.id != two.state.id)
             return false;
         /* compare the position */
-        if (reg_match == null)
+        if (rex.reg_match == null)
             return (one.end_pos.lnum == two.end_pos.lnum && one.end_pos.col == two.end_pos.col);
 
         return BEQ(one.end_ptr, two.end_ptr);
@@ -3849,25 +4011,23 @@ public class VimO
     /*
      * Return true if "state" is already in list "nfl".
      */
-    /*private*/ static boolean state_in_list(nfa_list_C nfl, nfa_state_C state, regsubs_C subs)
+    /*private*/ static boolean state_in_list(regexec_C rex, nfa_list_C nfl, nfa_state_C state, regsubs_C subs)
         /* nfl: runtime state list */
         /* state: state to update */
         /* subs: pointers to subexpressions */
     {
-        if (state.lastlist[nfa_ll_index] == nfl.id)
-            if (!nfa_has_backref || has_state_with_pos(nfl, state, subs, null))
+        if (rex.nfa_lastlist[2 * state.id + rex.nfa_ll_index] == nfl.id)
+            if (!rex.nfa_has_backref || has_state_with_pos(rex, nfl, state, subs, null))
                 return true;
 
         return false;
     }
 
-    /*private*/ static regsubs_C temp_subs = new regsubs_C();
-
     /*
      * Add "state" and possibly what follows to state list ".".
-     * Returns "subs_arg", possibly copied into temp_subs.
+     * Returns "subs_arg", possibly copied into "rex.temp_subs".
      */
-    /*private*/ static regsubs_C addstate(nfa_list_C nfl, nfa_state_C state, regsubs_C subs_arg, nfa_pim_C pim, int off)
+    /*private*/ static regsubs_C addstate(regexec_C rex, nfa_list_C nfl, nfa_state_C state, regsubs_C subs_arg, nfa_pim_C pim, int off)
         /* nfl: runtime state list */
         /* state: state to update */
         /* subs_arg: pointers to subexpressions */
@@ -3912,9 +4072,9 @@ public class VimO
                 /* "^" won't match past end-of-line, don't bother trying.
                  * Except when at the end of the line, or when we are going
                  * to the next line for a look-behind match. */
-                if (BLT(regline, reginput)
-                        && reginput.at(0) != NUL
-                        && (nfa_endp == null || !(reg_match == null) || reglnum == nfa_endp.se_pos.lnum))
+                if (BLT(rex.regline, rex.reginput)
+                        && rex.reginput.at(0) != NUL
+                        && (rex.nfa_endp == null || !(rex.reg_match == null) || rex.reglnum == rex.nfa_endp.se_pos.lnum))
                     return subs;
                 /* FALLTHROUGH */
 
@@ -3945,17 +4105,17 @@ public class VimO
 
             default:
             {
-                if (state.lastlist[nfa_ll_index] == nfl.id && state.c != NFA_SKIP)
+                if (rex.nfa_lastlist[2 * state.id + rex.nfa_ll_index] == nfl.id && state.c != NFA_SKIP)
                 {
                     /* This state is already in the list, don't add it again,
                      * unless it is an MOPEN that is used for a backreference or
                      * when there is a PIM.  For NFA_MATCH check the position,
                      * lower position is preferred. */
-                    if (!nfa_has_backref && pim == null && !nfl.has_pim && state.c != NFA_MATCH)
+                    if (!rex.nfa_has_backref && pim == null && !nfl.has_pim && state.c != NFA_MATCH)
                         return subs;
 
                     /* Do not add the state again when it exists with the same positions. */
-                    if (has_state_with_pos(nfl, state, subs, pim))
+                    if (has_state_with_pos(rex, nfl, state, subs, pim))
                         return subs;
                 }
 
@@ -3963,14 +4123,14 @@ public class VimO
                  * the number of states may be (a lot) bigger than anticipated. */
                 if (nfl.n == nfl.len)
                 {
-                    if (subs != temp_subs)
+                    if (subs != rex.temp_subs)
                     {
                         /* "subs" may point into the current array,
                          * need to make a copy before it becomes invalid. */
-                        copy_sub(temp_subs.rs_norm, subs.rs_norm);
-                        if (nfa_has_zsubexpr)
-                            copy_sub(temp_subs.rs_synt, subs.rs_synt);
-                        subs = temp_subs;
+                        copy_sub(rex, rex.temp_subs.rs_norm, subs.rs_norm);
+                        if (rex.nfa_has_zsubexpr)
+                            copy_sub(rex, rex.temp_subs.rs_synt, subs.rs_synt);
+                        subs = rex.temp_subs;
                     }
 
                     int newlen = nfl.len * 3 / 2 + 50;
@@ -3982,19 +4142,19 @@ public class VimO
                 }
 
                 /* add the state to the list */
-                state.lastlist[nfa_ll_index] = nfl.id;
+                rex.nfa_lastlist[2 * state.id + rex.nfa_ll_index] = nfl.id;
                 nfa_thread_C thread = nfl.threads[nfl.n++];
                 thread.state = state;
                 if (pim == null)
                     thread.th_pim.result = NFA_PIM_UNUSED;
                 else
                 {
-                    copy_pim(thread.th_pim, pim);
+                    copy_pim(rex, thread.th_pim, pim);
                     nfl.has_pim = true;
                 }
-                copy_sub(thread.th_subs.rs_norm, subs.rs_norm);
-                if (nfa_has_zsubexpr)
-                    copy_sub(thread.th_subs.rs_synt, subs.rs_synt);
+                copy_sub(rex, thread.th_subs.rs_norm, subs.rs_norm);
+                if (rex.nfa_has_zsubexpr)
+                    copy_sub(rex, thread.th_subs.rs_synt, subs.rs_synt);
 
                 break;
             }
@@ -4007,14 +4167,14 @@ public class VimO
 
             case NFA_SPLIT:
                 /* order matters here */
-                subs = addstate(nfl, state.out0(), subs, pim, off);
-                subs = addstate(nfl, state.out1(), subs, pim, off);
+                subs = addstate(rex, nfl, state.out0(), subs, pim, off);
+                subs = addstate(rex, nfl, state.out1(), subs, pim, off);
                 break;
 
             case NFA_EMPTY:
             case NFA_NOPEN:
             case NFA_NCLOSE:
-                subs = addstate(nfl, state.out0(), subs, pim, off);
+                subs = addstate(rex, nfl, state.out0(), subs, pim, off);
                 break;
 
             case NFA_MOPEN:
@@ -4066,7 +4226,7 @@ public class VimO
                 /* Set the position (with "off" added) in the subexpression.
                  * Save and restore it when it was in use.
                  * Otherwise fill any gap. */
-                if (reg_match == null)
+                if (rex.reg_match == null)
                 {
                     if (subidx < sub.in_use)
                     {
@@ -4086,13 +4246,13 @@ public class VimO
                     }
                     if (off == -1)
                     {
-                        sub.rs_multi[subidx].start_lnum = reglnum + 1;
+                        sub.rs_multi[subidx].start_lnum = rex.reglnum + 1;
                         sub.rs_multi[subidx].start_col = 0;
                     }
                     else
                     {
-                        sub.rs_multi[subidx].start_lnum = reglnum;
-                        sub.rs_multi[subidx].start_col = BDIFF(reginput, regline) + off;
+                        sub.rs_multi[subidx].start_lnum = rex.reglnum;
+                        sub.rs_multi[subidx].start_col = BDIFF(rex.reginput, rex.regline) + off;
                     }
                 }
                 else
@@ -4112,10 +4272,10 @@ public class VimO
                         }
                         sub.in_use = subidx + 1;
                     }
-                    sub.rs_line[subidx].start = reginput.plus(off);
+                    sub.rs_line[subidx].start = rex.reginput.plus(off);
                 }
 
-                subs = addstate(nfl, state.out0(), subs, pim, off);
+                subs = addstate(rex, nfl, state.out0(), subs, pim, off);
                 /* "subs" may have changed, need to set "sub" again */
                 if (NFA_ZOPEN <= state.c && state.c <= NFA_ZOPEN9)
                     sub = subs.rs_synt;
@@ -4124,7 +4284,7 @@ public class VimO
 
                 if (save_in_use == -1)
                 {
-                    if (reg_match == null)
+                    if (rex.reg_match == null)
                     {
                         sub.rs_multi[subidx].start_lnum = save_lpos.lnum;
                         sub.rs_multi[subidx].start_col = save_lpos.col;
@@ -4139,12 +4299,12 @@ public class VimO
             }
 
             case NFA_MCLOSE:
-                if (nfa_has_zend && ((reg_match == null)
+                if (rex.nfa_has_zend && ((rex.reg_match == null)
                             ? 0 <= subs.rs_norm.rs_multi[0].end_lnum
                             : subs.rs_norm.rs_line[0].end != null))
                 {
                     /* Do not overwrite the position set by \ze. */
-                    subs = addstate(nfl, state.out0(), subs, pim, off);
+                    subs = addstate(rex, nfl, state.out0(), subs, pim, off);
                     break;
                 }
             case NFA_MCLOSE1:
@@ -4193,39 +4353,39 @@ public class VimO
                 int save_in_use = sub.in_use;
                 if (sub.in_use <= subidx)
                     sub.in_use = subidx + 1;
-                if (reg_match == null)
+                if (rex.reg_match == null)
                 {
                     save_lpos.lnum = sub.rs_multi[subidx].end_lnum;
                     save_lpos.col = sub.rs_multi[subidx].end_col;
                     if (off == -1)
                     {
-                        sub.rs_multi[subidx].end_lnum = reglnum + 1;
+                        sub.rs_multi[subidx].end_lnum = rex.reglnum + 1;
                         sub.rs_multi[subidx].end_col = 0;
                     }
                     else
                     {
-                        sub.rs_multi[subidx].end_lnum = reglnum;
-                        sub.rs_multi[subidx].end_col = BDIFF(reginput, regline) + off;
+                        sub.rs_multi[subidx].end_lnum = rex.reglnum;
+                        sub.rs_multi[subidx].end_col = BDIFF(rex.reginput, rex.regline) + off;
                     }
                     save_ptr = null;
                 }
                 else
                 {
                     save_ptr = sub.rs_line[subidx].end;
-                    sub.rs_line[subidx].end = reginput.plus(off);
+                    sub.rs_line[subidx].end = rex.reginput.plus(off);
 
                     save_lpos.lnum = 0;
                     save_lpos.col = 0;
                 }
 
-                subs = addstate(nfl, state.out0(), subs, pim, off);
+                subs = addstate(rex, nfl, state.out0(), subs, pim, off);
                 /* "subs" may have changed, need to set "sub" again */
                 if (NFA_ZCLOSE <= state.c && state.c <= NFA_ZCLOSE9)
                     sub = subs.rs_synt;
                 else
                     sub = subs.rs_norm;
 
-                if (reg_match == null)
+                if (rex.reg_match == null)
                 {
                     sub.rs_multi[subidx].end_lnum = save_lpos.lnum;
                     sub.rs_multi[subidx].end_col = save_lpos.col;
@@ -4247,7 +4407,7 @@ public class VimO
      * This makes sure the order of states to be tried does not change,
      * which matters for alternatives.
      */
-    /*private*/ static void addstate_here(nfa_list_C nfl, nfa_state_C state, regsubs_C subs, nfa_pim_C pim, int[] ip)
+    /*private*/ static void addstate_here(regexec_C rex, nfa_list_C nfl, nfa_state_C state, regsubs_C subs, nfa_pim_C pim, int[] ip)
         /* nfl: runtime state list */
         /* state: state to update */
         /* subs: pointers to subexpressions */
@@ -4257,7 +4417,7 @@ public class VimO
         int lidx = ip[0];
 
         /* first add the state(s) at the end, so that we know how many there are */
-        addstate(nfl, state, subs, pim, 0);
+        addstate(rex, nfl, state, subs, pim, 0);
 
         /* when "*ip" was at the end of the list, nothing to do */
         if (lidx + 1 == tlen)
@@ -4404,7 +4564,7 @@ public class VimO
      * Check for a match with subexpression "subidx".
      * Return true if it matches.
      */
-    /*private*/ static boolean match_backref(regsub_C sub, int subidx, int[] bytelen)
+    /*private*/ static boolean match_backref(regexec_C rex, regsub_C sub, int subidx, int[] bytelen)
         /* sub: pointers to subexpressions */
         /* bytelen: out: length of match in bytes */
     {
@@ -4415,7 +4575,7 @@ public class VimO
             return true;
         }
 
-        if (reg_match == null)
+        if (rex.reg_match == null)
         {
             if (sub.rs_multi[subidx].start_lnum < 0 || sub.rs_multi[subidx].end_lnum < 0)
             {
@@ -4423,10 +4583,10 @@ public class VimO
                 bytelen[0] = 0;
                 return true;
             }
-            if (sub.rs_multi[subidx].start_lnum == reglnum && sub.rs_multi[subidx].end_lnum == reglnum)
+            if (sub.rs_multi[subidx].start_lnum == rex.reglnum && sub.rs_multi[subidx].end_lnum == rex.reglnum)
             {
                 int[] len = { sub.rs_multi[subidx].end_col - sub.rs_multi[subidx].start_col };
-                if (cstrncmp(regline.plus(sub.rs_multi[subidx].start_col), reginput, len) == 0)
+                if (cstrncmp(rex, rex.regline.plus(sub.rs_multi[subidx].start_col), rex.reginput, len) == 0)
                 {
                     bytelen[0] = len[0];
                     return true;
@@ -4434,7 +4594,7 @@ public class VimO
             }
             else
             {
-                if (match_with_backref(
+                if (match_with_backref(rex,
                             sub.rs_multi[subidx].start_lnum,
                             sub.rs_multi[subidx].start_col,
                             sub.rs_multi[subidx].end_lnum,
@@ -4452,7 +4612,7 @@ public class VimO
                 return true;
             }
             int[] len = { BDIFF(sub.rs_line[subidx].end, sub.rs_line[subidx].start) };
-            if (cstrncmp(sub.rs_line[subidx].start, reginput, len) == 0)
+            if (cstrncmp(rex, sub.rs_line[subidx].start, rex.reginput, len) == 0)
             {
                 bytelen[0] = len[0];
                 return true;
@@ -4466,20 +4626,20 @@ public class VimO
      * Check for a match with \z subexpression "subidx".
      * Return true if it matches.
      */
-    /*private*/ static boolean match_zref(int subidx, int[] bytelen)
+    /*private*/ static boolean match_zref(regexec_C rex, int subidx, int[] bytelen)
         /* bytelen: out: length of match in bytes */
     {
-        cleanup_zsubexpr();
+        cleanup_zsubexpr(rex);
 
-        if (re_extmatch_in == null || re_extmatch_in.matches[subidx] == null)
+        if (rex.reg_extmatch_in == null || rex.reg_extmatch_in.matches[subidx] == null)
         {
             /* backref was not set, match an empty string */
             bytelen[0] = 0;
             return true;
         }
 
-        int[] len = { strlen(re_extmatch_in.matches[subidx]) };
-        if (cstrncmp(re_extmatch_in.matches[subidx], reginput, len) == 0)
+        int[] len = { strlen(rex.reg_extmatch_in.matches[subidx]) };
+        if (cstrncmp(rex, rex.reg_extmatch_in.matches[subidx], rex.reginput, len) == 0)
         {
             bytelen[0] = len[0];
             return true;
@@ -4493,7 +4653,7 @@ public class VimO
      * Also reset the IDs to zero.
      * Only used for the recursive value lastlist[1].
      */
-    /*private*/ static void nfa_save_listids(nfa_regprog_C prog, int[] list)
+    /*private*/ static void nfa_save_listids(regexec_C rex, nfa_regprog_C prog, int[] list)
     {
         /* Order in the list is reverse, it's a bit faster that way. */
         for (int i = 0, n = prog.nstate; 0 <= --n; i++)
@@ -4505,15 +4665,15 @@ public class VimO
                 continue;
             }
 
-            list[n] = state.lastlist[1];
-            state.lastlist[1] = 0;
+            list[n] = rex.nfa_lastlist[2 * i + 1];
+            rex.nfa_lastlist[2 * i + 1] = 0;
         }
     }
 
     /*
      * Restore list IDs from "list" to all NFA states.
      */
-    /*private*/ static void nfa_restore_listids(nfa_regprog_C prog, int[] list)
+    /*private*/ static void nfa_restore_listids(regexec_C rex, nfa_regprog_C prog, int[] list)
     {
         for (int i = 0, n = prog.nstate; 0 <= --n; i++)
         {
@@ -4521,7 +4681,7 @@ public class VimO
             if (state == null)
                 continue;
 
-            state.lastlist[1] = list[n];
+            rex.nfa_lastlist[2 * i + 1] = list[n];
         }
     }
 
@@ -4539,13 +4699,13 @@ public class VimO
      * Recursively call nfa_regmatch()
      * "pim" is null or contains info about a Postponed Invisible Match (start position).
      */
-    /*private*/ static int recursive_regmatch(nfa_state_C state, nfa_pim_C pim, nfa_regprog_C prog, regsubs_C submatch, regsubs_C m, int[][] listids)
+    /*private*/ static int recursive_regmatch(regexec_C rex, nfa_state_C state, nfa_pim_C pim, nfa_regprog_C prog, regsubs_C submatch, regsubs_C m, int[][] listids)
     {
-        int save_reginput_col = BDIFF(reginput, regline);
-        long save_reglnum = reglnum;
-        int save_nfa_match = nfa_match;
-        int save_nfa_listid = nfa_listid;
-        save_se_C save_nfa_endp = nfa_endp;
+        int save_reginput_col = BDIFF(rex.reginput, rex.regline);
+        long save_reglnum = rex.reglnum;
+        int save_nfa_match = rex.nfa_match;
+        int save_nfa_listid = rex.nfa_listid;
+        save_se_C save_nfa_endp = rex.nfa_endp;
         save_se_C endpos = new save_se_C();
         save_se_C endposp = null;
         boolean need_restore = false;
@@ -4553,10 +4713,10 @@ public class VimO
         if (pim != null)
         {
             /* start at the position where the postponed match was */
-            if (reg_match == null)
-                reginput = regline.plus(pim.end_pos.col);
+            if (rex.reg_match == null)
+                rex.reginput = rex.regline.plus(pim.end_pos.col);
             else
-                reginput = pim.end_ptr;
+                rex.reginput = pim.end_ptr;
         }
 
         if (state.c == NFA_START_INVISIBLE_BEFORE
@@ -4567,12 +4727,12 @@ public class VimO
             /* The recursive match must end at the current position.
              * When "pim" is not null it specifies the current position. */
             endposp = endpos;
-            if (reg_match == null)
+            if (rex.reg_match == null)
             {
                 if (pim == null)
                 {
-                    endpos.se_pos.col = BDIFF(reginput, regline);
-                    endpos.se_pos.lnum = reglnum;
+                    endpos.se_pos.col = BDIFF(rex.reginput, rex.regline);
+                    endpos.se_pos.lnum = rex.reglnum;
                 }
                 else
                     COPY_lpos(endpos.se_pos, pim.end_pos);
@@ -4580,7 +4740,7 @@ public class VimO
             else
             {
                 if (pim == null)
-                    endpos.se_ptr = reginput;
+                    endpos.se_ptr = rex.reginput;
                 else
                     endpos.se_ptr = pim.end_ptr;
             }
@@ -4591,49 +4751,49 @@ public class VimO
              */
             if (state.val <= 0)
             {
-                if (reg_match == null)
+                if (rex.reg_match == null)
                 {
-                    regline = reg_getline(--reglnum);
-                    if (regline == null)
+                    rex.regline = reg_getline(rex, --rex.reglnum);
+                    if (rex.regline == null)
                         /* can't go before the first line */
-                        regline = reg_getline(++reglnum);
+                        rex.regline = reg_getline(rex, ++rex.reglnum);
                 }
-                reginput = regline;
+                rex.reginput = rex.regline;
             }
             else
             {
-                if (reg_match == null && BDIFF(reginput, regline) < state.val)
+                if (rex.reg_match == null && BDIFF(rex.reginput, rex.regline) < state.val)
                 {
                     /* Not enough bytes in this line, go to end of previous line. */
-                    regline = reg_getline(--reglnum);
-                    if (regline == null)
+                    rex.regline = reg_getline(rex, --rex.reglnum);
+                    if (rex.regline == null)
                     {
                         /* can't go before the first line */
-                        regline = reg_getline(++reglnum);
-                        reginput = regline;
+                        rex.regline = reg_getline(rex, ++rex.reglnum);
+                        rex.reginput = rex.regline;
                     }
                     else
-                        reginput = regline.plus(strlen(regline));
+                        rex.reginput = rex.regline.plus(strlen(rex.regline));
                 }
-                if (state.val <= BDIFF(reginput, regline))
+                if (state.val <= BDIFF(rex.reginput, rex.regline))
                 {
-                    reginput = reginput.minus(state.val);
-                    reginput = reginput.minus(us_head_off(regline, reginput));
+                    rex.reginput = rex.reginput.minus(state.val);
+                    rex.reginput = rex.reginput.minus(us_head_off(rex.regline, rex.reginput));
                 }
                 else
-                    reginput = regline;
+                    rex.reginput = rex.regline;
             }
         }
 
         /* Have to clear the lastlist field of the NFA nodes, so that
          * nfa_regmatch() and addstate() can run properly after recursion. */
-        if (nfa_ll_index == 1)
+        if (rex.nfa_ll_index == 1)
         {
             /* Already calling nfa_regmatch() recursively.
              * Save the lastlist[1] values and clear them. */
             if (listids[0] == null)
                 listids[0] = new int[prog.nstate];
-            nfa_save_listids(prog, listids[0]);
+            nfa_save_listids(rex, prog, listids[0]);
             need_restore = true;
             /* any value of nfa_listid will do */
         }
@@ -4642,32 +4802,32 @@ public class VimO
             /* First recursive nfa_regmatch() call, switch to the second lastlist entry.
              * Make sure nfa_listid is different from a previous recursive call,
              * because some states may still have this ID. */
-            nfa_ll_index++;
-            if (nfa_listid <= nfa_alt_listid)
-                nfa_listid = nfa_alt_listid;
+            rex.nfa_ll_index++;
+            if (rex.nfa_listid <= rex.nfa_alt_listid)
+                rex.nfa_listid = rex.nfa_alt_listid;
         }
 
         /* Call nfa_regmatch() to check if the current concat matches at this position.
          * The concat ends with the node NFA_END_INVISIBLE. */
-        nfa_endp = endposp;
-        int result = nfa_regmatch(prog, state.out0(), submatch, m);
+        rex.nfa_endp = endposp;
+        int result = nfa_regmatch(rex, prog, state.out0(), submatch, m);
 
         if (need_restore)
-            nfa_restore_listids(prog, listids[0]);
+            nfa_restore_listids(rex, prog, listids[0]);
         else
         {
-            --nfa_ll_index;
-            nfa_alt_listid = nfa_listid;
+            --rex.nfa_ll_index;
+            rex.nfa_alt_listid = rex.nfa_listid;
         }
 
         /* restore position in input text */
-        reglnum = save_reglnum;
-        if (reg_match == null)
-            regline = reg_getline(reglnum);
-        reginput = regline.plus(save_reginput_col);
-        nfa_match = save_nfa_match;
-        nfa_endp = save_nfa_endp;
-        nfa_listid = save_nfa_listid;
+        rex.reglnum = save_reglnum;
+        if (rex.reg_match == null)
+            rex.regline = reg_getline(rex, rex.reglnum);
+        rex.reginput = rex.regline.plus(save_reginput_col);
+        rex.nfa_match = save_nfa_match;
+        rex.nfa_endp = save_nfa_endp;
+        rex.nfa_listid = save_nfa_listid;
 
         return result;
     }
@@ -4832,17 +4992,104 @@ public class VimO
         return 50;
     }
 
+    /*
+     * Build the Aho-Corasick automaton for the literal texts "must", lower case when "ic" is true.
+     */
+    /*private*/ static must_ac_C must_ac_build(Bytes[] must, boolean ic)
+    {
+        int size = 1;
+        for (int i = 0; i < must.length; i++)
+            size += strlen(must[i]);
+
+        int[] next = new int[size * 128];   /* first the trie, 0 is "no node" except for the root */
+        boolean[] fin = new boolean[size];
+        int[] fail = new int[size];
+        int nodes = 1;
+
+        for (int i = 0; i < must.length; i++)
+        {
+            int node = 0;
+            for (Bytes p = must[i]; p.at(0) != NUL; p = p.plus(1))
+            {
+                int c = (ic) ? asc_tolower(p.at(0)) : p.at(0);
+                if (next[node * 128 + c] == 0)
+                    next[node * 128 + c] = nodes++;
+                node = next[node * 128 + c];
+            }
+            fin[node] = true;
+        }
+
+        /* Breadth first, make the missing transitions go where the longest suffix goes. */
+        int[] queue = new int[nodes];
+        int head = 0, tail = 0;
+        for (int c = 0; c < 128; c++)
+            if (next[c] != 0)
+                queue[tail++] = next[c];
+        while (head < tail)
+        {
+            int node = queue[head++];
+            fin[node] |= fin[fail[node]];
+            for (int c = 0; c < 128; c++)
+            {
+                int child = next[node * 128 + c];
+                if (child != 0)
+                {
+                    fail[child] = next[fail[node] * 128 + c];
+                    queue[tail++] = child;
+                }
+                else
+                    next[node * 128 + c] = next[fail[node] * 128 + c];
+            }
+        }
+
+        return new must_ac_C(next, fin, ic);
+    }
+
+    /*
+     * Return false when none of the literal texts of "prog" is in "s", thus it can't match.
+     */
+    /*private*/ static boolean nfa_find_must(regexec_C rex, nfa_regprog_C prog, Bytes s)
+    {
+        if (!rex.ireg_ic && prog.must.length == 1)
+            return (STRSTR(s, prog.must[0]) != null);
+
+        int ic = rex.ireg_ic ? 1 : 0;
+        must_ac_C ac = prog.must_ac[ic];
+        if (ac == null)
+            prog.must_ac[ic] = ac = must_ac_build(prog.must, rex.ireg_ic);
+
+        int node = 0;
+        for (int i = 0, c; (c = s.at(i) & 0xff) != NUL; i++)
+        {
+            if (0x80 <= c)
+            {
+                /* Some non-ASCII characters are equal to an ASCII one when ignoring case. */
+                if (ac.ac_ic)
+                    return true;
+                node = 0;
+                continue;
+            }
+            if (ac.ac_ic)
+                c = asc_tolower(c);
+            node = ac.ac_next[node * 128 + c];
+            if (ac.ac_final[node])
+                return true;
+        }
+
+        return false;
+    }
+
     /*
      * Skip until the char "c" we know a match must start with.
      */
-    /*private*/ static boolean skip_to_start(int c, int[] colp)
+    /*private*/ static boolean skip_to_start(regexec_C rex, int c, int[] colp)
     {
         /* Used often, do some work to avoid call overhead. */
-        Bytes s = cstrchr(regline.plus(colp[0]), c);
+        Bytes s = cstrchr(rex, rex.regline.plus(colp[0]), c);
         if (s == null)
             return false;
 
-        colp[0] = BDIFF(s, regline);
+        colp[0] = BDIFF(s, rex.regline);
         return true;
     }
 
@@ -4851,7 +5098,7 @@ public class VimO
      * Called after skip_to_start() has found regstart.
      * Returns zero for no match, 1 for a match.
      */
-    /*private*/ static long find_match_text(int startcol, int regstart, Bytes match_text)
+    /*private*/ static long find_match_text(regexec_C rex, int startcol, int regstart, Bytes match_text)
     {
         for (int[] col = { startcol }; ; )
         {
@@ -4862,8 +5109,8 @@ public class VimO
             for (int len1 = 0; match_text.at(len1) != NUL; len1 += utf_char2len(c1))
             {
                 c1 = us_ptr2char(match_text.plus(len1));
-                c2 = us_ptr2char(regline.plus(col[0] + len2));
-                if (c1 != c2 && (!ireg_ic || utf_tolower(c1) != utf_tolower(c2)))
+                c2 = us_ptr2char(rex.regline.plus(col[0] + len2));
+                if (c1 != c2 && (!rex.ireg_ic || utf_tolower(c1) != utf_tolower(c2)))
                 {
                     match = false;
                     break;
@@ -4872,27 +5119,27 @@ public class VimO
             }
 
             /* check that no composing char follows */
-            if (match && !utf_iscomposing(us_ptr2char(regline.plus(col[0] + len2))))
+            if (match && !utf_iscomposing(us_ptr2char(rex.regline.plus(col[0] + len2))))
             {
-                cleanup_subexpr();
-                if (reg_match == null)
+                cleanup_subexpr(rex);
+                if (rex.reg_match == null)
                 {
-                    reg_startpos[0].lnum = reglnum;
-                    reg_startpos[0].col = col[0];
-                    reg_endpos[0].lnum = reglnum;
-                    reg_endpos[0].col = col[0] + len2;
+                    rex.reg_startpos[0].lnum = rex.reglnum;
+                    rex.reg_startpos[0].col = col[0];
+                    rex.reg_endpos[0].lnum = rex.reglnum;
+                    rex.reg_endpos[0].col = col[0] + len2;
                 }
                 else
                 {
-                    reg_startp[0] = regline.plus(col[0]);
-                    reg_endp[0] = regline.plus(col[0] + len2);
+                    rex.reg_startp[0] = rex.regline.plus(col[0]);
+                    rex.reg_endp[0] = rex.regline.plus(col[0] + len2);
                 }
                 return 1L;
             }
 
             /* Try finding regstart after the current match. */
             col[0] += utf_char2len(regstart);                          /* skip regstart */
-            if (skip_to_start(regstart, col) == false)
+            if (skip_to_start(rex, regstart, col) == false)
                 break;
         }
 
@@ -4910,7 +5157,7 @@ public class VimO
      * When there is a match "submatch" contains the positions.
      * Note: Caller must ensure that: start != null.
      */
-    /*private*/ static int nfa_regmatch(nfa_regprog_C prog, nfa_state_C start, regsubs_C submatch, regsubs_C m)
+    /*private*/ static int nfa_regmatch(regexec_C rex, nfa_regprog_C prog, nfa_state_C start, regsubs_C submatch, regsubs_C m)
     {
         boolean toplevel = (start.c == NFA_MOPEN);
 
@@ -4919,10 +5166,10 @@ public class VimO
         fast_breakcheck();
         if (got_int)
             return FALSE;
-        if (nfa_time_limit != null && profile_passed_limit(nfa_time_limit))
+        if (rex.nfa_time_limit != null && profile_passed_limit(rex.nfa_time_limit))
             return FALSE;
 
-        nfa_match = FALSE;
+        rex.nfa_match = FALSE;
 
         nfa_list_C[] list = ARRAY_nfa_list(2);
         list[0].threads = ARRAY_nfa_thread(list[0].len = prog.nstate + 1);
@@ -4934,23 +5181,23 @@ public class VimO
         nfa_list_C nextlist = list[1];
         nextlist.n = 0;
         nextlist.has_pim = false;
-        thislist.id = nfa_listid + 1;
+        thislist.id = rex.nfa_listid + 1;
 
         /* Inline optimized code for addstate(thislist, start, m, 0) if we know it's the first MOPEN. */
         if (toplevel)
         {
-            if (reg_match == null)
+            if (rex.reg_match == null)
             {
-                m.rs_norm.rs_multi[0].start_lnum = reglnum;
-                m.rs_norm.rs_multi[0].start_col = BDIFF(reginput, regline);
+                m.rs_norm.rs_multi[0].start_lnum = rex.reglnum;
+                m.rs_norm.rs_multi[0].start_col = BDIFF(rex.reginput, rex.regline);
             }
             else
-                m.rs_norm.rs_line[0].start = reginput;
+                m.rs_norm.rs_line[0].start = rex.reginput;
             m.rs_norm.in_use = 1;
-            addstate(thislist, start.out0(), m, null, 0);
+            addstate(rex, thislist, start.out0(), m, null, 0);
         }
         else
-            addstate(thislist, start, m, null, 0);
+            addstate(rex, thislist, start, m, null, 0);
 
         boolean go_to_nextline = false;
         int flag = 0;
@@ -4962,8 +5209,8 @@ public class VimO
          */
         for ( ; ; )
         {
-            int curc = us_ptr2char(reginput);
-            int clen = us_ptr2len_cc(reginput);
+            int curc = us_ptr2char(rex.reginput);
+            int clen = us_ptr2len_cc(rex.reginput);
             if (curc == NUL)
             {
                 clen = 0;
@@ -4975,16 +5222,16 @@ public class VimO
             nextlist = list[flag ^= 1];
             nextlist.n = 0;                 /* clear nextlist */
             nextlist.has_pim = false;
-            nfa_listid++;
-            if (prog.re_engine == AUTOMATIC_ENGINE && NFA_MAX_STATES <= nfa_listid)
+            rex.nfa_listid++;
+            if (prog.re_engine == AUTOMATIC_ENGINE && NFA_MAX_STATES <= rex.nfa_listid)
             {
                 /* too many states, retry with old engine */
-                nfa_match = NFA_TOO_EXPENSIVE;
-                return nfa_match;
+                rex.nfa_match = NFA_TOO_EXPENSIVE;
+                return rex.nfa_match;
             }
 
-            thislist.id = nfa_listid;
-            nextlist.id = nfa_listid + 1;
+            thislist.id = rex.nfa_listid;
+            nextlist.id = rex.nfa_listid + 1;
 
             /*
              * If the state lists are empty we can stop.
@@ -5013,12 +5260,12 @@ public class VimO
                         {
                             /* If the match ends before a composing characters and
                              * ireg_icombine is not set, that is not really a match. */
-                            if (!ireg_icombine && utf_iscomposing(curc))
+                            if (!rex.ireg_icombine && utf_iscomposing(curc))
                                 break;
-                            nfa_match = TRUE;
-                            copy_sub(submatch.rs_norm, thread.th_subs.rs_norm);
-                            if (nfa_has_zsubexpr)
-                                copy_sub(submatch.rs_synt, thread.th_subs.rs_synt);
+                            rex.nfa_match = TRUE;
+                            copy_sub(rex, submatch.rs_norm, thread.th_subs.rs_norm);
+                            if (rex.nfa_has_zsubexpr)
+                                copy_sub(rex, submatch.rs_synt, thread.th_subs.rs_synt);
                             /* Found the left-most longest match, do not look at any other states
                              * at this position.  When the list of states is going to be empty
                              * quit without advancing, so that "reginput" is correct. */
@@ -5043,20 +5290,20 @@ public class VimO
                              * Submatches are stored in *m, and used in the parent call.
                              */
                             /* If "nfa_endp" is set it's only a match if it ends at "nfa_endp". */
-                            if (nfa_endp != null && ((reg_match == null)
-                                    ? (reglnum != nfa_endp.se_pos.lnum
-                                        || BDIFF(reginput, regline) != nfa_endp.se_pos.col)
-                                    : BNE(reginput, nfa_endp.se_ptr)))
+                            if (rex.nfa_endp != null && ((rex.reg_match == null)
+                                    ? (rex.reglnum != rex.nfa_endp.se_pos.lnum
+                                        || BDIFF(rex.reginput, rex.regline) != rex.nfa_endp.se_pos.col)
+                                    : BNE(rex.reginput, rex.nfa_endp.se_ptr)))
                                 break;
 
                             /* do not set submatches for \@! */
                             if (thread.state.c != NFA_END_INVISIBLE_NEG)
                             {
-                                copy_sub(m.rs_norm, thread.th_subs.rs_norm);
-                                if (nfa_has_zsubexpr)
-                                    copy_sub(m.rs_synt, thread.th_subs.rs_synt);
+                                copy_sub(rex, m.rs_norm, thread.th_subs.rs_norm);
+                                if (rex.nfa_has_zsubexpr)
+                                    copy_sub(rex, m.rs_synt, thread.th_subs.rs_synt);
                             }
-                            nfa_match = TRUE;
+                            rex.nfa_match = TRUE;
                             /* See comment above at "goto nextchar". */
                             if (nextlist.n == 0)
                                 clen = 0;
@@ -5084,18 +5331,18 @@ public class VimO
 
                                 /* Copy submatch info for the recursive call,
                                  * opposite of what happens on success below. */
-                                copy_sub_off(m.rs_norm, thread.th_subs.rs_norm);
-                                if (nfa_has_zsubexpr)
-                                    copy_sub_off(m.rs_synt, thread.th_subs.rs_synt);
+                                copy_sub_off(rex, m.rs_norm, thread.th_subs.rs_norm);
+                                if (rex.nfa_has_zsubexpr)
+                                    copy_sub_off(rex, m.rs_synt, thread.th_subs.rs_synt);
 
                                 /*
                                  * First try matching the invisible match, then what follows.
                                  */
-                                int result = recursive_regmatch(thread.state, null, prog, submatch, m, listids);
+                                int result = recursive_regmatch(rex, thread.state, null, prog, submatch, m, listids);
                                 if (result == NFA_TOO_EXPENSIVE)
                                 {
-                                    nfa_match = result;
-                                    return nfa_match;
+                                    rex.nfa_match = result;
+                                    return rex.nfa_match;
                                 }
 
                                 /* for \@! and \@<! it is a match when the result is false */
@@ -5105,11 +5352,11 @@ public class VimO
                                     || thread.state.c == NFA_START_INVISIBLE_BEFORE_NEG_FIRST))
                                 {
                                     /* Copy submatch info from the recursive call. */
-                                    copy_sub_off(thread.th_subs.rs_norm, m.rs_norm);
-                                    if (nfa_has_zsubexpr)
-                                        copy_sub_off(thread.th_subs.rs_synt, m.rs_synt);
+                                    copy_sub_off(rex, thread.th_subs.rs_norm, m.rs_norm);
+                                    if (rex.nfa_has_zsubexpr)
+                                        copy_sub_off(rex, thread.th_subs.rs_synt, m.rs_synt);
                                     /* If the pattern has \ze and it matched in the sub pattern, use it. */
-                                    copy_ze_off(thread.th_subs.rs_norm, m.rs_norm);
+                                    copy_ze_off(rex, thread.th_subs.rs_norm, m.rs_norm);
 
                                     /* thread.state.out1 is the corresponding END_INVISIBLE node.
                                      * Add its out0 to the current list (zero-width match). */
@@ -5132,17 +5379,17 @@ public class VimO
                                 pim.result = NFA_PIM_TODO;
                                 pim.np_subs.rs_norm.in_use = 0;
                                 pim.np_subs.rs_synt.in_use = 0;
-                                if (reg_match == null)
+                                if (rex.reg_match == null)
                                 {
-                                    pim.end_pos.col = BDIFF(reginput, regline);
-                                    pim.end_pos.lnum = reglnum;
+                                    pim.end_pos.col = BDIFF(rex.reginput, rex.regline);
+                                    pim.end_pos.lnum = rex.reglnum;
                                 }
                                 else
-                                    pim.end_ptr = reginput;
+                                    pim.end_ptr = rex.reginput;
 
                                 /* thread.state.out1 is the corresponding END_INVISIBLE node.
                                  * Add its out0 to the current list (zero-width match). */
-                                addstate_here(thislist, thread.state.out1().out0(), thread.th_subs, pim, lidx);
+                                addstate_here(rex, thislist, thread.state.out1().out0(), thread.th_subs, pim, lidx);
                             }
                             break;
                         }
@@ -5153,15 +5400,15 @@ public class VimO
 
                             /* There is no point in trying to match the pattern
                              * if the output state is not going to be added to the list. */
-                            if (state_in_list(nextlist, thread.state.out1().out0(), thread.th_subs))
+                            if (state_in_list(rex, nextlist, thread.state.out1().out0(), thread.th_subs))
                             {
                                 skip = thread.state.out1().out0();
                             }
-                            else if (state_in_list(nextlist, thread.state.out1().out0().out0(), thread.th_subs))
+                            else if (state_in_list(rex, nextlist, thread.state.out1().out0().out0(), thread.th_subs))
                             {
                                 skip = thread.state.out1().out0().out0();
                             }
-                            else if (state_in_list(thislist, thread.state.out1().out0().out0(), thread.th_subs))
+                            else if (state_in_list(rex, thislist, thread.state.out1().out0().out0(), thread.th_subs))
                             {
                                 skip = thread.state.out1().out0().out0();
                             }
@@ -5170,32 +5417,32 @@ public class VimO
                                 break;
 
                             /* Copy submatch info to the recursive call, opposite of what happens afterwards. */
-                            copy_sub_off(m.rs_norm, thread.th_subs.rs_norm);
-                            if (nfa_has_zsubexpr)
-                                copy_sub_off(m.rs_synt, thread.th_subs.rs_synt);
+                            copy_sub_off(rex, m.rs_norm, thread.th_subs.rs_norm);
+                            if (rex.nfa_has_zsubexpr)
+                                copy_sub_off(rex, m.rs_synt, thread.th_subs.rs_synt);
 
                             /* First try matching the pattern. */
-                            int result = recursive_regmatch(thread.state, null, prog, submatch, m, listids);
+                            int result = recursive_regmatch(rex, thread.state, null, prog, submatch, m, listids);
                             if (result == NFA_TOO_EXPENSIVE)
                             {
-                                nfa_match = result;
-                                return nfa_match;
+                                rex.nfa_match = result;
+                                return rex.nfa_match;
                             }
                             if (result != FALSE)
                             {
                                 int bytelen;
 
                                 /* Copy submatch info from the recursive call. */
-                                copy_sub_off(thread.th_subs.rs_norm, m.rs_norm);
-                                if (nfa_has_zsubexpr)
-                                    copy_sub_off(thread.th_subs.rs_synt, m.rs_synt);
+                                copy_sub_off(rex, thread.th_subs.rs_norm, m.rs_norm);
+                                if (rex.nfa_has_zsubexpr)
+                                    copy_sub_off(rex, thread.th_subs.rs_synt, m.rs_synt);
                                 /* Now we need to skip over the matched text and
                                  * then continue with what follows. */
-                                if (reg_match == null)
+                                if (rex.reg_match == null)
                                     /* TODO: multi-line match */
-                                    bytelen = m.rs_norm.rs_multi[0].end_col - BDIFF(reginput, regline);
+                                    bytelen = m.rs_norm.rs_multi[0].end_col - BDIFF(rex.reginput, rex.regline);
                                 else
-                                    bytelen = BDIFF(m.rs_norm.rs_line[0].end, reginput);
+                                    bytelen = BDIFF(m.rs_norm.rs_line[0].end, rex.reginput);
 
                                 if (bytelen == 0)
                                 {
@@ -5223,7 +5470,7 @@ public class VimO
                         }
 
                         case NFA_BOL:
-                            if (BEQ(reginput, regline))
+                            if (BEQ(rex.reginput, rex.regline))
                             {
                                 add_here = true;
                                 add_state = thread.state.out0();
@@ -5248,10 +5495,10 @@ public class VimO
                                 int this_class;
 
                                 /* Get class of current and previous char (if it exists). */
-                                this_class = us_get_class(reginput, reg_buf);
+                                this_class = us_get_class(rex.reginput, rex.reg_buf);
                                 if (this_class <= 1)
                                     result = false;
-                                else if (reg_prev_class() == this_class)
+                                else if (reg_prev_class(rex) == this_class)
                                     result = false;
                             }
                             if (result)
@@ -5265,15 +5512,15 @@ public class VimO
                         case NFA_EOW:
                         {
                             boolean result = true;
-                            if (BEQ(reginput, regline))
+                            if (BEQ(rex.reginput, rex.regline))
                                 result = false;
                             else
                             {
                                 int this_class, prev_class;
 
                                 /* Get class of current and previous char (if it exists). */
-                                this_class = us_get_class(reginput, reg_buf);
-                                prev_class = reg_prev_class();
+                                this_class = us_get_class(rex.reginput, rex.reg_buf);
+                                prev_class = reg_prev_class(rex);
                                 if (this_class == prev_class || prev_class == 0 || prev_class == 1)
                                     result = false;
                             }
@@ -5286,7 +5533,7 @@ public class VimO
                         }
 
                         case NFA_BOF:
-                            if (reglnum == 0 && BEQ(reginput, regline) && (reg_match != null || reg_firstlnum == 1))
+                            if (rex.reglnum == 0 && BEQ(rex.reginput, rex.regline) && (rex.reg_match != null || rex.reg_firstlnum == 1))
                             {
                                 add_here = true;
                                 add_state = thread.state.out0();
@@ -5294,7 +5541,7 @@ public class VimO
                             break;
 
                         case NFA_EOF:
-                            if (reglnum == reg_maxline && curc == NUL)
+                            if (rex.reglnum == rex.reg_maxline && curc == NUL)
                             {
                                 add_here = true;
                                 add_state = thread.state.out0();
@@ -5317,7 +5564,7 @@ public class VimO
                             }
 
                             boolean result;
-                            if (ireg_icombine && len == 0)
+                            if (rex.ireg_icombine && len == 0)
                             {
                                 /* If \Z was present, then ignore composing characters.
                                  * When ignoring the base character this always matches. */
@@ -5341,7 +5588,7 @@ public class VimO
                                  * Get them into cchars[] first. */
                                 while (len < clen)
                                 {
-                                    mc = us_ptr2char(reginput.plus(len));
+                                    mc = us_ptr2char(rex.reginput.plus(len));
                                     cchars[ccount++] = mc;
                                     len += utf_char2len(mc);
                                     if (ccount == MAX_MCO)
@@ -5381,7 +5628,7 @@ public class VimO
 
                         case NFA_NEWL:
                         {
-                            if (curc == NUL && !reg_line_lbr && reg_match == null && reglnum <= reg_maxline)
+                            if (curc == NUL && !rex.reg_line_lbr && rex.reg_match == null && rex.reglnum <= rex.reg_maxline)
                             {
                                 go_to_nextline = true;
                                 /* Pass -1 for the offset, which means
@@ -5389,7 +5636,7 @@ public class VimO
                                 add_state = thread.state.out0();
                                 add_off = -1;
                             }
-                            else if (curc == '\n' && reg_line_lbr)
+                            else if (curc == '\n' && rex.reg_line_lbr)
                             {
                                 /* match \n as if it is an ordinary character */
                                 add_state = thread.state.out0();
@@ -5429,7 +5676,7 @@ public class VimO
                                         result = result_if_matched;
                                         break;
                                     }
-                                    if (ireg_ic)
+                                    if (rex.ireg_ic)
                                     {
                                         int curc_low = utf_tolower(curc);
                                         boolean done = false;
@@ -5445,7 +5692,7 @@ public class VimO
                                             break;
                                     }
                                 }
-                                else if (state.c < 0 ? check_char_class(state.c, curc) : (curc == state.c || (ireg_ic && utf_tolower(curc) == utf_tolower(state.c))))
+                                else if (state.c < 0 ? check_char_class(state.c, curc) : (curc == state.c || (rex.ireg_ic && utf_tolower(curc) == utf_tolower(state.c))))
                                 {
                                     result = result_if_matched;
                                     break;
@@ -5513,7 +5760,7 @@ public class VimO
 
                         case NFA_KWORD:     /*  \k  */
                         {
-                            boolean result = us_iswordp(reginput, reg_buf);
+                            boolean result = us_iswordp(rex.reginput, rex.reg_buf);
                             if (result)
                             {
                                 add_state = thread.state.out0();
@@ -5524,7 +5771,7 @@ public class VimO
 
                         case NFA_SKWORD:    /*  \K  */
                         {
-                            boolean result = !asc_isdigit(curc) && us_iswordp(reginput, reg_buf);
+                            boolean result = !asc_isdigit(curc) && us_iswordp(rex.reginput, rex.reg_buf);
                             if (result)
                             {
                                 add_state = thread.state.out0();
@@ -5557,7 +5804,7 @@ public class VimO
 
                         case NFA_PRINT:     /*  \p  */
                         {
-                            boolean result = vim_isprintc(us_ptr2char(reginput));
+                            boolean result = vim_isprintc(us_ptr2char(rex.reginput));
                             if (result)
                             {
                                 add_state = thread.state.out0();
@@ -5568,7 +5815,7 @@ public class VimO
 
                         case NFA_SPRINT:    /*  \P  */
                         {
-                            boolean result = !asc_isdigit(curc) && vim_isprintc(us_ptr2char(reginput));
+                            boolean result = !asc_isdigit(curc) && vim_isprintc(us_ptr2char(rex.reginput));
                             if (result)
                             {
                                 add_state = thread.state.out0();
@@ -5777,7 +6024,7 @@ public class VimO
 
                         case NFA_LOWER_IC:  /* [a-z] */
                         {
-                            boolean result = ri_lower(curc) || (ireg_ic && ri_upper(curc));
+                            boolean result = ri_lower(curc) || (rex.ireg_ic && ri_upper(curc));
                             if (result)
                             {
                                 add_state = thread.state.out0();
@@ -5788,7 +6035,7 @@ public class VimO
 
                         case NFA_NLOWER_IC: /* [^a-z] */
                         {
-                            boolean result = (curc != NUL) && !(ri_lower(curc) || (ireg_ic && ri_upper(curc)));
+                            boolean result = (curc != NUL) && !(ri_lower(curc) || (rex.ireg_ic && ri_upper(curc)));
                             if (result)
                             {
                                 add_state = thread.state.out0();
@@ -5799,7 +6046,7 @@ public class VimO
 
                         case NFA_UPPER_IC:  /* [A-Z] */
                         {
-                            boolean result = ri_upper(curc) || (ireg_ic && ri_lower(curc));
+                            boolean result = ri_upper(curc) || (rex.ireg_ic && ri_lower(curc));
                             if (result)
                             {
                                 add_state = thread.state.out0();
@@ -5810,7 +6057,7 @@ public class VimO
 
                         case NFA_NUPPER_IC: /* ^[A-Z] */
                         {
-                            boolean result = (curc != NUL) && !(ri_upper(curc) || (ireg_ic && ri_lower(curc)));
+                            boolean result = (curc != NUL) && !(ri_upper(curc) || (rex.ireg_ic && ri_lower(curc)));
                             if (result)
                             {
                                 add_state = thread.state.out0();
@@ -5845,12 +6092,12 @@ public class VimO
                             if (thread.state.c <= NFA_BACKREF9)
                             {
                                 subidx = thread.state.c - NFA_BACKREF1 + 1;
-                                result = match_backref(thread.th_subs.rs_norm, subidx, bytelen);
+                                result = match_backref(rex, thread.th_subs.rs_norm, subidx, bytelen);
                             }
                             else
                             {
                                 subidx = thread.state.c - NFA_ZREF1 + 1;
-                                result = match_zref(subidx, bytelen);
+                                result = match_zref(rex, subidx, bytelen);
                             }
 
                             if (result)
@@ -5901,9 +6148,9 @@ public class VimO
                         case NFA_LNUM_GT:
                         case NFA_LNUM_LT:
                         {
-                            boolean result = (reg_match == null
+                            boolean result = (rex.reg_match == null
                                 && nfa_re_num_cmp(thread.state.val, thread.state.c - NFA_LNUM,
-                                            reglnum + reg_firstlnum));
+                                            rex.reglnum + rex.reg_firstlnum));
                             if (result)
                             {
                                 add_here = true;
@@ -5917,7 +6164,7 @@ public class VimO
                         case NFA_COL_LT:
                         {
                             boolean result = nfa_re_num_cmp(thread.state.val, thread.state.c - NFA_COL,
-                                                    BDIFF(reginput, regline) + 1);
+                                                    BDIFF(rex.reginput, rex.regline) + 1);
                             if (result)
                             {
                                 add_here = true;
@@ -5931,8 +6178,8 @@ public class VimO
                         case NFA_VCOL_LT:
                         {
                             int op = thread.state.c - NFA_VCOL;
-                            int col = BDIFF(reginput, regline);
-                            window_C wp = (reg_win == null) ? curwin : reg_win;
+                            int col = BDIFF(rex.reginput, rex.regline);
+                            window_C wp = (rex.reg_win == null) ? curwin : rex.reg_win;
 
                             /* Bail out quickly when there can't be a match,
                              * avoid the overhead of win_linetabsize() on long lines. */
@@ -5951,7 +6198,7 @@ public class VimO
                                 result = (thread.state.val * ts < col);
                             }
                             if (!result)
-                                result = nfa_re_num_cmp(thread.state.val, op, (long)win_linetabsize(wp, regline, col) + 1);
+                                result = nfa_re_num_cmp(thread.state.val, op, (long)win_linetabsize(wp, rex.regline, col) + 1);
                             if (result)
                             {
                                 add_here = true;
@@ -5964,18 +6211,18 @@ public class VimO
                         case NFA_MARK_GT:
                         case NFA_MARK_LT:
                         {
-                            pos_C pos = getmark_buf(reg_buf, thread.state.val, false);
+                            pos_C pos = getmark_buf(rex.reg_buf, thread.state.val, false);
 
                             /* Compare the mark position to the match position. */
                             boolean result = (pos != null           /* mark doesn't exist */
                                     && 0 < pos.lnum                 /* mark isn't set in reg_buf */
-                                    && (pos.lnum == reglnum + reg_firstlnum
-                                            ? (pos.col == BDIFF(reginput, regline)
+                                    && (pos.lnum == rex.reglnum + rex.reg_firstlnum
+                                            ? (pos.col == BDIFF(rex.reginput, rex.regline)
                                                 ? thread.state.c == NFA_MARK
-                                                : (pos.col < BDIFF(reginput, regline)
+                                                : (pos.col < BDIFF(rex.reginput, rex.regline)
                                                     ? thread.state.c == NFA_MARK_GT
                                                     : thread.state.c == NFA_MARK_LT))
-                                            : (pos.lnum < reglnum + reg_firstlnum
+                                            : (pos.lnum < rex.reglnum + rex.reg_firstlnum
                                                 ? thread.state.c == NFA_MARK_GT
                                                 : thread.state.c == NFA_MARK_LT)));
                             if (result)
@@ -5988,9 +6235,9 @@ public class VimO
 
                         case NFA_CURSOR:
                         {
-                            boolean result = (reg_win != null
-                                    && reglnum + reg_firstlnum == reg_win.w_cursor.lnum
-                                    && BDIFF(reginput, regline) == reg_win.w_cursor.col);
+                            boolean result = (rex.reg_win != null
+                                    && rex.reglnum + rex.reg_firstlnum == rex.reg_win.w_cursor.lnum
+                                    && BDIFF(rex.reginput, rex.regline) == rex.reg_win.w_cursor.col);
                             if (result)
                             {
                                 add_here = true;
@@ -6001,7 +6248,7 @@ public class VimO
 
                         case NFA_VISUAL:
                         {
-                            boolean result = reg_match_visual();
+                            boolean result = reg_match_visual(rex);
                             if (result)
                             {
                                 add_here = true;
@@ -6040,12 +6287,12 @@ public class VimO
                             int c = thread.state.c;
 
                             boolean result = (c == curc);
-                            if (!result && ireg_ic)
+                            if (!result && rex.ireg_ic)
                                 result = (utf_tolower(c) == utf_tolower(curc));
 
                             /* If ireg_icombine is not set only skip over the character itself.
                              * When it is set skip over composing characters. */
-                            if (result && !ireg_icombine)
+                            if (result && !rex.ireg_icombine)
                                 clen = utf_char2len(curc);
 
                             if (result)
@@ -6068,7 +6315,7 @@ public class VimO
                             int result;
                             if (pim.result == NFA_PIM_TODO)
                             {
-                                result = recursive_regmatch(pim.state, pim, prog, submatch, m, listids);
+                                result = recursive_regmatch(rex, pim.state, pim, prog, submatch, m, listids);
                                 pim.result = (result != FALSE) ? NFA_PIM_MATCH : NFA_PIM_NOMATCH;
                                 /* for \@! and \@<! it is a match when the result is false */
                                 if ((result != FALSE) != (pim.state.c == NFA_START_INVISIBLE_NEG
@@ -6077,9 +6324,9 @@ public class VimO
                                             || pim.state.c == NFA_START_INVISIBLE_BEFORE_NEG_FIRST))
                                 {
                                     /* Copy submatch info from the recursive call. */
-                                    copy_sub_off(pim.np_subs.rs_norm, m.rs_norm);
-                                    if (nfa_has_zsubexpr)
-                                        copy_sub_off(pim.np_subs.rs_synt, m.rs_synt);
+                                    copy_sub_off(rex, pim.np_subs.rs_norm, m.rs_norm);
+                                    if (rex.nfa_has_zsubexpr)
+                                        copy_sub_off(rex, pim.np_subs.rs_synt, m.rs_synt);
                                 }
                             }
                             else
@@ -6094,9 +6341,9 @@ public class VimO
                                         || pim.state.c == NFA_START_INVISIBLE_BEFORE_NEG_FIRST))
                             {
                                 /* Copy submatch info from the recursive call. */
-                                copy_sub_off(thread.th_subs.rs_norm, pim.np_subs.rs_norm);
-                                if (nfa_has_zsubexpr)
-                                    copy_sub_off(thread.th_subs.rs_synt, pim.np_subs.rs_synt);
+                                copy_sub_off(rex, thread.th_subs.rs_norm, pim.np_subs.rs_norm);
+                                if (rex.nfa_has_zsubexpr)
+                                    copy_sub_off(rex, thread.th_subs.rs_synt, pim.np_subs.rs_synt);
                             }
                             else
                             {
@@ -6115,15 +6362,15 @@ public class VimO
                          * Make a local copy to avoid that. */
                         if (pim == thread.th_pim)
                         {
-                            copy_pim(pim_copy, pim);
+                            copy_pim(rex, pim_copy, pim);
                             pim = pim_copy;
                         }
 
                         if (add_here)
-                            addstate_here(thislist, add_state, thread.th_subs, pim, lidx);
+                            addstate_here(rex, thislist, add_state, thread.th_subs, pim, lidx);
                         else
                         {
-                            addstate(nextlist, add_state, thread.th_subs, pim, add_off);
+                            addstate(rex, nextlist, add_state, thread.th_subs, pim, add_off);
                             if (0 < add_count)
                                 nextlist.threads[nextlist.n - 1].count = add_count;
                         }
@@ -6137,17 +6384,17 @@ public class VimO
                  * because recursive calls should only start in the first position.
                  * Unless "nfa_endp" is not null, then we match the end position.
                  * Also don't start a match past the first line. */
-                if (nfa_match == FALSE
+                if (rex.nfa_match == FALSE
                         && ((toplevel
-                                && reglnum == 0
+                                && rex.reglnum == 0
                                 && clen != 0
-                                && (ireg_maxcol == 0 || BDIFF(reginput, regline) < ireg_maxcol))
-                            || (nfa_endp != null
-                                && ((reg_match == null)
-                                    ? (reglnum < nfa_endp.se_pos.lnum
-                                    || (reglnum == nfa_endp.se_pos.lnum
-                                        && BDIFF(reginput, regline) < nfa_endp.se_pos.col))
-                                    : BLT(reginput, nfa_endp.se_ptr)))))
+                                && (rex.ireg_maxcol == 0 || BDIFF(rex.reginput, rex.regline) < rex.ireg_maxcol))
+                            || (rex.nfa_endp != null
+                                && ((rex.reg_match == null)
+                                    ? (rex.reglnum < rex.nfa_endp.se_pos.lnum
+                                    || (rex.reglnum == rex.nfa_endp.se_pos.lnum
+                                        && BDIFF(rex.reginput, rex.regline) < rex.nfa_endp.se_pos.col))
+                                    : BLT(rex.reginput, rex.nfa_endp.se_ptr)))))
                 {
                     /* Inline optimized code for addstate() if we know the state is the first MOPEN. */
                     if (toplevel)
@@ -6158,21 +6405,21 @@ public class VimO
                         {
                             if (nextlist.n == 0)
                             {
-                                int[] col = { BDIFF(reginput, regline) + clen };
+                                int[] col = { BDIFF(rex.reginput, rex.regline) + clen };
 
                                 /* Nextlist is empty, we can skip ahead to the
                                  * character that must appear at the start. */
-                                if (skip_to_start(prog.regstart, col) == false)
+                                if (skip_to_start(rex, prog.regstart, col) == false)
                                     break;
-                                reginput = regline.plus(col[0] - clen);
+                                rex.reginput = rex.regline.plus(col[0] - clen);
                             }
                             else
                             {
                                 /* Checking if the required start character matches is
                                  * cheaper than adding a state that won't match. */
-                                int c = us_ptr2char(reginput.plus(clen));
+                                int c = us_ptr2char(rex.reginput.plus(clen));
                                 if (c != prog.regstart
-                                    && (!ireg_ic || utf_tolower(c) != utf_tolower(prog.regstart)))
+                                    && (!rex.ireg_ic || utf_tolower(c) != utf_tolower(prog.regstart)))
                                 {
                                     add = false;
                                 }
@@ -6181,23 +6428,23 @@ public class VimO
 
                         if (add)
                         {
-                            if (reg_match == null)
-                                m.rs_norm.rs_multi[0].start_col = BDIFF(reginput, regline) + clen;
+                            if (rex.reg_match == null)
+                                m.rs_norm.rs_multi[0].start_col = BDIFF(rex.reginput, rex.regline) + clen;
                             else
-                                m.rs_norm.rs_line[0].start = reginput.plus(clen);
-                            addstate(nextlist, start.out0(), m, null, clen);
+                                m.rs_norm.rs_line[0].start = rex.reginput.plus(clen);
+                            addstate(rex, nextlist, start.out0(), m, null, clen);
                         }
                     }
                     else
-                        addstate(nextlist, start, m, null, clen);
+                        addstate(rex, nextlist, start, m, null, clen);
                 }
             }
 
             /* Advance to the next character, or advance to the next line, or finish. */
             if (clen != 0)
-                reginput = reginput.plus(clen);
-            else if (go_to_nextline || (nfa_endp != null && reg_match == null && reglnum < nfa_endp.se_pos.lnum))
-                reg_nextline();
+                rex.reginput = rex.reginput.plus(clen);
+            else if (go_to_nextline || (rex.nfa_endp != null && rex.reg_match == null && rex.reglnum < rex.nfa_endp.se_pos.lnum))
+                reg_nextline(rex);
             else
                 break;
 
@@ -6207,112 +6454,113 @@ public class VimO
                 break;
 
             /* Check for timeout once in a twenty times to avoid overhead. */
-            if (nfa_time_limit != null && ++nfa_time_count == 20)
+            if (rex.nfa_time_limit != null && ++rex.nfa_time_count == 20)
             {
-                nfa_time_count = 0;
-                if (profile_passed_limit(nfa_time_limit))
+                rex.nfa_time_count = 0;
+                if (profile_passed_limit(rex.nfa_time_limit))
                     break;
             }
         }
 
-        return nfa_match;
+        return rex.nfa_match;
     }
 
     /*
      * Try match of "prog" with at regline[col].
      * Returns <= 0 for failure, number of lines contained in the match otherwise.
      */
-    /*private*/ static long nfa_regtry(nfa_regprog_C prog, int col, timeval_C tm)
+    /*private*/ static long nfa_regtry(regexec_C rex, nfa_regprog_C prog, int col, timeval_C tm)
         /* tm: timeout limit or null */
     {
         regsubs_C subs = new regsubs_C();
         regsubs_C m = new regsubs_C();
         nfa_state_C start = prog.start;
 
-        reginput = regline.plus(col);
-        nfa_time_limit = tm;
-        nfa_time_count = 0;
+        rex.reginput = rex.regline.plus(col);
+        rex.nfa_time_limit = tm;
+        rex.nfa_time_count = 0;
 
-        clear_sub(subs.rs_norm);
-        clear_sub(m.rs_norm);
-        clear_sub(subs.rs_synt);
-        clear_sub(m.rs_synt);
+        clear_sub(rex, subs.rs_norm);
+        clear_sub(rex, m.rs_norm);
+        clear_sub(rex, subs.rs_synt);
+        clear_sub(rex, m.rs_synt);
 
-        int result = nfa_regmatch(prog, start, subs, m);
+        int result = nfa_regmatch(rex, prog, start, subs, m);
         if (result == FALSE)
             return 0;
         else if (result == NFA_TOO_EXPENSIVE)
             return result;
 
-        cleanup_subexpr();
-        if (reg_match == null)
+        cleanup_subexpr(rex);
+        if (rex.reg_match == null)
         {
             for (int i = 0; i < subs.rs_norm.in_use; i++)
             {
-                reg_startpos[i].lnum = subs.rs_norm.rs_multi[i].start_lnum;
-                reg_startpos[i].col = subs.rs_norm.rs_multi[i].start_col;
+                rex.reg_startpos[i].lnum = subs.rs_norm.rs_multi[i].start_lnum;
+                rex.reg_startpos[i].col = subs.rs_norm.rs_multi[i].start_col;
 
-                reg_endpos[i].lnum = subs.rs_norm.rs_multi[i].end_lnum;
-                reg_endpos[i].col = subs.rs_norm.rs_multi[i].end_col;
+                rex.reg_endpos[i].lnum = subs.rs_norm.rs_multi[i].end_lnum;
+                rex.reg_endpos[i].col = subs.rs_norm.rs_multi[i].end_col;
             }
 
-            if (reg_startpos[0].lnum < 0)
+            if (rex.reg_startpos[0].lnum < 0)
             {
-                reg_startpos[0].lnum = 0;
-                reg_startpos[0].col = col;
+                rex.reg_startpos[0].lnum = 0;
+                rex.reg_startpos[0].col = col;
             }
-            if (reg_endpos[0].lnum < 0)
+            if (rex.reg_endpos[0].lnum < 0)
             {
                 /* pattern has a \ze but it didn't match, use current end */
-                reg_endpos[0].lnum = reglnum;
-                reg_endpos[0].col = BDIFF(reginput, regline);
+                rex.reg_endpos[0].lnum = rex.reglnum;
+                rex.reg_endpos[0].col = BDIFF(rex.reginput, rex.regline);
             }
             else
                 /* Use line number of "\ze". */
-                reglnum = reg_endpos[0].lnum;
+                rex.reglnum = rex.reg_endpos[0].lnum;
         }
         else
         {
             for (int i = 0; i < subs.rs_norm.in_use; i++)
             {
-                reg_startp[i] = subs.rs_norm.rs_line[i].start;
-                reg_endp[i] = subs.rs_norm.rs_line[i].end;
+                rex.reg_startp[i] = subs.rs_norm.rs_line[i].start;
+                rex.reg_endp[i] = subs.rs_norm.rs_line[i].end;
             }
 
-            if (reg_startp[0] == null)
-                reg_startp[0] = regline.plus(col);
-            if (reg_endp[0] == null)
-                reg_endp[0] = reginput;
+            if (rex.reg_startp[0] == null)
+                rex.reg_startp[0] = rex.regline.plus(col);
+            if (rex.reg_endp[0] == null)
+                rex.reg_endp[0] = rex.reginput;
         }
 
         /* Package any found \z(...\) matches for export.  Default is none. */
-        re_extmatch_out = null;
+        rex.reg_extmatch_out = null;
+        rex.reg_extmatch_set = true;
 
         if (prog.reghasz == REX_SET)
         {
-            cleanup_zsubexpr();
-            re_extmatch_out = make_extmatch();
+            cleanup_zsubexpr(rex);
+            rex.reg_extmatch_out = make_extmatch();
             for (int i = 0; i < subs.rs_synt.in_use; i++)
             {
-                if (reg_match == null)
+                if (rex.reg_match == null)
                 {
                     multipos_C mp = subs.rs_synt.rs_multi[i];
 
                     /* Only accept single line matches that are valid. */
                     if (0 <= mp.start_lnum && mp.start_lnum == mp.end_lnum && mp.start_col <= mp.end_col)
-                        re_extmatch_out.matches[i] = STRNDUP(reg_getline(mp.start_lnum).plus(mp.start_col), mp.end_col - mp.start_col);
+                        rex.reg_extmatch_out.matches[i] = STRNDUP(reg_getline(rex, mp.start_lnum).plus(mp.start_col), mp.end_col - mp.start_col);
                 }
                 else
                 {
                     linepos_C lp = subs.rs_synt.rs_line[i];
 
                     if (lp.start != null && lp.end != null)
-                        re_extmatch_out.matches[i] = STRNDUP(lp.start, BDIFF(lp.end, lp.start));
+                        rex.reg_extmatch_out.matches[i] = STRNDUP(lp.start, BDIFF(lp.end, lp.start));
                 }
             }
         }
 
-        return 1 + reglnum;
+        return 1 + rex.reglnum;
     }
 
     /*
@@ -6322,25 +6570,25 @@ public class VimO
      *
      * Returns <= 0 for failure, number of lines contained in the match otherwise.
      */
-    /*private*/ static long nfa_regexec_both(Bytes line, int startcol, timeval_C tm)
+    /*private*/ static long nfa_regexec_both(regexec_C rex, Bytes line, int startcol, timeval_C tm)
         /* startcol: column to start looking for match */
         /* tm: timeout limit or null */
     {
         int[] col = { startcol };
 
         nfa_regprog_C prog;
-        if (reg_match == null)
+        if (rex.reg_match == null)
         {
-            prog = (nfa_regprog_C)reg_mmatch.regprog;
-            line = reg_getline(0);              /* relative to the cursor */
-            reg_startpos = reg_mmatch.startpos;
-            reg_endpos = reg_mmatch.endpos;
+            prog = (nfa_regprog_C)rex.reg_mmatch.regprog;
+            line = reg_getline(rex, 0);              /* relative to the cursor */
+            rex.reg_startpos = rex.reg_mmatch.startpos;
+            rex.reg_endpos = rex.reg_mmatch.endpos;
         }
         else
         {
-            prog = (nfa_regprog_C)reg_match.regprog;
-            reg_startp = reg_match.startp;
-            reg_endp = reg_match.endp;
+            prog = (nfa_regprog_C)rex.reg_match.regprog;
+            rex.reg_startp = rex.reg_match.startp;
+            rex.reg_endp = rex.reg_match.endp;
         }
 
         /* Be paranoid... */
@@ -6352,70 +6600,76 @@ public class VimO
 
         /* If pattern contains "\c" or "\C": overrule value of ireg_ic. */
         if ((prog.regflags & RF_ICASE) != 0)
-            ireg_ic = true;
+            rex.ireg_ic = true;
         else if ((prog.regflags & RF_NOICASE) != 0)
-            ireg_ic = false;
+            rex.ireg_ic = false;
 
         /* If pattern contains "\Z" overrule value of ireg_icombine. */
         if ((prog.regflags & RF_ICOMBINE) != 0)
-            ireg_icombine = true;
+            rex.ireg_icombine = true;
 
-        regline = line;
-        reglnum = 0;    /* relative to line */
+        rex.regline = line;
+        rex.reglnum = 0;    /* relative to line */
 
-        nfa_has_zend = prog.has_zend;
-        nfa_has_backref = prog.has_backref;
-        nfa_nsubexpr = prog.nsubexp;
-        nfa_listid = 1;
-        nfa_alt_listid = 2;
-        nfa_regengine.expr = prog.pattern;
+        rex.nfa_has_zend = prog.has_zend;
+        rex.nfa_has_backref = prog.has_backref;
+        rex.nfa_nsubexpr = prog.nsubexp;
+        rex.nfa_listid = 1;
+        rex.nfa_alt_listid = 2;
 
         if (prog.reganch != 0 && 0 < col[0])
             return 0L;
 
-        need_clear_subexpr = true;
+        rex.need_clear_subexpr = true;
         /* Clear the external match subpointers if necessary. */
         if (prog.reghasz == REX_SET)
         {
-            nfa_has_zsubexpr = true;
-            need_clear_zsubexpr = true;
+            rex.nfa_has_zsubexpr = true;
+            rex.need_clear_zsubexpr = true;
         }
         else
-            nfa_has_zsubexpr = false;
+            rex.nfa_has_zsubexpr = false;
+
+        /* Skip a line that doesn't have the literal text every match has. */
+        if (prog.must != null && !rex.ireg_icombine && !nfa_find_must(rex, prog, line.plus(col[0])))
+            return 0L;
 
         if (prog.regstart != NUL)
         {
             /* Skip ahead until a character we know the match must start with.
              * When there is none there is no match. */
-            if (skip_to_start(prog.regstart, col) == false)
+            if (skip_to_start(rex, prog.regstart, col) == false)
                 return 0L;
 
             /* If match_text is set, it contains the full text that must match.
              * Nothing else to try.  Doesn't handle combining chars well. */
-            if (prog.match_text != null && !ireg_icombine)
-                return find_match_text(col[0], prog.regstart, prog.match_text);
+            if (prog.match_text != null && !rex.ireg_icombine)
+                return find_match_text(rex, col[0], prog.regstart, prog.match_text);
         }
 
         /* If the start column is past the maximum column: no need to try. */
-        if (0 < ireg_maxcol && ireg_maxcol <= col[0])
+        if (0 < rex.ireg_maxcol && rex.ireg_maxcol <= col[0])
             return 0L;
 
-        for (int i = 0; i < prog.nstate; i++)
-        {
-            nfa_state_C state = prog.states[i];
-            if (state == null)
-                continue;
+        /* A line without a match is rejected much faster by the DFA than by nfa_regtry(). */
+        if (prog.dfa != null && !rex.reg_line_lbr && !rex.ireg_icombine && !dfa_regexec(rex, prog, line, col[0]))
+            return 0L;
 
-            state.id = i;
-            state.lastlist[0] = 0;
-            state.lastlist[1] = 0;
+        /* A program used a lot runs as bytecode, see jit_regtry(). */
+        if (prog.jit != null && !rex.reg_line_lbr && !rex.ireg_icombine)
+        {
+            long result = jit_regtry(rex, prog, col[0]);
+            if (result != JIT_GAVE_UP)
+                return result;
         }
 
-        long retval = nfa_regtry(prog, col[0], tm);
-
-        nfa_regengine.expr = null;
+        /* The states are numbered by nfa_regcomp(), "id" is the index in "prog.states". */
+        if (rex.nfa_lastlist == null || rex.nfa_lastlist.length < 2 * prog.nstate)
+            rex.nfa_lastlist = new int[2 * prog.nstate];
+        else
+            Arrays.fill(rex.nfa_lastlist, 0, 2 * prog.nstate, 0);
 
-        return retval;
+        return nfa_regtry(rex, prog, col[0], tm);
     }
 
     /*
@@ -6485,12 +6739,21 @@ public class VimO
 
                 nfa_postprocess(prog);
 
+                /* Number the states by their index, for "nfa_lastlist" of regexec_C. */
+                for (int i = 0; i < prog.nstate; i++)
+                    if (prog.states[i] != null)
+                        prog.states[i].id = i;
+
                 prog.reganch = nfa_get_reganch(prog.start, 0) ? 1 : 0;
                 prog.regstart = nfa_get_regstart(prog.start, 0);
                 prog.match_text = nfa_get_match_text(prog.start);
+                prog.must = nfa_get_must(prog);
 
                 /* Remember whether this pattern has any \z specials in it. */
                 prog.reghasz = re_has_z;
+
+                /* Compiled to bytecode when it turns out to be used a lot. */
+                prog.jit = jit_possible(prog) ? new regjit_C[2] : null;
                 prog.pattern = STRDUP(expr);
                 nfa_regengine.expr = null;
                 break theend;
@@ -6515,21 +6778,21 @@ public class VimO
      *
      * Returns <= 0 for failure, number of lines contained in the match otherwise.
      */
-    /*private*/ static long nfa_regexec_nl(regmatch_C rmp, Bytes line, int col, boolean line_lbr)
+    /*private*/ static long nfa_regexec_nl(regexec_C rex, regmatch_C rmp, Bytes line, int col, boolean line_lbr)
         /* line: string to match against */
         /* col: column to start looking for match */
     {
-        reg_match = rmp;
-        reg_mmatch = null;
-        reg_maxline = 0;
-        reg_line_lbr = line_lbr;
-        reg_buf = curbuf;
-        reg_win = null;
-        ireg_ic = rmp.rm_ic;
-        ireg_icombine = false;
-        ireg_maxcol = 0;
-
-        return nfa_regexec_both(line, col, null);
+        rex.reg_match = rmp;
+        rex.reg_mmatch = null;
+        rex.reg_maxline = 0;
+        rex.reg_line_lbr = line_lbr;
+        rex.reg_buf = curbuf;
+        rex.reg_win = null;
+        rex.ireg_ic = rmp.rm_ic;
+        rex.ireg_icombine = false;
+        rex.ireg_maxcol = 0;
+
+        return nfa_regexec_both(rex, line, col, null);
     }
 
     /*
@@ -6556,126 +6819,1265 @@ public class VimO
      *
      * FIXME if this behavior is not compatible.
      */
-    /*private*/ static long nfa_regexec_multi(regmmatch_C rmp, window_C win, buffer_C buf, long lnum, int col, timeval_C tm)
+    /*private*/ static long nfa_regexec_multi(regexec_C rex, regmmatch_C rmp, window_C win, buffer_C buf, long lnum, int col, timeval_C tm)
         /* win: window in which to search or null */
         /* buf: buffer in which to search */
         /* lnum: nr of line to start looking for match */
         /* col: column to start looking for match */
         /* tm: timeout limit or null */
     {
-        reg_match = null;
-        reg_mmatch = rmp;
-        reg_buf = buf;
-        reg_win = win;
-        reg_firstlnum = lnum;
-        reg_maxline = reg_buf.b_ml.ml_line_count - lnum;
-        reg_line_lbr = false;
-        ireg_ic = rmp.rmm_ic;
-        ireg_icombine = false;
-        ireg_maxcol = rmp.rmm_maxcol;
-
-        return nfa_regexec_both(null, col, tm);
+        rex.reg_match = null;
+        rex.reg_mmatch = rmp;
+        rex.reg_buf = buf;
+        rex.reg_win = win;
+        rex.reg_firstlnum = lnum;
+        rex.reg_maxline = rex.reg_buf.b_ml.ml_line_count - lnum;
+        rex.reg_line_lbr = false;
+        rex.ireg_ic = rmp.rmm_ic;
+        rex.ireg_icombine = false;
+        rex.ireg_maxcol = rmp.rmm_maxcol;
+
+        return nfa_regexec_both(rex, null, col, tm);
     }
 
-    /* ----------------------------------------------------------------------- */
-
-    /* Which regexp engine to use?  Needed for vim_regcomp().
-     * Must match with 'regexpengine'. */
-    /*private*/ static int regexp_engine;
+    /*
+     * The lazy DFA.
+     *
+     * When a pattern only uses characters, character classes, collections, "^" and "$",
+     * whether a line contains a match only depends on the text of that line.  The sets of
+     * NFA states that nfa_regmatch() goes through are then turned into DFA states when
+     * they are needed first, and kept with the program.  Scanning a line takes one table
+     * lookup for each character, which is enough to reject the lines without a match.
+     * nfa_regtry() is still used for the lines with a match, to find its start and end
+     * and the submatches.
+     */
 
     /*
-     * Compile a regular expression into internal code.
-     * Returns the program in allocated memory.
-     * Returns null for an error.
+     * Return true when all the states of "prog" can be handled by the DFA.
      */
-    /*private*/ static regprog_C vim_regcomp(Bytes expr_arg, int re_flags)
+    /*private*/ static boolean dfa_possible(nfa_regprog_C prog)
     {
-        regprog_C prog = null;
-        Bytes expr = expr_arg;
-
-        regexp_engine = (int)p_re[0];
+        if (prog.has_backref || 0x10000 <= prog.nstate)
+            return false;
 
-        /* Check for prefix "\%#=", that sets the regexp engine. */
-        if (STRNCMP(expr, u8("\\%#="), 4) == 0)
+        for (int i = 0; i < prog.nstate; i++)
         {
-            int newengine = expr.at(4) - '0';
+            nfa_state_C state = prog.states[i];
+            if (state == null)
+                continue;
 
-            if (newengine == AUTOMATIC_ENGINE || newengine == BACKTRACKING_ENGINE || newengine == NFA_ENGINE)
-            {
-                regexp_engine = expr.at(4) - '0';
-                expr = expr.plus(5);
-            }
-            else
+            switch (state.c)
             {
-                emsg(u8("E864: \\%#= can only be followed by 0, 1, or 2. The automatic engine will be used."));
-                regexp_engine = AUTOMATIC_ENGINE;
-            }
-        }
-
-        bt_regengine.expr = expr;
-        nfa_regengine.expr = expr;
+                case NFA_SPLIT:
+                case NFA_EMPTY:
+                case NFA_MATCH:
+                case NFA_BOL:
+                case NFA_EOL:
+                case NFA_NOPEN:
+                case NFA_NCLOSE:
+                case NFA_ZSTART:
+                case NFA_ZEND:
+                case NFA_START_COLL:
+                case NFA_START_NEG_COLL:
+                case NFA_END_COLL:
+                case NFA_END_NEG_COLL:
+                case NFA_RANGE_MIN:
+                case NFA_RANGE_MAX:
+                case NFA_ANY:
+                    break;
 
-        /*
-         * First try the NFA engine, unless backtracking was requested.
-         */
-        if (regexp_engine != BACKTRACKING_ENGINE)
-            prog = nfa_regengine.regcomp(expr, re_flags + (regexp_engine == AUTOMATIC_ENGINE ? RE_AUTO : 0));
-        else
-            prog = bt_regengine.regcomp(expr, re_flags);
+                /* These depend on options, which may change while the program is used. */
+                case NFA_IDENT:
+                case NFA_SIDENT:
+                case NFA_KWORD:
+                case NFA_SKWORD:
+                case NFA_FNAME:
+                case NFA_SFNAME:
+                case NFA_PRINT:
+                case NFA_SPRINT:
+                case NFA_CLASS_PRINT:
+                    return false;
 
-        /* Check for error compiling regexp with initial engine. */
-        if (prog == null)
-        {
-            /*
-             * If the NFA engine failed, try the backtracking engine.
-             * The NFA engine also fails for patterns that it can't handle well
-             * but are still valid patterns, thus a retry should work.
-             */
-            if (regexp_engine == AUTOMATIC_ENGINE)
-            {
-                regexp_engine = BACKTRACKING_ENGINE;
-                prog = bt_regengine.regcomp(expr, re_flags);
+                default:
+                    if (0 <= state.c
+                            || (NFA_MOPEN <= state.c && state.c <= NFA_ZCLOSE9)
+                            || (NFA_ANY < state.c && state.c <= NFA_NUPPER_IC)
+                            || (NFA_CLASS_ALNUM <= state.c && state.c <= NFA_CLASS_ESCAPE))
+                        break;
+                    return false;
             }
         }
 
-        if (prog != null)
-        {
-            /* Store the info needed to call regcomp() again when
-             * the engine turns out to be very slow executing it. */
-            prog.re_engine = regexp_engine;
-            prog.re_flags  = re_flags;
-        }
-
-        return prog;
+        return true;
     }
 
-    /*private*/ static void report_re_switch(Bytes pat)
+    /*
+     * Create the DFA for "prog", when it can be used.
+     */
+    /*private*/ static dfa_C[] dfa_regcomp(nfa_regprog_C prog)
     {
-        if (0 < p_verbose[0])
+        if (!dfa_possible(prog))
+            return null;
+
+        dfa_C[] dfa = new dfa_C[2];
+        for (int i = 0; i < 2; i++)
         {
-            verbose_enter();
-            msg_puts(u8("Switching to backtracking RE engine for pattern: "));
-            msg_puts(pat);
-            verbose_leave();
+            dfa[i] = new dfa_C();
+            dfa[i].prog = prog;
+            dfa[i].ic = (i == 1);
         }
+        return dfa;
     }
 
     /*
-     * Match a regexp against a string.
-     * "rmp.regprog" is a compiled regexp as returned by vim_regcomp().
-     * Note: "rmp.regprog" may be freed and changed.
-     * Uses curbuf for line count and 'iskeyword'.
-     * When "nl" is true, consider a "\n" in "line" to be a line break.
-     *
-     * Return true if there is a match, false if not.
+     * Find the NFA states that can be reached from the "sp" states on "stack" without consuming
+     * a character.  NFA_BOL is passed when "bol" is true, NFA_EOL when "eol" is true.
+     * Their "id" goes into "ids" in ascending order.  Returns the number of them.
      */
-    /*private*/ static boolean vim_regexec_both(regmatch_C rmp, Bytes line, int col, boolean nl)
-        /* line: string to match against */
-        /* col: column to start looking for match */
+    /*private*/ static int dfa_closure(nfa_regprog_C prog, nfa_state_C[] stack, int sp, boolean bol, boolean eol, int[] ids)
     {
-        long result = rmp.regprog.engine.regexec_nl(rmp, line, col, nl);
+        boolean[] seen = new boolean[prog.nstate];
+        int n = 0;
 
-        /* NFA engine aborted because it's very slow. */
+        while (0 < sp)
+        {
+            nfa_state_C state = stack[--sp];
+            if (seen[state.id])
+                continue;
+            seen[state.id] = true;
+
+            switch (state.c)
+            {
+                case NFA_SPLIT:
+                    stack[sp++] = state.out1();
+                    stack[sp++] = state.out0();
+                    break;
+
+                case NFA_EMPTY:
+                case NFA_NOPEN:
+                case NFA_NCLOSE:
+                case NFA_ZSTART:
+                case NFA_ZEND:
+                    stack[sp++] = state.out0();
+                    break;
+
+                case NFA_BOL:
+                    if (bol)
+                        stack[sp++] = state.out0();
+                    break;
+
+                case NFA_EOL:
+                    if (eol)
+                        stack[sp++] = state.out0();
+                    else
+                        ids[n++] = state.id;
+                    break;
+
+                default:
+                    if (NFA_MOPEN <= state.c && state.c <= NFA_ZCLOSE9)
+                        stack[sp++] = state.out0();
+                    else
+                        ids[n++] = state.id;
+                    break;
+            }
+        }
+
+        Arrays.sort(ids, 0, n);
+        return n;
+    }
+
+    /*
+     * Return the DFA state for the "n" NFA states in "ids", adding it when it is new.
+     * Returns null when there are too many states already.
+     * Must be called with the lock of "d".
+     */
+    /*private*/ static dfa_state_C dfa_state(dfa_C d, int[] ids, int n)
+    {
+        char[] key = new char[n];
+        for (int i = 0; i < n; i++)
+            key[i] = (char)ids[i];
+
+        String k = new String(key);
+        dfa_state_C ds = d.states.get(k);
+        if (ds == null)
+        {
+            if (DFA_MAX_STATES <= d.nstate)
+            {
+                /* Only the NFA is used from now on, let go of the states, they can take Mbytes.
+                 * Another thread may still be going through some, "nstate" stays as it is. */
+                d.full = true;
+                d.states.clear();
+                d.wide.clear();
+                d.init[0] = d.init[1] = null;
+                return null;
+            }
+
+            boolean match = false;
+            for (int i = 0; i < n; i++)
+                if (d.prog.states[ids[i]].c == NFA_MATCH)
+                    match = true;
+
+            ds = new dfa_state_C(d.nstate++, Arrays.copyOf(ids, n), match);
+            d.states.put(k, ds);
+        }
+        return ds;
+    }
+
+    /*
+     * Return the state to start with, "bol" is 1 at column zero.
+     */
+    /*private*/ static dfa_state_C dfa_start(dfa_C d, int bol)
+    {
+        synchronized (d)
+        {
+            if (d.init[bol] == null)
+            {
+                nfa_regprog_C prog = d.prog;
+                nfa_state_C[] stack = new nfa_state_C[1 + 2 * prog.nstate];
+                int[] ids = new int[prog.nstate];
+
+                stack[0] = prog.start;
+                int n = dfa_closure(prog, stack, 1, (bol == 1), false, ids);
+                d.init[bol] = dfa_state(d, ids, n);
+            }
+            return d.init[bol];
+        }
+    }
+
+    /*
+     * Return true if NFA state "state" matches character "curc", like in nfa_regmatch().
+     */
+    /*private*/ static boolean dfa_consume(nfa_state_C state, int curc, boolean ic)
+    {
+        switch (state.c)
+        {
+            case NFA_ANY:       return (0 < curc);
+
+            case NFA_START_COLL:
+            case NFA_START_NEG_COLL:
+            {
+                boolean result_if_matched = (state.c == NFA_START_COLL);
+
+                for (state = state.out0(); state.c != NFA_END_COLL; state = state.out0())
+                {
+                    if (state.c == NFA_RANGE_MIN)
+                    {
+                        int c1 = state.val;
+                        state = state.out0(); /* advance to NFA_RANGE_MAX */
+                        int c2 = state.val;
+                        if (c1 <= curc && curc <= c2)
+                            return result_if_matched;
+                        if (ic)
+                        {
+                            int curc_low = utf_tolower(curc);
+
+                            for ( ; c1 <= c2; ++c1)
+                                if (utf_tolower(c1) == curc_low)
+                                    return result_if_matched;
+                        }
+                    }
+                    else if (state.c < 0 ? check_char_class(state.c, curc) : (curc == state.c || (ic && utf_tolower(curc) == utf_tolower(state.c))))
+                        return result_if_matched;
+                }
+                return !result_if_matched;
+            }
+
+            case NFA_WHITE:     return vim_iswhite(curc);
+            case NFA_NWHITE:    return !vim_iswhite(curc);
+            case NFA_DIGIT:     return ri_digit(curc);
+            case NFA_NDIGIT:    return !ri_digit(curc);
+            case NFA_HEX:       return ri_hex(curc);
+            case NFA_NHEX:      return !ri_hex(curc);
+            case NFA_OCTAL:     return ri_octal(curc);
+            case NFA_NOCTAL:    return !ri_octal(curc);
+            case NFA_WORD:      return ri_word(curc);
+            case NFA_NWORD:     return !ri_word(curc);
+            case NFA_HEAD:      return ri_head(curc);
+            case NFA_NHEAD:     return !ri_head(curc);
+            case NFA_ALPHA:     return ri_alpha(curc);
+            case NFA_NALPHA:    return !ri_alpha(curc);
+            case NFA_LOWER:     return ri_lower(curc);
+            case NFA_NLOWER:    return !ri_lower(curc);
+            case NFA_UPPER:     return ri_upper(curc);
+            case NFA_NUPPER:    return !ri_upper(curc);
+            case NFA_LOWER_IC:  return (ri_lower(curc) || (ic && ri_upper(curc)));
+            case NFA_NLOWER_IC: return !(ri_lower(curc) || (ic && ri_upper(curc)));
+            case NFA_UPPER_IC:  return (ri_upper(curc) || (ic && ri_lower(curc)));
+            case NFA_NUPPER_IC: return !(ri_upper(curc) || (ic && ri_lower(curc)));
+
+            case NFA_MATCH:
+            case NFA_EOL:       return false;
+
+            default:            /* regular character */
+                return (state.c == curc || (ic && utf_tolower(state.c) == utf_tolower(curc)));
+        }
+    }
+
+    /*
+     * Return the state after "ds" for character "curc", adding it when it is new.
+     * A match may also start at the next character, thus the start state is included.
+     * Returns null when there are too many states.
+     */
+    /*private*/ static dfa_state_C dfa_next(dfa_C d, dfa_state_C ds, int curc)
+    {
+        synchronized (d)
+        {
+            Long wide = (curc < 256) ? null : Long.valueOf(((long)ds.ds_index << 32) + curc);
+
+            dfa_state_C next = (wide == null) ? ds.ds_next[curc] : d.wide.get(wide);
+            if (next == null)
+            {
+                nfa_regprog_C prog = d.prog;
+                nfa_state_C[] stack = new nfa_state_C[ds.ds_states.length + 1 + 2 * prog.nstate];
+                int[] ids = new int[prog.nstate];
+                int sp = 0;
+
+                stack[sp++] = prog.start;
+                for (int i = ds.ds_states.length - 1; 0 <= i; --i)
+                {
+                    nfa_state_C state = prog.states[ds.ds_states[i]];
+                    if (dfa_consume(state, curc, d.ic))
+                        /* next state is in out of the NFA_END_COLL,
+                         * out1 of START points to the END state */
+                        stack[sp++] = (state.c == NFA_START_COLL || state.c == NFA_START_NEG_COLL) ? state.out1().out0() : state.out0();
+                }
+
+                int n = dfa_closure(prog, stack, sp, false, false, ids);
+                next = dfa_state(d, ids, n);
+                if (next == null)
+                    return null;
+
+                if (wide == null)
+                    ds.ds_next[curc] = next;
+                else
+                    d.wide.put(wide, next);
+            }
+            return next;
+        }
+    }
+
+    /*
+     * Return true if a match is found when state "ds" is at the end of the line.
+     * "bol" is 1 when that is at column zero.
+     */
+    /*private*/ static boolean dfa_eol(dfa_C d, dfa_state_C ds, int bol)
+    {
+        byte eol = ds.ds_eol[bol];
+        if (eol == 0)
+        {
+            synchronized (d)
+            {
+                nfa_regprog_C prog = d.prog;
+                nfa_state_C[] stack = new nfa_state_C[ds.ds_states.length + 2 * prog.nstate];
+                int[] ids = new int[prog.nstate];
+                int sp = 0;
+
+                for (int i = 0; i < ds.ds_states.length; i++)
+                {
+                    nfa_state_C state = prog.states[ds.ds_states[i]];
+                    if (state.c == NFA_EOL)
+                        stack[sp++] = state.out0();
+                }
+
+                eol = 1;
+                int n = dfa_closure(prog, stack, sp, (bol == 1), true, ids);
+                for (int i = 0; i < n; i++)
+                    if (prog.states[ids[i]].c == NFA_MATCH)
+                        eol = 2;
+
+                ds.ds_eol[bol] = eol;
+            }
+        }
+        return (eol == 2);
+    }
+
+    /*
+     * Run the DFA of "prog" over "line" from column "col".
+     * Returns false when there is no match in the line, true when there may be one.
+     * Also returns true when the DFA can't tell, e.g. for composing characters,
+     * or when it has too many states.
+     */
+    /*private*/ static boolean dfa_regexec(regexec_C rex, nfa_regprog_C prog, Bytes line, int col)
+    {
+        dfa_C d = prog.dfa[rex.ireg_ic ? 1 : 0];
+        if (d.full)
+            return true;
+
+        int bol = (col == 0) ? 1 : 0;
+        dfa_state_C ds = d.init[bol];
+        if (ds == null && (ds = dfa_start(d, bol)) == null)
+            return true;
+
+        for (int i = col; ; )
+        {
+            if (ds.ds_match)
+                return true;
+
+            int curc = line.at(i) & 0xff, clen = 1;
+            if (curc == NUL)
+                return dfa_eol(d, ds, (i == 0) ? 1 : 0);
+
+            if (0x80 <= curc || 0x80 <= (line.at(i + 1) & 0xff))
+            {
+                Bytes p = line.plus(i);
+                curc = us_ptr2char(p);
+                clen = us_ptr2len_cc(p);
+                /* Composing characters and illegal bytes are not always skipped
+                 * the same way by nfa_regmatch(), let it do this line. */
+                if (clen != utf_char2len(curc) || utf_iscomposing(curc))
+                    return true;
+            }
+
+            dfa_state_C next = (curc < 256) ? ds.ds_next[curc] : null;
+            if (next == null && (next = dfa_next(d, ds, curc)) == null)
+                return true;
+
+            ds = next;
+            i += clen;
+        }
+    }
+
+    /* ----------------------------------------------------------------------- */
+
+    /*
+     * Compiling hot programs to JVM bytecode.
+     *
+     * A program that the DFA can handle and that has been executed 'regexpjit' times is
+     * compiled into a class with one method that does what nfa_regtry() does.  Each NFA
+     * state becomes code that jumps to the code of the state after it, the test of a
+     * character, character class or collection becomes a comparison or a bit mask for the
+     * ASCII characters, and a loop becomes a jump back, thus HotSpot can turn it all into
+     * machine code.  Instead of a list of threads, the method tries the two ways out of an
+     * NFA_SPLIT one after the other, the one for later on a stack.  Tried in the order in
+     * which addstate() adds them, the first match found is the one nfa_regmatch() finds.
+     * A line with a byte that is not ASCII is left to nfa_regtry(), and so is a line that
+     * takes too many steps back.
+     * 'regexpjit' is zero by default, nothing is compiled until it is set.
+     */
+
+    /*private*/ static final int
+        JIT_MAX_STATES = 500,   /* biggest program compiled, keeps the method below 64 Kbyte */
+        JIT_STACK_MAX = 1 << 20,/* maximum number of ints on the stack */
+        JIT_GAVE_UP = -2;       /* returned when nfa_regtry() has to do the match */
+
+    /*private*/ static final String JIT_CLASS = "vim/regjit";
+    /*private*/ static final String JIT_SUPER = "vim/VimD$regjit_C";
+
+    /* The locals of the match() method. */
+    /*private*/ static final int
+        JIT_B = 1, JIT_BASE = 2, JIT_START = 3, JIT_LAST = 4, JIT_END = 5, JIT_SUB = 6, JIT_STACK = 7, JIT_LIMIT = 8,
+        JIT_I = 9, JIT_SP = 10, JIT_STEPS = 11, JIT_T = 12, JIT_C = 13;
+
+    /*
+     * Return true if "state" is NFA_SPLIT or another state that doesn't consume a character.
+     */
+    /*private*/ static boolean jit_zero_width(nfa_state_C state)
+    {
+        return (state.c == NFA_SPLIT || nfa_is_zero_width(state));
+    }
+
+    /*
+     * Return the state that follows "state" after it consumed a character.
+     */
+    /*private*/ static nfa_state_C jit_next(nfa_state_C state)
+    {
+        /* out1 of START points to the END state */
+        if (state.c == NFA_START_COLL || state.c == NFA_START_NEG_COLL)
+            return state.out1().out0();
+
+        return state.out0();
+    }
+
+    /*
+     * Return true if a loop of states that don't consume a character starts at "state".
+     * "mark" is 1 for the states being followed, 2 for the states done.
+     */
+    /*private*/ static boolean jit_empty_loop(nfa_state_C state, byte[] mark)
+    {
+        if (!jit_zero_width(state))
+            return false;
+        if (mark[state.id] != 0)
+            return (mark[state.id] == 1);
+
+        mark[state.id] = 1;
+        boolean loop = jit_empty_loop(state.out0(), mark) || (state.c == NFA_SPLIT && jit_empty_loop(state.out1(), mark));
+        mark[state.id] = 2;
+
+        return loop;
+    }
+
+    /*
+     * Return the states reachable from the start of "prog", in the order their code is put in the method.
+     * Returns null when a loop doesn't consume a character, trying it again would never end.
+     */
+    /*private*/ static nfa_state_C[] jit_states(nfa_regprog_C prog)
+    {
+        nfa_state_C[] order = new nfa_state_C[prog.nstate];
+        boolean[] seen = new boolean[prog.nstate];
+        nfa_state_C[] stack = new nfa_state_C[1 + 2 * prog.nstate];
+        byte[] mark = new byte[prog.nstate];
+        int n = 0, sp = 0;
+
+        stack[sp++] = prog.start;
+        while (0 < sp)
+        {
+            nfa_state_C state = stack[--sp];
+            if (seen[state.id])
+                continue;
+            seen[state.id] = true;
+            order[n++] = state;
+
+            if (jit_empty_loop(state, mark))
+                return null;
+
+            /* "out0" is pushed last, its code follows without a jump when it is not there yet. */
+            if (state.c == NFA_SPLIT)
+            {
+                stack[sp++] = state.out1();
+                stack[sp++] = state.out0();
+            }
+            else if (state.c != NFA_MATCH)
+                stack[sp++] = jit_next(state);
+        }
+
+        return Arrays.copyOf(order, n);
+    }
+
+    /*
+     * Return true if "prog" can be compiled.
+     */
+    /*private*/ static boolean jit_possible(nfa_regprog_C prog)
+    {
+        if (!dfa_possible(prog) || prog.reghasz == REX_SET || JIT_MAX_STATES < prog.nstate)
+            return false;
+
+        for (int i = 0; i < prog.nstate; i++)
+        {
+            nfa_state_C state = prog.states[i];
+            if (state != null && NFA_ZOPEN <= state.c && state.c <= NFA_ZCLOSE9)
+                return false;
+        }
+
+        nfa_state_C[] order = jit_states(prog);
+        if (order == null)
+            return false;
+
+        for (nfa_state_C state : order)
+            if ((state.c == NFA_BOL || state.c == NFA_EOL) && !jit_private(prog, order, state))
+                return false;
+
+        return true;
+    }
+
+    /*
+     * nfa_regmatch() adds the states after NFA_BOL and NFA_EOL when it gets to them in the list,
+     * after the states that come later in the list have been added.  A state that is already in
+     * the list is not added again, thus there the later one wins, unlike when trying them in order.
+     * Return true if the states that "x" adds can only be reached through "x", then it doesn't matter.
+     */
+    /*private*/ static boolean jit_private(nfa_regprog_C prog, nfa_state_C[] order, nfa_state_C x)
+    {
+        boolean[] added = new boolean[prog.nstate];
+        nfa_state_C[] stack = new nfa_state_C[1 + 2 * prog.nstate];
+        int sp = 0;
+
+        stack[sp++] = x.out0();
+        while (0 < sp)
+        {
+            nfa_state_C state = stack[--sp];
+            if (added[state.id])
+                continue;
+            added[state.id] = true;
+
+            /* The states that addstate() follows right away, see jit_zero_width(). */
+            if (state.c == NFA_SPLIT)
+            {
+                stack[sp++] = state.out1();
+                stack[sp++] = state.out0();
+            }
+            else if (state.c != NFA_BOL && state.c != NFA_EOL && jit_zero_width(state))
+                stack[sp++] = state.out0();
+        }
+
+        for (nfa_state_C state : order)
+        {
+            if (state == x || added[state.id] || state.c == NFA_MATCH)
+                continue;
+            if (added[jit_next(state).id] || (state.c == NFA_SPLIT && added[state.out1().id]))
+                return false;
+        }
+
+        return true;
+    }
+
+    /*private*/ static void jit_const(MethodVisitor mv, int n)
+    {
+        if (-1 <= n && n <= 5)
+            mv.visitInsn(Opcodes.ICONST_0 + n);
+        else if (Byte.MIN_VALUE <= n && n <= Byte.MAX_VALUE)
+            mv.visitIntInsn(Opcodes.BIPUSH, n);
+        else if (Short.MIN_VALUE <= n && n <= Short.MAX_VALUE)
+            mv.visitIntInsn(Opcodes.SIPUSH, n);
+        else
+            mv.visitLdcInsn(Integer.valueOf(n));
+    }
+
+    /*
+     * Put "a" and "b" on the stack, or return JIT_GAVE_UP when it is full.
+     * "a" is a local, "b" a constant, or the element "b_sub" of "sub" when "b_sub" is true.
+     */
+    /*private*/ static void jit_push(MethodVisitor mv, Label gave_up, int a, int b, boolean b_sub)
+    {
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_SP);
+        mv.visitVarInsn(Opcodes.ALOAD, JIT_STACK);
+        mv.visitInsn(Opcodes.ARRAYLENGTH);
+        mv.visitInsn(Opcodes.ICONST_2);
+        mv.visitInsn(Opcodes.ISUB);
+        mv.visitJumpInsn(Opcodes.IF_ICMPGT, gave_up);
+
+        mv.visitVarInsn(Opcodes.ALOAD, JIT_STACK);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_SP);
+        if (b_sub)
+        {
+            mv.visitVarInsn(Opcodes.ALOAD, JIT_SUB);
+            jit_const(mv, b);
+            mv.visitInsn(Opcodes.IALOAD);
+        }
+        else
+            mv.visitVarInsn(Opcodes.ILOAD, a);
+        mv.visitInsn(Opcodes.IASTORE);
+
+        mv.visitVarInsn(Opcodes.ALOAD, JIT_STACK);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_SP);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.IADD);
+        jit_const(mv, b_sub ? -b - 1 : b);
+        mv.visitInsn(Opcodes.IASTORE);
+
+        mv.visitIincInsn(JIT_SP, 2);
+    }
+
+    /*
+     * Set the start or end of a subexpression, element "idx" of "sub", to the current position.
+     * The old value is put on the stack to be restored when backtracking.
+     */
+    /*private*/ static void jit_set_sub(MethodVisitor mv, Label gave_up, int idx)
+    {
+        jit_push(mv, gave_up, 0, idx, true);
+
+        mv.visitVarInsn(Opcodes.ALOAD, JIT_SUB);
+        jit_const(mv, idx);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_I);
+        mv.visitInsn(Opcodes.IASTORE);
+    }
+
+    /*
+     * Jump to "fail" unless JIT_C is in the set of ASCII characters "lo" (0 to 63) and "hi" (64 to 127).
+     * JIT_C is never NUL.
+     */
+    /*private*/ static void jit_test(MethodVisitor mv, Label fail, long lo, long hi)
+    {
+        lo &= ~1L;
+        int n = Long.bitCount(lo) + Long.bitCount(hi);
+
+        if (n == 0)
+        {
+            mv.visitJumpInsn(Opcodes.GOTO, fail);
+            return;
+        }
+        if (n == 127)
+            return;
+
+        int first = (lo != 0) ? Long.numberOfTrailingZeros(lo) : 64 + Long.numberOfTrailingZeros(hi);
+        int last = (hi != 0) ? 127 - Long.numberOfLeadingZeros(hi) : 63 - Long.numberOfLeadingZeros(lo);
+
+        if (n == 1 || n == 2)
+        {
+            Label ok = new Label();
+            if (n == 2)
+            {
+                mv.visitVarInsn(Opcodes.ILOAD, JIT_C);
+                jit_const(mv, first);
+                mv.visitJumpInsn(Opcodes.IF_ICMPEQ, ok);
+            }
+            mv.visitVarInsn(Opcodes.ILOAD, JIT_C);
+            jit_const(mv, last);
+            mv.visitJumpInsn(Opcodes.IF_ICMPNE, fail);
+            mv.visitLabel(ok);
+        }
+        else if (n == 126)
+        {
+            /* all but one */
+            int c = (~lo & ~1L) != 0 ? Long.numberOfTrailingZeros(~lo & ~1L) : 64 + Long.numberOfTrailingZeros(~hi);
+            mv.visitVarInsn(Opcodes.ILOAD, JIT_C);
+            jit_const(mv, c);
+            mv.visitJumpInsn(Opcodes.IF_ICMPEQ, fail);
+        }
+        else if (n == last - first + 1)
+        {
+            /* a range */
+            if (1 < first)
+            {
+                mv.visitVarInsn(Opcodes.ILOAD, JIT_C);
+                jit_const(mv, first);
+                mv.visitJumpInsn(Opcodes.IF_ICMPLT, fail);
+            }
+            if (last < 127)
+            {
+                mv.visitVarInsn(Opcodes.ILOAD, JIT_C);
+                jit_const(mv, last);
+                mv.visitJumpInsn(Opcodes.IF_ICMPGT, fail);
+            }
+        }
+        else
+        {
+            /* A shift of a long only uses the lowest 6 bits of JIT_C. */
+            Label shift = new Label();
+            if (hi == 0 || lo == 0)
+            {
+                mv.visitVarInsn(Opcodes.ILOAD, JIT_C);
+                jit_const(mv, 64);
+                mv.visitJumpInsn((hi == 0) ? Opcodes.IF_ICMPGE : Opcodes.IF_ICMPLT, fail);
+                mv.visitLdcInsn(Long.valueOf((hi == 0) ? lo : hi));
+            }
+            else
+            {
+                Label high = new Label();
+                mv.visitVarInsn(Opcodes.ILOAD, JIT_C);
+                jit_const(mv, 64);
+                mv.visitJumpInsn(Opcodes.IF_ICMPGE, high);
+                mv.visitLdcInsn(Long.valueOf(lo));
+                mv.visitJumpInsn(Opcodes.GOTO, shift);
+                mv.visitLabel(high);
+                mv.visitLdcInsn(Long.valueOf(hi));
+            }
+            mv.visitLabel(shift);
+            mv.visitVarInsn(Opcodes.ILOAD, JIT_C);
+            mv.visitInsn(Opcodes.LUSHR);
+            mv.visitInsn(Opcodes.L2I);
+            mv.visitInsn(Opcodes.ICONST_1);
+            mv.visitInsn(Opcodes.IAND);
+            mv.visitJumpInsn(Opcodes.IFEQ, fail);
+        }
+    }
+
+    /*
+     * Generate the match() method for "prog", see regjit_C.
+     */
+    /*private*/ static void jit_method(MethodVisitor mv, nfa_regprog_C prog, boolean ic)
+    {
+        nfa_state_C[] order = jit_states(prog);
+
+        Label[] label = new Label[prog.nstate];
+        for (nfa_state_C state : order)
+            label[state.id] = new Label();
+
+        Label again = new Label(), fail = new Label(), choice = new Label(), next = new Label(), gave_up = new Label();
+
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, JIT_STEPS);
+
+        /* Try a match at JIT_START. */
+        mv.visitLabel(again);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, JIT_SP);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_START);
+        mv.visitVarInsn(Opcodes.ISTORE, JIT_I);
+        if (order[0] != prog.start)
+            mv.visitJumpInsn(Opcodes.GOTO, label[prog.start.id]);
+
+        int nsplit = 0;
+        for (int k = 0; k < order.length; k++)
+        {
+            nfa_state_C state = order[k];
+            nfa_state_C to;
+
+            mv.visitLabel(label[state.id]);
+
+            switch (state.c)
+            {
+                case NFA_MATCH:
+                    mv.visitVarInsn(Opcodes.ILOAD, JIT_I);
+                    mv.visitInsn(Opcodes.IRETURN);
+                    continue;
+
+                case NFA_SPLIT:
+                    jit_push(mv, gave_up, JIT_I, state.out1().id, false);
+                    nsplit++;
+                    to = state.out0();
+                    break;
+
+                case NFA_EMPTY:
+                case NFA_NOPEN:
+                case NFA_NCLOSE:
+                    to = state.out0();
+                    break;
+
+                case NFA_BOL:
+                case NFA_EOL:
+                    mv.visitVarInsn(Opcodes.ILOAD, JIT_I);
+                    mv.visitVarInsn(Opcodes.ILOAD, (state.c == NFA_BOL) ? JIT_BASE : JIT_END);
+                    mv.visitJumpInsn(Opcodes.IF_ICMPNE, fail);
+                    to = state.out0();
+                    break;
+
+                case NFA_ZSTART:
+                    jit_set_sub(mv, gave_up, 0);
+                    to = state.out0();
+                    break;
+
+                case NFA_ZEND:
+                    jit_set_sub(mv, gave_up, 1);
+                    to = state.out0();
+                    break;
+
+                default:
+                    to = state.out0();
+                    if (NFA_MOPEN <= state.c && state.c <= NFA_MOPEN9)
+                        jit_set_sub(mv, gave_up, 2 * (state.c - NFA_MOPEN));
+                    else if (NFA_MCLOSE <= state.c && state.c <= NFA_MCLOSE9)
+                    {
+                        /* Do not overwrite the position set by \ze. */
+                        if (state.c == NFA_MCLOSE && prog.has_zend)
+                        {
+                            mv.visitVarInsn(Opcodes.ALOAD, JIT_SUB);
+                            mv.visitInsn(Opcodes.ICONST_1);
+                            mv.visitInsn(Opcodes.IALOAD);
+                            mv.visitJumpInsn(Opcodes.IFGE, label[to.id]);
+                        }
+                        jit_set_sub(mv, gave_up, 2 * (state.c - NFA_MCLOSE) + 1);
+                    }
+                    else
+                    {
+                        /* A state that consumes a character, never the NUL at the end. */
+                        long lo = 0, hi = 0;
+                        for (int c = 1; c < 0x80; c++)
+                            if (dfa_consume(state, c, ic))
+                            {
+                                if (c < 64)
+                                    lo |= 1L << c;
+                                else
+                                    hi |= 1L << (c - 64);
+                            }
+
+                        mv.visitVarInsn(Opcodes.ILOAD, JIT_I);
+                        mv.visitVarInsn(Opcodes.ILOAD, JIT_END);
+                        mv.visitJumpInsn(Opcodes.IF_ICMPGE, fail);
+                        mv.visitVarInsn(Opcodes.ALOAD, JIT_B);
+                        mv.visitVarInsn(Opcodes.ILOAD, JIT_I);
+                        mv.visitInsn(Opcodes.BALOAD);
+                        mv.visitVarInsn(Opcodes.ISTORE, JIT_C);
+                        jit_test(mv, fail, lo, hi);
+                        mv.visitIincInsn(JIT_I, 1);
+                        to = jit_next(state);
+                    }
+                    break;
+            }
+
+            if (k + 1 == order.length || order[k + 1] != to)
+                mv.visitJumpInsn(Opcodes.GOTO, label[to.id]);
+        }
+
+        /* Go back to what is on top of the stack: restore a subexpression, or try the other way out of an NFA_SPLIT. */
+        mv.visitLabel(fail);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_SP);
+        mv.visitJumpInsn(Opcodes.IFEQ, next);
+        mv.visitIincInsn(JIT_SP, -1);
+        mv.visitVarInsn(Opcodes.ALOAD, JIT_STACK);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_SP);
+        mv.visitInsn(Opcodes.IALOAD);
+        mv.visitVarInsn(Opcodes.ISTORE, JIT_T);
+        mv.visitIincInsn(JIT_SP, -1);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_T);
+        mv.visitJumpInsn(Opcodes.IFGE, choice);
+
+        mv.visitVarInsn(Opcodes.ALOAD, JIT_SUB);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_T);
+        mv.visitInsn(Opcodes.INEG);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitInsn(Opcodes.ISUB);
+        mv.visitVarInsn(Opcodes.ALOAD, JIT_STACK);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_SP);
+        mv.visitInsn(Opcodes.IALOAD);
+        mv.visitInsn(Opcodes.IASTORE);
+        mv.visitJumpInsn(Opcodes.GOTO, fail);
+
+        mv.visitLabel(choice);
+        mv.visitVarInsn(Opcodes.ALOAD, JIT_STACK);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_SP);
+        mv.visitInsn(Opcodes.IALOAD);
+        mv.visitVarInsn(Opcodes.ISTORE, JIT_I);
+        mv.visitIincInsn(JIT_STEPS, 1);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_STEPS);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_LIMIT);
+        mv.visitJumpInsn(Opcodes.IF_ICMPGT, gave_up);
+
+        int[] keys = new int[nsplit];
+        int n = 0;
+        for (nfa_state_C state : order)
+            if (state.c == NFA_SPLIT)
+                keys[n++] = state.out1().id;
+        Arrays.sort(keys);
+        n = 0;
+        for (int i = 0; i < keys.length; i++)
+            if (i == 0 || keys[i] != keys[i - 1])
+                keys[n++] = keys[i];
+        keys = Arrays.copyOf(keys, n);
+
+        Label[] labels = new Label[n];
+        for (int i = 0; i < n; i++)
+            labels[i] = label[keys[i]];
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_T);
+        mv.visitLookupSwitchInsn(fail, keys, labels);
+
+        /* No match at JIT_START, try at the next position. */
+        mv.visitLabel(next);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_START);
+        mv.visitVarInsn(Opcodes.ILOAD, JIT_LAST);
+        Label none = new Label();
+        mv.visitJumpInsn(Opcodes.IF_ICMPGE, none);
+        mv.visitIincInsn(JIT_START, 1);
+        mv.visitJumpInsn(Opcodes.GOTO, again);
+
+        mv.visitLabel(none);
+        mv.visitInsn(Opcodes.ICONST_M1);
+        mv.visitInsn(Opcodes.IRETURN);
+
+        mv.visitLabel(gave_up);
+        jit_const(mv, JIT_GAVE_UP);
+        mv.visitInsn(Opcodes.IRETURN);
+    }
+
+    /*
+     * Compile "prog" into a class for matching with "ic" for ignoring case.
+     * Returns null when that fails.
+     */
+    /*private*/ static regjit_C jit_compile(nfa_regprog_C prog, boolean ic)
+    {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, JIT_CLASS, null, JIT_SUPER, null);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, JIT_SUPER, "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "match", "([BIIII[I[II)I", null, null);
+        mv.visitCode();
+        jit_method(mv, prog, ic);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+
+        try
+        {
+            Class<?> c = new regjit_loader_C().define(JIT_CLASS.replace('/', '.'), cw.toByteArray());
+            return (regjit_C)c.getConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return null;
+        }
+        catch (RuntimeException e)  /* e.g. the method is too big */
+        {
+            return null;
+        }
+    }
+
+    /*
+     * Try a match of "prog" at regline[col] with the compiled program,
+     * after 'regexpjit' executions of "prog" compile it first.
+     * Returns JIT_GAVE_UP when nfa_regtry() has to do it,
+     * zero for failure, the number of lines contained in the match otherwise.
+     */
+    /*private*/ static long jit_regtry(regexec_C rex, nfa_regprog_C prog, int col)
+    {
+        regjit_C[] jits = prog.jit;
+        int ic = rex.ireg_ic ? 1 : 0;
+
+        regjit_C jit = jits[ic];
+        if (jit == null)
+        {
+            /* Not counted exactly when used by more than one thread, that doesn't matter. */
+            if (p_rjit[0] == 0 || ++prog.jit_count < p_rjit[0])
+                return JIT_GAVE_UP;
+
+            synchronized (prog)
+            {
+                if ((jit = jits[ic]) == null && (jit = jits[ic] = jit_compile(prog, rex.ireg_ic)) == null)
+                {
+                    prog.jit = null;
+                    return JIT_GAVE_UP;
+                }
+            }
+        }
+
+        Bytes line = rex.regline;
+        byte[] b = line.array;
+        int base = line.index;
+
+        int end = base + col;
+        for (byte c; (c = b[end]) != NUL; end++)
+            if (0x80 <= (c & 0xff))
+                return JIT_GAVE_UP;
+
+        int n = Math.min(8 * (end - base - col) + 256, JIT_STACK_MAX);
+        if (rex.jit_stack == null || rex.jit_stack.length < n)
+            rex.jit_stack = new int[n];
+
+        int last = (rex.ireg_maxcol == 0) ? end : Math.min(end, base + rex.ireg_maxcol);
+        long limit = 4L * (end - base - col + 1) * prog.nstate;
+
+        int[] sub = rex.jit_sub;
+        Arrays.fill(sub, -1);
+
+        int m = jit.match(b, base, base + col, last, end, sub, rex.jit_stack, (int)Math.min(limit, Integer.MAX_VALUE));
+        if (m == JIT_GAVE_UP)
+            return JIT_GAVE_UP;
+        if (m < 0)
+            return 0;
+
+        cleanup_subexpr(rex);
+        if (rex.reg_match == null)
+        {
+            for (int i = 0; i < NSUBEXP; i++)
+            {
+                if (0 <= sub[2 * i])
+                {
+                    rex.reg_startpos[i].lnum = 0;
+                    rex.reg_startpos[i].col = sub[2 * i] - base;
+                }
+                if (0 <= sub[2 * i + 1])
+                {
+                    rex.reg_endpos[i].lnum = 0;
+                    rex.reg_endpos[i].col = sub[2 * i + 1] - base;
+                }
+            }
+
+            if (rex.reg_startpos[0].lnum < 0)
+            {
+                rex.reg_startpos[0].lnum = 0;
+                rex.reg_startpos[0].col = col;
+            }
+            if (rex.reg_endpos[0].lnum < 0)
+            {
+                rex.reg_endpos[0].lnum = 0;
+                rex.reg_endpos[0].col = m - base;
+            }
+        }
+        else
+        {
+            for (int i = 0; i < NSUBEXP; i++)
+            {
+                if (0 <= sub[2 * i])
+                    rex.reg_startp[i] = line.plus(sub[2 * i] - base);
+                if (0 <= sub[2 * i + 1])
+                    rex.reg_endp[i] = line.plus(sub[2 * i + 1] - base);
+            }
+
+            if (rex.reg_startp[0] == null)
+                rex.reg_startp[0] = line.plus(col);
+            if (rex.reg_endp[0] == null)
+                rex.reg_endp[0] = line.plus(m - base);
+        }
+        rex.reginput = line.plus(m - base);
+
+        rex.reg_extmatch_out = null;
+        rex.reg_extmatch_set = true;
+
+        return 1;
+    }
+
+    /* ----------------------------------------------------------------------- */
+
+    /* Which regexp engine to use?  Needed for vim_regcomp().
+     * Must match with 'regexpengine'. */
+    /*private*/ static int regexp_engine;
+
+    /*
+     * Compiled programs, by the pattern and what else vim_regcomp() depends on, see regcache_key().
+     * Least recently used first.  Executing a program doesn't change it, thus callers can share it.
+     * Whether case is ignored is given when executing it, with "rm_ic" and "rmm_ic".
+     */
+    /*private*/ static final int REGCACHE_MAX = 64;
+
+    /*private*/ static LinkedHashMap<String, regprog_C> regcache = new LinkedHashMap<String, regprog_C>(REGCACHE_MAX, 0.75f, true);
+    /*private*/ static long regcache_hits;
+    /*private*/ static long regcache_misses;
+
+    /*
+     * Make the key of "regcache" for pattern "expr" with "re_flags": besides those,
+     * compiling depends on 'regexpengine', the 'l' and '\' flags in 'cpoptions',
+     * "reg_do_extmatch", which allows \z( or \z1 for syntax patterns,
+     * and on the previous substitute string when there is a '~'.
+     */
+    /*private*/ static String regcache_key(Bytes expr, int re_flags)
+    {
+        int len = strlen(expr);
+        Bytes tilde = (vim_strbyte(expr, (byte)'~') != null) ? reg_prev_sub : null;
+
+        char[] key = new char[4 + len + ((tilde != null) ? 1 + strlen(tilde) : 0)];
+        int n = 0;
+
+        key[n++] = (char)p_re[0];
+        key[n++] = (char)re_flags;
+        key[n++] = (char)reg_do_extmatch;
+        key[n++] = (char)((vim_strbyte(p_cpo[0], CPO_LITERAL) != null ? 1 : 0) + (vim_strbyte(p_cpo[0], CPO_BACKSL) != null ? 2 : 0));
+        for (int i = 0; i < len; i++)
+            key[n++] = (char)(expr.at(i) & 0xff);
+        if (tilde != null)
+        {
+            key[n++] = NUL;
+            for (int i = 0; tilde.at(i) != NUL; i++)
+                key[n++] = (char)(tilde.at(i) & 0xff);
+        }
+
+        return new String(key);
+    }
+
+    /*
+     * Compile a regular expression into internal code, or get it from "regcache".
+     * Returns the program, which must not be changed.
+     * Returns null for an error.
+     */
+    /*private*/ static regprog_C vim_regcomp(Bytes expr, int re_flags)
+    {
+        if (expr == null)
+            return vim_regcomp_nocache(expr, re_flags);
+
+        String key = regcache_key(expr, re_flags);
+        regprog_C prog = regcache.get(key);
+        if (prog != null)
+        {
+            regcache_hits++;
+            return prog;
+        }
+        regcache_misses++;
+
+        boolean save_did_emsg = did_emsg;
+        did_emsg = false;
+
+        prog = vim_regcomp_nocache(expr, re_flags);
+
+        /* Don't keep it when there was a message, it is to be given every time. */
+        if (prog != null && !did_emsg)
+        {
+            regcache.put(key, prog);
+            if (REGCACHE_MAX < regcache.size())
+            {
+                Iterator<String> it = regcache.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+        }
+
+        did_emsg |= save_did_emsg;
+        return prog;
+    }
+
+    /*
+     * Compile a regular expression into internal code.
+     * Returns the program in allocated memory.
+     * Returns null for an error.
+     */
+    /*private*/ static regprog_C vim_regcomp_nocache(Bytes expr_arg, int re_flags)
+    {
+        regprog_C prog = null;
+        Bytes expr = expr_arg;
+
+        regexp_engine = (int)p_re[0];
+
+        /* Check for prefix "\%#=", that sets the regexp engine. */
+        if (STRNCMP(expr, u8("\\%#="), 4) == 0)
+        {
+            int newengine = expr.at(4) - '0';
+
+            if (newengine == AUTOMATIC_ENGINE || newengine == BACKTRACKING_ENGINE || newengine == NFA_ENGINE || newengine == DFA_ENGINE)
+            {
+                regexp_engine = expr.at(4) - '0';
+                expr = expr.plus(5);
+            }
+            else
+            {
+                emsg(u8("E864: \\%#= can only be followed by 0, 1, 2, or 3. The automatic engine will be used."));
+                regexp_engine = AUTOMATIC_ENGINE;
+            }
+        }
+
+        bt_regengine.expr = expr;
+        nfa_regengine.expr = expr;
+
+        /*
+         * First try the NFA engine, unless backtracking was requested.
+         */
+        if (regexp_engine != BACKTRACKING_ENGINE)
+            prog = nfa_regengine.regcomp(expr, re_flags + (regexp_engine == AUTOMATIC_ENGINE ? RE_AUTO : 0));
+        else
+            prog = bt_regengine.regcomp(expr, re_flags);
+
+        /* Check for error compiling regexp with initial engine. */
+        if (prog == null)
+        {
+            /*
+             * If the NFA engine failed, try the backtracking engine.
+             * The NFA engine also fails for patterns that it can't handle well
+             * but are still valid patterns, thus a retry should work.
+             */
+            if (regexp_engine == AUTOMATIC_ENGINE)
+            {
+                regexp_engine = BACKTRACKING_ENGINE;
+                prog = bt_regengine.regcomp(expr, re_flags);
+            }
+        }
+
+        /* Add the DFA to the NFA, unless only the NFA was requested. */
+        if (prog != null && prog.engine == nfa_regengine && regexp_engine != NFA_ENGINE)
+            ((nfa_regprog_C)prog).dfa = dfa_regcomp((nfa_regprog_C)prog);
+
+        if (prog != null)
+        {
+            /* Store the info needed to call regcomp() again when
+             * the engine turns out to be very slow executing it. */
+            prog.re_engine = regexp_engine;
+            prog.re_flags  = re_flags;
+        }
+
+        return prog;
+    }
+
+    /*private*/ static void report_re_switch(Bytes pat)
+    {
+        if (0 < p_verbose[0])
+        {
+            verbose_enter();
+            msg_puts(u8("Switching to backtracking RE engine for pattern: "));
+            msg_puts(pat);
+            verbose_leave();
+        }
+    }
+
+    /*
+     * Match a regexp against a string.
+     * "rmp.regprog" is a compiled regexp as returned by vim_regcomp().
+     * Note: "rmp.regprog" may be freed and changed.
+     * Uses curbuf for line count and 'iskeyword'.
+     * When "nl" is true, consider a "\n" in "line" to be a line break.
+     *
+     * Return true if there is a match, false if not.
+     */
+    /*private*/ static boolean vim_regexec_both(regmatch_C rmp, Bytes line, int col, boolean nl)
+        /* line: string to match against */
+        /* col: column to start looking for match */
+    {
+        regexec_C rex = rex_get();
+
+        long result = rmp.regprog.engine.regexec_nl(rex, rmp, line, col, nl);
+
+        /* NFA engine aborted because it's very slow. */
         if (rmp.regprog.re_engine == AUTOMATIC_ENGINE && result == NFA_TOO_EXPENSIVE)
         {
             long save_p_re = p_re[0];
@@ -6689,11 +8091,12 @@ public class VimO
                 report_re_switch(pat);
                 rmp.regprog = vim_regcomp(pat, re_flags);
                 if (rmp.regprog != null)
-                    result = rmp.regprog.engine.regexec_nl(rmp, line, col, nl);
+                    result = rmp.regprog.engine.regexec_nl(rex, rmp, line, col, nl);
             }
             p_re[0] = save_p_re;
         }
 
+        rex_put(rex);
         return (0 < result);
     }
 
@@ -6747,7 +8150,9 @@ public class VimO
         /* col: column to start looking for match */
         /* tm: timeout limit or null */
     {
-        long result = rmp.regprog.engine.regexec_multi(rmp, win, buf, lnum, col, tm);
+        regexec_C rex = rex_get();
+
+        long result = rmp.regprog.engine.regexec_multi(rex, rmp, win, buf, lnum, col, tm);
 
         /* NFA engine aborted because it's very slow. */
         if (rmp.regprog.re_engine == AUTOMATIC_ENGINE && result == NFA_TOO_EXPENSIVE)
@@ -6763,11 +8168,12 @@ public class VimO
                 report_re_switch(pat);
                 rmp.regprog = vim_regcomp(pat, re_flags);
                 if (rmp.regprog != null)
-                    result = rmp.regprog.engine.regexec_multi(rmp, win, buf, lnum, col, tm);
+                    result = rmp.regprog.engine.regexec_multi(rex, rmp, win, buf, lnum, col, tm);
             }
             p_re[0] = save_p_re;
         }
 
+        rex_put(rex);
         return Math.max(0, result);
     }
 }
@@ -5,6 +5,9 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import jnr.ffi.LibraryLoader;
 import jnr.ffi.mapper.DataConverter;
@@ -482,6 +485,9 @@ public class VimP
         boolean save_called_emsg = called_emsg;
         boolean break_loop = false;
 
+        /* Searching wraps around at the end of the buffer, it must be complete. */
+        lazy_finish(buf);
+
         regmmatch_C regmatch = new regmmatch_C();
         if (search_regcomp(pat, RE_SEARCH, pat_use, (options & (SEARCH_HIS + SEARCH_KEEP)), regmatch) == false)
         {
@@ -4001,8 +4007,13 @@ public class VimP
     {
         memfile_C mfp = new memfile_C();
 
+        mfp.mf_fname = null;            /* no swap file yet */
+        mfp.mf_fd = -1;
+
+        mfp.mf_free_first = null;       /* free list is empty */
         mfp.mf_used_first = null;       /* used list is empty */
         mfp.mf_used_last = null;
+        mfp.mf_used_count = 0;
         mf_hash_init(mfp.mf_hash);
         mf_hash_init(mfp.mf_trans);
 
@@ -4015,6 +4026,18 @@ public class VimP
 
     /*private*/ static void mf_close(memfile_C mfp)
     {
+        mf_journal_close(mfp, true);
+
+        if (0 <= mfp.mf_fd)             /* the swap file was already unlinked when it was created */
+        {
+            libc.close(mfp.mf_fd);
+            mfp.mf_fd = -1;
+        }
+        mfp.mf_fname = null;
+
+        for (block_hdr_C hp = mfp.mf_used_first; hp != null; hp = hp.bh_next)
+            ml_free_block(hp.bh_data);
+
         mf_hash_free(mfp.mf_hash);
         mf_hash_free(mfp.mf_trans);     /* free hashtable and its items */
     }
@@ -4026,24 +4049,60 @@ public class VimP
      */
     /*private*/ static block_hdr_C mf_new(memfile_C mfp, boolean negative, Object data, int page_count)
     {
-        block_hdr_C hp = mf_alloc_bhdr(mfp, data, page_count);
+        /* Make room for the new block when too much memory is being used. */
+        mf_maybe_release(mfp, page_count);
+
+        block_hdr_C hp;
 
-        /* Use mf_block_min for a negative number, mf_block_max for a positive number. */
-        if (negative)
+        /*
+         * Decide on the number to use:
+         * If there is a free block, use its number.
+         * Otherwise use mf_block_min for a negative number, mf_block_max for a positive number.
+         */
+        block_hdr_C freep = mfp.mf_free_first;
+        if (!negative && freep != null && page_count <= freep.bh_page_count)
         {
-            hp.bh_bnum(mfp.mf_blocknr_min--);
-            mfp.mf_neg_count++;
+            /*
+             * If the block in the free list has more pages, take only the number
+             * of pages needed and allocate a new block_hdr_C with data.
+             *
+             * If the number of pages matches, use the block_hdr_C from the free list.
+             */
+            if (page_count < freep.bh_page_count)
+            {
+                hp = mf_alloc_bhdr(mfp, data, page_count);
+                hp.bh_bnum(freep.bh_bnum());
+                freep.bh_bnum(freep.bh_bnum() + page_count);
+                freep.bh_page_count -= page_count;
+            }
+            else
+            {
+                hp = mf_rem_free(mfp);
+                hp.bh_data = data;
+            }
         }
         else
         {
-            hp.bh_bnum(mfp.mf_blocknr_max);
-            mfp.mf_blocknr_max += page_count;
+            hp = mf_alloc_bhdr(mfp, data, page_count);
+
+            if (negative)
+            {
+                hp.bh_bnum(mfp.mf_blocknr_min--);
+                mfp.mf_neg_count++;
+            }
+            else
+            {
+                hp.bh_bnum(mfp.mf_blocknr_max);
+                mfp.mf_blocknr_max += page_count;
+            }
         }
 
         hp.bh_flags = BH_LOCKED | BH_DIRTY;     /* new block is always dirty */
         hp.bh_page_count = page_count;
         mf_ins_used(mfp, hp);
         mf_ins_hash(mfp, hp);
+        if (mfp.mf_journal != null)
+            mf_journal_mark(mfp, hp);
 
         return hp;
     }
@@ -4053,21 +4112,40 @@ public class VimP
      *
      * Note: The caller should first check a negative nr with mf_trans_del().
      */
-    /*private*/ static block_hdr_C mf_get(memfile_C mfp, long nr, int _page_count)
+    /*private*/ static block_hdr_C mf_get(memfile_C mfp, long nr, int page_count)
     {
         if (mfp.mf_blocknr_max <= nr || nr <= mfp.mf_blocknr_min)   /* doesn't exist */
             return null;
 
         block_hdr_C hp = mf_find_hash(mfp, nr);
-        if (hp == null)                                 /* not in the hash list */
-            return null;
+        if (hp == null)                                 /* not in the hash table */
+        {
+            if (nr < 0 || mfp.mf_fd < 0)                /* there is no way to get it */
+                return null;
 
-        mf_rem_used(mfp, hp);           /* remove from list, insert in front below */
-        mf_rem_hash(mfp, hp);
+            /* could check here if the block is in the free list */
+
+            /* Make room for the block when too much memory is being used. */
+            mf_maybe_release(mfp, page_count);
+
+            hp = mf_alloc_bhdr(mfp, null, page_count);
+            hp.bh_bnum(nr);
+            hp.bh_flags = 0;
+            hp.bh_page_count = page_count;
+            if (!mf_read(mfp, hp))                      /* cannot read the block! */
+                return null;
+        }
+        else
+        {
+            mf_rem_used(mfp, hp);       /* remove from list, insert in front below */
+            hp.bh_flags |= BH_LOCKED;
+            mf_ins_used(mfp, hp);       /* put in front of used list */
+            return hp;
+        }
 
         hp.bh_flags |= BH_LOCKED;
         mf_ins_used(mfp, hp);           /* put in front of used list */
-        mf_ins_hash(mfp, hp);           /* put in front of hash list */
+        mf_ins_hash(mfp, hp);           /* put in hash table */
 
         return hp;
     }
@@ -4088,6 +4166,8 @@ public class VimP
         if (dirty)
             flags |= BH_DIRTY;
         hp.bh_flags = flags;
+        if (dirty && mfp.mf_journal != null)
+            mf_journal_mark(mfp, hp);
         if (infile)
             mf_trans_add(mfp, hp);      /* may translate negative in positive nr */
     }
@@ -4097,10 +4177,17 @@ public class VimP
      */
     /*private*/ static void mf_free(memfile_C mfp, block_hdr_C hp)
     {
-        mf_rem_hash(mfp, hp);       /* get *hp out of the hash list */
+        mf_rem_hash(mfp, hp);       /* get *hp out of the hash table */
         mf_rem_used(mfp, hp);       /* get *hp out of the used list */
+        ml_free_block(hp.bh_data);
+        hp.bh_data = null;          /* free the memory */
+        hp.bh_flags &= ~BH_JOURNAL; /* no use journaling it */
+        if (mfp.mf_journal != null && mfp.mf_journal.jn_walked != null)
+            mf_journal_walked(mfp.mf_journal, hp.bh_bnum());   /* its number may be used again */
         if (hp.bh_bnum() < 0)
             mfp.mf_neg_count--;
+        else
+            mf_ins_free(mfp, hp);   /* put *hp in the free list */
     }
 
     /*
@@ -4108,7 +4195,7 @@ public class VimP
      */
     /*private*/ static void mf_ins_hash(memfile_C mfp, block_hdr_C hp)
     {
-        mf_hash_add_item(mfp.mf_hash, hp.bh_hashitem);
+        mf_hash_add_item(mfp.mf_hash, hp.bh_bnum(), hp);
     }
 
     /*
@@ -4116,17 +4203,15 @@ public class VimP
      */
     /*private*/ static void mf_rem_hash(memfile_C mfp, block_hdr_C hp)
     {
-        mf_hash_rem_item(mfp.mf_hash, hp.bh_hashitem);
+        mf_hash_rem_item(mfp.mf_hash, hp.bh_bnum());
     }
 
     /*
-     * look in hash lists of memfile *mfp for block header with number 'nr'
+     * look in hash table of memfile *mfp for block header with number 'nr'
      */
     /*private*/ static block_hdr_C mf_find_hash(memfile_C mfp, long nr)
     {
-        mf_hashitem_C mhi = mf_hash_find(mfp.mf_hash, nr);
-
-        return (mhi != null) ? (block_hdr_C)mhi.mhi_data : null;
+        return (block_hdr_C)mf_hash_find(mfp.mf_hash, nr);
     }
 
     /*
@@ -4141,6 +4226,11 @@ public class VimP
             mfp.mf_used_last = hp;
         else
             hp.bh_next.bh_prev = hp;
+        mfp.mf_used_count += hp.bh_page_count;
+        if (hp.bh_data instanceof data_block_C)
+            mfp.mf_data_count++;
+        else if (hp.bh_data instanceof ptr_block_C)
+            mfp.mf_ptr_count++;
     }
 
     /*
@@ -4156,6 +4246,175 @@ public class VimP
             mfp.mf_used_first = hp.bh_next;
         else
             hp.bh_prev.bh_next = hp.bh_next;
+        mfp.mf_used_count -= hp.bh_page_count;
+        if (hp.bh_data instanceof data_block_C)
+            --mfp.mf_data_count;
+        else if (hp.bh_data instanceof ptr_block_C)
+            --mfp.mf_ptr_count;
+    }
+
+    /*
+     * insert block *hp in front of the free list of memfile *mfp
+     */
+    /*private*/ static void mf_ins_free(memfile_C mfp, block_hdr_C hp)
+    {
+        hp.bh_next = mfp.mf_free_first;
+        mfp.mf_free_first = hp;
+    }
+
+    /*
+     * remove the first block from the free list of memfile *mfp
+     *
+     * Note: caller must check that mfp.mf_free_first is not null!
+     */
+    /*private*/ static block_hdr_C mf_rem_free(memfile_C mfp)
+    {
+        block_hdr_C hp = mfp.mf_free_first;
+        mfp.mf_free_first = hp.bh_next;
+        return hp;
+    }
+
+    /*
+     * Release blocks until "page_count" more pages fit in the memory
+     * allowed by 'maxmem' (in Kbyte, zero means there is no limit).
+     */
+    /*private*/ static void mf_maybe_release(memfile_C mfp, int page_count)
+    {
+        if (p_mm[0] <= 0)
+            return;
+
+        long used_count_max = p_mm[0] * 1024 / MEMFILE_PAGE_SIZE;
+        while (used_count_max < mfp.mf_used_count + page_count)
+            if (!mf_release(mfp))
+                break;
+    }
+
+    /*
+     * Release the least recently used block from the used list.
+     * It is written to the swap file first if it is dirty.
+     *
+     * Return true if a block was released, false if there are only locked blocks or writing failed.
+     */
+    /*private*/ static boolean mf_release(memfile_C mfp)
+    {
+        block_hdr_C hp;
+        for (hp = mfp.mf_used_last; hp != null; hp = hp.bh_prev)
+            if ((hp.bh_flags & BH_LOCKED) == 0)
+                break;
+        if (hp == null)         /* not a single one that can be released */
+            return false;
+
+        /*
+         * If the block is dirty, it must be written before it can be released.
+         * Also journal it, it can't be done later without reading it back.
+         */
+        if ((hp.bh_flags & BH_JOURNAL) != 0)
+            mf_journal_block(mfp, hp);
+        if ((hp.bh_flags & BH_DIRTY) != 0 && !mf_write(mfp, hp))
+            return false;
+
+        mf_rem_used(mfp, hp);
+        mf_rem_hash(mfp, hp);
+        ml_free_block(hp.bh_data);
+        hp.bh_data = null;
+
+        return true;
+    }
+
+    /*
+     * Create the swap file for memfile "mfp".
+     * It is unlinked right away: it only serves as virtual memory and vanishes with the file descriptor.
+     *
+     * Return false for failure, true otherwise.
+     */
+    /*private*/ static boolean mf_open_file(memfile_C mfp)
+    {
+        Bytes fname = new Bytes(MAXPATHL);
+
+        for (int tries = 0; tries < 100; tries++)
+        {
+            vim_snprintf(fname, MAXPATHL, u8("/tmp/vim%d_%d.swp"), libc.getpid(), ++mf_swap_count);
+            mfp.mf_fd = libC.open(fname, O_RDWR|O_CREAT|O_EXCL|O_NOFOLLOW, 0600);
+            if (0 <= mfp.mf_fd || libC.errno() != EEXIST)
+                break;
+        }
+        if (mfp.mf_fd < 0)
+        {
+            emsg2(u8("E303: Unable to open swap file for \"%s\", recovery impossible"), fname);
+            return false;
+        }
+
+        libC.unlink(fname);
+        mfp.mf_fname = STRDUP(fname);
+
+        int fdflags = libc.fcntl(mfp.mf_fd, F_GETFD);
+        if (0 <= fdflags && (fdflags & FD_CLOEXEC) == 0)
+            libc.fcntl(mfp.mf_fd, F_SETFD, fdflags | FD_CLOEXEC);
+
+        return true;
+    }
+
+    /*private*/ static int mf_swap_count;
+
+    /*
+     * Read a block from disk.
+     *
+     * Return false for failure, true otherwise.
+     */
+    /*private*/ static boolean mf_read(memfile_C mfp, block_hdr_C hp)
+    {
+        int size = hp.bh_page_count * MEMFILE_PAGE_SIZE;
+        long offset = hp.bh_bnum() * MEMFILE_PAGE_SIZE;
+
+        if (libc.lseek(mfp.mf_fd, offset, SEEK_SET) != offset)
+        {
+            emsg(u8("E294: Seek error in swap file read"));
+            return false;
+        }
+
+        Bytes page = new Bytes(size);
+        if (read_eintr(mfp.mf_fd, page, size) != size)
+        {
+            emsg(u8("E295: Read error in swap file"));
+            return false;
+        }
+
+        hp.bh_data = ml_unpack_block(page, hp.bh_page_count);
+        return (hp.bh_data != null);
+    }
+
+    /*
+     * Write a block to disk.
+     * A block with a negative number first gets a positive one through the trans lists.
+     *
+     * Return false for failure, true otherwise.
+     */
+    /*private*/ static boolean mf_write(memfile_C mfp, block_hdr_C hp)
+    {
+        if (mfp.mf_fd < 0 && !mf_open_file(mfp))       /* there is no swap file, cannot write */
+            return false;
+
+        if (hp.bh_bnum() < 0)
+            mf_trans_add(mfp, hp);          /* must assign a positive block number */
+
+        int size = hp.bh_page_count * MEMFILE_PAGE_SIZE;
+        long offset = hp.bh_bnum() * MEMFILE_PAGE_SIZE;
+
+        if (libc.lseek(mfp.mf_fd, offset, SEEK_SET) != offset)
+        {
+            emsg(u8("E296: Seek error in swap file write"));
+            return false;
+        }
+
+        Bytes page = ml_pack_block(hp.bh_data, size);
+        if (write_eintr(mfp.mf_fd, page, size) != size)
+        {
+            emsg(u8("E297: Write error in swap file"));
+            return false;
+        }
+
+        hp.bh_flags &= ~BH_DIRTY;
+        return true;
     }
 
     /*
@@ -4184,15 +4443,18 @@ public class VimP
 
             nr_trans_C np = new nr_trans_C();
 
-            np.nt_old_bnum(hp.bh_bnum());        /* adjust number */
+            np.nt_old_bnum = hp.bh_bnum();      /* adjust number */
             np.nt_new_bnum = new_bnum;
 
-            mf_rem_hash(mfp, hp);               /* remove from old hash list */
+            mf_rem_hash(mfp, hp);               /* remove with old number */
             hp.bh_bnum(new_bnum);
-            mf_ins_hash(mfp, hp);               /* insert in new hash list */
+            mf_ins_hash(mfp, hp);               /* insert with new number */
 
             /* Insert "np" into "mf_trans" hashtable with key "np.nt_old_bnum". */
-            mf_hash_add_item(mfp.mf_trans, np.nt_hashitem);
+            mf_hash_add_item(mfp.mf_trans, np.nt_old_bnum, np);
+
+            if (mfp.mf_journal != null)
+                mf_journal_trans(mfp, np.nt_old_bnum, new_bnum);
         }
     }
 
@@ -4203,8 +4465,7 @@ public class VimP
      */
     /*private*/ static long mf_trans_del(memfile_C mfp, long old_nr)
     {
-        mf_hashitem_C mhi = mf_hash_find(mfp.mf_trans, old_nr);
-        nr_trans_C np = (mhi != null) ? (nr_trans_C)mhi.mhi_data : null;
+        nr_trans_C np = (nr_trans_C)mf_hash_find(mfp.mf_trans, old_nr);
 
         if (np == null)             /* not found */
             return old_nr;
@@ -4212,196 +4473,591 @@ public class VimP
         mfp.mf_neg_count--;
         long new_bnum = np.nt_new_bnum;
 
-        /* remove entry from the trans list */
-        mf_hash_rem_item(mfp.mf_trans, np.nt_hashitem);
+        /* remove entry from the trans table */
+        mf_hash_rem_item(mfp.mf_trans, old_nr);
 
         return new_bnum;
     }
 
     /*
-     * Implementation of mf_hashtab_C follows.
+     * Implementation of the journal follows, see 'journal' and journal_C.
+     *
+     * The journal starts with JN_MAGIC and the name of the edited file, followed by records
+     * of JR_HEADER_SIZE bytes, each with a type, two numbers and the CRC32 of what follows:
+     *
+     * JR_BLOCK     block number, page count; followed by the block as ml_pack_block() makes it
+     * JR_TRANS     old negative block number, new positive number; see mf_trans_add()
+     *
+     * A block is journaled again each time it changed, the last record for a number counts.
+     * A record that was cut short or doesn't match its CRC ends the journal.
      */
+    /*private*/ static final Bytes JN_MAGIC = u8("VimJnl1");
 
-    /*
-     * The number of buckets in the hashtable is increased by a factor of MHT_GROWTH_FACTOR
-     * when the average number of items per bucket exceeds (2 ^ MHT_LOG_LOAD_FACTOR).
-     */
-    /*private*/ static final int MHT_LOG_LOAD_FACTOR = 6;
-    /*private*/ static final int MHT_GROWTH_FACTOR   = 2;   /* must be a power of two */
+    /*private*/ static final int
+        JR_BLOCK        = 1,
+        JR_TRANS        = 2;
 
-    /*
-     * Initialize an empty hash table.
-     */
-    /*private*/ static void mf_hash_init(mf_hashtab_C mht)
-    {
-        ZER0_mf_hashtab(mht);
-        mht.mht_buckets = ARRAY_mf_hashitem(MHT_INIT_SIZE);
-        mht.mht_mask = MHT_INIT_SIZE - 1;
-    }
+    /*private*/ static final int JR_HEADER_SIZE = 24;
 
-    /*
-     * Free the array of a hash table.  Does not free the items it contains!
-     * The hash table must not be used again without another mf_hash_init() call.
-     */
-    /*private*/ static void mf_hash_free(mf_hashtab_C mht)
-    {
-        mht.mht_buckets = null;
-    }
+    /*private*/ static final int JN_QUEUE_MAX = 1024;      /* records queued before the writer is waited for */
+    /*private*/ static final int JN_WALK_PAGES = 64;       /* pages of the tree journaled by one mf_journal_step() */
 
     /*
-     * Find "key" in hashtable "mht".
-     * Returns a pointer to a mf_hashitem_C or null if the item was not found.
+     * Return the name of the journal for file "ffname": "dir/name" -> "dir/.name.jnl".
+     * When "c" is not 'l' it replaces the last letter, for when the first name is in use.
      */
-    /*private*/ static mf_hashitem_C mf_hash_find(mf_hashtab_C mht, long key)
+    /*private*/ static Bytes mf_journal_name(Bytes ffname, int c)
     {
-        mf_hashitem_C mhi = mht.mht_buckets[(int)(key & mht.mht_mask)];
+        Bytes fname_buf = new Bytes(MAXPATHL);
+        if (resolve_symlink(ffname, fname_buf) == true)
+            ffname = fname_buf;
 
-        while (mhi != null && mhi.mhi_key != key)
-            mhi = mhi.mhi_next;
+        Bytes jname = STRNDUP(ffname, strlen(ffname) + 5);
 
-        return mhi;
+        Bytes p = gettail(jname);
+        BCOPY(p, 1, p, 0, strlen(p) + 1);
+        p.be(0, (byte)'.');
+        STRCAT(p, u8(".jnl"));
+        p.be(strlen(p) - 1, (byte)c);
+
+        return jname;
     }
 
     /*
-     * Add item "mhi" to hashtable "mht".
-     * "mhi" must not be null.
+     * Start journaling memfile "mfp" of the file "ffname".
+     * Picks a journal name that is not in use, unless "jname" is given (the one just recovered),
+     * which is then overwritten.
+     * The blocks of the tree are journaled a few at a time by mf_journal_step(), while nothing is typed;
+     * the ones that change are journaled after each command.
+     *
+     * Return false for failure, true otherwise.
      */
-    /*private*/ static void mf_hash_add_item(mf_hashtab_C mht, mf_hashitem_C mhi)
+    /*private*/ static boolean mf_journal_open(memfile_C mfp, Bytes ffname, Bytes jname)
     {
-        int i = (int)(mhi.mhi_key & mht.mht_mask);
+        int fd;
+
+        if (jname != null)
+            fd = libC.open(jname, O_WRONLY|O_CREAT|O_TRUNC|O_NOFOLLOW, 0600);
+        else
+        {
+            fd = -1;
+            for (int c = 'l'; c <= 'z'; c++)
+            {
+                jname = mf_journal_name(ffname, c);
+                fd = libC.open(jname, O_WRONLY|O_CREAT|O_EXCL|O_NOFOLLOW, 0600);
+                if (0 <= fd || libC.errno() != EEXIST)
+                    break;
+                if (c == 'l')
+                {
+                    vim_snprintf(ioBuff, IOSIZE, u8("Found the journal \"%s\" of an earlier session, see \":recover\""), jname);
+                    give_warning(ioBuff, true);
+                }
+            }
+        }
+        if (fd < 0)
+        {
+            emsg2(u8("E303: Unable to open journal \"%s\", recovery impossible"), jname);
+            return false;
+        }
 
-        mhi.mhi_next = mht.mht_buckets[i];
-        mhi.mhi_prev = null;
-        if (mhi.mhi_next != null)
-            mhi.mhi_next.mhi_prev = mhi;
-        mht.mht_buckets[i] = mhi;
+        int fdflags = libc.fcntl(fd, F_GETFD);
+        if (0 <= fdflags && (fdflags & FD_CLOEXEC) == 0)
+            libc.fcntl(fd, F_SETFD, fdflags | FD_CLOEXEC);
 
-        mht.mht_count++;
+        final journal_C jp = new journal_C();
+        jp.jn_fname = jname;
+        jp.jn_fd = fd;
+        jp.jn_pending = new block_hdr_C[64];
+        jp.jn_pending_count = 0;
+        jp.jn_queue = new LinkedBlockingQueue<Bytes>(JN_QUEUE_MAX);
+        jp.jn_thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                mf_journal_write(jp);
+            }
+        });
+        jp.jn_thread.setDaemon(true);
+        jp.jn_thread.start();
 
-        /*
-         * Grow hashtable when we have more than (2 ^ MHT_LOG_LOAD_FACTOR) items per bucket on average.
-         */
-        if (mht.mht_mask < (mht.mht_count >>> MHT_LOG_LOAD_FACTOR))
-            mf_hash_grow(mht);
+        mfp.mf_journal = jp;
+
+        int len = strlen(ffname);
+        Bytes header = new Bytes(JN_MAGIC.size() + len + 1);
+        BCOPY(header, 0, JN_MAGIC, 0, JN_MAGIC.size());
+        BCOPY(header, JN_MAGIC.size(), ffname, 0, len);
+        mf_journal_put(jp, header);
+
+        /* Nothing is pending yet: the tree is walked from the root block. */
+        for (block_hdr_C hp = mfp.mf_used_first; hp != null; hp = hp.bh_next)
+            hp.bh_flags &= ~BH_JOURNAL;
+        jp.jn_walk = new long[64];
+        jp.jn_walk_pages = new int[64];
+        jp.jn_walk_count = 0;
+        jp.jn_walked = new mf_hashtab_C();
+        mf_hash_init(jp.jn_walked);
+        mf_journal_push(jp, 1, 1);
+
+        return true;
     }
 
     /*
-     * Remove item "mhi" from hashtable "mht".
-     * "mhi" must not be null and must have been inserted into "mht".
+     * Add block "nr" of "page_count" pages to the blocks mf_journal_step() still has to journal.
      */
-    /*private*/ static void mf_hash_rem_item(mf_hashtab_C mht, mf_hashitem_C mhi)
+    /*private*/ static void mf_journal_push(journal_C jp, long nr, int page_count)
     {
-        if (mhi.mhi_prev == null)
-            mht.mht_buckets[(int)(mhi.mhi_key & mht.mht_mask)] = mhi.mhi_next;
-        else
-            mhi.mhi_prev.mhi_next = mhi.mhi_next;
-
-        if (mhi.mhi_next != null)
-            mhi.mhi_next.mhi_prev = mhi.mhi_prev;
-
-        mht.mht_count--;
+        if (mf_hash_find(jp.jn_walked, nr) != null)
+            return;
 
-        /* We could shrink the table here, but it typically takes little memory, so why bother? */
+        if (jp.jn_walk_count == jp.jn_walk.length)
+        {
+            jp.jn_walk = Arrays.copyOf(jp.jn_walk, jp.jn_walk_count * 2);
+            jp.jn_walk_pages = Arrays.copyOf(jp.jn_walk_pages, jp.jn_walk_count * 2);
+        }
+        jp.jn_walk[jp.jn_walk_count] = nr;
+        jp.jn_walk_pages[jp.jn_walk_count++] = page_count;
     }
 
     /*
-     * Increase number of buckets in the hashtable by MHT_GROWTH_FACTOR and rehash items.
+     * Remember that block "nr" was journaled or freed, the walk doesn't need to read it.
      */
-    /*private*/ static void mf_hash_grow(mf_hashtab_C mht)
+    /*private*/ static void mf_journal_walked(journal_C jp, long nr)
     {
-        mf_hashitem_C[] buckets = new mf_hashitem_C[(mht.mht_mask + 1) * MHT_GROWTH_FACTOR];
+        if (mf_hash_find(jp.jn_walked, nr) == null)
+            mf_hash_add_item(jp.jn_walked, nr, jp);
+    }
 
-        int shift = 0;
-        while ((mht.mht_mask >>> shift) != 0)
-            shift++;
+    /*
+     * Journal about JN_WALK_PAGES pages of the tree that were not journaled yet.
+     * Blocks that are not in memory are read from the swap file.
+     * Each time a pointer block is journaled while walking, also by mf_journal_sync(), the blocks it points to
+     * are added to the walk, thus blocks that moved to another pointer block are not missed.
+     * A block that is going to be journaled anyway is skipped, a freed one can't be read.
+     *
+     * Return true when there is more to do.
+     */
+    /*private*/ static boolean mf_journal_step(memfile_C mfp)
+    {
+        journal_C jp = mfp.mf_journal;
 
-        for (int i = 0; i <= mht.mht_mask; i++)
+        for (int pages = 0; pages < JN_WALK_PAGES && jp.jn_walk_count != 0; )
         {
-            /*
-             * Traverse the items in the i-th original bucket and move them into MHT_GROWTH_FACTOR new buckets,
-             * preserving their relative order within each new bucket.  Preserving the order is important
-             * because mf_get() tries to keep most recently used items at the front of each bucket.
-             *
-             * Here we strongly rely on the fact the hashes are computed modulo a power of two.
-             */
-            mf_hashitem_C[] tails = new mf_hashitem_C[MHT_GROWTH_FACTOR];
+            long nr = jp.jn_walk[--jp.jn_walk_count];
+            int page_count = jp.jn_walk_pages[jp.jn_walk_count];
 
-            for (mf_hashitem_C mhi = mht.mht_buckets[i]; mhi != null; mhi = mhi.mhi_next)
+            if (nr < 0)
             {
-                int j = (int)((mhi.mhi_key >>> shift) & (MHT_GROWTH_FACTOR - 1));
-                if (tails[j] == null)
+                nr_trans_C np = (nr_trans_C)mf_hash_find(mfp.mf_trans, nr);
+                if (np != null)
                 {
-                    buckets[i + (j << shift)] = mhi;
-                    tails[j] = mhi;
-                    mhi.mhi_prev = null;
+                    mf_journal_trans(mfp, np.nt_old_bnum, np.nt_new_bnum);
+                    nr = np.nt_new_bnum;
                 }
-                else
+            }
+            if (mf_hash_find(jp.jn_walked, nr) != null || mfp.mf_blocknr_max <= nr || nr <= mfp.mf_blocknr_min)
+                continue;
+
+            block_hdr_C hp = mf_find_hash(mfp, nr);
+            if (hp != null)
+            {
+                if ((hp.bh_flags & BH_JOURNAL) == 0)
+                    mf_journal_block(mfp, hp);
+            }
+            else if (0 < nr && 0 <= mfp.mf_fd)
+            {
+                hp = mf_alloc_bhdr(mfp, null, page_count);
+                hp.bh_bnum(nr);
+                if (mf_read(mfp, hp))
                 {
-                    tails[j].mhi_next = mhi;
-                    mhi.mhi_prev = tails[j];
-                    tails[j] = mhi;
+                    mf_journal_block(mfp, hp);
+                    ml_free_block(hp.bh_data);
                 }
+                hp.bh_data = null;
             }
+            else
+                continue;
 
-            for (int j = 0; j < MHT_GROWTH_FACTOR; j++)
-                if (tails[j] != null)
-                    tails[j].mhi_next = null;
+            pages += page_count;
         }
 
-        mht.mht_buckets = buckets;
-        mht.mht_mask = (mht.mht_mask + 1) * MHT_GROWTH_FACTOR - 1;
-    }
-
-    /*
-     * memline.c: Contains the functions for appending, deleting and changing the
-     * text lines.  The memfile functions are used to store the information in
-     * blocks of memory, backed up by a file.  The structure of the information is
-     * a tree.  The root of the tree is a pointer block.  The leaves of the tree
-     * are data blocks.  In between may be several layers of pointer blocks,
-     * forming branches.
-     *
-     * Three types of blocks are used:
-     * - Block nr 0 contains information for recovery.
-     * - Pointer blocks contain list of pointers to other blocks.
-     * - Data blocks contain the actual text.
-     *
-     * Block nr 0 contains the block0 structure (see below).
-     *
-     * Block nr 1 is the first pointer block.  It is the root of the tree.
-     * Other pointer blocks are branches.
-     *
-     *  If a line is too big to fit in a single page, the block containing that
-     *  line is made big enough to hold the line.  It may span several pages.
-     *  Otherwise all blocks are one page.
-     *
-     *  A data block that was filled when starting to edit a file and was not
-     *  changed since then, can have a negative block number.  This means that it
-     *  has not yet been assigned a place in the file.  When recovering, the lines
-     *  in this data block can be read from the original file.  When the block is
-     *  changed (lines appended/deleted/changed) or when it is flushed it gets a
-     *  positive number.  Use mf_trans_del() to get the new number, before calling
-     *  mf_get().
-     */
+        if (jp.jn_walk_count == 0)
+        {
+            /* The whole tree was journaled. */
+            jp.jn_walk = null;
+            jp.jn_walk_pages = null;
+            mf_hash_free(jp.jn_walked);
+            jp.jn_walked = null;
+            return false;
+        }
 
-    /*private*/ static final short
-        B0_ID   = ('b' << 8) + '0',             /* block 0 id */
-        DATA_ID = ('d' << 8) + 'a',             /* data block id */
-        PTR_ID  = ('p' << 8) + 't';             /* pointer block id */
+        return true;
+    }
 
     /*
-     * Block zero holds all info about the swap file.
+     * Stop journaling memfile "mfp".  The writer finishes writing what was queued.
+     * When "del" is true the journal is deleted, otherwise wait for the writer to sync it.
      */
-    /*private*/ static final class zero_block_C
+    /*private*/ static void mf_journal_close(memfile_C mfp, boolean del)
     {
-        short       b0_id;              /* ID for block 0: B0_ID */
+        journal_C jp = mfp.mf_journal;
+        if (jp == null)
+            return;
 
-        /*private*/ zero_block_C()
+        mfp.mf_journal = null;
+        for (block_hdr_C hp = mfp.mf_used_first; hp != null; hp = hp.bh_next)
+            hp.bh_flags &= ~BH_JOURNAL;
+
+        if (del)
         {
-            b0_id = B0_ID;
+            jp.jn_queue.clear();
+            libC.unlink(jp.jn_fname);
         }
-    }
+        mf_journal_put(jp, new Bytes(0));
 
-    /*
+        if (!del)
+        {
+            try
+            {
+                jp.jn_thread.join(5000L);
+            }
+            catch (InterruptedException _e)
+            {
+            }
+        }
+    }
+
+    /*
+     * Remember that block "hp" changed, it is journaled with the next mf_journal_sync().
+     */
+    /*private*/ static void mf_journal_mark(memfile_C mfp, block_hdr_C hp)
+    {
+        journal_C jp = mfp.mf_journal;
+
+        if ((hp.bh_flags & BH_JOURNAL) == 0)
+        {
+            hp.bh_flags |= BH_JOURNAL;
+            if (jp.jn_pending_count == jp.jn_pending.length)
+                jp.jn_pending = Arrays.copyOf(jp.jn_pending, jp.jn_pending_count * 2);
+            jp.jn_pending[jp.jn_pending_count++] = hp;
+        }
+    }
+
+    /*
+     * Queue block "hp" for the journal writer.
+     */
+    /*private*/ static void mf_journal_block(memfile_C mfp, block_hdr_C hp)
+    {
+        int size = hp.bh_page_count * MEMFILE_PAGE_SIZE;
+        Bytes rec = new Bytes(JR_HEADER_SIZE + size);
+
+        Bytes page = ml_pack_block(hp.bh_data, size);
+        BCOPY(rec, JR_HEADER_SIZE, page, 0, size);
+
+        CRC32 crc = new CRC32();
+        crc.update(page.array, page.index, size);
+
+        ByteBuffer bb = rec.buf();
+        bb.putInt(0, JR_BLOCK);
+        bb.putLong(4, hp.bh_bnum());
+        bb.putLong(12, hp.bh_page_count);
+        bb.putInt(20, (int)crc.getValue());
+
+        journal_C jp = mfp.mf_journal;
+        mf_journal_put(jp, rec);
+        hp.bh_flags &= ~BH_JOURNAL;
+
+        /* While walking the tree, what this block points to may not have been journaled yet. */
+        if (jp.jn_walked != null)
+        {
+            mf_journal_walked(jp, hp.bh_bnum());
+            if (hp.bh_data instanceof ptr_block_C)
+            {
+                ptr_block_C pp = (ptr_block_C)hp.bh_data;
+                for (int i = 0; i < pp.pb_count; i++)
+                    mf_journal_push(jp, pp.pb_pointer[i].pe_bnum, pp.pb_pointer[i].pe_page_count);
+            }
+        }
+    }
+
+    /*
+     * Queue the translation of block number "old_nr" to "new_nr" for the journal writer.
+     */
+    /*private*/ static void mf_journal_trans(memfile_C mfp, long old_nr, long new_nr)
+    {
+        Bytes rec = new Bytes(JR_HEADER_SIZE);
+
+        ByteBuffer bb = rec.buf();
+        bb.putInt(0, JR_TRANS);
+        bb.putLong(4, old_nr);
+        bb.putLong(12, new_nr);
+        bb.putInt(20, 0);
+
+        mf_journal_put(mfp.mf_journal, rec);
+    }
+
+    /*
+     * Queue record "rec" for the writer of "jp".
+     * When JN_QUEUE_MAX records are waiting, wait for the writer to catch up;
+     * thus the records don't pile up in memory when the disk is slow.
+     */
+    /*private*/ static void mf_journal_put(journal_C jp, Bytes rec)
+    {
+        for ( ; ; )
+        {
+            try
+            {
+                if (jp.jn_queue.offer(rec, 1000L, TimeUnit.MILLISECONDS))
+                    return;
+            }
+            catch (InterruptedException _e)
+            {
+            }
+            if (!jp.jn_thread.isAlive())        /* the writer is gone, can't wait for it */
+            {
+                jp.jn_error = true;
+                return;
+            }
+        }
+    }
+
+    /*
+     * Queue the blocks that changed since the last time, except locked ones.
+     */
+    /*private*/ static void mf_journal_sync(memfile_C mfp)
+    {
+        journal_C jp = mfp.mf_journal;
+
+        int n = 0;
+        for (int i = 0; i < jp.jn_pending_count; i++)
+        {
+            block_hdr_C hp = jp.jn_pending[i];
+            if ((hp.bh_flags & BH_JOURNAL) == 0)
+                continue;
+            if ((hp.bh_flags & BH_LOCKED) != 0)
+                jp.jn_pending[n++] = hp;
+            else
+                mf_journal_block(mfp, hp);
+        }
+        Arrays.fill(jp.jn_pending, n, jp.jn_pending_count, null);
+        jp.jn_pending_count = n;
+    }
+
+    /*
+     * The writer thread: write the queued records, syncing the file once for all that were waiting.
+     * Only uses "jp", doesn't touch anything else.
+     */
+    /*private*/ static void mf_journal_write(journal_C jp)
+    {
+        for (boolean stop = false; !stop; )
+        {
+            Bytes rec;
+            try
+            {
+                rec = jp.jn_queue.take();
+            }
+            catch (InterruptedException _e)
+            {
+                continue;
+            }
+
+            for ( ; rec != null; rec = jp.jn_queue.poll())
+            {
+                int len = rec.size();
+                if (len == 0)
+                {
+                    stop = true;
+                    break;
+                }
+                if (!jp.jn_error && write_eintr(jp.jn_fd, rec, len) != len)
+                    jp.jn_error = true;
+            }
+
+            if (!jp.jn_error && libc.fsync(jp.jn_fd) != 0)
+                jp.jn_error = true;
+        }
+
+        libc.close(jp.jn_fd);
+    }
+
+    /*
+     * Implementation of mf_hashtab_C follows.
+     */
+
+    /*
+     * The number of slots in the hashtable is doubled when more than (1 / 2 ^ MHT_LOG_LOAD_FACTOR)
+     * of them are in use, which keeps the runs of used slots to probe short.
+     */
+    /*private*/ static final int MHT_LOG_LOAD_FACTOR = 1;
+
+    /*
+     * Initialize an empty hash table.
+     */
+    /*private*/ static void mf_hash_init(mf_hashtab_C mht)
+    {
+        ZER0_mf_hashtab(mht);
+        mht.mht_keys = new long[MHT_INIT_SIZE];
+        mht.mht_items = new Object[MHT_INIT_SIZE];
+        mht.mht_mask = MHT_INIT_SIZE - 1;
+        mht.mht_shift = 64 - Integer.numberOfTrailingZeros(MHT_INIT_SIZE);
+    }
+
+    /*
+     * Free the arrays of a hash table.  Does not free the items it contains!
+     * The hash table must not be used again without another mf_hash_init() call.
+     */
+    /*private*/ static void mf_hash_free(mf_hashtab_C mht)
+    {
+        mht.mht_keys = null;
+        mht.mht_items = null;
+    }
+
+    /*
+     * Block numbers are mostly consecutive, which would make long runs of used slots
+     * when taken modulo the size.  Multiplying by 2^64 / phi spreads them out.
+     */
+    /*private*/ static int mf_hash_slot(mf_hashtab_C mht, long key)
+    {
+        return (int)((key * 0x9e3779b97f4a7c15L) >>> mht.mht_shift);
+    }
+
+    /*
+     * Find "key" in hashtable "mht".
+     * Returns the item or null if the item was not found.
+     */
+    /*private*/ static Object mf_hash_find(mf_hashtab_C mht, long key)
+    {
+        for (int i = mf_hash_slot(mht, key); mht.mht_items[i] != null; i = (i + 1) & mht.mht_mask)
+            if (mht.mht_keys[i] == key)
+                return mht.mht_items[i];
+
+        return null;
+    }
+
+    /*
+     * Add "item" with "key" to hashtable "mht".
+     * "item" must not be null and "key" must not be in "mht" yet.
+     */
+    /*private*/ static void mf_hash_add_item(mf_hashtab_C mht, long key, Object item)
+    {
+        int i = mf_hash_slot(mht, key);
+        while (mht.mht_items[i] != null)
+            i = (i + 1) & mht.mht_mask;
+
+        mht.mht_keys[i] = key;
+        mht.mht_items[i] = item;
+
+        mht.mht_count++;
+
+        if (mht.mht_mask < (mht.mht_count << MHT_LOG_LOAD_FACTOR))
+            mf_hash_grow(mht);
+    }
+
+    /*
+     * Remove the item with "key" from hashtable "mht".
+     * Items further in the same run of used slots are moved back when they may go in the freed slot,
+     * so that no markers for removed items are needed.
+     */
+    /*private*/ static void mf_hash_rem_item(mf_hashtab_C mht, long key)
+    {
+        int i = mf_hash_slot(mht, key);
+        while (mht.mht_items[i] != null && mht.mht_keys[i] != key)
+            i = (i + 1) & mht.mht_mask;
+        if (mht.mht_items[i] == null)       /* not there */
+            return;
+
+        for (int j = (i + 1) & mht.mht_mask; mht.mht_items[j] != null; j = (j + 1) & mht.mht_mask)
+        {
+            /* The item in slot "j" can move to slot "i" when its own slot is not after "i". */
+            int k = mf_hash_slot(mht, mht.mht_keys[j]);
+            if (((j - i) & mht.mht_mask) <= ((j - k) & mht.mht_mask))
+            {
+                mht.mht_keys[i] = mht.mht_keys[j];
+                mht.mht_items[i] = mht.mht_items[j];
+                i = j;
+            }
+        }
+        mht.mht_items[i] = null;
+
+        mht.mht_count--;
+
+        /* We could shrink the table here, but it typically takes little memory, so why bother? */
+    }
+
+    /*
+     * Double the number of slots in the hashtable and reinsert the items.
+     */
+    /*private*/ static void mf_hash_grow(mf_hashtab_C mht)
+    {
+        long[] keys = mht.mht_keys;
+        Object[] items = mht.mht_items;
+
+        int size = (mht.mht_mask + 1) * 2;
+        mht.mht_keys = new long[size];
+        mht.mht_items = new Object[size];
+        mht.mht_mask = size - 1;
+        mht.mht_shift--;
+
+        for (int i = 0; i < items.length; i++)
+            if (items[i] != null)
+            {
+                int j = mf_hash_slot(mht, keys[i]);
+                while (mht.mht_items[j] != null)
+                    j = (j + 1) & mht.mht_mask;
+                mht.mht_keys[j] = keys[i];
+                mht.mht_items[j] = items[i];
+            }
+    }
+
+    /*
+     * memline.c: Contains the functions for appending, deleting and changing the
+     * text lines.  The memfile functions are used to store the information in
+     * blocks of memory, backed up by a file.  The structure of the information is
+     * a tree.  The root of the tree is a pointer block.  The leaves of the tree
+     * are data blocks.  In between may be several layers of pointer blocks,
+     * forming branches.
+     *
+     * Three types of blocks are used:
+     * - Block nr 0 contains information for recovery.
+     * - Pointer blocks contain list of pointers to other blocks.
+     * - Data blocks contain the actual text.
+     *
+     * Block nr 0 contains the block0 structure (see below).
+     *
+     * Block nr 1 is the first pointer block.  It is the root of the tree.
+     * Other pointer blocks are branches.
+     *
+     *  If a line is too big to fit in a single page, the block containing that
+     *  line is made big enough to hold the line.  It may span several pages.
+     *  Otherwise all blocks are one page.
+     *
+     *  A data block that was filled when starting to edit a file and was not
+     *  changed since then, can have a negative block number.  This means that it
+     *  has not yet been assigned a place in the file.  When recovering, the lines
+     *  in this data block can be read from the original file.  When the block is
+     *  changed (lines appended/deleted/changed) or when it is flushed it gets a
+     *  positive number.  Use mf_trans_del() to get the new number, before calling
+     *  mf_get().
+     */
+
+    /*private*/ static final short
+        B0_ID   = ('b' << 8) + '0',             /* block 0 id */
+        DATA_ID = ('d' << 8) + 'a',             /* data block id */
+        PTR_ID  = ('p' << 8) + 't';             /* pointer block id */
+
+    /*
+     * Block zero holds all info about the swap file.
+     */
+    /*private*/ static final class zero_block_C
+    {
+        short       b0_id;              /* ID for block 0: B0_ID */
+
+        /*private*/ zero_block_C()
+        {
+            b0_id = B0_ID;
+        }
+    }
+
+    /*
      * Pointer to a block, used in a pointer block.
      */
     /*private*/ static final class ptr_entry_C
@@ -4450,11 +5106,18 @@ public class VimP
         {
             pb_id = PTR_ID;
             pb_count = 0;
-            pb_count_max = MEMFILE_PAGE_SIZE / 8;
+            pb_count_max = (MEMFILE_PAGE_SIZE - PB_HEADER_SIZE) / PE_SIZE;
             pb_pointer = ARRAY_ptr_entry(pb_count_max);
         }
     }
 
+    /*
+     * Sizes used when a pointer block is written to the swap file:
+     * pb_id (padded to 4 bytes) and pb_count, then pe_bnum, pe_line_count and pe_page_count for each entry.
+     */
+    /*private*/ static final int PB_HEADER_SIZE  = 8;
+    /*private*/ static final int PE_SIZE         = 20;
+
     /*private*/ static void COPY_ptr_block(ptr_block_C pb1, ptr_block_C pb0)
     {
         pb1.pb_id = pb0.pb_id;
@@ -4480,43 +5143,247 @@ public class VimP
         int[]       db_index;           /* index for start of line (*union* db_text)
                                          * followed by empty space upto db_txt_start */
         Bytes       db_text;            /* followed by the text in the lines until end of page */
+        long        db_slab;            /* offset of index and text in the slabs, or -1 when
+                                         * they are in db_index and db_text, see 'offheap' */
 
         /*private*/ data_block_C(int page_count)
         {
             db_id = DATA_ID;
-            db_free = db_txt_start = db_txt_end = page_count * MEMFILE_PAGE_SIZE;
+            db_txt_start = db_txt_end = page_count * MEMFILE_PAGE_SIZE;
+            db_free = db_txt_start - DB_HEADER_SIZE;    /* keep room for the header in the swap file */
             db_line_count = 0;
-            db_index = new int[page_count * MEMFILE_PAGE_SIZE / INDEX_SIZE];   /* sic! */
-            db_text = new Bytes(page_count * MEMFILE_PAGE_SIZE);   /* sic! */
+            db_slab = p_ofh[0] ? slab_alloc(page_count) : -1;
+            if (db_slab < 0)
+            {
+                db_index = new int[page_count * MEMFILE_PAGE_SIZE / INDEX_SIZE];   /* sic! */
+                db_text = new Bytes(page_count * MEMFILE_PAGE_SIZE);   /* sic! */
+            }
+        }
+
+        /*private*/ int db_index(int i)
+        {
+            if (db_slab < 0)
+                return db_index[i];
+
+            return slab_mem(db_slab).getInt(slab_off(db_slab) + DB_HEADER_SIZE + i * INDEX_SIZE);
+        }
+
+        /*private*/ void db_index(int i, int index)
+        {
+            if (db_slab < 0)
+                db_index[i] = index;
+            else
+                slab_mem(db_slab).putInt(slab_off(db_slab) + DB_HEADER_SIZE + i * INDEX_SIZE, index);
+        }
+
+        /*
+         * Copy "len" bytes of text at "off" into "to".
+         */
+        /*private*/ void db_text_get(int off, Bytes to, int len)
+        {
+            if (db_slab < 0)
+                BCOPY(to, 0, db_text, off, len);
+            else
+                slab_mem(db_slab).get(slab_off(db_slab) + off, to.array, to.index, len);
+        }
+
+        /*
+         * Copy "len" bytes from "from" into the text at "off".
+         */
+        /*private*/ void db_text_put(int off, Bytes from, int len)
+        {
+            if (db_slab < 0)
+                BCOPY(db_text, off, from, 0, len);
+            else
+                slab_mem(db_slab).put(slab_off(db_slab) + off, from.array, from.index, len);
         }
     }
 
     /*
-     * The low bits of db_index hold the actual index.
-     * The topmost bit is used for the global command to be able to mark a line.
-     * This method is not clean, but otherwise there would be at least one extra byte used for each line.
-     * The mark has to be in this place to keep it with the correct line
-     * when other lines are inserted or deleted.
+     * Copy "len" bytes of text from block "from" to block "to", which may be the same block.
      */
-    /*private*/ static final int INDEX_SIZE      = 4;     /* size of one db_index entry */
-
-    /*private*/ static final int DB_MARKED       = (1 << ((INDEX_SIZE * 8) - 1));
-    /*private*/ static final int DB_INDEX_MASK   = ~DB_MARKED;
+    /*private*/ static void db_text_copy(data_block_C to, int to_off, data_block_C from, int from_off, int len)
+    {
+        if (to.db_slab < 0 && from.db_slab < 0)
+            BCOPY(to.db_text, to_off, from.db_text, from_off, len);
+        else
+        {
+            if (db_tmp.size() < len)
+                db_tmp = new Bytes(len);
+            from.db_text_get(from_off, db_tmp, len);
+            to.db_text_put(to_off, db_tmp, len);
+        }
+    }
 
-    /*private*/ static final int STACK_INCR      = 5;       /* nr of entries added to ml_stack at a time */
+    /*private*/ static Bytes db_tmp = new Bytes(MEMFILE_PAGE_SIZE);
 
     /*
-     * The line number where the first mark may be is remembered.
-     * If it is 0 there are no marks at all.
-     * (always used for the current buffer only, no buffer change possible while executing a global command).
+     * Give the memory of a data block that is no longer used back to the slabs.
      */
-    /*private*/ static long lowest_marked;
+    /*private*/ static void db_release(data_block_C dp)
+    {
+        if (0 <= dp.db_slab)
+        {
+            slab_release(dp.db_slab, dp.db_txt_end / MEMFILE_PAGE_SIZE);
+            dp.db_slab = -1;
+        }
+    }
 
     /*
-     * arguments for ml_find_line()
+     * With 'offheap' set, the index and the text of new data blocks are kept outside of
+     * the Java heap, so that the garbage collector does not have to go over them.
+     * They are in slabs of SLAB_PAGES pages obtained with mmap(), laid out as in the
+     * swap file: the index entries after the header, the text at the end of the block.
+     * A data block only remembers the offset of its pages in the slabs.
+     * A block with more pages than fit in a slab is kept on the heap.
      */
-    /*private*/ static final int ML_DELETE       = 0x11;        /* delete line */
-    /*private*/ static final int ML_INSERT       = 0x12;        /* insert line */
+    /*private*/ static final int SLAB_PAGES      = 256;
+    /*private*/ static final long SLAB_SIZE      = SLAB_PAGES * MEMFILE_PAGE_SIZE;
+
+    /*private*/ static Pointer[]    slab_mems = new Pointer[0];    /* the slabs, null when unmapped */
+    /*private*/ static long[][]     slab_used = new long[0][];     /* one bit for each page in use */
+    /*private*/ static int[]        slab_avail = new int[0];       /* number of free pages in each slab */
+    /*private*/ static int          slab_last;                     /* slab last allocated from */
+
+    /*private*/ static Pointer slab_mem(long slab)
+    {
+        return slab_mems[(int)(slab / SLAB_SIZE)];
+    }
+
+    /*private*/ static long slab_off(long slab)
+    {
+        return slab % SLAB_SIZE;
+    }
+
+    /*
+     * Allocate "page_count" pages in the slabs.
+     * Return the offset of the first page, -1 when the block must be kept on the heap.
+     */
+    /*private*/ static long slab_alloc(int page_count)
+    {
+        if (SLAB_PAGES < page_count)
+            return -1;
+
+        int n = slab_mems.length;
+        for (int i = 0; i < n; i++)
+        {
+            int s = (slab_last + i) % n;
+            if (slab_mems[s] != null && page_count <= slab_avail[s])
+            {
+                int page = slab_find(slab_used[s], page_count);
+                if (0 <= page)
+                {
+                    slab_mark(s, page, page_count, true);
+                    slab_last = s;
+                    return s * SLAB_SIZE + page * MEMFILE_PAGE_SIZE;
+                }
+            }
+        }
+
+        Pointer mem = libc.mmap(null, SLAB_SIZE, PROT_READ|PROT_WRITE, MAP_PRIVATE|MAP_ANONYMOUS, -1, 0L);
+        if (mem == null || mem.address() == MAP_FAILED)
+            return -1;
+
+        int s;
+        for (s = 0; s < n; s++)                     /* reuse the slot of an unmapped slab */
+            if (slab_mems[s] == null)
+                break;
+        if (s == n)
+        {
+            slab_mems = Arrays.copyOf(slab_mems, n * 2 + 1);
+            slab_used = Arrays.copyOf(slab_used, n * 2 + 1);
+            slab_avail = Arrays.copyOf(slab_avail, n * 2 + 1);
+        }
+        slab_mems[s] = mem;
+        slab_used[s] = new long[SLAB_PAGES / 64];
+        slab_avail[s] = SLAB_PAGES;
+
+        slab_mark(s, 0, page_count, true);
+        slab_last = s;
+        return s * SLAB_SIZE;
+    }
+
+    /*
+     * Find "count" free pages in a row in slab bitmap "used".
+     * Return the first page, -1 if there is no such place.
+     */
+    /*private*/ static int slab_find(long[] used, int count)
+    {
+        for (int page = 0, run = 0; page < SLAB_PAGES; page++)
+        {
+            if ((page & 63) == 0 && used[page >>> 6] == -1L)
+            {
+                page += 63;                         /* all 64 pages in use */
+                run = 0;
+            }
+            else if ((used[page >>> 6] & (1L << page)) != 0)
+                run = 0;
+            else if (++run == count)
+                return page - count + 1;
+        }
+        return -1;
+    }
+
+    /*private*/ static void slab_mark(int s, int page, int count, boolean inuse)
+    {
+        for (int i = page; i < page + count; i++)
+            if (inuse)
+                slab_used[s][i >>> 6] |= (1L << i);
+            else
+                slab_used[s][i >>> 6] &= ~(1L << i);
+        slab_avail[s] += inuse ? -count : count;
+    }
+
+    /*
+     * Free the "page_count" pages at offset "slab".
+     * A slab without used pages is unmapped, unless it is the one last allocated from.
+     */
+    /*private*/ static void slab_release(long slab, int page_count)
+    {
+        int s = (int)(slab / SLAB_SIZE);
+
+        slab_mark(s, (int)(slab_off(slab) / MEMFILE_PAGE_SIZE), page_count, false);
+        if (slab_avail[s] == SLAB_PAGES && s != slab_last)
+        {
+            libc.munmap(slab_mems[s], SLAB_SIZE);
+            slab_mems[s] = null;
+            slab_used[s] = null;
+        }
+    }
+
+    /*
+     * The low bits of db_index hold the actual index.
+     * The topmost bit is used for the global command to be able to mark a line.
+     * This method is not clean, but otherwise there would be at least one extra byte used for each line.
+     * The mark has to be in this place to keep it with the correct line
+     * when other lines are inserted or deleted.
+     */
+    /*private*/ static final int INDEX_SIZE      = 4;     /* size of one db_index entry */
+
+    /*
+     * Size of the data block header in the swap file:
+     * db_id (padded to 4 bytes), db_free, db_txt_start, db_txt_end and db_line_count.
+     * The db_index entries follow, the text is at the same offset as in db_text.
+     */
+    /*private*/ static final int DB_HEADER_SIZE  = 20;
+
+    /*private*/ static final int DB_MARKED       = (1 << ((INDEX_SIZE * 8) - 1));
+    /*private*/ static final int DB_INDEX_MASK   = ~DB_MARKED;
+
+    /*private*/ static final int STACK_INCR      = 5;       /* nr of entries added to ml_stack at a time */
+
+    /*
+     * The line number where the first mark may be is remembered.
+     * If it is 0 there are no marks at all.
+     * (always used for the current buffer only, no buffer change possible while executing a global command).
+     */
+    /*private*/ static long lowest_marked;
+
+    /*
+     * arguments for ml_find_line()
+     */
+    /*private*/ static final int ML_DELETE       = 0x11;        /* delete line */
+    /*private*/ static final int ML_INSERT       = 0x12;        /* insert line */
     /*private*/ static final int ML_FIND         = 0x13;        /* just find the line */
     /*private*/ static final int ML_FLUSH        = 0x02;        /* flush locked block */
 
@@ -4541,6 +5408,7 @@ public class VimP
         buf.b_ml.ml_locked = null;      /* no cached block */
         buf.b_ml.ml_line_lnum = 0;      /* no cached line */
         buf.b_ml.ml_chunksize = null;
+        ml_cache_clear(buf);
 
         /*
          * Open the memfile.  No swap file is created yet.
@@ -4603,10 +5471,10 @@ public class VimP
 
             data_block_C dp = (data_block_C)hp.bh_data;
 
-            dp.db_index[0] = --dp.db_txt_start;     /* at end of block */
+            dp.db_index(0, --dp.db_txt_start);     /* at end of block */
             dp.db_free -= 1 + INDEX_SIZE;
             dp.db_line_count = 1;
-            dp.db_text.be(dp.db_txt_start, NUL);      /* empty line */
+            dp.db_text_put(dp.db_txt_start, u8(""), 1);  /* empty line */
 
             return true;
         }
@@ -4625,6 +5493,23 @@ public class VimP
      */
     /*private*/ static void ml_close(buffer_C buf)
     {
+        if (buf.b_ml.ml_lazy != null)
+            lazy_abort(buf.b_ml.ml_lazy);
+
+        if (buf.b_ml.ml_map != null)
+        {
+            ml_map_close(buf.b_ml.ml_map);
+            buf.b_ml.ml_map = null;
+        }
+        if (buf.b_ml.ml_hex != null)
+        {
+            ml_hex_close(buf.b_ml.ml_hex);
+            buf.b_ml.ml_hex = null;
+        }
+
+        buf.b_ml.ml_bulk = null;
+        ml_cache_clear(buf);
+
         if (buf.b_ml.ml_mfp != null)
         {
             mf_close(buf.b_ml.ml_mfp);
@@ -4651,631 +5536,2083 @@ public class VimP
             ml_close(buf);
     }
 
+    /*private*/ static int map_counting;    /* number of mapped files still being counted */
+
     /*
-     * Update the timestamp in the .swp file.
-     * Used when the file has been written.
+     * Try viewing file "fname", of "size" bytes, by reading lines from the file when needed
+     * instead of reading it into buffer "buf", see 'mmapview'.
+     * Only done for a file with Unix or Dos line endings, that doesn't start with a BOM
+     * and starts with valid UTF-8 (unless 'binary' is set), so that it reads the same as readfile().
+     * Like 'lazyload', only the first chunk is looked at before the file is shown:
+     * what is found later is dealt with like lazy_read() does.
+     * "ff" is the fileformat to use, EOL_UNKNOWN to detect it.
+     * Returns the fileformat used, or EOL_UNKNOWN when the file was not mapped.
      */
-    /*private*/ static void ml_timestamp(buffer_C buf)
+    /*private*/ static int ml_map_file(buffer_C buf, Bytes fname, long size, int ff)
     {
-        memfile_C mfp = buf.b_ml.ml_mfp;
-        if (mfp == null)
-            return;
+        if (size <= 0 || ff == EOL_MAC || (ff == EOL_UNKNOWN && vim_strchr(p_ffs[0], 'm') != null))
+            return EOL_UNKNOWN;
 
-        block_hdr_C hp = mf_get(mfp, 0, 1);
-        if (hp == null)
-            return;
+        int fd = libC.open(fname, O_RDONLY, 0);
+        if (fd < 0)
+            return EOL_UNKNOWN;
 
-        zero_block_C b0p = (zero_block_C)hp.bh_data;
-        if (b0p.b0_id != B0_ID)
+        int fdflags = libc.fcntl(fd, F_GETFD);
+        if (0 <= fdflags && (fdflags & FD_CLOEXEC) == 0)
+            libc.fcntl(fd, F_SETFD, fdflags | FD_CLOEXEC);
+
+        final mapfile_C mm = new mapfile_C();
+        mm.mm_fd = fd;
+        mm.mm_size = size;
+        mm.mm_end = size;
+        mm.mm_bin = buf.b_p_bin[0];
+        mm.mm_chunk_count = (int)((size + MM_CHUNK_SIZE - 1) >>> MM_CHUNK_SHIFT);
+        mm.mm_chunk_lnum = new long[mm.mm_chunk_count + 1];
+        mm.mm_chunk_lnum[0] = 1;
+
+        byte[] tmp = new byte[MM_CHUNK_SIZE + 6];       /* room for the rest of a UTF-8 sequence */
+        int n = (int)Math.min(size, MM_CHUNK_SIZE);
+        if (ml_map_read(mm, tmp, n, 0L) != n)
         {
-            emsg(u8("E304: Didn't get block 0??"));
-            return;
+            ml_map_close(mm);
+            return EOL_UNKNOWN;
         }
 
-        set_mtime(buf);
+        /* A BOM means the file needs to be converted. */
+        if (!mm.mm_bin && 2 <= n && check_for_bom(new Bytes(tmp), n, new int[1], FIO_ALL) != null)
+        {
+            ml_map_close(mm);
+            return EOL_UNKNOWN;
+        }
 
-        mf_put(mfp, hp, true, false);
-    }
+        /* Same guess as readfile(), but give up when there is no NL in the first chunk. */
+        int i = BINDEX(tmp, 0, n, NL);
+        if (i < 0)
+        {
+            ml_map_close(mm);
+            return EOL_UNKNOWN;
+        }
+        boolean detect = (ff == EOL_UNKNOWN);
+        boolean try_unix = (vim_strchr(p_ffs[0], 'x') != null);
+        if (detect)
+        {
+            if (!try_unix || (vim_strchr(p_ffs[0], 'd') != null && 0 < i && tmp[i - 1] == CAR))
+                ff = EOL_DOS;
+            else
+                ff = EOL_UNIX;
+        }
 
-    /*
-     * Write timestamp into block 0.
-     * Also set buf.b_mtime.
-     */
-    /*private*/ static void set_mtime(buffer_C buf)
-    {
-        if (buf.b_ffname != null)
+        /* In the first chunk, anything that readfile() would do differently makes it read the file. */
+        ml_map_count_chunk(mm, 0, tmp);
+        if (mm.mm_error || mm.mm_illegal)
         {
-            stat_C st = new stat_C();
-            if (0 <= libC.stat(buf.b_ffname, st))
-            {
-                buf_store_time(buf, st);
-                buf.b_mtime_read = buf.b_mtime;
-            }
+            ml_map_close(mm);
+            return EOL_UNKNOWN;
+        }
+        if (ff == EOL_DOS && mm.mm_bare_nl != 0)
+        {
+            /* Like readfile(): use Unix format when it was only guessed. */
+            if (detect && try_unix)
+                ff = EOL_UNIX;
             else
             {
-                buf.b_mtime = 0;
-                buf.b_mtime_read = 0;
-                buf.b_orig_size = 0;
-                buf.b_orig_mode = 0;
+                ml_map_close(mm);
+                return EOL_UNKNOWN;
             }
         }
-    }
+        mm.mm_dos = (ff == EOL_DOS);
+        mm.mm_counted = mm.mm_chunks = 1;
+        mm.mm_nl_count = mm.mm_nl_total;
 
-    /*
-     * NOTE: The pointer returned by the ml_get_*() functions only remains valid until the next call!
-     *  line1 = ml_get(1);
-     *  line2 = ml_get(2);  // line1 is now invalid!
-     * Make a copy of the line if necessary.
-     */
+        mm.mm_index_chunk = new int[MM_INDEX_COUNT];
+        Arrays.fill(mm.mm_index_chunk, -1);
+        mm.mm_index = new int[MM_INDEX_COUNT][];
+        mm.mm_data = new byte[MM_INDEX_COUNT][];
+
+        buf.b_ml.ml_map = mm;
+        buf.b_ml.ml_line_count = mm.mm_nl_count;
+        buf.b_ml.ml_flags &= ~ML_EMPTY;
+        buf.b_ml.ml_line_lnum = 0;
+
+        if (mm.mm_chunk_count == 1)
+            ml_map_end(buf);
+        else
+        {
+            mm.mm_thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    ml_map_count(mm);
+                }
+            });
+            mm.mm_thread.setDaemon(true);
+            mm.mm_thread.start();
+            map_counting++;
+        }
+
+        return ff;
+    }
 
     /*
-     * Return a pointer to a (read-only copy of a) line.
-     *
-     * On failure an error message is given and ioBuff is returned
-     * (to avoid having to check for error everywhere).
+     * Read "len" bytes at offset "off" of the file of "mm" into "a".
+     * Returns the number of bytes read, less when the file became shorter.
      */
-    /*private*/ static Bytes ml_get(long lnum)
+    /*private*/ static int ml_map_read(mapfile_C mm, byte[] a, int len, long off)
     {
-        return ml_get_buf(curbuf, lnum, false);
+        Bytes p = new Bytes(a);
+        int done = 0;
+        for (int n; done < len; done += n)
+        {
+            n = (int)libC.pread(mm.mm_fd, p.plus(done), len - done, off + done);
+            if (n < 0 && libC.errno() == EINTR)
+                n = 0;
+            else if (n <= 0)
+                break;
+        }
+        return done;
     }
 
     /*
-     * Return pointer to position "pos".
+     * Count the NLs in chunk "ci" of "mm", read into "tmp", with the bytes after it that fit.
+     * For Dos format also count the ones without a CR before them.
+     * Used for the first chunk by ml_map_file(), for the others by the counter.
      */
-    /*private*/ static Bytes ml_get_pos(pos_C pos)
+    /*private*/ static void ml_map_count_chunk(mapfile_C mm, int ci, byte[] tmp)
     {
-        return ml_get_buf(curbuf, pos.lnum, false).plus(pos.col);
+        long off = (long)ci << MM_CHUNK_SHIFT;
+        int want = (int)Math.min(mm.mm_size - off, tmp.length);
+        int avail = ml_map_read(mm, tmp, want, off);
+        int n = Math.min(want, MM_CHUNK_SIZE);
+        if (avail < n)
+        {
+            mm.mm_error = true;
+            return;
+        }
+
+        long nl_count = mm.mm_nl_total;
+        for (int i = 0; i < n; i++)
+        {
+            if (tmp[i] == NL)
+            {
+                nl_count++;
+                if (((i == 0) ? mm.mm_prev : tmp[i - 1]) != CAR)
+                    mm.mm_bare_nl++;
+            }
+            else if (tmp[i] < 0 && !mm.mm_bin && !mm.mm_illegal && mm.mm_valid_end <= off + i)
+            {
+                /* Keep illegal bytes as they are, like lazy_line() does. */
+                int l = us_ptr2len_len(new Bytes(tmp, i), avail - i);
+                if (l == 1 || avail - i < l)
+                    mm.mm_illegal = true;
+                else
+                    mm.mm_valid_end = off + i + l;
+            }
+        }
+        mm.mm_prev = tmp[n - 1];
+        mm.mm_nl_total = nl_count;
+        mm.mm_chunk_lnum[ci + 1] = nl_count + 1;
     }
 
     /*
-     * Return pointer to cursor line.
+     * The counter thread: count the NLs in the chunks after the first one.
+     * Only uses "mm", doesn't touch anything else.
      */
-    /*private*/ static Bytes ml_get_curline()
+    /*private*/ static void ml_map_count(mapfile_C mm)
     {
-        return ml_get_buf(curbuf, curwin.w_cursor.lnum, false);
+        byte[] tmp = new byte[MM_CHUNK_SIZE + 6];
+
+        for (int ci = 1; ci < mm.mm_chunk_count && !mm.mm_stop && !mm.mm_error; ci++)
+        {
+            ml_map_count_chunk(mm, ci, tmp);
+            if (!mm.mm_error)
+                mm.mm_counted = ci + 1;
+        }
+        mm.mm_ended = true;
     }
 
     /*
-     * Return pointer to cursor position.
+     * Make the lines of the chunks of "buf" counted since the last time available.
+     * Returns true when lines were added or counting finished.
      */
-    /*private*/ static Bytes ml_get_cursor()
+    /*private*/ static boolean ml_map_poll(buffer_C buf)
     {
-        return ml_get_buf(curbuf, curwin.w_cursor.lnum, false).plus(curwin.w_cursor.col);
-    }
+        mapfile_C mm = buf.b_ml.ml_map;
+        if (mm.mm_done)
+            return false;
 
-    /*private*/ static int _4_recurse;
+        boolean ended = mm.mm_ended;            /* before "mm_counted", it is set last */
+        int counted = mm.mm_counted;
+        if (counted == mm.mm_chunks && !ended)
+            return false;
+
+        mm.mm_chunks = counted;
+        mm.mm_nl_count = mm.mm_chunk_lnum[counted] - 1;
+        buf.b_ml.ml_line_count = Math.max(1, mm.mm_nl_count);
+        if (ended)
+            ml_map_end(buf);
+
+        return true;
+    }
 
     /*
-     * Return a pointer to a line in a specific buffer
-     *
-     * "will_change": if true mark the buffer dirty (chars in the line will be changed)
+     * Counting of "buf" finished or was stopped: set what was found out at the end of the file,
+     * like lazy_flags() does.  Lines after the last counted NL are only shown when all was counted.
+     * Also called from ml_map_file() for a file of one chunk, readfile() sets the flags then.
      */
-    /*private*/ static Bytes ml_get_buf(buffer_C buf, long lnum, boolean will_change)
-        /* will_change: line will be changed */
+    /*private*/ static void ml_map_end(buffer_C buf)
     {
-        if (buf.b_ml.ml_line_count < lnum)  /* invalid line number */
-        {
-            if (_4_recurse == 0)
-            {
-                /* Avoid giving this message for a recursive call,
-                 * may happen when the GUI redraws part of the text. */
-                _4_recurse++;
-                emsgn(u8("E315: ml_get: invalid lnum: %ld"), lnum);
-                --_4_recurse;
-            }
-
-            STRCPY(ioBuff, u8("???"));
-            return ioBuff;
-        }
-        if (lnum <= 0)                      /* pretend line 0 is line 1 */
-            lnum = 1;
+        mapfile_C mm = buf.b_ml.ml_map;
+        boolean whole = (mm.mm_chunks == mm.mm_chunk_count);
 
-        if (buf.b_ml.ml_mfp == null)        /* there are no lines */
-            return u8("");
+        if (mm.mm_thread != null)
+            map_counting--;
+        mm.mm_done = true;
 
-        /*
-         * See if it is the same line as requested last time.
-         * Otherwise may need to flush last used line.
-         * Don't use the last used line when 'swapfile' is reset, need to load all blocks.
-         */
-        if (buf.b_ml.ml_line_lnum != lnum)
+        if (!whole)
         {
-            ml_flush_line(buf);
-
-            /*
-             * Find the data block containing the line.
-             * This also fills the stack with the blocks from the root to the data
-             * block and releases any locked block.
-             */
-            block_hdr_C hp = ml_find_line(buf, lnum, ML_FIND);
-            if (hp == null)
-            {
-                if (_4_recurse == 0)
-                {
-                    /* Avoid giving this message for a recursive call,
-                     * may happen when the GUI redraws part of the text. */
-                    _4_recurse++;
-                    emsgn(u8("E316: ml_get: cannot find line %ld"), lnum);
-                    --_4_recurse;
-                }
+            mm.mm_end = ml_map_start(mm, mm.mm_nl_count + 1);
+            if (mm.mm_error)
+                emsg2(u8("E485: Can't read file %s"), buf.b_fname);
+            return;
+        }
 
-                STRCPY(ioBuff, u8("???"));
-                return ioBuff;
-            }
+        /* In Dos format ignore a trailing CTRL-Z, unless 'binary' set. */
+        if (mm.mm_dos && !mm.mm_bin && mm.mm_prev == Ctrl_Z && ml_map_start(mm, mm.mm_nl_count + 1) == mm.mm_size - 1)
+            mm.mm_end = mm.mm_size - 1;
+        if (ml_map_start(mm, mm.mm_nl_count + 1) < mm.mm_end)
+            buf.b_ml.ml_line_count = mm.mm_nl_count + 1;      /* last line without a NL */
 
-            data_block_C dp = (data_block_C)hp.bh_data;
+        if (mm.mm_thread == null)
+            return;
 
-            buf.b_ml.ml_line_ptr = dp.db_text.plus(dp.db_index[(int)(lnum - buf.b_ml.ml_locked_low)] & DB_INDEX_MASK);
-            buf.b_ml.ml_line_lnum = lnum;
-            buf.b_ml.ml_flags &= ~ML_LINE_DIRTY;
+        if (buf.b_ml.ml_line_count != mm.mm_nl_count)
+        {
+            buf.b_p_eol[0] = false;
+            buf.b_no_eol_lnum = buf.b_ml.ml_line_count;
         }
-        if (will_change)
-            buf.b_ml.ml_flags |= (ML_LOCKED_DIRTY | ML_LOCKED_POS);
-
-        return buf.b_ml.ml_line_ptr;
+        if (mm.mm_illegal)
+            buf.b_p_fenc[0] = u8("");
+        save_file_ff(buf);
     }
 
     /*
-     * Check if a line that was just obtained by a call to ml_get() is in allocated memory.
+     * Wait until the counting of "buf" finished, for a command that needs the whole buffer.
+     * CTRL-C stops counting, the lines counted so far are kept, like lazy_finish() does.
      */
-    /*private*/ static boolean ml_line_alloced()
+    /*private*/ static void ml_map_finish(buffer_C buf)
     {
-        return ((curbuf.b_ml.ml_flags & ML_LINE_DIRTY) != 0);
-    }
+        mapfile_C mm = buf.b_ml.ml_map;
+
+        while (!mm.mm_done)
+        {
+            try
+            {
+                mm.mm_thread.join(LAZY_POLL);
+            }
+            catch (InterruptedException _e)
+            {
+            }
+
+            if (!ml_map_poll(buf))
+            {
+                ui_breakcheck();
+                if (got_int)
+                {
+                    mm.mm_stop = true;
+                    buf.b_p_ro[0] = true;       /* must use "w!" now */
+                }
+            }
+        }
+    }
+
+    /*private*/ static void ml_map_close(mapfile_C mm)
+    {
+        if (mm.mm_thread != null)
+        {
+            mm.mm_stop = true;
+            for ( ; ; )
+            {
+                try
+                {
+                    mm.mm_thread.join();
+                    break;
+                }
+                catch (InterruptedException _e)
+                {
+                }
+            }
+            if (!mm.mm_done)
+                map_counting--;
+            mm.mm_done = true;
+        }
+        libc.close(mm.mm_fd);
+        mm.mm_fd = -1;
+    }
+
+    /*
+     * Get the cache entry with chunk "ci" of "mm" and the offsets just after each NL in it.
+     * What can't be read, because the file became shorter, is left zero.
+     */
+    /*private*/ static int ml_map_chunk(mapfile_C mm, int ci)
+    {
+        for (int i = 0; i < MM_INDEX_COUNT; i++)
+            if (mm.mm_index_chunk[i] == ci)
+                return i;
+
+        int[] index = new int[(int)(mm.mm_chunk_lnum[ci + 1] - mm.mm_chunk_lnum[ci])];
+
+        long off = (long)ci << MM_CHUNK_SHIFT;
+        int n = (int)Math.min(mm.mm_size - off, MM_CHUNK_SIZE);
+        byte[] data = new byte[n];
+        ml_map_read(mm, data, n, off);
+        for (int i = 0, j = 0; j < index.length && (i = BINDEX(data, i, n, NL)) != -1; i++)
+            index[j++] = i + 1;
+
+        int k = mm.mm_index_next;
+        mm.mm_index_next = (k + 1) % MM_INDEX_COUNT;
+        mm.mm_index_chunk[k] = ci;
+        mm.mm_index[k] = index;
+        mm.mm_data[k] = data;
+
+        return k;
+    }
+
+    /*
+     * Return the file offset where line "lnum" starts, for 1 <= lnum <= mm_nl_count + 1.
+     */
+    /*private*/ static long ml_map_start(mapfile_C mm, long lnum)
+    {
+        if (lnum <= 1)
+            return 0;
+
+        /* The NL ending line "lnum - 1" is in the last counted chunk that starts before it. */
+        int lo = 0, hi = mm.mm_chunks - 1;
+        while (lo < hi)
+        {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mm.mm_chunk_lnum[mid] < lnum)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        int[] index = mm.mm_index[ml_map_chunk(mm, lo)];
+        return ((long)lo << MM_CHUNK_SHIFT) + index[(int)(lnum - mm.mm_chunk_lnum[lo] - 1)];
+    }
+
+    /*
+     * Return an allocated copy of line "lnum" of a mapped file, as it would be in the memfile.
+     */
+    /*private*/ static Bytes ml_map_line(mapfile_C mm, long lnum)
+    {
+        long start = ml_map_start(mm, lnum);
+        long end = (lnum <= mm.mm_nl_count) ? ml_map_start(mm, lnum + 1) - 1 : mm.mm_end;
+
+        int len = (int)Math.max(0, end - start);
+        Bytes p = new Bytes(len + 1);
+        int ci = (int)(start >>> MM_CHUNK_SHIFT);
+        if (len != 0 && end <= ((long)(ci + 1) << MM_CHUNK_SHIFT))
+        {
+            byte[] data = mm.mm_data[ml_map_chunk(mm, ci)];
+            int from = (int)(start - ((long)ci << MM_CHUNK_SHIFT));
+            System.arraycopy(data, from, p.array, 0, Math.max(0, Math.min(len, data.length - from)));
+        }
+        else
+            ml_map_read(mm, p.array, len, start);
+
+        /* Remove the CR before the NL. */
+        if (mm.mm_dos && lnum <= mm.mm_nl_count && 0 < len && p.array[len - 1] == CAR)
+            p.array[--len] = NUL;
+        for (int i = 0; (i = BINDEX(p.array, i, len, NUL)) != -1; i++)
+            p.array[i] = NL;                /* NULs are stored as NL */
+
+        return p;
+    }
+
+    /*
+     * ml_find_line_or_offset() for a mapped file: the offsets are those in the file.
+     * When a bare NL was found after the first chunk of a 'fileformat' "dos" file,
+     * that line still counts its CR, where a read file would not.
+     */
+    /*private*/ static long ml_map_offset(buffer_C buf, long lnum, long[] offp)
+    {
+        mapfile_C mm = buf.b_ml.ml_map;
+        int nl_len = mm.mm_dos ? 2 : 1;
+
+        /* Where a line after the last one would start, counting a line break for the last line. */
+        long end = mm.mm_done ? mm.mm_end : ml_map_start(mm, mm.mm_nl_count + 1);
+        if (mm.mm_nl_count < buf.b_ml.ml_line_count)
+            end += nl_len;
+
+        if (lnum != 0)
+        {
+            if (buf.b_ml.ml_line_count + 1 < lnum)
+                return -1;
+
+            long size = (lnum <= mm.mm_nl_count + 1) ? ml_map_start(mm, lnum) : end;
+
+            /* Don't count the last line break if 'bin' and 'noeol'. */
+            if (buf.b_p_bin[0] && !buf.b_p_eol[0])
+                size -= nl_len;
+
+            return size;
+        }
+
+        long offset = offp[0];
+        if (end <= offset)
+            return -1;
+
+        long text_end = ml_map_start(mm, mm.mm_nl_count + 1);
+        if (text_end <= offset)             /* in the last line or its line break */
+            lnum = buf.b_ml.ml_line_count;
+        else
+        {
+            /* Count the NLs in the chunk before "offset". */
+            int ci = (int)(offset >>> MM_CHUNK_SHIFT);
+            int[] index = mm.mm_index[ml_map_chunk(mm, ci)];
+            int col = (int)(offset - ((long)ci << MM_CHUNK_SHIFT));
+            int lo = 0, hi = index.length;
+            while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (index[mid] <= col)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            lnum = mm.mm_chunk_lnum[ci] + lo;
+        }
+
+        offp[0] = offset - ml_map_start(mm, lnum);
+        return lnum;
+    }
+
+    /*
+     * Copy the lines of the mapped file into the memfile of "buf", so that they can be changed.
+     * A changed cached line is kept, it is flushed into the memfile later.
+     */
+    /*private*/ static void ml_unmap(buffer_C buf)
+    {
+        /* All lines must be counted before they are copied, CTRL-C makes the buffer readonly. */
+        lazy_finish(buf);
+
+        mapfile_C mm = buf.b_ml.ml_map;
+        buf.b_ml.ml_map = null;
+
+        long line_lnum = buf.b_ml.ml_line_lnum;
+        Bytes line_ptr = buf.b_ml.ml_line_ptr;
+        boolean dirty = (line_lnum != 0 && (buf.b_ml.ml_flags & ML_LINE_DIRTY) != 0);
+        buf.b_ml.ml_line_lnum = 0;
+
+        long count = buf.b_ml.ml_line_count;
+        buf.b_ml.ml_line_count = 1;                 /* the empty line from ml_open() */
+        mlbulk_C bk = ml_bulk_start(buf, 0, true);
+        for (long lnum = 1; lnum <= count; lnum++)
+        {
+            Bytes p = ml_map_line(mm, lnum);
+            ml_bulk_append(bk, p, p.size());
+        }
+        ml_bulk_end(bk);
+        ml_delete_int(buf, count + 1, false);
+        ml_map_close(mm);
+
+        if (dirty)
+        {
+            buf.b_ml.ml_line_lnum = line_lnum;
+            buf.b_ml.ml_line_ptr = line_ptr;
+            buf.b_ml.ml_flags |= ML_LINE_DIRTY;
+        }
+    }
+
+    /*
+     * Show the file "fname" of "size" bytes as a hex dump in "buf", see 'hexview'.
+     * Returns false when the file can't be opened, it is then read normally.
+     */
+    /*private*/ static boolean ml_hex_open(buffer_C buf, Bytes fname, long size)
+    {
+        int fd = libC.open(fname, O_RDONLY, 0);
+        if (fd < 0)
+            return false;
+
+        hexview_C hx = new hexview_C();
+        hx.hx_fd = fd;
+        hx.hx_size = size;
+        hx.hx_page_off = new long[HX_PAGE_COUNT];
+        Arrays.fill(hx.hx_page_off, -1L);
+        hx.hx_page = new byte[HX_PAGE_COUNT][];
+
+        buf.b_ml.ml_hex = hx;
+        buf.b_ml.ml_line_count = (size + HX_LINE_BYTES - 1) / HX_LINE_BYTES;
+        buf.b_ml.ml_flags &= ~ML_EMPTY;
+        buf.b_ml.ml_line_lnum = 0;
+        buf.b_hex = true;
+
+        return true;
+    }
+
+    /*private*/ static void ml_hex_close(hexview_C hx)
+    {
+        libc.close(hx.hx_fd);
+        hx.hx_fd = -1;
+    }
+
+    /*
+     * Return the cached page of "hx" with offset "off" in it, reading it when needed.
+     * What can't be read, because the file became shorter, is left zero.
+     */
+    /*private*/ static byte[] ml_hex_page(hexview_C hx, long off)
+    {
+        off &= ~(long)(HX_PAGE_SIZE - 1);
+        for (int i = 0; i < HX_PAGE_COUNT; i++)
+            if (hx.hx_page_off[i] == off)
+                return hx.hx_page[i];
+
+        int i = hx.hx_page_next;
+        hx.hx_page_next = (i + 1) % HX_PAGE_COUNT;
+
+        Bytes page = new Bytes(HX_PAGE_SIZE);
+        int size = (int)Math.min(HX_PAGE_SIZE, hx.hx_size - off);
+        for (int len = 0, n; len < size; len += n)
+        {
+            n = (int)libC.pread(hx.hx_fd, page.plus(len), size - len, off + len);
+            if (n < 0 && libC.errno() == EINTR)
+                n = 0;
+            else if (n <= 0)
+                break;
+        }
+
+        hx.hx_page_off[i] = off;
+        hx.hx_page[i] = page.array;
+        return page.array;
+    }
+
+    /*
+     * Make line "lnum" of a hex view from the bytes of the file, e.g.:
+     * "00000010: 6865 6c6c 6f0a 0000 ....  hello..."
+     */
+    /*private*/ static Bytes ml_hex_format(hexview_C hx, long lnum)
+    {
+        long off = (lnum - 1) * HX_LINE_BYTES;
+        byte[] page = ml_hex_page(hx, off);
+        int start = (int)(off & (HX_PAGE_SIZE - 1));
+        int n = (int)Math.min(HX_LINE_BYTES, hx.hx_size - off);
+
+        Bytes p = new Bytes(88);
+        byte[] a = p.array;
+        int len = 8;                                /* the offset has at least 8 digits */
+        while (len < 16 && (off >>> (4 * len)) != 0)
+            len++;
+        for (int i = len; 0 < i--; off >>>= 4)
+            a[i] = (byte)nr2hex((int)off);
+        a[len++] = ':';
+        for (int i = 0; i < HX_LINE_BYTES; i++)
+        {
+            if ((i & 1) == 0)
+                a[len++] = ' ';
+            if (i < n)
+            {
+                a[len++] = (byte)nr2hex(page[start + i] >>> 4);
+                a[len++] = (byte)nr2hex(page[start + i]);
+            }
+            else
+            {
+                a[len++] = ' ';
+                a[len++] = ' ';
+            }
+        }
+        a[len++] = ' ';
+        a[len++] = ' ';
+        for (int i = 0; i < n; i++)
+        {
+            byte c = page[start + i];
+            a[len++] = (' ' <= c && c < 0x7f) ? c : (byte)'.';
+        }
+        a[len] = NUL;
+
+        return p;
+    }
+
+    /*
+     * Return line "lnum" of a hex view: as it was changed, or made from the file.
+     */
+    /*private*/ static Bytes ml_hex_line(hexview_C hx, long lnum)
+    {
+        Bytes p = hx.hx_patch.get(lnum);
+        return (p != null) ? STRDUP(p) : ml_hex_format(hx, lnum);
+    }
+
+    /*
+     * Keep changed line "lnum" of a hex view, until it is written.
+     */
+    /*private*/ static void ml_hex_put(hexview_C hx, long lnum, Bytes line)
+    {
+        if (STRCMP(line, ml_hex_format(hx, lnum)) == 0)
+            hx.hx_patch.remove(lnum);               /* changed back */
+        else
+            hx.hx_patch.put(lnum, line);
+    }
+
+    /*
+     * Put the bytes that hex dump line "p" shows in "a[off]", like "xxd -r" does:
+     * the offset before the colon is ignored, the hex digits are read in pairs, separated
+     * by at most one space, until something else is found.
+     * "a" must have room for strlen(p) / 2 bytes.  Returns the number of bytes.
+     */
+    /*private*/ static int hex_decode(Bytes p, byte[] a, int off)
+    {
+        Bytes colon = vim_strchr(p, ':');
+        if (colon != null)
+            p = colon.plus(1);
+
+        int n = 0;
+        for ( ; ; )
+        {
+            if (p.at(0) == ' ')
+                p = p.plus(1);
+            if (!asc_isxdigit(p.at(0)) || !asc_isxdigit(p.at(1)))
+                break;
+            a[off + n++] = (byte)((hex2nr(p.at(0)) << 4) + hex2nr(p.at(1)));
+            p = p.plus(2);
+        }
+
+        return n;
+    }
+
+    /*
+     * Return true when every changed line of the hex view of "buf" still shows as many bytes
+     * as it did, thus the changes can be written into the file where they are.
+     */
+    /*private*/ static boolean ml_hex_patchable(buffer_C buf)
+    {
+        ml_flush_line(buf);
+
+        hexview_C hx = buf.b_ml.ml_hex;
+        for (long lnum : hx.hx_patch.keySet())
+        {
+            Bytes p = hx.hx_patch.get(lnum);
+            long off = (lnum - 1) * HX_LINE_BYTES;
+            if (hex_decode(p, new byte[strlen(p) / 2 + 1], 0) != Math.min(HX_LINE_BYTES, hx.hx_size - off))
+                return false;
+        }
+
+        return true;
+    }
+
+    /*
+     * Write the changed lines of the hex view of "buf" into the file "fd", where the bytes were read.
+     * Returns the number of bytes written, -1 for a write error.
+     */
+    /*private*/ static long ml_hex_write(buffer_C buf, int fd)
+    {
+        hexview_C hx = buf.b_ml.ml_hex;
+        long nchars = 0;
+
+        Bytes bytes = new Bytes(HX_LINE_BYTES + 1);
+        for (long lnum : hx.hx_patch.keySet())
+        {
+            int n = hex_decode(hx.hx_patch.get(lnum), bytes.array, 0);
+            long off = (lnum - 1) * HX_LINE_BYTES;
+            for (int len = 0, w; len < n; len += w)
+            {
+                w = (int)libC.pwrite(fd, bytes.plus(len), n - len, off + len);
+                if (w < 0 && libC.errno() == EINTR)
+                    w = 0;
+                else if (w <= 0)
+                    return -1;
+            }
+            nchars += n;
+        }
+
+        /* The file now has the changes, the cached pages don't. */
+        hx.hx_patch.clear();
+        Arrays.fill(hx.hx_page_off, -1L);
+
+        return nchars;
+    }
+
+    /*
+     * Copy the lines of the hex view into the memfile of "buf", to insert or delete lines.
+     * Like ml_unmap(), the buffer then remains a hex dump, that is written as the bytes it shows.
+     */
+    /*private*/ static void ml_hex_unview(buffer_C buf)
+    {
+        hexview_C hx = buf.b_ml.ml_hex;
+        buf.b_ml.ml_hex = null;
+
+        long line_lnum = buf.b_ml.ml_line_lnum;
+        Bytes line_ptr = buf.b_ml.ml_line_ptr;
+        boolean dirty = (line_lnum != 0 && (buf.b_ml.ml_flags & ML_LINE_DIRTY) != 0);
+        buf.b_ml.ml_line_lnum = 0;
+
+        long count = buf.b_ml.ml_line_count;
+        buf.b_ml.ml_line_count = 1;                 /* the empty line from ml_open() */
+        mlbulk_C bk = ml_bulk_start(buf, 0, true);
+        for (long lnum = 1; lnum <= count; lnum++)
+        {
+            Bytes p = ml_hex_line(hx, lnum);
+            ml_bulk_append(bk, p, strlen(p) + 1);
+        }
+        ml_bulk_end(bk);
+        ml_delete_int(buf, count + 1, false);
+        ml_hex_close(hx);
+
+        if (dirty)
+        {
+            buf.b_ml.ml_line_lnum = line_lnum;
+            buf.b_ml.ml_line_ptr = line_ptr;
+            buf.b_ml.ml_flags |= ML_LINE_DIRTY;
+        }
+    }
+
+    /*
+     * Update the timestamp in the .swp file.
+     * Used when the file has been written.
+     */
+    /*private*/ static void ml_timestamp(buffer_C buf)
+    {
+        memfile_C mfp = buf.b_ml.ml_mfp;
+        if (mfp == null)
+            return;
+
+        block_hdr_C hp = mf_get(mfp, 0, 1);
+        if (hp == null)
+            return;
+
+        zero_block_C b0p = (zero_block_C)hp.bh_data;
+        if (b0p.b0_id != B0_ID)
+        {
+            emsg(u8("E304: Didn't get block 0??"));
+            return;
+        }
+
+        set_mtime(buf);
+
+        mf_put(mfp, hp, true, false);
+    }
+
+    /*
+     * Write timestamp into block 0.
+     * Also set buf.b_mtime.
+     */
+    /*private*/ static void set_mtime(buffer_C buf)
+    {
+        if (buf.b_ffname != null)
+        {
+            stat_C st = new stat_C();
+            if (0 <= libC.stat(buf.b_ffname, st))
+            {
+                buf_store_time(buf, st);
+                buf.b_mtime_read = buf.b_mtime;
+            }
+            else
+            {
+                buf.b_mtime = 0;
+                buf.b_mtime_read = 0;
+                buf.b_orig_size = 0;
+                buf.b_orig_mode = 0;
+            }
+        }
+    }
+
+    /*
+     * NOTE: The pointer returned by the ml_get_*() functions only remains valid until the next call!
+     *  line1 = ml_get(1);
+     *  line2 = ml_get(2);  // line1 is now invalid!
+     * Make a copy of the line if necessary.
+     */
+
+    /*
+     * Return a pointer to a (read-only copy of a) line.
+     *
+     * On failure an error message is given and ioBuff is returned
+     * (to avoid having to check for error everywhere).
+     */
+    /*private*/ static Bytes ml_get(long lnum)
+    {
+        return ml_get_buf(curbuf, lnum, false);
+    }
+
+    /*
+     * Return pointer to position "pos".
+     */
+    /*private*/ static Bytes ml_get_pos(pos_C pos)
+    {
+        return ml_get_buf(curbuf, pos.lnum, false).plus(pos.col);
+    }
+
+    /*
+     * Return pointer to cursor line.
+     */
+    /*private*/ static Bytes ml_get_curline()
+    {
+        return ml_get_buf(curbuf, curwin.w_cursor.lnum, false);
+    }
+
+    /*
+     * Return pointer to cursor position.
+     */
+    /*private*/ static Bytes ml_get_cursor()
+    {
+        return ml_get_buf(curbuf, curwin.w_cursor.lnum, false).plus(curwin.w_cursor.col);
+    }
+
+    /*private*/ static int _4_recurse;
+
+    /*
+     * Return a pointer to a line in a specific buffer
+     *
+     * "will_change": if true mark the buffer dirty (chars in the line will be changed)
+     */
+    /*private*/ static Bytes ml_get_buf(buffer_C buf, long lnum, boolean will_change)
+        /* will_change: line will be changed */
+    {
+        if (buf.b_ml.ml_line_count < lnum)  /* invalid line number */
+        {
+            if (_4_recurse == 0)
+            {
+                /* Avoid giving this message for a recursive call,
+                 * may happen when the GUI redraws part of the text. */
+                _4_recurse++;
+                emsgn(u8("E315: ml_get: invalid lnum: %ld"), lnum);
+                --_4_recurse;
+            }
+
+            STRCPY(ioBuff, u8("???"));
+            return ioBuff;
+        }
+        if (lnum <= 0)                      /* pretend line 0 is line 1 */
+            lnum = 1;
+
+        if (buf.b_ml.ml_mfp == null)        /* there are no lines */
+            return u8("");
+
+        /* A line that is going to be changed must be in the memfile,
+         * and changes are only made when all lines have been loaded. */
+        if (will_change)
+            lazy_finish(buf);
+        if (will_change && buf.b_ml.ml_map != null)
+            ml_unmap(buf);
+
+        /*
+         * See if it is the same line as requested last time.
+         * Otherwise may need to flush last used line.
+         * Don't use the last used line when 'swapfile' is reset, need to load all blocks.
+         */
+        if (buf.b_ml.ml_line_lnum != lnum)
+        {
+            ml_flush_line(buf);
+
+            /* A recently used line is returned without looking for its block. */
+            if (!will_change)
+            {
+                Bytes p = ml_cache_get(buf, lnum);
+                if (p != null)
+                {
+                    buf.b_ml.ml_flags &= ~ML_LINE_DIRTY;
+                    return p;
+                }
+            }
+
+            if (buf.b_ml.ml_map != null)
+            {
+                buf.b_ml.ml_line_ptr = ml_map_line(buf.b_ml.ml_map, lnum);
+                buf.b_ml.ml_line_lnum = lnum;
+                buf.b_ml.ml_flags &= ~ML_LINE_DIRTY;
+                return buf.b_ml.ml_line_ptr;
+            }
+
+            if (buf.b_ml.ml_hex != null)
+            {
+                buf.b_ml.ml_line_ptr = ml_hex_line(buf.b_ml.ml_hex, lnum);
+                buf.b_ml.ml_line_lnum = lnum;
+                buf.b_ml.ml_flags &= ~ML_LINE_DIRTY;
+                if (will_change)
+                {
+                    buf.b_ml.ml_flags |= ML_LINE_DIRTY;
+                    buf.b_text_tick++;
+                }
+                return buf.b_ml.ml_line_ptr;
+            }
+
+            /*
+             * Find the data block containing the line.
+             * This also fills the stack with the blocks from the root to the data
+             * block and releases any locked block.
+             */
+            block_hdr_C hp = ml_find_line(buf, lnum, ML_FIND);
+            if (hp == null)
+            {
+                if (_4_recurse == 0)
+                {
+                    /* Avoid giving this message for a recursive call,
+                     * may happen when the GUI redraws part of the text. */
+                    _4_recurse++;
+                    emsgn(u8("E316: ml_get: cannot find line %ld"), lnum);
+                    --_4_recurse;
+                }
+
+                STRCPY(ioBuff, u8("???"));
+                return ioBuff;
+            }
+
+            data_block_C dp = (data_block_C)hp.bh_data;
+
+            int idx = (int)(lnum - buf.b_ml.ml_locked_low);
+            if (dp.db_slab < 0)
+            {
+                buf.b_ml.ml_line_ptr = dp.db_text.plus(dp.db_index(idx) & DB_INDEX_MASK);
+                if (!will_change)
+                    ml_cache_put(buf, lnum, buf.b_ml.ml_line_ptr);
+            }
+            else
+            {
+                /* Copy the line out of the slab, into a buffer that is reused for the next line. */
+                int start = (dp.db_index(idx) & DB_INDEX_MASK);
+                int len = ((idx == 0) ? dp.db_txt_end : (dp.db_index(idx - 1) & DB_INDEX_MASK)) - start;
+                if (buf.b_ml.ml_line_buf == null || buf.b_ml.ml_line_buf.size() < len)
+                    buf.b_ml.ml_line_buf = new Bytes(Math.max(len, 2 * MEMFILE_PAGE_SIZE));
+                dp.db_text_get(start, buf.b_ml.ml_line_buf, len);
+                buf.b_ml.ml_line_ptr = buf.b_ml.ml_line_buf;
+                if (!will_change)
+                {
+                    /* The slab and the buffer are reused, the cache keeps a copy. */
+                    Bytes p = new Bytes(len);
+                    BCOPY(p, buf.b_ml.ml_line_buf, len);
+                    ml_cache_put(buf, lnum, p);
+                }
+            }
+            buf.b_ml.ml_line_lnum = lnum;
+            buf.b_ml.ml_flags &= ~ML_LINE_DIRTY;
+        }
+        if (will_change)
+        {
+            /* A line of a hex view is always a copy, kept aside when flushed, see ml_hex_put(). */
+            if (buf.b_ml.ml_hex != null)
+                buf.b_ml.ml_flags |= ML_LINE_DIRTY;
+            else
+            {
+                /* A line copied out of a slab is changed in a copy of its own, flushed into the block later. */
+                if (buf.b_ml.ml_line_ptr == buf.b_ml.ml_line_buf && (buf.b_ml.ml_flags & ML_LINE_DIRTY) == 0)
+                {
+                    buf.b_ml.ml_line_ptr = STRDUP(buf.b_ml.ml_line_ptr);
+                    buf.b_ml.ml_flags |= ML_LINE_DIRTY;
+                }
+                buf.b_ml.ml_flags |= (ML_LOCKED_DIRTY | ML_LOCKED_POS);
+            }
+            buf.b_text_tick++;
+        }
+
+        return buf.b_ml.ml_line_ptr;
+    }
+
+    /*
+     * Copy lines "lnump[0]" to "last" of "buf" into "out[size]", each with its NUL, as many as fit.
+     * Goes through the data blocks, instead of finding each line, for writing a file.
+     * "lnump[0]" is advanced to the first line that was not copied.
+     * Returns the number of bytes copied, 0 when the first line doesn't fit.
+     */
+    /*private*/ static int ml_get_text(buffer_C buf, long[] lnump, long last, Bytes out, int size)
+    {
+        int len = 0;
+
+        /* The text of a changed line must be in its block. */
+        ml_flush_line(buf);
+
+        while (lnump[0] <= last)
+        {
+            long lnum = lnump[0];
+
+            if (buf.b_ml.ml_map != null || buf.b_ml.ml_hex != null)  /* no blocks to copy from */
+            {
+                Bytes p = ml_get_buf(buf, lnum, false);
+                int n = strlen(p) + 1;
+                if (size - len < n)
+                    break;
+                BCOPY(out, len, p, 0, n);
+                len += n;
+                lnump[0]++;
+                continue;
+            }
+
+            block_hdr_C hp = ml_find_line(buf, lnum, ML_FIND);
+            if (hp == null)
+                break;
+
+            data_block_C dp = (data_block_C)hp.bh_data;
+            long high = Math.min(buf.b_ml.ml_locked_high, last);
+            for ( ; lnum <= high; lnum++)
+            {
+                int idx = (int)(lnum - buf.b_ml.ml_locked_low);
+                int start = (dp.db_index(idx) & DB_INDEX_MASK);
+                int n = ((idx == 0) ? dp.db_txt_end : (dp.db_index(idx - 1) & DB_INDEX_MASK)) - start;
+                if (size - len < n)
+                    break;
+                dp.db_text_get(start, out.plus(len), n);
+                len += n;
+            }
+            lnump[0] = lnum;
+            if (lnum <= high)                   /* "out" is full */
+                break;
+        }
+
+        return len;
+    }
+
+    /*private*/ static final int ML_CACHE_SIZE = 128;     /* must be a power of 2 */
+
+    /*
+     * Recently used lines are kept in a small cache, indexed by line number.
+     * Redrawing a window, or matching a pattern over its lines, then mostly gets its lines
+     * without going through ml_find_line(), even when they are spread over several blocks.
+     * The lines are pointers into the data blocks, or copies of lines in a slab.
+     * Any change to the text or the line numbers clears the cache, see ml_cache_clear().
+     */
+    /*private*/ static Bytes ml_cache_get(buffer_C buf, long lnum)
+    {
+        if (!buf.b_ml.ml_cache_used)
+            return null;
+
+        int i = (int)lnum & (ML_CACHE_SIZE - 1);
+        return (buf.b_ml.ml_cache_lnum[i] == lnum) ? buf.b_ml.ml_cache_ptr[i] : null;
+    }
+
+    /*private*/ static void ml_cache_put(buffer_C buf, long lnum, Bytes p)
+    {
+        if (buf.b_ml.ml_cache_lnum == null)
+        {
+            buf.b_ml.ml_cache_lnum = new long[ML_CACHE_SIZE];
+            buf.b_ml.ml_cache_ptr = new Bytes[ML_CACHE_SIZE];
+        }
+
+        int i = (int)lnum & (ML_CACHE_SIZE - 1);
+        buf.b_ml.ml_cache_lnum[i] = lnum;
+        buf.b_ml.ml_cache_ptr[i] = p;
+        buf.b_ml.ml_cache_used = true;
+    }
+
+    /*private*/ static void ml_cache_clear(buffer_C buf)
+    {
+        /* Called for every change of the text, which makes a hash of it out of date, see u_save_hash(). */
+        buf.b_text_tick++;
+
+        if (buf.b_ml.ml_cache_used)
+        {
+            for (int i = 0; i < ML_CACHE_SIZE; i++)
+            {
+                buf.b_ml.ml_cache_lnum[i] = 0;
+                buf.b_ml.ml_cache_ptr[i] = null;
+            }
+            buf.b_ml.ml_cache_used = false;
+        }
+    }
+
+    /*
+     * Check if a line that was just obtained by a call to ml_get() is in allocated memory.
+     */
+    /*private*/ static boolean ml_line_alloced()
+    {
+        return ((curbuf.b_ml.ml_flags & ML_LINE_DIRTY) != 0);
+    }
+
+    /*
+     * Append a line after lnum (may be 0 to insert a line in front of the file).
+     * "line" does not need to be allocated, but can't be another line in a buffer,
+     * unlocking may make it invalid.
+     *
+     *   newfile: true when starting to edit a new file
+     *
+     * Check: The caller of this function should probably also call appended_lines().
+     *
+     * return false for failure, true otherwise
+     */
+    /*private*/ static boolean ml_append(long lnum, Bytes line, int len, boolean newfile)
+        /* lnum: append after this line (can be 0) */
+        /* line: text of the new line */
+        /* len: length of new line, including NUL, or 0 */
+        /* newfile: flag, see above */
+    {
+        /* When starting up, we might still need to create the memfile. */
+        if (curbuf.b_ml.ml_mfp == null && open_buffer(false, null, 0) == false)
+            return false;
+
+        lazy_finish(curbuf);
+
+        if (curbuf.b_ml.ml_line_lnum != 0)
+            ml_flush_line(curbuf);
+
+        return ml_append_int(curbuf, lnum, line, len, newfile, false);
+    }
+
+    /*private*/ static boolean ml_append_int(buffer_C buf, long lnum, Bytes line, int len, boolean newfile, boolean mark)
+        /* lnum: append after this line (can be 0) */
+        /* line: text of the new line */
+        /* len: length of line, including NUL, or 0 */
+        /* newfile: flag, see above */
+        /* mark: mark the new line */
+    {
+        if (buf.b_ml.ml_line_count < lnum || buf.b_ml.ml_mfp == null) /* lnum out of range */
+            return false;
+
+        ml_cache_clear(buf);
+
+        if (lowest_marked != 0 && lnum < lowest_marked)
+            lowest_marked = lnum + 1;
+
+        if (len == 0)
+            len = strlen(line) + 1;                /* space needed for the text */
+        int space_needed = len + INDEX_SIZE;            /* space needed for new line (text + index) */
+
+        memfile_C mfp = buf.b_ml.ml_mfp;
+
+        /*
+         * Find the data block containing the previous line.
+         * This also fills the stack with the blocks from the root to the data block.
+         * This also releases any locked block.
+         */
+        block_hdr_C hp = ml_find_line(buf, (lnum == 0) ? 1 : lnum, ML_INSERT);
+        if (hp == null)
+            return false;
+
+        buf.b_ml.ml_flags &= ~ML_EMPTY;
+
+        int db_idx;                                         /* index for lnum in data block */
+        if (lnum == 0)                                      /* got line one instead, correct db_idx */
+            db_idx = -1;                                    /* careful, it is negative! */
+        else
+            db_idx = (int)(lnum - buf.b_ml.ml_locked_low);
+
+        int line_count;                                     /* number of indexes in current block */
+        /* get line count before the insertion */
+        line_count = (int)(buf.b_ml.ml_locked_high - buf.b_ml.ml_locked_low);
+
+        data_block_C dp = (data_block_C)hp.bh_data;
+
+        /*
+         * If
+         * - there is not enough room in the current block
+         * - appending to the last line in the block
+         * - not appending to the last line in the file
+         * insert in front of the next block.
+         */
+        if (dp.db_free < space_needed && db_idx == line_count - 1 && lnum < buf.b_ml.ml_line_count)
+        {
+            /*
+             * Now that the line is not going to be inserted in the block that we expected,
+             * the line count has to be adjusted in the pointer blocks by using ml_locked_lineadd.
+             */
+            --buf.b_ml.ml_locked_lineadd;
+            --buf.b_ml.ml_locked_high;
+
+            hp = ml_find_line(buf, lnum + 1, ML_INSERT);
+            if (hp == null)
+                return false;
+
+            db_idx = -1;                                    /* careful, it is negative! */
+            /* get line count before the insertion */
+            line_count = (int)(buf.b_ml.ml_locked_high - buf.b_ml.ml_locked_low);
+
+            dp = (data_block_C)hp.bh_data;
+        }
+
+        buf.b_ml.ml_line_count++;
+
+        if (space_needed <= dp.db_free)                     /* enough room in data block */
+        {
+            /*
+             * Insert new line in existing data block, or in data block allocated above.
+             */
+            dp.db_txt_start -= len;
+            dp.db_free -= space_needed;
+            dp.db_line_count++;
+
+            /*
+             * move the text of the lines that follow to the front
+             * adjust the indexes of the lines that follow
+             */
+            if (db_idx + 1 < line_count)                    /* if there are following lines */
+            {
+                /*
+                 * 'over' is the start of the previous line.
+                 * This will become the character just after the new line.
+                 */
+                int from = dp.db_txt_start + len;
+                int over = (db_idx < 0) ? dp.db_txt_end : (dp.db_index(db_idx) & DB_INDEX_MASK);
+                db_text_copy(dp, dp.db_txt_start, dp, from, over - from);
+                for (int i = line_count; db_idx < --i; )
+                    dp.db_index(i + 1, dp.db_index(i) - len);
+                dp.db_index(db_idx + 1, over - len);
+            }
+            else                                            /* add line at the end */
+                dp.db_index(db_idx + 1, dp.db_txt_start);
+
+            /*
+             * copy the text into the block
+             */
+            dp.db_text_put(dp.db_index(db_idx + 1), line, len);
+            if (mark)
+                dp.db_index(db_idx + 1, dp.db_index(db_idx + 1) | DB_MARKED);
+
+            /*
+             * Mark the block dirty.
+             */
+            buf.b_ml.ml_flags |= ML_LOCKED_DIRTY;
+            if (!newfile)
+                buf.b_ml.ml_flags |= ML_LOCKED_POS;
+        }
+        else                                                /* not enough space in data block */
+        {
+            /*
+             * If there is not enough room we have to create a new data block
+             * and copy some lines into it.  Then we have to insert an entry
+             * in the pointer block.  If this pointer block also is full,
+             * we go up another block, and so on, up to the root if necessary.
+             * The line counts in the pointer blocks have already been adjusted
+             * by ml_find_line().
+             */
+            int lines_moved;
+            int data_moved = 0;
+            int total_moved = 0;
+            boolean in_left;
+
+            /*
+             * We are going to allocate a new data block.  Depending on the
+             * situation it will be put to the left or right of the existing
+             * block.  If possible we put the new line in the left block and move
+             * the lines after it to the right block.  Otherwise the new line is
+             * also put in the right block.  This method is more efficient when
+             * inserting a lot of lines at one place.
+             */
+            if (db_idx < 0)                         /* left block is new, right block is existing */
+            {
+                lines_moved = 0;
+                in_left = true;                     /* space_needed does not change */
+            }
+            else                                    /* left block is existing, right block is new */
+            {
+                lines_moved = line_count - db_idx - 1;
+                if (lines_moved == 0)               /* put new line in right block */
+                    in_left = false;                /* space_needed does not change */
+                else
+                {
+                    data_moved = (dp.db_index(db_idx) & DB_INDEX_MASK) - dp.db_txt_start;
+                    total_moved = data_moved + lines_moved * INDEX_SIZE;
+                    if (space_needed <= dp.db_free + total_moved)
+                    {
+                        in_left = true;             /* put new line in left block */
+                        space_needed = total_moved;
+                    }
+                    else
+                    {
+                        in_left = false;            /* put new line in right block */
+                        space_needed += total_moved;
+                    }
+                }
+            }
+
+            int page_count = (space_needed + DB_HEADER_SIZE + MEMFILE_PAGE_SIZE - 1) / MEMFILE_PAGE_SIZE;
+            block_hdr_C hp_new = ml_new_data(mfp, newfile, page_count);
+
+            block_hdr_C hp_left, hp_right;
+            int line_count_left, line_count_right;
+            if (db_idx < 0)         /* left block is new */
+            {
+                hp_left = hp_new;
+                hp_right = hp;
+                line_count_left = 0;
+                line_count_right = line_count;
+            }
+            else                    /* right block is new */
+            {
+                hp_left = hp;
+                hp_right = hp_new;
+                line_count_left = line_count;
+                line_count_right = 0;
+            }
+            data_block_C dp_left = (data_block_C)hp_left.bh_data;
+            data_block_C dp_right = (data_block_C)hp_right.bh_data;
+            long bnum_left = hp_left.bh_bnum();
+            long bnum_right = hp_right.bh_bnum();
+            int page_count_left = hp_left.bh_page_count;
+            int page_count_right = hp_right.bh_page_count;
+
+            /*
+             * May move the new line into the right/new block.
+             */
+            if (!in_left)
+            {
+                dp_right.db_txt_start -= len;
+                dp_right.db_free -= len + INDEX_SIZE;
+                dp_right.db_index(0, dp_right.db_txt_start);
+                if (mark)
+                    dp_right.db_index(0, dp_right.db_index(0) | DB_MARKED);
+
+                dp_right.db_text_put(dp_right.db_txt_start, line, len);
+                line_count_right++;
+            }
+            /*
+             * may move lines from the left/old block to the right/new one.
+             */
+            if (lines_moved != 0)
+            {
+                dp_right.db_txt_start -= data_moved;
+                dp_right.db_free -= total_moved;
+                db_text_copy(dp_right, dp_right.db_txt_start, dp_left, dp_left.db_txt_start, data_moved);
+                int offset = dp_right.db_txt_start - dp_left.db_txt_start;
+                dp_left.db_txt_start += data_moved;
+                dp_left.db_free += total_moved;
+
+                /*
+                 * update indexes in the new block
+                 */
+                for (int from = db_idx + 1, to = line_count_right; from < line_count_left; from++, to++)
+                    dp_right.db_index(to, dp.db_index(from) + offset);
+                line_count_right += lines_moved;
+                line_count_left -= lines_moved;
+            }
+
+            /*
+             * May move the new line into the left (old or new) block.
+             */
+            if (in_left)
+            {
+                dp_left.db_txt_start -= len;
+                dp_left.db_free -= len + INDEX_SIZE;
+                dp_left.db_index(line_count_left, dp_left.db_txt_start);
+                if (mark)
+                    dp_left.db_index(line_count_left, dp_left.db_index(line_count_left) | DB_MARKED);
+                dp_left.db_text_put(dp_left.db_txt_start, line, len);
+                line_count_left++;
+            }
+
+            long lnum_left, lnum_right;
+            if (db_idx < 0)         /* left block is new */
+            {
+                lnum_left = lnum + 1;
+                lnum_right = 0;
+            }
+            else                    /* right block is new */
+            {
+                lnum_left = 0;
+                if (in_left)
+                    lnum_right = lnum + 2;
+                else
+                    lnum_right = lnum + 1;
+            }
+            dp_left.db_line_count = line_count_left;
+            dp_right.db_line_count = line_count_right;
+
+            /*
+             * release the two data blocks
+             * The new one (hp_new) already has a correct blocknumber.
+             * The old one (hp, in ml_locked) gets a positive blocknumber if
+             * we changed it and we are not editing a new file.
+             */
+            if (lines_moved != 0 || in_left)
+                buf.b_ml.ml_flags |= ML_LOCKED_DIRTY;
+            if (!newfile && 0 <= db_idx && in_left)
+                buf.b_ml.ml_flags |= ML_LOCKED_POS;
+            mf_put(mfp, hp_new, true, false);
+
+            /*
+             * flush the old data block
+             * set ml_locked_lineadd to 0, because the updating of the
+             * pointer blocks is done below
+             */
+            int lineadd = buf.b_ml.ml_locked_lineadd;
+            buf.b_ml.ml_locked_lineadd = 0;
+            ml_find_line(buf, 0, ML_FLUSH);             /* flush data block */
+
+            /*
+             * update pointer blocks for the new data block
+             */
+            if (!ml_insert_ptr(buf, lineadd, bnum_left, line_count_left, page_count_left,
+                                             bnum_right, line_count_right, page_count_right))
+                return false;
+        }
+
+        /* The line was inserted below 'lnum'. */
+        ml_updatechunk(buf, lnum + 1, (long)len, ML_CHNK_ADDLINE);
+        return true;
+    }
+
+    /*
+     * Update the pointer blocks on the stack after a block was split in two, or a block was added
+     * next to it: the entry for the block becomes "left", an entry for "right" is inserted after it.
+     * When a pointer block is full it is split as well, up to the root if necessary.
+     * "lineadd" lines are added to the line counts in the pointer blocks above the last one changed.
+     *
+     * Return false for failure, true otherwise.
+     */
+    /*private*/ static boolean ml_insert_ptr(buffer_C buf, int lineadd, long bnum_left, long line_count_left, int page_count_left,
+                                                                      long bnum_right, long line_count_right, int page_count_right)
+    {
+        memfile_C mfp = buf.b_ml.ml_mfp;
+        block_hdr_C hp;
+
+        int stack_idx;
+        for (stack_idx = buf.b_ml.ml_stack_top - 1; 0 <= stack_idx; --stack_idx)
+        {
+            infoptr_C ip = buf.b_ml.ml_stack[stack_idx];
+            int pb_idx = ip.ip_index;
+            if ((hp = mf_get(mfp, ip.ip_bnum, 1)) == null)
+                return false;
+
+            ptr_block_C pp = (ptr_block_C)hp.bh_data; /* must be pointer block */
+            if (pp.pb_id != PTR_ID)
+            {
+                emsg(u8("E317: pointer block id wrong 3"));
+                mf_put(mfp, hp, false, false);
+                return false;
+            }
+
+            /*
+             * TODO: If the pointer block is full and we are adding at the end,
+             * try to insert in front of the next block.
+             */
+            /* block not full, add one entry */
+            if (pp.pb_count < pp.pb_count_max)
+            {
+                for (int i = pp.pb_count; pb_idx + 1 <= --i; )
+                    COPY_ptr_entry(pp.pb_pointer[i + 1], pp.pb_pointer[i]);
+                pp.pb_count++;
+                pp.pb_pointer[pb_idx].pe_line_count = line_count_left;
+                pp.pb_pointer[pb_idx].pe_bnum = bnum_left;
+                pp.pb_pointer[pb_idx].pe_page_count = page_count_left;
+                pp.pb_pointer[pb_idx + 1].pe_line_count = line_count_right;
+                pp.pb_pointer[pb_idx + 1].pe_bnum = bnum_right;
+                pp.pb_pointer[pb_idx + 1].pe_page_count = page_count_right;
+
+                mf_put(mfp, hp, true, false);
+                buf.b_ml.ml_stack_top = stack_idx + 1;  /* truncate stack */
+
+                if (lineadd != 0)
+                {
+                    --buf.b_ml.ml_stack_top;
+                    /* fix line count for rest of blocks in the stack */
+                    ml_lineadd(buf, lineadd);
+                                                        /* fix stack itself */
+                    buf.b_ml.ml_stack[buf.b_ml.ml_stack_top].ip_high += lineadd;
+                    buf.b_ml.ml_stack_top++;
+                }
+
+                /*
+                 * We are finished, break the loop here.
+                 */
+                break;
+            }
+            else                        /* pointer block full */
+            {
+                block_hdr_C hp_new;
+                ptr_block_C pp_new;
+                /*
+                 * split the pointer block
+                 * allocate a new pointer block
+                 * move some of the pointer into the new block
+                 * prepare for updating the parent block
+                 */
+                for ( ; ; )             /* do this twice when splitting block 1 */
+                {
+                    hp_new = ml_new_ptr(mfp);
+                    pp_new = (ptr_block_C)hp_new.bh_data;
+
+                    if (hp.bh_bnum() != 1)
+                        break;
+
+                    /*
+                     * if block 1 becomes full the tree is given an extra level
+                     * The pointers from block 1 are moved into the new block.
+                     * block 1 is updated to point to the new block
+                     * then continue to split the new block
+                     */
+                    COPY_ptr_block(pp_new, pp);
+                    pp.pb_count = 1;
+                    pp.pb_pointer[0].pe_bnum = hp_new.bh_bnum();
+                    pp.pb_pointer[0].pe_line_count = buf.b_ml.ml_line_count;
+                    pp.pb_pointer[0].pe_page_count = 1;
+                    mf_put(mfp, hp, true, false);           /* release block 1 */
+                    hp = hp_new;                            /* new block is to be split */
+                    pp = pp_new;
+                    ip.ip_index = 0;
+                    stack_idx++;                            /* do block 1 again later */
+                }
+
+                /*
+                 * Move the pointers after the current one to the new block.
+                 * If there are none, the new entry will be in the new block.
+                 */
+                int total_moved = pp.pb_count - pb_idx - 1;
+                if (total_moved != 0)
+                {
+                    for (int i = 0; i < total_moved; i++)
+                        COPY_ptr_entry(pp_new.pb_pointer[i], pp.pb_pointer[pb_idx + 1 + i]);
+                    pp_new.pb_count = total_moved;
+                    pp.pb_count -= total_moved - 1;
+                    pp.pb_pointer[pb_idx + 1].pe_bnum = bnum_right;
+                    pp.pb_pointer[pb_idx + 1].pe_line_count = line_count_right;
+                    pp.pb_pointer[pb_idx + 1].pe_page_count = page_count_right;
+                }
+                else
+                {
+                    pp_new.pb_count = 1;
+                    pp_new.pb_pointer[0].pe_bnum = bnum_right;
+                    pp_new.pb_pointer[0].pe_line_count = line_count_right;
+                    pp_new.pb_pointer[0].pe_page_count = page_count_right;
+                }
+                pp.pb_pointer[pb_idx].pe_bnum = bnum_left;
+                pp.pb_pointer[pb_idx].pe_line_count = line_count_left;
+                pp.pb_pointer[pb_idx].pe_page_count = page_count_left;
+
+                /*
+                 * recompute line counts
+                 */
+                line_count_right = 0;
+                for (int i = 0; i < pp_new.pb_count; i++)
+                    line_count_right += pp_new.pb_pointer[i].pe_line_count;
+                line_count_left = 0;
+                for (int i = 0; i < pp.pb_count; i++)
+                    line_count_left += pp.pb_pointer[i].pe_line_count;
+
+                bnum_left = hp.bh_bnum();
+                bnum_right = hp_new.bh_bnum();
+                page_count_left = 1;
+                page_count_right = 1;
+                mf_put(mfp, hp, true, false);
+                mf_put(mfp, hp_new, true, false);
+            }
+        }
+
+        /*
+         * Safety check: fallen out of for loop?
+         */
+        if (stack_idx < 0)
+        {
+            emsg(u8("E318: Updated too many blocks?"));
+            buf.b_ml.ml_stack_top = 0;      /* invalidate stack */
+        }
+
+        return true;
+    }
 
     /*
-     * Append a line after lnum (may be 0 to insert a line in front of the file).
-     * "line" does not need to be allocated, but can't be another line in a buffer,
-     * unlocking may make it invalid.
+     * Start appending lines in bulk after line "lnum" of "buf", with ml_bulk_append().
+     * The lines are packed into full data blocks, which are put in the tree by ml_bulk_end()
+     * with pointer blocks built from the bottom up, instead of splitting blocks one line at a time.
+     * Until then, the lines are counted in ml_line_count, but ml_find_line() can't find them:
+     * it calls ml_bulk_end() first.
      *
-     *   newfile: true when starting to edit a new file
+     *   newfile: the lines are read from a new file, see ml_append_int()
+     */
+    /*private*/ static mlbulk_C ml_bulk_start(buffer_C buf, long lnum, boolean newfile)
+    {
+        lazy_finish(buf);
+        ml_flush_line(buf);
+
+        mlbulk_C bk = new mlbulk_C();
+        bk.bk_buf = buf;
+        bk.bk_lnum = lnum;
+        bk.bk_newfile = newfile;
+        bk.bk_entries = ARRAY_ptr_entry(16);
+        return bk;
+    }
+
+    /*
+     * Append a line after the ones appended with "bk" so far.
      *
-     * Check: The caller of this function should probably also call appended_lines().
+     *   len: length of line, including NUL, or 0
      *
-     * return false for failure, true otherwise
+     * Return false for failure, true otherwise.
      */
-    /*private*/ static boolean ml_append(long lnum, Bytes line, int len, boolean newfile)
-        /* lnum: append after this line (can be 0) */
-        /* line: text of the new line */
-        /* len: length of new line, including NUL, or 0 */
-        /* newfile: flag, see above */
+    /*private*/ static boolean ml_bulk_append(mlbulk_C bk, Bytes line, int len)
     {
-        /* When starting up, we might still need to create the memfile. */
-        if (curbuf.b_ml.ml_mfp == null && open_buffer(false, null, 0) == false)
+        buffer_C buf = bk.bk_buf;
+
+        if (buf.b_ml.ml_bulk != bk)
+        {
+            if (buf.b_ml.ml_bulk != null && !ml_bulk_end(buf.b_ml.ml_bulk))
+                return false;
+            ml_flush_line(buf);
+            ml_cache_clear(buf);
+            buf.b_ml.ml_bulk = bk;
+        }
+
+        if (!ml_bulk_add(bk, line, len, false))
             return false;
 
-        if (curbuf.b_ml.ml_line_lnum != 0)
-            ml_flush_line(curbuf);
+        bk.bk_line_count++;
+        buf.b_ml.ml_line_count++;
+        buf.b_ml.ml_flags &= ~ML_EMPTY;
+        return true;
+    }
 
-        return ml_append_int(curbuf, lnum, line, len, newfile, false);
+    /*
+     * Put a line in the data block being filled, start a new block when it is full.
+     */
+    /*private*/ static boolean ml_bulk_add(mlbulk_C bk, Bytes line, int len, boolean mark)
+    {
+        if (len == 0)
+            len = strlen(line) + 1;
+        int space_needed = len + INDEX_SIZE;
+
+        data_block_C dp = (bk.bk_hp != null) ? (data_block_C)bk.bk_hp.bh_data : null;
+        if (dp == null || dp.db_free < space_needed)
+        {
+            ml_bulk_block(bk);
+
+            int page_count = (space_needed + DB_HEADER_SIZE + MEMFILE_PAGE_SIZE - 1) / MEMFILE_PAGE_SIZE;
+            bk.bk_hp = ml_new_data(bk.bk_buf.b_ml.ml_mfp, bk.bk_newfile, page_count);
+            if (bk.bk_hp == null)
+                return false;
+            dp = (data_block_C)bk.bk_hp.bh_data;
+        }
+
+        dp.db_txt_start -= len;
+        dp.db_free -= space_needed;
+        dp.db_index(dp.db_line_count, dp.db_txt_start | (mark ? DB_MARKED : 0));
+        dp.db_text_put(dp.db_txt_start, line, len);
+        dp.db_line_count++;
+        return true;
     }
 
-    /*private*/ static boolean ml_append_int(buffer_C buf, long lnum, Bytes line, int len, boolean newfile, boolean mark)
-        /* lnum: append after this line (can be 0) */
-        /* line: text of the new line */
-        /* len: length of line, including NUL, or 0 */
-        /* newfile: flag, see above */
-        /* mark: mark the new line */
+    /*
+     * Release the data block being filled and add an entry for it.
+     */
+    /*private*/ static void ml_bulk_block(mlbulk_C bk)
     {
-        if (buf.b_ml.ml_line_count < lnum || buf.b_ml.ml_mfp == null) /* lnum out of range */
-            return false;
+        block_hdr_C hp = bk.bk_hp;
+        if (hp == null)
+            return;
+        bk.bk_hp = null;
 
-        if (lowest_marked != 0 && lnum < lowest_marked)
-            lowest_marked = lnum + 1;
+        if (bk.bk_count == bk.bk_entries.length)
+        {
+            ptr_entry_C[] entries = ARRAY_ptr_entry(bk.bk_count * 2);
+            COPY__ptr_entry(entries, bk.bk_entries, bk.bk_count);
+            bk.bk_entries = entries;
+        }
+        ptr_entry_C pe = bk.bk_entries[bk.bk_count++];
+        pe.pe_bnum = hp.bh_bnum();
+        pe.pe_line_count = ((data_block_C)hp.bh_data).db_line_count;
+        pe.pe_page_count = hp.bh_page_count;
 
-        if (len == 0)
-            len = strlen(line) + 1;                /* space needed for the text */
-        int space_needed = len + INDEX_SIZE;            /* space needed for new line (text + index) */
+        mf_put(bk.bk_buf.b_ml.ml_mfp, hp, true, false);
+    }
+
+    /*
+     * Put the entries of "bk" in new pointer blocks, level by level,
+     * until no more than "max" entries are left.
+     */
+    /*private*/ static void ml_bulk_levels(mlbulk_C bk, int max)
+    {
+        memfile_C mfp = bk.bk_buf.b_ml.ml_mfp;
+
+        while (max < bk.bk_count)
+        {
+            int count = 0;
+            for (int i = 0; i < bk.bk_count; )
+            {
+                block_hdr_C hp = ml_new_ptr(mfp);
+                ptr_block_C pp = (ptr_block_C)hp.bh_data;
+
+                long line_count = 0;
+                for ( ; pp.pb_count < pp.pb_count_max && i < bk.bk_count; i++)
+                {
+                    COPY_ptr_entry(pp.pb_pointer[pp.pb_count++], bk.bk_entries[i]);
+                    line_count += bk.bk_entries[i].pe_line_count;
+                }
+
+                /* The entries of this block have been copied, its entry can take their place. */
+                ptr_entry_C pe = bk.bk_entries[count++];
+                pe.pe_bnum = hp.bh_bnum();
+                pe.pe_line_count = line_count;
+                pe.pe_page_count = 1;
+
+                mf_put(mfp, hp, true, false);
+            }
+            bk.bk_count = count;
+        }
+    }
+
+    /*
+     * Put the lines appended with "bk" in the tree.
+     * Also done by ml_find_line(), before it looks for a line.
+     * More lines can be appended with "bk" after this.
+     *
+     * Return false for failure, true otherwise.
+     */
+    /*private*/ static boolean ml_bulk_end(mlbulk_C bk)
+    {
+        buffer_C buf = bk.bk_buf;
+        if (buf.b_ml.ml_bulk != bk)             /* nothing to do */
+            return true;
+        buf.b_ml.ml_bulk = null;
+        ml_cache_clear(buf);
 
         memfile_C mfp = buf.b_ml.ml_mfp;
+        long lnum = bk.bk_lnum;
+        long count = bk.bk_line_count;
+        bk.bk_lnum += count;
+        bk.bk_line_count = 0;
+        buf.b_ml.ml_line_count -= count;        /* not in the tree yet */
 
         /*
-         * Find the data block containing the previous line.
-         * This also fills the stack with the blocks from the root to the data block.
-         * This also releases any locked block.
+         * When all lines are in one block, append them one by one instead:
+         * they may fit in the block they go into.
          */
-        block_hdr_C hp = ml_find_line(buf, (lnum == 0) ? 1 : lnum, ML_INSERT);
-        if (hp == null)
-            return false;
-
-        buf.b_ml.ml_flags &= ~ML_EMPTY;
+        if (bk.bk_count == 0)
+        {
+            block_hdr_C hp = bk.bk_hp;
+            bk.bk_hp = null;
+            if (hp == null)
+                return true;
 
-        int db_idx;                                         /* index for lnum in data block */
-        if (lnum == 0)                                      /* got line one instead, correct db_idx */
-            db_idx = -1;                                    /* careful, it is negative! */
-        else
-            db_idx = (int)(lnum - buf.b_ml.ml_locked_low);
+            data_block_C dp = (data_block_C)hp.bh_data;
+            Bytes line = new Bytes(hp.bh_page_count * MEMFILE_PAGE_SIZE);
+            boolean ok = true;
+            for (int idx = 0; ok && idx < dp.db_line_count; idx++)
+            {
+                int start = (dp.db_index(idx) & DB_INDEX_MASK);
+                int len = ((idx == 0) ? dp.db_txt_end : (dp.db_index(idx - 1) & DB_INDEX_MASK)) - start;
+                dp.db_text_get(start, line, len);
+                ok = ml_append_int(buf, lnum + idx, line, len, bk.bk_newfile, (dp.db_index(idx) & DB_MARKED) != 0);
+            }
+            mf_free(mfp, hp);
+            return ok;
+        }
 
-        int line_count;                                     /* number of indexes in current block */
-        /* get line count before the insertion */
-        line_count = (int)(buf.b_ml.ml_locked_high - buf.b_ml.ml_locked_low);
+        ml_bulk_block(bk);
 
-        data_block_C dp = (data_block_C)hp.bh_data;
+        if (lowest_marked != 0 && lnum < lowest_marked)
+            lowest_marked = lnum + 1;
 
         /*
-         * If
-         * - there is not enough room in the current block
-         * - appending to the last line in the block
-         * - not appending to the last line in the file
-         * insert in front of the next block.
+         * Find the data block containing line "lnum", the new blocks go after it.
+         * If "lnum" is not its last line, the lines after it are moved to a new block
+         * that goes after the new ones.  For line zero they go in front of the first block.
+         * This also fills the stack with the blocks from the root to the data block.
          */
-        if (dp.db_free < space_needed && db_idx == line_count - 1 && lnum < buf.b_ml.ml_line_count)
+        block_hdr_C hp = ml_find_line(buf, (lnum == 0) ? 1 : lnum, ML_FIND);
+        if (hp == null)
         {
-            /*
-             * Now that the line is not going to be inserted in the block that we expected,
-             * the line count has to be adjusted in the pointer blocks by using ml_locked_lineadd.
-             */
-            --buf.b_ml.ml_locked_lineadd;
-            --buf.b_ml.ml_locked_high;
-
-            hp = ml_find_line(buf, lnum + 1, ML_INSERT);
-            if (hp == null)
-                return false;
+            bk.bk_count = 0;
+            return false;
+        }
 
-            db_idx = -1;                                    /* careful, it is negative! */
-            /* get line count before the insertion */
-            line_count = (int)(buf.b_ml.ml_locked_high - buf.b_ml.ml_locked_low);
+        data_block_C dp = (data_block_C)hp.bh_data;
+        int line_count = (int)(buf.b_ml.ml_locked_high - buf.b_ml.ml_locked_low + 1);
+        int db_idx = (int)(lnum - buf.b_ml.ml_locked_low);
+        if (0 <= db_idx && db_idx < line_count - 1)
+        {
+            int lines_moved = line_count - db_idx - 1;
+            int data_moved = (dp.db_index(db_idx) & DB_INDEX_MASK) - dp.db_txt_start;
+            int total_moved = data_moved + lines_moved * INDEX_SIZE;
+            int page_count = (total_moved + DB_HEADER_SIZE + MEMFILE_PAGE_SIZE - 1) / MEMFILE_PAGE_SIZE;
+
+            block_hdr_C hp_new = ml_new_data(mfp, false, page_count);
+            data_block_C dp_new = (data_block_C)hp_new.bh_data;
+
+            dp_new.db_txt_start -= data_moved;
+            dp_new.db_free -= total_moved;
+            db_text_copy(dp_new, dp_new.db_txt_start, dp, dp.db_txt_start, data_moved);
+            int offset = dp_new.db_txt_start - dp.db_txt_start;
+            for (int from = db_idx + 1, to = 0; from < line_count; from++, to++)
+                dp_new.db_index(to, dp.db_index(from) + offset);
+            dp_new.db_line_count = lines_moved;
+
+            dp.db_txt_start += data_moved;
+            dp.db_free += total_moved;
+            dp.db_line_count -= lines_moved;
+            line_count -= lines_moved;
+            buf.b_ml.ml_flags |= (ML_LOCKED_DIRTY | ML_LOCKED_POS);
 
-            dp = (data_block_C)hp.bh_data;
+            bk.bk_hp = hp_new;
+            ml_bulk_block(bk);
         }
+        ml_find_line(buf, 0, ML_FLUSH);         /* release the data block */
 
-        buf.b_ml.ml_line_count++;
+        long bnum = hp.bh_bnum();
+        int page_count = hp.bh_page_count;
+        buf.b_ml.ml_line_count += count;
 
-        if (space_needed <= dp.db_free)                     /* enough room in data block */
+        /*
+         * When the entries fit in the pointer block above the data block, they are inserted there.
+         * Otherwise a single entry, for the top of the new pointer blocks, is inserted like for a
+         * split data block.
+         */
+        int top = buf.b_ml.ml_stack_top - 1;
+        infoptr_C ip = buf.b_ml.ml_stack[top];
+        block_hdr_C hp_ptr = mf_get(mfp, ip.ip_bnum, 1);
+        if (hp_ptr == null)
         {
-            /*
-             * Insert new line in existing data block, or in data block allocated above.
-             */
-            dp.db_txt_start -= len;
-            dp.db_free -= space_needed;
-            dp.db_line_count++;
+            bk.bk_count = 0;
+            return false;
+        }
+        ptr_block_C pp = (ptr_block_C)hp_ptr.bh_data;    /* must be pointer block */
 
-            /*
-             * move the text of the lines that follow to the front
-             * adjust the indexes of the lines that follow
-             */
-            if (db_idx + 1 < line_count)                    /* if there are following lines */
-            {
-                /*
-                 * 'over' is the start of the previous line.
-                 * This will become the character just after the new line.
-                 */
-                int from = dp.db_txt_start + len;
-                int over = (db_idx < 0) ? dp.db_txt_end : (dp.db_index[db_idx] & DB_INDEX_MASK);
-                BCOPY(dp.db_text, dp.db_txt_start, dp.db_text, from, over - from);
-                for (int i = line_count; db_idx < --i; )
-                    dp.db_index[i + 1] = dp.db_index[i] - len;
-                dp.db_index[db_idx + 1] = over - len;
-            }
-            else                                            /* add line at the end */
-                dp.db_index[db_idx + 1] = dp.db_txt_start;
+        int room = pp.pb_count_max - pp.pb_count;
+        ml_bulk_levels(bk, Math.max(room, 1));
 
-            /*
-             * copy the text into the block
-             */
-            BCOPY(dp.db_text, dp.db_index[db_idx + 1], line, 0, len);
-            if (mark)
-                dp.db_index[db_idx + 1] |= DB_MARKED;
+        boolean ok = true;
+        if (bk.bk_count <= room)
+        {
+            int pb_idx = (lnum == 0) ? ip.ip_index : ip.ip_index + 1;
+            pp.pb_pointer[ip.ip_index].pe_bnum = bnum;
+            pp.pb_pointer[ip.ip_index].pe_line_count = line_count;
+            for (int i = pp.pb_count; pb_idx <= --i; )
+                COPY_ptr_entry(pp.pb_pointer[i + bk.bk_count], pp.pb_pointer[i]);
+            for (int i = 0; i < bk.bk_count; i++)
+                COPY_ptr_entry(pp.pb_pointer[pb_idx + i], bk.bk_entries[i]);
+            pp.pb_count += bk.bk_count;
+            mf_put(mfp, hp_ptr, true, false);
 
-            /*
-             * Mark the block dirty.
-             */
-            buf.b_ml.ml_flags |= ML_LOCKED_DIRTY;
-            if (!newfile)
-                buf.b_ml.ml_flags |= ML_LOCKED_POS;
+            /* fix line count for the blocks above it in the stack */
+            buf.b_ml.ml_stack_top = top;
+            ml_lineadd(buf, (int)count);
         }
-        else                                                /* not enough space in data block */
+        else
         {
-            /*
-             * If there is not enough room we have to create a new data block
-             * and copy some lines into it.  Then we have to insert an entry
-             * in the pointer block.  If this pointer block also is full,
-             * we go up another block, and so on, up to the root if necessary.
-             * The line counts in the pointer blocks have already been adjusted
-             * by ml_find_line().
-             */
-            int lines_moved;
-            int data_moved = 0;
-            int total_moved = 0;
-            boolean in_left;
+            mf_put(mfp, hp_ptr, false, false);
 
-            /*
-             * We are going to allocate a new data block.  Depending on the
-             * situation it will be put to the left or right of the existing
-             * block.  If possible we put the new line in the left block and move
-             * the lines after it to the right block.  Otherwise the new line is
-             * also put in the right block.  This method is more efficient when
-             * inserting a lot of lines at one place.
-             */
-            if (db_idx < 0)                         /* left block is new, right block is existing */
-            {
-                lines_moved = 0;
-                in_left = true;                     /* space_needed does not change */
-            }
-            else                                    /* left block is existing, right block is new */
-            {
-                lines_moved = line_count - db_idx - 1;
-                if (lines_moved == 0)               /* put new line in right block */
-                    in_left = false;                /* space_needed does not change */
-                else
-                {
-                    data_moved = (dp.db_index[db_idx] & DB_INDEX_MASK) - dp.db_txt_start;
-                    total_moved = data_moved + lines_moved * INDEX_SIZE;
-                    if (space_needed <= dp.db_free + total_moved)
-                    {
-                        in_left = true;             /* put new line in left block */
-                        space_needed = total_moved;
-                    }
-                    else
-                    {
-                        in_left = false;            /* put new line in right block */
-                        space_needed += total_moved;
-                    }
-                }
-            }
+            ptr_entry_C pe = bk.bk_entries[0];
+            if (lnum == 0)
+                ok = ml_insert_ptr(buf, (int)count, pe.pe_bnum, pe.pe_line_count, pe.pe_page_count,
+                                                    bnum, line_count, page_count);
+            else
+                ok = ml_insert_ptr(buf, (int)count, bnum, line_count, page_count,
+                                                    pe.pe_bnum, pe.pe_line_count, pe.pe_page_count);
+        }
+        buf.b_ml.ml_stack_top = 0;
+        bk.bk_count = 0;
+
+        ml_bulk_chunks(buf, lnum, count);
+
+        return ok;
+    }
+
+    /*
+     * Update the chunks for "count" lines inserted below line "lnum" by ml_bulk_end().
+     * The lines are added to the chunk of "lnum"; when it gets too big,
+     * it is split in the lines before, chunks of the new lines, and the lines after.
+     */
+    /*private*/ static void ml_bulk_chunks(buffer_C buf, long lnum, long count)
+    {
+        if (buf.b_ml.ml_usedchunks == -1)
+            return;
 
-            int page_count = (space_needed + MEMFILE_PAGE_SIZE - 1) / MEMFILE_PAGE_SIZE;
-            block_hdr_C hp_new = ml_new_data(mfp, newfile, page_count);
+        if (buf.b_ml.ml_chunksize == null)
+        {
+            buf.b_ml.ml_chunksize = ARRAY_chunksize(100);
+            buf.b_ml.ml_numchunks = 100;
+            buf.b_ml.ml_usedchunks = 1;
+            buf.b_ml.ml_chunksize[0].mlcs_numlines = 1;
+            buf.b_ml.ml_chunksize[0].mlcs_totalsize = 1;
+            ml_chunk_moved(buf);
+        }
+        ml_upd_lastbuf = null;      /* Force recalc of curix & curline. */
 
-            block_hdr_C hp_left, hp_right;
-            int line_count_left, line_count_right;
-            if (db_idx < 0)         /* left block is new */
+        long[] pos = new long[2];
+        int curix = ml_chunk_find(buf, lnum, 0, false, pos);     /* first chunk for line zero */
+        long curline = pos[0];
+
+        chunksize_C cp = buf.b_ml.ml_chunksize[curix];
+        if (cp.mlcs_numlines + count < MLCS_MAXL)
+        {
+            long size = ml_bulk_size(buf, lnum + 1, lnum + count);
+            if (size < 0)
             {
-                hp_left = hp_new;
-                hp_right = hp;
-                line_count_left = 0;
-                line_count_right = line_count;
+                buf.b_ml.ml_usedchunks = -1;
+                return;
             }
-            else                    /* right block is new */
+            ml_chunk_add(buf, curix, (int)count, size);
+            return;
+        }
+
+        int lines_before = (int)(lnum - curline + 1);
+        int lines_after = cp.mlcs_numlines - lines_before;
+        long size_before = (0 < lines_before) ? ml_bulk_size(buf, curline, lnum) : 0;
+        long size_after = cp.mlcs_totalsize - size_before;
+        int n = (int)((count + MLCS_MINL - 1) / MLCS_MINL) + (0 < lines_before ? 1 : 0) + (0 < lines_after ? 1 : 0);
+
+        if (buf.b_ml.ml_numchunks <= buf.b_ml.ml_usedchunks + n)
+        {
+            buf.b_ml.ml_numchunks = (buf.b_ml.ml_usedchunks + n) * 3 / 2;
+            chunksize_C[] chunks = ARRAY_chunksize(buf.b_ml.ml_numchunks);
+            for (int i = 0; i < buf.b_ml.ml_usedchunks; i++)
+                COPY_chunksize(chunks[i], buf.b_ml.ml_chunksize[i]);
+            buf.b_ml.ml_chunksize = chunks;
+        }
+        chunksize_C[] chunks = buf.b_ml.ml_chunksize;
+        for (int i = buf.b_ml.ml_usedchunks; curix < --i; )
+            COPY_chunksize(chunks[i + n - 1], chunks[i]);
+        buf.b_ml.ml_usedchunks += n - 1;
+        ml_chunk_moved(buf);
+
+        if (0 < lines_before)
+        {
+            chunks[curix].mlcs_numlines = lines_before;
+            chunks[curix++].mlcs_totalsize = size_before;
+        }
+        for (long l = lnum + 1; l <= lnum + count; l += MLCS_MINL)
+        {
+            int numlines = (int)Math.min(MLCS_MINL, lnum + count - l + 1);
+            long size = ml_bulk_size(buf, l, l + numlines - 1);
+            if (size < 0)
             {
-                hp_left = hp;
-                hp_right = hp_new;
-                line_count_left = line_count;
-                line_count_right = 0;
+                buf.b_ml.ml_usedchunks = -1;
+                return;
             }
-            data_block_C dp_left = (data_block_C)hp_left.bh_data;
-            data_block_C dp_right = (data_block_C)hp_right.bh_data;
-            long bnum_left = hp_left.bh_bnum();
-            long bnum_right = hp_right.bh_bnum();
-            int page_count_left = hp_left.bh_page_count;
-            int page_count_right = hp_right.bh_page_count;
+            chunks[curix].mlcs_numlines = numlines;
+            chunks[curix++].mlcs_totalsize = size;
+        }
+        if (0 < lines_after)
+        {
+            chunks[curix].mlcs_numlines = lines_after;
+            chunks[curix].mlcs_totalsize = size_after;
+        }
+    }
 
-            /*
-             * May move the new line into the right/new block.
-             */
-            if (!in_left)
-            {
-                dp_right.db_txt_start -= len;
-                dp_right.db_free -= len + INDEX_SIZE;
-                dp_right.db_index[0] = dp_right.db_txt_start;
-                if (mark)
-                    dp_right.db_index[0] |= DB_MARKED;
+    /*
+     * Return the number of bytes in lines "from" to "to", including NULs, -1 for failure.
+     */
+    /*private*/ static long ml_bulk_size(buffer_C buf, long from, long to)
+    {
+        long size = 0;
 
-                BCOPY(dp_right.db_text, dp_right.db_txt_start, line, 0, len);
-                line_count_right++;
-            }
-            /*
-             * may move lines from the left/old block to the right/new one.
-             */
-            if (lines_moved != 0)
-            {
-                dp_right.db_txt_start -= data_moved;
-                dp_right.db_free -= total_moved;
-                BCOPY(dp_right.db_text, dp_right.db_txt_start, dp_left.db_text, dp_left.db_txt_start, data_moved);
-                int offset = dp_right.db_txt_start - dp_left.db_txt_start;
-                dp_left.db_txt_start += data_moved;
-                dp_left.db_free += total_moved;
+        for (long lnum = from; lnum <= to; )
+        {
+            block_hdr_C hp = ml_find_line(buf, lnum, ML_FIND);
+            if (hp == null)
+                return -1;
 
-                /*
-                 * update indexes in the new block
-                 */
-                for (int from = db_idx + 1, to = line_count_right; from < line_count_left; from++, to++)
-                    dp_right.db_index[to] = dp.db_index[from] + offset;
-                line_count_right += lines_moved;
-                line_count_left -= lines_moved;
-            }
+            data_block_C dp = (data_block_C)hp.bh_data;
+            int idx = (int)(lnum - buf.b_ml.ml_locked_low);
+            int last = (int)(Math.min(buf.b_ml.ml_locked_high, to) - buf.b_ml.ml_locked_low);
+            int text_end = (idx == 0) ? dp.db_txt_end : (dp.db_index(idx - 1) & DB_INDEX_MASK);
+            size += text_end - (dp.db_index(last) & DB_INDEX_MASK);
+            lnum += last - idx + 1;
+        }
 
-            /*
-             * May move the new line into the left (old or new) block.
-             */
-            if (in_left)
-            {
-                dp_left.db_txt_start -= len;
-                dp_left.db_free -= len + INDEX_SIZE;
-                dp_left.db_index[line_count_left] = dp_left.db_txt_start;
-                if (mark)
-                    dp_left.db_index[line_count_left] |= DB_MARKED;
-                BCOPY(dp_left.db_text, dp_left.db_txt_start, line, 0, len);
-                line_count_left++;
-            }
+        return size;
+    }
 
-            long lnum_left, lnum_right;
-            if (db_idx < 0)         /* left block is new */
-            {
-                lnum_left = lnum + 1;
-                lnum_right = 0;
-            }
-            else                    /* right block is new */
-            {
-                lnum_left = 0;
-                if (in_left)
-                    lnum_right = lnum + 2;
-                else
-                    lnum_right = lnum + 1;
-            }
-            dp_left.db_line_count = line_count_left;
-            dp_right.db_line_count = line_count_right;
+    /*
+     * Called while waiting for a character, with 'memcompact' set:
+     * compact the memline of buffers where many data blocks have become sparse.
+     */
+    /*private*/ static void ml_compact_all()
+    {
+        for (buffer_C buf = firstbuf; buf != null; buf = buf.b_next)
+            if (buf.b_ml.ml_mfp != null && buf.b_ml.ml_map == null && buf.b_ml.ml_hex == null && buf.b_ml.ml_lazy == null && ML_SPARSE_MAX <= buf.b_ml.ml_sparse)
+                ml_compact(buf);
+    }
 
-            /*
-             * release the two data blocks
-             * The new one (hp_new) already has a correct blocknumber.
-             * The old one (hp, in ml_locked) gets a positive blocknumber if
-             * we changed it and we are not editing a new file.
-             */
-            if (lines_moved != 0 || in_left)
-                buf.b_ml.ml_flags |= ML_LOCKED_DIRTY;
-            if (!newfile && 0 <= db_idx && in_left)
-                buf.b_ml.ml_flags |= ML_LOCKED_POS;
-            mf_put(mfp, hp_new, true, false);
+    /*private*/ static final int ML_SPARSE_MAX = 256;       /* sparse data blocks before compacting */
 
-            /*
-             * flush the old data block
-             * set ml_locked_lineadd to 0, because the updating of the
-             * pointer blocks is done below
-             */
-            int lineadd = buf.b_ml.ml_locked_lineadd;
-            buf.b_ml.ml_locked_lineadd = 0;
-            ml_find_line(buf, 0, ML_FLUSH);             /* flush data block */
+    /*
+     * Rebuild the tree of "buf" from full data blocks and pointer blocks, like ml_bulk_end() does.
+     * Deleting lines leaves data blocks that are mostly empty, see "ml_sparse".
+     */
+    /*private*/ static void ml_compact(buffer_C buf)
+    {
+        buf.b_ml.ml_sparse = 0;
+        ml_cache_clear(buf);
 
-            /*
-             * update pointer blocks for the new data block
-             */
-            int stack_idx;
-            for (stack_idx = buf.b_ml.ml_stack_top - 1; 0 <= stack_idx; --stack_idx)
-            {
-                infoptr_C ip = buf.b_ml.ml_stack[stack_idx];
-                int pb_idx = ip.ip_index;
-                if ((hp = mf_get(mfp, ip.ip_bnum, 1)) == null)
-                    return false;
+        mlbulk_C bk = ml_bulk_start(buf, 0, false);
+        ml_find_line(buf, 0, ML_FLUSH);         /* release the locked block */
+        buf.b_ml.ml_stack_top = 0;
 
-                ptr_block_C pp = (ptr_block_C)hp.bh_data; /* must be pointer block */
-                if (pp.pb_id != PTR_ID)
-                {
-                    emsg(u8("E317: pointer block id wrong 3"));
-                    mf_put(mfp, hp, false, false);
-                    return false;
-                }
+        /* Copy the lines into new blocks, then free the old ones. */
+        memfile_C mfp = buf.b_ml.ml_mfp;
+        if (!ml_compact_copy(bk, 1, false))
+        {
+            ml_bulk_block(bk);
+            for (int i = 0; i < bk.bk_count; i++)
+            {
+                ptr_entry_C pe = bk.bk_entries[i];
+                block_hdr_C hp = mf_get(mfp, pe.pe_bnum, pe.pe_page_count);
+                if (hp != null)
+                    mf_free(mfp, hp);
+            }
+            return;
+        }
+        ml_bulk_block(bk);
+        ml_compact_copy(bk, 1, true);
 
-                /*
-                 * TODO: If the pointer block is full and we are adding at the end,
-                 * try to insert in front of the next block.
-                 */
-                /* block not full, add one entry */
-                if (pp.pb_count < pp.pb_count_max)
-                {
-                    for (int i = pp.pb_count; pb_idx + 1 <= --i; )
-                        COPY_ptr_entry(pp.pb_pointer[i + 1], pp.pb_pointer[i]);
-                    pp.pb_count++;
-                    pp.pb_pointer[pb_idx].pe_line_count = line_count_left;
-                    pp.pb_pointer[pb_idx].pe_bnum = bnum_left;
-                    pp.pb_pointer[pb_idx].pe_page_count = page_count_left;
-                    pp.pb_pointer[pb_idx + 1].pe_line_count = line_count_right;
-                    pp.pb_pointer[pb_idx + 1].pe_bnum = bnum_right;
-                    pp.pb_pointer[pb_idx + 1].pe_page_count = page_count_right;
+        block_hdr_C hp = mf_get(mfp, 1, 1);
+        if (hp == null)
+            return;
 
-                    mf_put(mfp, hp, true, false);
-                    buf.b_ml.ml_stack_top = stack_idx + 1;  /* truncate stack */
+        ptr_block_C pp = (ptr_block_C)hp.bh_data;
+        ml_bulk_levels(bk, pp.pb_count_max);
+        for (int i = 0; i < bk.bk_count; i++)
+            COPY_ptr_entry(pp.pb_pointer[i], bk.bk_entries[i]);
+        pp.pb_count = bk.bk_count;
+        mf_put(mfp, hp, true, false);
+    }
 
-                    if (lineadd != 0)
-                    {
-                        --buf.b_ml.ml_stack_top;
-                        /* fix line count for rest of blocks in the stack */
-                        ml_lineadd(buf, lineadd);
-                                                            /* fix stack itself */
-                        buf.b_ml.ml_stack[buf.b_ml.ml_stack_top].ip_high += lineadd;
-                        buf.b_ml.ml_stack_top++;
-                    }
+    /*
+     * Go over the blocks below pointer block "bnum": append their lines to "bk",
+     * or, when "free" is true, free them.
+     *
+     * Return false for failure, true otherwise.
+     */
+    /*private*/ static boolean ml_compact_copy(mlbulk_C bk, long bnum, boolean free)
+    {
+        memfile_C mfp = bk.bk_buf.b_ml.ml_mfp;
 
-                    /*
-                     * We are finished, break the loop here.
-                     */
-                    break;
-                }
-                else                        /* pointer block full */
-                {
-                    ptr_block_C pp_new;
-                    /*
-                     * split the pointer block
-                     * allocate a new pointer block
-                     * move some of the pointer into the new block
-                     * prepare for updating the parent block
-                     */
-                    for ( ; ; )             /* do this twice when splitting block 1 */
-                    {
-                        hp_new = ml_new_ptr(mfp);
-                        pp_new = (ptr_block_C)hp_new.bh_data;
+        block_hdr_C hp = mf_get(mfp, bnum, 1);
+        if (hp == null)
+            return false;
 
-                        if (hp.bh_bnum() != 1)
-                            break;
+        ptr_block_C pp = (ptr_block_C)hp.bh_data;       /* must be pointer block */
+        boolean dirty = false;
+        boolean ok = true;
+        for (int i = 0; ok && i < pp.pb_count; i++)
+        {
+            ptr_entry_C pe = pp.pb_pointer[i];
 
-                        /*
-                         * if block 1 becomes full the tree is given an extra level
-                         * The pointers from block 1 are moved into the new block.
-                         * block 1 is updated to point to the new block
-                         * then continue to split the new block
-                         */
-                        COPY_ptr_block(pp_new, pp);
-                        pp.pb_count = 1;
-                        pp.pb_pointer[0].pe_bnum = hp_new.bh_bnum();
-                        pp.pb_pointer[0].pe_line_count = buf.b_ml.ml_line_count;
-                        pp.pb_pointer[0].pe_page_count = 1;
-                        mf_put(mfp, hp, true, false);           /* release block 1 */
-                        hp = hp_new;                            /* new block is to be split */
-                        pp = pp_new;
-                        ip.ip_index = 0;
-                        stack_idx++;                            /* do block 1 again later */
-                    }
+            /* a negative block number may have been changed */
+            if (pe.pe_bnum < 0)
+            {
+                long bnum2 = mf_trans_del(mfp, pe.pe_bnum);
+                if (pe.pe_bnum != bnum2)
+                {
+                    pe.pe_bnum = bnum2;
+                    dirty = true;
+                }
+            }
 
-                    /*
-                     * Move the pointers after the current one to the new block.
-                     * If there are none, the new entry will be in the new block.
-                     */
-                    total_moved = pp.pb_count - pb_idx - 1;
-                    if (total_moved != 0)
-                    {
-                        for (int i = 0; i < total_moved; i++)
-                            COPY_ptr_entry(pp_new.pb_pointer[i], pp.pb_pointer[pb_idx + 1 + i]);
-                        pp_new.pb_count = total_moved;
-                        pp.pb_count -= total_moved - 1;
-                        pp.pb_pointer[pb_idx + 1].pe_bnum = bnum_right;
-                        pp.pb_pointer[pb_idx + 1].pe_line_count = line_count_right;
-                        pp.pb_pointer[pb_idx + 1].pe_page_count = page_count_right;
-                    }
-                    else
+            block_hdr_C hp2 = mf_get(mfp, pe.pe_bnum, pe.pe_page_count);
+            if (hp2 == null)
+                ok = false;
+            else if (hp2.bh_data instanceof data_block_C)
+            {
+                if (free)
+                    mf_free(mfp, hp2);
+                else
+                {
+                    data_block_C dp = (data_block_C)hp2.bh_data;
+                    Bytes line = new Bytes(hp2.bh_page_count * MEMFILE_PAGE_SIZE);
+                    for (int idx = 0; ok && idx < dp.db_line_count; idx++)
                     {
-                        pp_new.pb_count = 1;
-                        pp_new.pb_pointer[0].pe_bnum = bnum_right;
-                        pp_new.pb_pointer[0].pe_line_count = line_count_right;
-                        pp_new.pb_pointer[0].pe_page_count = page_count_right;
+                        int start = (dp.db_index(idx) & DB_INDEX_MASK);
+                        int len = ((idx == 0) ? dp.db_txt_end : (dp.db_index(idx - 1) & DB_INDEX_MASK)) - start;
+                        dp.db_text_get(start, line, len);
+                        ok = ml_bulk_add(bk, line, len, (dp.db_index(idx) & DB_MARKED) != 0);
                     }
-                    pp.pb_pointer[pb_idx].pe_bnum = bnum_left;
-                    pp.pb_pointer[pb_idx].pe_line_count = line_count_left;
-                    pp.pb_pointer[pb_idx].pe_page_count = page_count_left;
-                    lnum_left = 0;
-                    lnum_right = 0;
-
-                    /*
-                     * recompute line counts
-                     */
-                    line_count_right = 0;
-                    for (int i = 0; i < pp_new.pb_count; i++)
-                        line_count_right += pp_new.pb_pointer[i].pe_line_count;
-                    line_count_left = 0;
-                    for (int i = 0; i < pp.pb_count; i++)
-                        line_count_left += pp.pb_pointer[i].pe_line_count;
-
-                    bnum_left = hp.bh_bnum();
-                    bnum_right = hp_new.bh_bnum();
-                    page_count_left = 1;
-                    page_count_right = 1;
-                    mf_put(mfp, hp, true, false);
-                    mf_put(mfp, hp_new, true, false);
+                    mf_put(mfp, hp2, false, false);
                 }
             }
-
-            /*
-             * Safety check: fallen out of for loop?
-             */
-            if (stack_idx < 0)
+            else
             {
-                emsg(u8("E318: Updated too many blocks?"));
-                buf.b_ml.ml_stack_top = 0;      /* invalidate stack */
+                mf_put(mfp, hp2, false, false);
+                ok = ml_compact_copy(bk, pe.pe_bnum, free);
+                if (free)
+                    mf_free(mfp, mf_get(mfp, pe.pe_bnum, 1));
             }
         }
 
-        /* The line was inserted below 'lnum'. */
-        ml_updatechunk(buf, lnum + 1, (long)len, ML_CHNK_ADDLINE);
-        return true;
+        mf_put(mfp, hp, dirty, false);
+        return ok;
     }
 
     /*
@@ -5298,11 +7635,14 @@ public class VimP
         if (curbuf.b_ml.ml_mfp == null && open_buffer(false, null, 0) == false)
             return false;
 
+        lazy_finish(curbuf);
+
         if (copy)
             line = STRDUP(line);
 
         if (curbuf.b_ml.ml_line_lnum != lnum)       /* other line buffered */
             ml_flush_line(curbuf);                  /* flush it */
+        ml_cache_clear(curbuf);
 
         curbuf.b_ml.ml_line_ptr = line;
         curbuf.b_ml.ml_line_lnum = lnum;
@@ -5321,6 +7661,7 @@ public class VimP
      */
     /*private*/ static boolean ml_delete(long lnum, boolean message)
     {
+        lazy_finish(curbuf);
         ml_flush_line(curbuf);
         return ml_delete_int(curbuf, lnum, message);
     }
@@ -5330,6 +7671,8 @@ public class VimP
         if (lnum < 1 || buf.b_ml.ml_line_count < lnum)
             return false;
 
+        ml_cache_clear(buf);
+
         if (lowest_marked != 0 && lnum < lowest_marked)
             lowest_marked--;
 
@@ -5369,12 +7712,12 @@ public class VimP
 
         --buf.b_ml.ml_line_count;
 
-        int line_start = (dp.db_index[idx] & DB_INDEX_MASK);
+        int line_start = (dp.db_index(idx) & DB_INDEX_MASK);
         int line_size;
         if (idx == 0)                           /* first line in block, text at the end */
             line_size = dp.db_txt_end - line_start;
         else
-            line_size = (dp.db_index[idx - 1] & DB_INDEX_MASK) - line_start;
+            line_size = (dp.db_index(idx - 1) & DB_INDEX_MASK) - line_start;
 
         /*
          * special case: If there is only one line in the data block it becomes empty.
@@ -5432,19 +7775,24 @@ public class VimP
              * delete the text by moving the next lines forwards
              */
             int text_start = dp.db_txt_start;
-            BCOPY(dp.db_text, text_start + line_size, dp.db_text, text_start, line_start - text_start);
+            db_text_copy(dp, text_start + line_size, dp, text_start, line_start - text_start);
 
             /*
              * delete the index by moving the next indexes backwards
              * Adjust the indexes for the text movement.
              */
             for (int i = idx; i < count - 1; i++)
-                dp.db_index[i] = dp.db_index[i + 1] + line_size;
+                dp.db_index(i, dp.db_index(i + 1) + line_size);
 
             dp.db_free += line_size + INDEX_SIZE;
             dp.db_txt_start += line_size;
             --dp.db_line_count;
 
+            /* count the blocks that become less than a quarter full, see ml_compact() */
+            int size = dp.db_txt_end - DB_HEADER_SIZE, used = size - dp.db_free;
+            if (used * 4 < size && size <= (used + line_size + INDEX_SIZE) * 4)
+                buf.b_ml.ml_sparse++;
+
             /*
              * mark the block dirty and make sure it is in the file (for recovery)
              */
@@ -5477,7 +7825,7 @@ public class VimP
             return;                     /* give error message? */
 
         data_block_C dp = (data_block_C)hp.bh_data;
-        dp.db_index[(int)(lnum - curbuf.b_ml.ml_locked_low)] |= DB_MARKED;
+        dp.db_index((int)(lnum - curbuf.b_ml.ml_locked_low), dp.db_index((int)(lnum - curbuf.b_ml.ml_locked_low)) | DB_MARKED);
         curbuf.b_ml.ml_flags |= ML_LOCKED_DIRTY;
     }
 
@@ -5486,7 +7834,7 @@ public class VimP
      */
     /*private*/ static long ml_firstmarked()
     {
-        if (curbuf.b_ml.ml_mfp == null)
+        if (curbuf.b_ml.ml_mfp == null || curbuf.b_ml.ml_map != null || curbuf.b_ml.ml_hex != null)
             return 0;
 
         /*
@@ -5507,9 +7855,9 @@ public class VimP
             data_block_C dp = (data_block_C)hp.bh_data;
 
             for (int i = (int)(lnum - curbuf.b_ml.ml_locked_low); lnum <= curbuf.b_ml.ml_locked_high; i++, lnum++)
-                if ((dp.db_index[i] & DB_MARKED) != 0)
+                if ((dp.db_index(i) & DB_MARKED) != 0)
                 {
-                    dp.db_index[i] &= DB_INDEX_MASK;
+                    dp.db_index(i, dp.db_index(i) & DB_INDEX_MASK);
                     curbuf.b_ml.ml_flags |= ML_LOCKED_DIRTY;
                     lowest_marked = lnum + 1;
                     return lnum;
@@ -5524,7 +7872,7 @@ public class VimP
      */
     /*private*/ static void ml_clearmarked()
     {
-        if (curbuf.b_ml.ml_mfp == null)     /* nothing to do */
+        if (curbuf.b_ml.ml_mfp == null || curbuf.b_ml.ml_map != null || curbuf.b_ml.ml_hex != null)  /* nothing to do */
             return;
 
         /*
@@ -5544,9 +7892,9 @@ public class VimP
             data_block_C dp = (data_block_C)hp.bh_data;
 
             for (int i = (int)(lnum - curbuf.b_ml.ml_locked_low); lnum <= curbuf.b_ml.ml_locked_high; i++, lnum++)
-                if ((dp.db_index[i] & DB_MARKED) != 0)
+                if ((dp.db_index(i) & DB_MARKED) != 0)
                 {
-                    dp.db_index[i] &= DB_INDEX_MASK;
+                    dp.db_index(i, dp.db_index(i) & DB_INDEX_MASK);
                     curbuf.b_ml.ml_flags |= ML_LOCKED_DIRTY;
                 }
         }
@@ -5574,21 +7922,24 @@ public class VimP
 
             long lnum = buf.b_ml.ml_line_lnum;
             Bytes new_line = buf.b_ml.ml_line_ptr;
+            ml_cache_clear(buf);
 
-            block_hdr_C hp = ml_find_line(buf, lnum, ML_FIND);
-            if (hp == null)
+            block_hdr_C hp = (buf.b_ml.ml_hex != null) ? null : ml_find_line(buf, lnum, ML_FIND);
+            if (buf.b_ml.ml_hex != null)
+                ml_hex_put(buf.b_ml.ml_hex, lnum, new_line);
+            else if (hp == null)
                 emsgn(u8("E320: Cannot find line %ld"), lnum);
             else
             {
                 data_block_C dp = (data_block_C)hp.bh_data;
 
                 int idx = (int)(lnum - buf.b_ml.ml_locked_low);
-                int start = (dp.db_index[idx] & DB_INDEX_MASK);
+                int start = (dp.db_index(idx) & DB_INDEX_MASK);
                 int old_len;
                 if (idx == 0)                               /* line is last in block */
                     old_len = dp.db_txt_end - start;
                 else                                        /* text of previous line follows */
-                    old_len = (dp.db_index[idx - 1] & DB_INDEX_MASK) - start;
+                    old_len = (dp.db_index(idx - 1) & DB_INDEX_MASK) - start;
                 int new_len = strlen(new_line) + 1;
                 int extra = new_len - old_len;              /* negative if lines gets smaller */
 
@@ -5602,20 +7953,20 @@ public class VimP
                     if (extra != 0 && idx < count - 1)
                     {
                         /* move text of following lines */
-                        BCOPY(dp.db_text, dp.db_txt_start - extra, dp.db_text, dp.db_txt_start, start - dp.db_txt_start);
+                        db_text_copy(dp, dp.db_txt_start - extra, dp, dp.db_txt_start, start - dp.db_txt_start);
 
                         /* adjust pointers of this and following lines */
                         for (int i = idx + 1; i < count; i++)
-                            dp.db_index[i] -= extra;
+                            dp.db_index(i, dp.db_index(i) - extra);
                     }
-                    dp.db_index[idx] -= extra;
+                    dp.db_index(idx, dp.db_index(idx) - extra);
 
                     /* adjust free space */
                     dp.db_free -= extra;
                     dp.db_txt_start -= extra;
 
                     /* copy new line into the data block */
-                    BCOPY(dp.db_text, start - extra, new_line, 0, new_len);
+                    dp.db_text_put(start - extra, new_line, new_len);
                     buf.b_ml.ml_flags |= (ML_LOCKED_DIRTY | ML_LOCKED_POS);
                     /* The else case is already covered by the insert and delete. */
                     ml_updatechunk(buf, lnum, (long)extra, ML_CHNK_UPDLINE);
@@ -5629,7 +7980,7 @@ public class VimP
                      * Don't forget to copy the mark!
                      */
                     /* How about handling errors??? */
-                    ml_append_int(buf, lnum, new_line, new_len, false, (dp.db_index[idx] & DB_MARKED) != 0);
+                    ml_append_int(buf, lnum, new_line, new_len, false, (dp.db_index(idx) & DB_MARKED) != 0);
                     ml_delete_int(buf, lnum, false);
                 }
             }
@@ -5648,20 +7999,120 @@ public class VimP
         return mf_new(mfp, false, new zero_block_C(), 1);
     }
 
-    /*
-     * create a new, empty, pointer block
-     */
-    /*private*/ static block_hdr_C ml_new_ptr(memfile_C mfp)
-    {
-        return mf_new(mfp, false, new ptr_block_C(), 1);
+    /*
+     * create a new, empty, pointer block
+     */
+    /*private*/ static block_hdr_C ml_new_ptr(memfile_C mfp)
+    {
+        return mf_new(mfp, false, new ptr_block_C(), 1);
+    }
+
+    /*
+     * create a new, empty, data block
+     */
+    /*private*/ static block_hdr_C ml_new_data(memfile_C mfp, boolean negative, int page_count)
+    {
+        return mf_new(mfp, negative, new data_block_C(page_count), page_count);
+    }
+
+    /*
+     * Block "data" of a memfile is no longer used.
+     */
+    /*private*/ static void ml_free_block(Object data)
+    {
+        if (data instanceof data_block_C)
+            db_release((data_block_C)data);
+    }
+
+    /*
+     * Convert block "data" into the "size" bytes that are written to the swap file.
+     */
+    /*private*/ static Bytes ml_pack_block(Object data, int size)
+    {
+        Bytes page = new Bytes(size);
+        ByteBuffer bb = page.buf();
+
+        if (data instanceof data_block_C)
+        {
+            data_block_C dp = (data_block_C)data;
+
+            bb.putShort(0, dp.db_id);
+            bb.putInt(4, dp.db_free);
+            bb.putInt(8, dp.db_txt_start);
+            bb.putInt(12, dp.db_txt_end);
+            bb.putInt(16, dp.db_line_count);
+            for (int i = 0; i < dp.db_line_count; i++)
+                bb.putInt(DB_HEADER_SIZE + i * INDEX_SIZE, dp.db_index(i));
+            dp.db_text_get(dp.db_txt_start, page.plus(dp.db_txt_start), dp.db_txt_end - dp.db_txt_start);
+        }
+        else if (data instanceof ptr_block_C)
+        {
+            ptr_block_C pp = (ptr_block_C)data;
+
+            bb.putShort(0, pp.pb_id);
+            bb.putInt(4, pp.pb_count);
+            for (int i = 0, off = PB_HEADER_SIZE; i < pp.pb_count; i++, off += PE_SIZE)
+            {
+                bb.putLong(off, pp.pb_pointer[i].pe_bnum);
+                bb.putLong(off + 8, pp.pb_pointer[i].pe_line_count);
+                bb.putInt(off + 16, pp.pb_pointer[i].pe_page_count);
+            }
+        }
+        else
+        {
+            zero_block_C b0p = (zero_block_C)data;
+
+            bb.putShort(0, b0p.b0_id);
+        }
+
+        return page;
     }
 
     /*
-     * create a new, empty, data block
+     * Convert a "page_count" pages block read from the swap file back into a block.
+     *
+     * Return null when the block id is not recognized.
      */
-    /*private*/ static block_hdr_C ml_new_data(memfile_C mfp, boolean negative, int page_count)
+    /*private*/ static Object ml_unpack_block(Bytes page, int page_count)
     {
-        return mf_new(mfp, negative, new data_block_C(page_count), page_count);
+        ByteBuffer bb = page.buf();
+
+        switch (bb.getShort(0))
+        {
+            case DATA_ID:
+            {
+                data_block_C dp = new data_block_C(page_count);
+
+                dp.db_free = bb.getInt(4);
+                dp.db_txt_start = bb.getInt(8);
+                dp.db_txt_end = bb.getInt(12);
+                dp.db_line_count = bb.getInt(16);
+                for (int i = 0; i < dp.db_line_count; i++)
+                    dp.db_index(i, bb.getInt(DB_HEADER_SIZE + i * INDEX_SIZE));
+                dp.db_text_put(dp.db_txt_start, page.plus(dp.db_txt_start), dp.db_txt_end - dp.db_txt_start);
+                return dp;
+            }
+
+            case PTR_ID:
+            {
+                ptr_block_C pp = new ptr_block_C();
+
+                pp.pb_count = bb.getInt(4);
+                for (int i = 0, off = PB_HEADER_SIZE; i < pp.pb_count; i++, off += PE_SIZE)
+                {
+                    pp.pb_pointer[i].pe_bnum = bb.getLong(off);
+                    pp.pb_pointer[i].pe_line_count = bb.getLong(off + 8);
+                    pp.pb_pointer[i].pe_page_count = bb.getInt(off + 16);
+                }
+                return pp;
+            }
+
+            case B0_ID:
+                return new zero_block_C();
+        }
+
+        emsg(u8("E310: Block id wrong"));
+        return null;
     }
 
     /*
@@ -5681,6 +8132,16 @@ public class VimP
      */
     /*private*/ static block_hdr_C ml_find_line(buffer_C buf, long lnum, int action)
     {
+        /* The lines of a mapped file or a hex view are only put in the memfile when needed. */
+        if (buf.b_ml.ml_map != null)
+            ml_unmap(buf);
+        if (buf.b_ml.ml_hex != null)
+            ml_hex_unview(buf);
+
+        /* Lines appended in bulk are put in the tree first. */
+        if (buf.b_ml.ml_bulk != null)
+            ml_bulk_end(buf.b_ml.ml_bulk);
+
         memfile_C mfp = buf.b_ml.ml_mfp;
 
         /*
@@ -6001,6 +8462,7 @@ public class VimP
     /*
      * Set the flags in the first block of the swap file:
      * - file is modified or not: buf.b_changed
+     * Also starts or drops the journal, see ml_journal_flags().
      */
     /*private*/ static void ml_setflags(buffer_C buf)
     {
@@ -6015,6 +8477,305 @@ public class VimP
                 break;
             }
         }
+
+        ml_journal_flags(buf);
+    }
+
+    /*
+     * Start the journal of "buf" when it gets changed and 'journal' is set.
+     * Drop it when the changes were written or undone, there is nothing to recover then.
+     */
+    /*private*/ static void ml_journal_flags(buffer_C buf)
+    {
+        memfile_C mfp = buf.b_ml.ml_mfp;
+
+        if (!buf.b_changed[0])
+            mf_journal_close(mfp, true);
+        else if (p_jnl[0] && mfp.mf_journal == null && buf.b_ffname != null)
+            mf_journal_open(mfp, buf.b_ffname, null);
+    }
+
+    /*
+     * Journal the changes made to the buffers since the last time.
+     * The cached line and the locked block are flushed to the memfile first.
+     * Called when waiting for a character.
+     */
+    /*private*/ static void ml_journal_sync_all()
+    {
+        for (buffer_C buf = firstbuf; buf != null; buf = buf.b_next)
+        {
+            memfile_C mfp = buf.b_ml.ml_mfp;
+            if (mfp == null || mfp.mf_journal == null)
+                continue;
+
+            if ((buf.b_ml.ml_flags & ML_LINE_DIRTY) != 0)
+                ml_flush_line(buf);
+            if (buf.b_ml.ml_locked != null && (buf.b_ml.ml_flags & ML_LOCKED_DIRTY) != 0)
+                ml_find_line(buf, 0, ML_FLUSH);
+            if (mfp.mf_journal.jn_pending_count != 0)
+                mf_journal_sync(mfp);
+
+            if (mfp.mf_journal.jn_error)
+            {
+                emsg2(u8("E297: Write error in journal \"%s\""), mfp.mf_journal.jn_fname);
+                mf_journal_close(mfp, false);
+            }
+        }
+    }
+
+    /*
+     * Journal some more of the trees of the buffers whose journal was started recently.
+     * Called when waiting for a character.
+     *
+     * Return true when there is more to do.
+     */
+    /*private*/ static boolean ml_journal_walk_all()
+    {
+        boolean more = false;
+
+        for (buffer_C buf = firstbuf; buf != null; buf = buf.b_next)
+        {
+            memfile_C mfp = buf.b_ml.ml_mfp;
+            if (mfp != null && mfp.mf_journal != null && mfp.mf_journal.jn_walk_count != 0)
+                if (mf_journal_step(mfp))
+                    more = true;
+        }
+
+        return more;
+    }
+
+    /*
+     * Journal what is pending and stop journaling, keeping the journals.
+     * Used when Vim is killed by a signal.
+     */
+    /*private*/ static void ml_journal_keep_all()
+    {
+        ml_journal_sync_all();
+        while (ml_journal_walk_all())
+            ;
+
+        for (buffer_C buf = firstbuf; buf != null; buf = buf.b_next)
+            if (buf.b_ml.ml_mfp != null)
+                mf_journal_close(buf.b_ml.ml_mfp, false);
+    }
+
+    /*
+     * ":recover": replace the text of the current buffer with the text in journal "jname",
+     * or in the journal of the file of the buffer when "jname" is null.
+     * The records are replayed into a table with the last one for each block number,
+     * the tree is then walked from the root block, like ml_find_line() does.
+     * The line counts in the pointer blocks are not used, they may be behind.
+     */
+    /*private*/ static void ml_recover(Bytes jname)
+    {
+        if (jname == null)
+        {
+            if (curbuf.b_ffname == null)
+            {
+                emsg(e_noname);
+                return;
+            }
+            jname = mf_journal_name(curbuf.b_ffname, 'l');
+        }
+
+        int fd = libC.open(jname, O_RDONLY, 0);
+        if (fd < 0)
+        {
+            emsg2(u8("E305: No journal found for %s"), jname);
+            return;
+        }
+
+        Bytes jb = null;
+        int size = 0;
+        long len = libc.lseek(fd, 0L, SEEK_END);
+        if (0 <= len && len < Integer.MAX_VALUE && libc.lseek(fd, 0L, SEEK_SET) == 0)
+        {
+            jb = new Bytes((int)len + 1);
+            for (int n; size < len && 0 < (n = read_eintr(fd, jb.plus(size), (int)len - size)); )
+                size += n;
+        }
+        libc.close(fd);
+
+        if (jb == null || size != len)
+        {
+            emsg2(u8("E306: Cannot open %s"), jname);
+            return;
+        }
+        int off = JN_MAGIC.size();
+        if (size < off || STRNCMP(jb, JN_MAGIC, off) != 0)
+        {
+            emsg2(u8("E307: %s does not look like a Vim journal"), jname);
+            return;
+        }
+        off += strlen(jb.plus(off)) + 1;
+
+        mf_hashtab_C blocks = new mf_hashtab_C();
+        mf_hashtab_C trans = new mf_hashtab_C();
+        mf_hash_init(blocks);
+        mf_hash_init(trans);
+
+        ByteBuffer bb = jb.buf();
+        boolean torn = false;
+        while (off < size)
+        {
+            if (size - off < JR_HEADER_SIZE)
+            {
+                torn = true;
+                break;
+            }
+            int type = bb.getInt(off);
+            long nr1 = bb.getLong(off + 4);
+            long nr2 = bb.getLong(off + 12);
+
+            if (type == JR_BLOCK)
+            {
+                if (nr2 <= 0 || (size - off - JR_HEADER_SIZE) / MEMFILE_PAGE_SIZE < nr2)
+                {
+                    torn = true;
+                    break;
+                }
+                int n = (int)nr2 * MEMFILE_PAGE_SIZE;
+
+                CRC32 crc = new CRC32();
+                crc.update(jb.array, off + JR_HEADER_SIZE, n);
+                if ((int)crc.getValue() != bb.getInt(off + 20))
+                {
+                    torn = true;
+                    break;
+                }
+
+                ml_recover_set(blocks, nr1, off);
+                off += JR_HEADER_SIZE + n;
+            }
+            else if (type == JR_TRANS)
+            {
+                /* The block keeps its text under the new number. */
+                Object item = mf_hash_find(blocks, nr1);
+                if (item != null)
+                    ml_recover_set(blocks, nr2, item);
+                ml_recover_set(trans, nr1, nr2);
+                off += JR_HEADER_SIZE;
+            }
+            else
+            {
+                torn = true;
+                break;
+            }
+        }
+
+        long old_count = curbuf.b_ml.ml_line_count;
+        boolean was_empty = ((curbuf.b_ml.ml_flags & ML_EMPTY) != 0);
+
+        /* The journal of this buffer is started anew below. */
+        mf_journal_close(curbuf.b_ml.ml_mfp, true);
+
+        mlbulk_C bk = ml_bulk_start(curbuf, 0, false);
+        int[] errors = { 0 };
+        ml_recover_tree(bk, jb, blocks, trans, 1L, 0, errors);
+        if (!ml_bulk_end(bk))
+            errors[0]++;
+
+        /* Delete the lines that were in the buffer before. */
+        long lnum = curbuf.b_ml.ml_line_count - (was_empty ? 1 : old_count);
+        while (lnum < curbuf.b_ml.ml_line_count && (curbuf.b_ml.ml_flags & ML_EMPTY) == 0)
+            ml_delete(curbuf.b_ml.ml_line_count, false);
+
+        u_blockfree(curbuf);
+        u_clearall(curbuf);
+
+        curbuf.b_flags |= BF_RECOVERED;
+        boolean journaled = (p_jnl[0] && curbuf.b_ffname != null && mf_journal_open(curbuf.b_ml.ml_mfp, curbuf.b_ffname, jname));
+
+        changed_lines(1, 0, old_count + 1, lnum - old_count);
+        check_cursor();
+        redraw_curbuf_later(NOT_VALID);
+
+        if (torn || errors[0] != 0)
+        {
+            if (torn)
+                msg(u8("The end of the journal was cut short, the last changes may be missing"));
+            if (errors[0] != 0)
+                emsg(u8("E312: Errors detected while recovering; look for lines starting with ???"));
+        }
+        else
+            msg(u8("Recovery completed. You should check if everything is OK."));
+        if (!journaled)
+        {
+            vim_snprintf(ioBuff, IOSIZE, u8("You may want to delete the journal \"%s\" now."), jname);
+            msg(ioBuff);
+        }
+    }
+
+    /*
+     * Put "item" under "key" in hashtable "mht", replacing what was there.
+     */
+    /*private*/ static void ml_recover_set(mf_hashtab_C mht, long key, Object item)
+    {
+        if (mf_hash_find(mht, key) != null)
+            mf_hash_rem_item(mht, key);
+        mf_hash_add_item(mht, key, item);
+    }
+
+    /*
+     * Append the lines under block "nr" of the journal "jb" with "bk".
+     * For a missing or damaged block a line starting with "???" is appended and "errors" counted.
+     */
+    /*private*/ static void ml_recover_tree(mlbulk_C bk, Bytes jb, mf_hashtab_C blocks, mf_hashtab_C trans, long nr, int depth, int[] errors)
+    {
+        if (nr < 0)
+        {
+            Object item = mf_hash_find(trans, nr);
+            if (item != null)
+                nr = (Long)item;
+        }
+
+        Object item = mf_hash_find(blocks, nr);
+        if (item == null || 100 < depth)
+        {
+            ml_bulk_append(bk, u8("???BLOCK MISSING"), 0);
+            errors[0]++;
+            return;
+        }
+
+        ByteBuffer bb = jb.buf();
+        int off = (Integer)item;
+        int size = (int)bb.getLong(off + 12) * MEMFILE_PAGE_SIZE;
+        off += JR_HEADER_SIZE;
+
+        switch (bb.getShort(off))
+        {
+            case PTR_ID:
+            {
+                int count = bb.getInt(off + 4);
+                if (count < 0 || (size - PB_HEADER_SIZE) / PE_SIZE < count)
+                    break;
+                for (int i = 0, pe = off + PB_HEADER_SIZE; i < count; i++, pe += PE_SIZE)
+                    ml_recover_tree(bk, jb, blocks, trans, bb.getLong(pe), depth + 1, errors);
+                return;
+            }
+
+            case DATA_ID:
+            {
+                int count = bb.getInt(off + 16);
+                if (count < 0 || (size - DB_HEADER_SIZE) / INDEX_SIZE < count)
+                    break;
+                for (int i = 0; i < count; i++)
+                {
+                    int idx = bb.getInt(off + DB_HEADER_SIZE + i * INDEX_SIZE) & DB_INDEX_MASK;
+                    if (idx < DB_HEADER_SIZE || size <= idx)
+                    {
+                        ml_bulk_append(bk, u8("???LINE MISSING"), 0);
+                        errors[0]++;
+                    }
+                    else
+                        ml_bulk_append(bk, jb.plus(off + idx), 0);
+                }
+                return;
+            }
+        }
+
+        ml_bulk_append(bk, u8("???BLOCK DAMAGED"), 0);
+        errors[0]++;
     }
 
     /*private*/ static final int MLCS_MAXL = 800;   /* max no of lines in chunk */
@@ -6025,6 +8786,104 @@ public class VimP
     /*private*/ static long         ml_upd_lastcurline;
     /*private*/ static int          ml_upd_lastcurix;
 
+    /*
+     * The counts of the chunks up to a chunk are found with binary indexed (Fenwick) trees,
+     * "ml_chunktree_lines" and "ml_chunktree_bytes", in O(log n) for n chunks.
+     * Changing the counts of a chunk updates the trees, also in O(log n).
+     * When chunks are split or joined, the trees are rebuilt the next time they are needed.
+     */
+    /*private*/ static void ml_chunk_tree(buffer_C buf)
+    {
+        int n = buf.b_ml.ml_usedchunks;
+        if (buf.b_ml.ml_chunktree_count == n)
+            return;
+
+        if (buf.b_ml.ml_chunktree_lines == null || buf.b_ml.ml_chunktree_lines.length <= n)
+        {
+            buf.b_ml.ml_chunktree_lines = new int[buf.b_ml.ml_numchunks + 1];
+            buf.b_ml.ml_chunktree_bytes = new long[buf.b_ml.ml_numchunks + 1];
+        }
+        int[] lines = buf.b_ml.ml_chunktree_lines;
+        long[] bytes = buf.b_ml.ml_chunktree_bytes;
+
+        for (int i = 1; i <= n; i++)
+        {
+            lines[i] = buf.b_ml.ml_chunksize[i - 1].mlcs_numlines;
+            bytes[i] = buf.b_ml.ml_chunksize[i - 1].mlcs_totalsize;
+        }
+        for (int i = 1; i <= n; i++)
+        {
+            int j = i + (i & -i);
+            if (j <= n)
+            {
+                lines[j] += lines[i];
+                bytes[j] += bytes[i];
+            }
+        }
+
+        buf.b_ml.ml_chunktree_count = n;
+    }
+
+    /*
+     * The chunks were split or joined, rebuild the trees when needed.
+     */
+    /*private*/ static void ml_chunk_moved(buffer_C buf)
+    {
+        buf.b_ml.ml_chunktree_count = 0;
+    }
+
+    /*
+     * Add "lines" and "bytes" to chunk "ix".
+     */
+    /*private*/ static void ml_chunk_add(buffer_C buf, int ix, int lines, long bytes)
+    {
+        buf.b_ml.ml_chunksize[ix].mlcs_numlines += lines;
+        buf.b_ml.ml_chunksize[ix].mlcs_totalsize += bytes;
+
+        int n = buf.b_ml.ml_chunktree_count;
+        if (n == buf.b_ml.ml_usedchunks)
+            for (int i = ix + 1; i <= n; i += (i & -i))
+            {
+                buf.b_ml.ml_chunktree_lines[i] += lines;
+                buf.b_ml.ml_chunktree_bytes[i] += bytes;
+            }
+    }
+
+    /*
+     * Find the last chunk before the one containing line "lnum", or, when "lnum" is zero,
+     * the one containing byte "offset", where each line counts one more byte when "ffdos" is set.
+     * The last chunk is special because it will never qualify.
+     * Return the index of the chunk, "posp" gets its first line and the byte count before it.
+     */
+    /*private*/ static int ml_chunk_find(buffer_C buf, long lnum, long offset, boolean ffdos, long[] posp)
+    {
+        ml_chunk_tree(buf);
+
+        int[] lines = buf.b_ml.ml_chunktree_lines;
+        long[] bytes = buf.b_ml.ml_chunktree_bytes;
+        int n = buf.b_ml.ml_usedchunks - 1;
+
+        int ix = 0;
+        long line_count = 0, size = 0;
+        for (int step = Integer.highestOneBit(Math.max(n, 1)); 0 < step; step >>>= 1)
+        {
+            int i = ix + step;
+            if (n < i)
+                continue;
+            if ((lnum != 0 && line_count + lines[i] < lnum)
+             || (lnum == 0 && size + bytes[i] + (ffdos ? line_count + lines[i] : 0) < offset))
+            {
+                ix = i;
+                line_count += lines[i];
+                size += bytes[i];
+            }
+        }
+
+        posp[0] = line_count + 1;
+        posp[1] = size;
+        return ix;
+    }
+
     /*
      * Keep information for finding byte offset of a line, updtype may be one of:
      * ML_CHNK_ADDLINE: Add len to parent chunk, possibly splitting it.
@@ -6047,6 +8906,7 @@ public class VimP
             buf.b_ml.ml_usedchunks = 1;
             buf.b_ml.ml_chunksize[0].mlcs_numlines = 1;
             buf.b_ml.ml_chunksize[0].mlcs_totalsize = 1;
+            ml_chunk_moved(buf);
         }
 
         if (updtype == ML_CHNK_UPDLINE && buf.b_ml.ml_line_count == 1)
@@ -6057,6 +8917,7 @@ public class VimP
             buf.b_ml.ml_usedchunks = 1;
             buf.b_ml.ml_chunksize[0].mlcs_numlines = 1;
             buf.b_ml.ml_chunksize[0].mlcs_totalsize = strlen(buf.b_ml.ml_line_ptr) + 1;
+            ml_chunk_moved(buf);
             return;
         }
 
@@ -6065,13 +8926,9 @@ public class VimP
          */
         if (buf != ml_upd_lastbuf || line != ml_upd_lastline + 1 || updtype != ML_CHNK_ADDLINE)
         {
-            for (curline = 1, curix = 0;
-                 curix < buf.b_ml.ml_usedchunks - 1
-                    && curline + buf.b_ml.ml_chunksize[curix].mlcs_numlines <= line;
-                 curix++)
-            {
-                curline += buf.b_ml.ml_chunksize[curix].mlcs_numlines;
-            }
+            long[] pos = new long[2];
+            curix = ml_chunk_find(buf, line, 0, false, pos);
+            curline = pos[0];
         }
         else if (curline + buf.b_ml.ml_chunksize[curix].mlcs_numlines <= line
                     && curix < buf.b_ml.ml_usedchunks - 1)
@@ -6083,13 +8940,12 @@ public class VimP
 
         if (updtype == ML_CHNK_DELLINE)
             len = -len;
-        buf.b_ml.ml_chunksize[curix].mlcs_totalsize += len;
 
         if (updtype == ML_CHNK_ADDLINE)
         {
-            chunksize_C[] chunks = buf.b_ml.ml_chunksize;
+            ml_chunk_add(buf, curix, 1, len);
 
-            chunks[curix].mlcs_numlines++;
+            chunksize_C[] chunks = buf.b_ml.ml_chunksize;
 
             /* May resize here so we don't have to do it in both cases below. */
             if (buf.b_ml.ml_numchunks <= buf.b_ml.ml_usedchunks + 1)
@@ -6129,7 +8985,7 @@ public class VimP
                     if (idx == 0)       /* first line in block, text at the end */
                         text_end = dp.db_txt_end;
                     else
-                        text_end = (dp.db_index[idx - 1] & DB_INDEX_MASK);
+                        text_end = (dp.db_index(idx - 1) & DB_INDEX_MASK);
                     /* Compute index of last line to use in this MEMLINE. */
                     int rest = count - idx;
                     if (MLCS_MINL < linecnt + rest)
@@ -6142,7 +8998,7 @@ public class VimP
                         idx = count - 1;
                         linecnt += rest;
                     }
-                    size += text_end - (dp.db_index[idx] & DB_INDEX_MASK);
+                    size += text_end - (dp.db_index(idx) & DB_INDEX_MASK);
                 }
 
                 chunks[curix].mlcs_numlines = linecnt;
@@ -6150,6 +9006,7 @@ public class VimP
                 chunks[curix].mlcs_totalsize = size;
                 chunks[curix + 1].mlcs_totalsize -= size;
                 buf.b_ml.ml_usedchunks++;
+                ml_chunk_moved(buf);
 
                 ml_upd_lastbuf = null;      /* Force recalc of curix & curline. */
                 return;
@@ -6163,6 +9020,7 @@ public class VimP
                  * Do it now to avoid the loop above later on.
                  */
                 buf.b_ml.ml_usedchunks++;
+                ml_chunk_moved(buf);
 
                 if (line == buf.b_ml.ml_line_count)
                 {
@@ -6188,7 +9046,7 @@ public class VimP
                     if (dp.db_line_count == 1)
                         rest = dp.db_txt_end - dp.db_txt_start;
                     else
-                        rest = (dp.db_index[dp.db_line_count - 2] & DB_INDEX_MASK) - dp.db_txt_start;
+                        rest = (dp.db_index(dp.db_line_count - 2) & DB_INDEX_MASK) - dp.db_txt_start;
 
                     chunks[curix].mlcs_numlines -= 1;
                     chunks[curix + 1].mlcs_numlines = 1;
@@ -6199,9 +9057,10 @@ public class VimP
         }
         else if (updtype == ML_CHNK_DELLINE)
         {
+            ml_chunk_add(buf, curix, -1, len);
+
             chunksize_C[] chunks = buf.b_ml.ml_chunksize;
 
-            chunks[curix].mlcs_numlines--;
             ml_upd_lastbuf = null;          /* Force recalc of curix & curline. */
 
             if (curix < buf.b_ml.ml_usedchunks - 1
@@ -6214,6 +9073,7 @@ public class VimP
                 buf.b_ml.ml_usedchunks--;
                 for (int i = 0; i < buf.b_ml.ml_usedchunks; i++)
                     COPY_chunksize(chunks[i], chunks[i + 1]);
+                ml_chunk_moved(buf);
                 return;
             }
             else if (curix == 0 || (10 < chunks[curix].mlcs_numlines
@@ -6228,8 +9088,11 @@ public class VimP
             buf.b_ml.ml_usedchunks--;
             for (int i = curix; i < buf.b_ml.ml_usedchunks; i++)
                 COPY_chunksize(chunks[i], chunks[i + 1]);
+            ml_chunk_moved(buf);
             return;
         }
+        else
+            ml_chunk_add(buf, curix, 0, len);
 
         ml_upd_lastbuf = buf;
         ml_upd_lastline = line;
@@ -6251,33 +9114,27 @@ public class VimP
         /* take care of cached line first */
         ml_flush_line(curbuf);
 
-        if (buf.b_ml.ml_usedchunks == -1 || buf.b_ml.ml_chunksize == null || lnum < 0)
+        if ((buf.b_ml.ml_map == null && (buf.b_ml.ml_usedchunks == -1 || buf.b_ml.ml_chunksize == null)) || lnum < 0)
+            return -1;
+        if (buf.b_ml.ml_hex != null)        /* the lines are not in the file */
             return -1;
 
         long offset = (offp != null) ? offp[0] : 0;
         if (lnum == 0 && offset <= 0)
             return 1;   /* Not a "find offset" and offset 0 _must_ be in line 1. */
 
+        if (buf.b_ml.ml_map != null)
+            return ml_map_offset(buf, lnum, offp);
+
         /*
          * Find the last chunk before the one containing our line.
-         * Last chunk is special because it will never qualify.
          */
-        long curline = 1;
-        int curix = 0;
-        long size = curix;
-        while (curix < buf.b_ml.ml_usedchunks - 1
-            && ((lnum != 0 && curline + buf.b_ml.ml_chunksize[curix].mlcs_numlines <= lnum)
-                || (offset != 0
-                    && size
-                        + buf.b_ml.ml_chunksize[curix].mlcs_totalsize
-                        + (ffdos ? 1 : 0) * buf.b_ml.ml_chunksize[curix].mlcs_numlines < offset)))
-        {
-            curline += buf.b_ml.ml_chunksize[curix].mlcs_numlines;
-            size += buf.b_ml.ml_chunksize[curix].mlcs_totalsize;
-            if (offset != 0 && ffdos)
-                size += buf.b_ml.ml_chunksize[curix].mlcs_numlines;
-            curix++;
-        }
+        long[] pos = new long[2];
+        ml_chunk_find(buf, lnum, offset, ffdos, pos);
+        long curline = pos[0];
+        long size = pos[1];
+        if (offset != 0 && ffdos)
+            size += curline - 1;
 
         while ((lnum != 0 && curline < lnum) || (offset != 0 && size < offset))
         {
@@ -6298,7 +9155,7 @@ public class VimP
             if (idx == 0)                           /* first line in block, text at the end */
                 text_end = dp.db_txt_end;
             else
-                text_end = (dp.db_index[idx - 1] & DB_INDEX_MASK);
+                text_end = (dp.db_index(idx - 1) & DB_INDEX_MASK);
             /* Compute index of last line to use in this MEMLINE. */
             if (lnum != 0)
             {
@@ -6310,7 +9167,7 @@ public class VimP
             else
             {
                 extra = 0;
-                while (size + text_end - (dp.db_index[idx] & DB_INDEX_MASK) + (ffdos ? 1 : 0) <= offset)
+                while (size + text_end - (dp.db_index(idx) & DB_INDEX_MASK) + (ffdos ? 1 : 0) <= offset)
                 {
                     if (ffdos)
                         size++;
@@ -6322,7 +9179,7 @@ public class VimP
                     idx++;
                 }
             }
-            int len = text_end - (dp.db_index[idx] & DB_INDEX_MASK);
+            int len = text_end - (dp.db_index(idx) & DB_INDEX_MASK);
             size += len;
             if (offset != 0 && offset <= size)
             {
@@ -6331,7 +9188,7 @@ public class VimP
                 else if (idx == start_idx)
                     offp[0] = offset - size + len;
                 else
-                    offp[0] = offset - size + len - (text_end - (dp.db_index[idx - 1] & DB_INDEX_MASK));
+                    offp[0] = offset - size + len - (text_end - (dp.db_index(idx - 1) & DB_INDEX_MASK));
                 curline += idx - start_idx + extra;
                 if (buf.b_ml.ml_line_count < curline)
                     return -1;      /* exactly one byte beyond the end */
@@ -6816,6 +9673,8 @@ public class VimP
     /*private*/ static void free_buffer(buffer_C buf)
     {
         free_buffer_stuff(buf, true);
+        filewatch_drop(buf);
+        follow_stop(buf);
         unref_var_dict(buf.b_vars);
         aubuflocal_remove(buf);
         if (autocmd_busy)
@@ -8306,6 +11165,78 @@ public class VimP
         }
     };
 
+    /*
+     * Put what "buf" holds in memory in "ms": the blocks of its memfile, its undo tree
+     * and its syntax states.  Cheap enough to be used in 'statusline', see memstat().
+     */
+    /*private*/ static void buf_memstat(buffer_C buf, memstat_C ms)
+    {
+        memfile_C mfp = buf.b_ml.ml_mfp;
+
+        if (mfp != null)
+        {
+            ms.ms_lines = buf.b_ml.ml_line_count;
+            ms.ms_data_blocks = mfp.mf_data_count;
+            ms.ms_ptr_blocks = mfp.mf_ptr_count;
+            ms.ms_pages = mfp.mf_used_count;
+            ms.ms_file_pages = (0 <= mfp.mf_fd) ? mfp.mf_blocknr_max : 0;
+        }
+        else
+        {
+            ms.ms_lines = 0;
+            ms.ms_data_blocks = 0;
+            ms.ms_ptr_blocks = 0;
+            ms.ms_pages = 0;
+            ms.ms_file_pages = 0;
+        }
+
+        u_memstat(buf, ms);
+        syn_memstat(buf.b_s, ms);
+    }
+
+    /*
+     * ":memstat[!]": list what the loaded buffers (all buffers with !) hold in memory,
+     * followed by the registers.  Sizes are in Kbyte.
+     */
+    /*private*/ static final ex_func_C ex_memstat = new ex_func_C()
+    {
+        public void ex(exarg_C eap)
+        {
+            memstat_C ms = new memstat_C();
+
+            msg_puts_title(u8("\n  #    lines  data ptr memory   swap  undo u-lines  u-mem  syn name"));
+            for (buffer_C buf = firstbuf; buf != null && !got_int; buf = buf.b_next)
+            {
+                if (buf.b_ml.ml_mfp == null && !eap.forceit)
+                    continue;
+                buf_memstat(buf, ms);
+
+                msg_putchar('\n');
+                vim_snprintf(ioBuff, IOSIZE, u8("%3d %8ld %5ld %3ld %6ld %6ld %5ld %7ld %6ld %4ld \"%s\""),
+                        buf.b_fnum,
+                        ms.ms_lines,
+                        ms.ms_data_blocks,
+                        ms.ms_ptr_blocks,
+                        ms.ms_pages * MEMFILE_PAGE_SIZE / 1024,
+                        ms.ms_file_pages * MEMFILE_PAGE_SIZE / 1024,
+                        ms.ms_undo_headers,
+                        ms.ms_undo_lines,
+                        (ms.ms_undo_bytes + 1023) / 1024,
+                        ms.ms_syn_states,
+                        buf_spname(buf, false));
+                msg_outtrans(ioBuff);
+                out_flush();        /* output one line at a time */
+                ui_breakcheck();
+            }
+
+            long[] lines = new long[1];
+            long bytes = reg_memstat(lines);
+            msg_putchar('\n');
+            vim_snprintf(ioBuff, IOSIZE, u8("registers: %ld lines, %ld Kbyte"), lines[0], (bytes + 1023) / 1024);
+            msg_outtrans(ioBuff);
+        }
+    };
+
     /*
      * Get file name and line number for file 'fnum'.
      * Used by DoOneCmd() for translating '%' and '#'.
@@ -9251,6 +12182,7 @@ public class VimP
                 if (zeropad)
                     (t = t.plus(1)).be(-1, (byte)'0');
                 (t = t.plus(1)).be(-1, (byte)'*');
+                (t = t.plus(1)).be(-1, (byte)'l');      /* "num" is a long */
                 (t = t.plus(1)).be(-1, (nbase == 16) ? base : (nbase == 8) ? (byte)'o' : (byte)'d');
                 t.be(0, NUL);
 
@@ -9267,7 +12199,8 @@ public class VimP
                         num /= nbase;
                     (t = t.plus(1)).be(-1, (byte)'>');
                     (t = t.plus(1)).be(-1, (byte)'%');
-                    t.be(0, t.at(-3));
+                    (t = t.plus(1)).be(-1, (byte)'l');
+                    t.be(0, t.at(-4));
                     (t = t.plus(1)).be(0, NUL);
                     vim_snprintf(p, outlen - BDIFF(p, out), nstr, 0, num, n);
                 }
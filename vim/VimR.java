@@ -10908,6 +10908,7 @@ public class VimR
         screen_start();                 /* don't know where cursor is now */
         out_flush();
 
+        ml_journal_keep_all();
         ml_close_all();
 
         out_str(u8("Vim: Finished.\n"));
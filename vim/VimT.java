@@ -1,10 +1,27 @@
 package vim;
 
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import jnr.ffi.LibraryLoader;
 import jnr.ffi.mapper.DataConverter;
@@ -79,6 +96,7 @@ public class VimT
      */
 
     /*private*/ static final int BUFSIZE         = 8192;    /* size of normal write buffer */
+    /*private*/ static final int BULKSIZE        = 0x40000; /* size of write buffer for whole lines */
 
     /*private*/ static final int AUGROUP_DEFAULT    = -1;   /* default autocmd group */
     /*private*/ static final int AUGROUP_ERROR      = -2;   /* erroneous autocmd group */
@@ -119,6 +137,7 @@ public class VimT
         boolean     bw_conv_error;          /* set for conversion error */
         long        bw_conv_error_lnum;     /* first line with error or zero */
         long        bw_start_lnum;          /* line number at start of buffer */
+        bgwrite_C   bw_bg;                  /* collect for writing in the background */
 
         /*private*/ bw_info_C()
         {
@@ -126,6 +145,53 @@ public class VimT
         }
     }
 
+    /*
+     * Loading a file in the background, see 'lazyload'.
+     */
+    /*private*/ static final int LAZY_BLOCK = 0x10000;      /* bytes read at a time */
+    /*private*/ static final int LAZY_QUEUE = 16;           /* batches the reader may be ahead */
+    /*private*/ static final long LAZY_POLL = 50L;          /* msec between appending lines */
+
+    /*
+     * A batch of lines handed from the reader thread to the main loop.
+     */
+    /*private*/ static final class lazybatch_C
+    {
+        Bytes       lb_text;                /* the lines, each ending in a NUL */
+        int[]       lb_start;               /* start of each line in lb_text */
+        int         lb_count;               /* number of lines */
+        boolean     lb_last;                /* end of the file: no more batches */
+
+        /*private*/ lazybatch_C()
+        {
+        }
+    }
+
+    /*private*/ static final class lazyload_C
+    {
+        buffer_C    ll_buf;                 /* buffer the lines are appended to */
+        long        ll_lnum;                /* number of lines appended */
+        int         ll_fd;                  /* the file, closed by the reader */
+        boolean     ll_dos;                 /* remove the CR before a NL */
+        boolean     ll_bin;                 /* 'binary': don't check UTF-8, keep CTRL-Z */
+        Thread      ll_thread;
+        ArrayBlockingQueue<lazybatch_C> ll_queue;
+        volatile boolean ll_stop;           /* tells the reader to give up */
+        boolean     ll_done;                /* the last batch was appended */
+        lazyload_C  ll_next;                /* next in "lazy_first" list */
+
+        /* Set by the reader before queueing the last batch. */
+        boolean     ll_noeol;               /* last line has no EOL */
+        boolean     ll_illegal;             /* found an illegal UTF-8 byte sequence */
+        boolean     ll_error;               /* read error */
+
+        /*private*/ lazyload_C()
+        {
+        }
+    }
+
+    /*private*/ static lazyload_C lazy_first;       /* loads that are still appending lines */
+
     /*private*/ static Bytes e_auchangedbuf = u8("E812: Autocommands changed buffer or buffer name");
 
     /*private*/ static void filemess(Bytes name, Bytes s, int attr)
@@ -259,6 +325,13 @@ public class VimT
             COPY_pos(curbuf.b_op_start, pos);
         }
 
+        /* Reading the buffer again ends ":follow", the offsets don't apply anymore. */
+        if (newfile)
+        {
+            follow_stop(curbuf);
+            curbuf.b_hex = false;
+        }
+
         boolean msg_save = msg_scroll;
         if (shortmess(SHM_OVER) && p_verbose[0] == 0)
             msg_scroll = false;                     /* overwrite previous file message */
@@ -583,6 +656,8 @@ public class VimT
 
         boolean read_undo_file = false;
 
+        mlbulk_C bulk = null;                   /* the lines are appended in bulk */
+
         boolean converted = false;              /* true if conversion done */
         boolean notconverted = false;           /* true if conversion wanted but it wasn't possible */
 
@@ -614,8 +689,93 @@ public class VimT
 
         context_sha256_C sha_ctx = new context_sha256_C();
 
+        /*
+         * With 'mmapview' a readonly file is mapped instead of read,
+         * its lines are taken from the mapping when needed, see ml_map_file().
+         * With 'lazyload' a big file is read in the background, see lazy_start().
+         * Not when the file needs to be converted, "ucs-bom" is checked for by both.
+         * b_orig_size is the size found by stat() above.
+         */
+        boolean mapped = false;
+        lazyload_C lazy = null;
+        boolean whole = (newfile && wasempty && S_ISREG(perm)
+                && !filtering && !read_stdin && !read_buffer && (flags & READ_DUMMY) == 0
+                && lines_to_skip == 0 && lines_to_read == MAXLNUM);
+
+        /* With 'hexview' a file read with 'binary' is shown as a hex dump, see ml_hex_open(). */
+        if (whole && p_hxv[0] && curbuf.b_p_bin[0] && 0 < curbuf.b_orig_size
+                && curbuf.b_ml.ml_map == null && curbuf.b_ml.ml_hex == null)
+        {
+            mapped = ml_hex_open(curbuf, fname, curbuf.b_orig_size);
+            if (mapped)
+            {
+                fileformat = EOL_UNIX;
+                filesize = curbuf.b_orig_size;
+                if (set_options)
+                    set_fileformat(fileformat, OPT_LOCAL);
+            }
+        }
+
+        boolean try_map = (p_mmv[0] && curbuf.b_p_ro[0] && curbuf.b_ml.ml_map == null);
+        boolean try_lazy = (0 < p_lzl[0] && p_lzl[0] * 1024 <= curbuf.b_orig_size);
+        if ((try_map || try_lazy) && whole && !mapped)
+        {
+            Bytes[] map_next = { fenc_next[0] };
+            Bytes map_fenc = fenc;
+            if (STRCMP(map_fenc, u8("ucs-bom")) == 0)
+                map_fenc = (map_next[0] != null) ? next_fenc(map_next) : u8("");
+
+            if (!need_conversion(map_fenc))
+            {
+                int ff;
+                if (curbuf.b_p_bin[0])
+                    ff = EOL_UNIX;
+                else if (p_ffs[0].at(0) == NUL)
+                    ff = get_fileformat(curbuf);
+                else
+                    ff = EOL_UNKNOWN;
+
+                if (try_map)
+                {
+                    fileformat = ml_map_file(curbuf, fname, curbuf.b_orig_size, ff);
+                    mapped = (fileformat != EOL_UNKNOWN);
+                }
+                if (!mapped && try_lazy)
+                {
+                    int[] ffp = { ff };
+                    lazy = lazy_start(curbuf, fd, ffp);
+                    fileformat = ffp[0];
+                }
+
+                if (mapped || lazy != null)
+                {
+                    fenc = map_fenc;
+                    filesize = curbuf.b_orig_size;
+                    if (set_options)
+                        set_fileformat(fileformat, OPT_LOCAL);
+                }
+
+                if (mapped && curbuf.b_ml.ml_map.mm_nl_count < curbuf.b_ml.ml_line_count)
+                {
+                    /* remember for when writing */
+                    if (set_options)
+                        curbuf.b_p_eol[0] = false;
+                    read_no_eol_lnum = curbuf.b_ml.ml_line_count;
+                }
+            }
+        }
+
+        /* The file may have been read ahead, see arg_prefetch(). */
+        prefetch_C pf = null;
+        if (curbuf.b_prefetch != null)
+        {
+            if (whole && !mapped && lazy == null)
+                pf = prefetch_take(curbuf);
+            curbuf.b_prefetch = null;
+        }
+
         retry:
-        for ( ; ; )
+        for ( ; !mapped && lazy == null; )
         {
             if (file_rewind)
             {
@@ -630,6 +790,11 @@ public class VimT
                     error = true;
                     break retry;
                 }
+                if (pf != null)
+                {
+                    prefetch_unsplit(pf);
+                    pf.pf_pos = 0;
+                }
                 /* Delete the previously read lines. */
                 while (from < lnum)
                     ml_delete(lnum--, false);
@@ -642,6 +807,10 @@ public class VimT
                 conv_error = 0;
             }
 
+            if (bulk != null)
+                ml_bulk_end(bulk);
+            bulk = ml_bulk_start(curbuf, lnum, newfile);
+
             /*
              * When retrying with another "fenc" and the first time "fileformat" will be reset.
              */
@@ -700,6 +869,13 @@ public class VimT
                     advance_fenc = true;
                     continue retry;
                 }
+
+                /* Bytes split by prefetch_split() don't start with a BOM: try the next one without reading. */
+                if (fio_flags == FIO_UCSBOM && !skip_read && pf != null && pf.pf_lines != null && pf.pf_pos == 0)
+                {
+                    advance_fenc = true;
+                    continue retry;
+                }
             }
 
             /* Set 'can_retry' when it's possible to rewind the file and try with another 'fenc' value.
@@ -723,6 +899,43 @@ public class VimT
                     sha256_start(sha_ctx);
             }
 
+            /* Take the lines split by the thread that read the file ahead, when the loop below
+             * would find Unix format and not change them.  Bytes after the last NL are read below. */
+            if (pf != null && pf.pf_lines != null && pf.pf_pos == 0)
+            {
+                if (!skip_read && fio_flags == 0 && !curbuf.b_p_bin[0] && skip_count == 0 && pf.pf_nlines < read_count
+                        && (fileformat == EOL_UNIX || (fileformat == EOL_UNKNOWN && try_unix != 0)))
+                {
+                    if (fileformat == EOL_UNKNOWN)
+                    {
+                        fileformat = EOL_UNIX;
+                        if (set_options)
+                            set_fileformat(EOL_UNIX, OPT_LOCAL);
+                    }
+
+                    int start = 0;
+                    for (int i = 0; i < pf.pf_nlines; i++)
+                    {
+                        Bytes line = pf.pf_data.plus(start);
+                        int len = pf.pf_lines[i] - start + 1;
+                        if (!ml_bulk_append(bulk, line, len))
+                        {
+                            error = true;
+                            break;
+                        }
+                        if (read_undo_file)
+                            sha256_update(sha_ctx, line, len);
+                        lnum++;
+                        --read_count;
+                        start += len;
+                    }
+                    filesize += start;
+                    pf.pf_pos = start;
+                }
+                else
+                    prefetch_unsplit(pf);
+            }
+
             while (!error && !got_int)
             {
                 /*
@@ -735,10 +948,21 @@ public class VimT
                 {
                     size = 0x10000;                /* use buffer >= 64K */
 
-                    new_buffer = new Bytes(size + linerest + 1);
-                    if (linerest != 0)                   /* copy characters from the previous buffer */
-                        BCOPY(new_buffer, 0, ptr, -linerest, linerest);
-                    buffer = new_buffer;
+                    /* Read more at a time from a big file, it is checked on all processors. */
+                    if (!read_buffer && !curbuf.b_p_bin[0] && CHECK_PAR_READ <= curbuf.b_orig_size && readfile_pool() != null)
+                        size = CHECK_PAR_READ;
+
+                    /* The lines before were copied into the memline, so the buffer is used again.
+                     * Only when a long line doesn't fit a bigger one is allocated. */
+                    if (buffer == null || buffer.size() < size + linerest + 1)
+                    {
+                        new_buffer = new Bytes(Math.max(size + linerest + 1, (buffer == null) ? 0 : buffer.size() * 2));
+                        if (linerest != 0)               /* copy characters from the previous buffer */
+                            BCOPY(new_buffer, 0, ptr, -linerest, linerest);
+                        buffer = new_buffer;
+                    }
+                    else if (linerest != 0)              /* move characters of the previous line to the front */
+                        BCOPY(buffer, 0, ptr, -linerest, linerest);
                     ptr = buffer.plus(linerest);
                     line_start = buffer;
 
@@ -826,7 +1050,7 @@ public class VimT
                     else
                     {
                         /* Read bytes from the file. */
-                        size = read_eintr(fd, ptr, size);
+                        size = (pf != null) ? prefetch_read(pf, ptr, size) : read_direct(fd, ptr, size);
                     }
 
                     if (size <= 0)
@@ -1144,9 +1368,10 @@ public class VimT
                 {
                     boolean incomplete_tail = false;
 
-                    /* Reading UTF-8: Check if the bytes are valid UTF-8. */
+                    /* Reading UTF-8: Check if the bytes are valid UTF-8.
+                     * A big part is checked in parallel first, up to where it is valid. */
                     Bytes p;
-                    for (p = ptr; ; p = p.plus(1))
+                    for (p = ptr.plus(readfile_check_par(ptr, size)); ; p = p.plus(1))
                     {
                         int todo = BDIFF(ptr.plus(size), p);
                         if (todo <= 0)
@@ -1202,6 +1427,12 @@ public class VimT
                             else
                                 p = p.plus(l - 1);
                         }
+                        else
+                        {
+                            /* Skip to just before the next byte that is not ASCII, 8 bytes at a time. */
+                            int i = BHIGH(p.array, p.index + 1, p.index + todo);
+                            p = p.plus(((i < 0) ? todo : i - p.index) - 1);
+                        }
                     }
                     if (BLT(p, ptr.plus(size)) && !incomplete_tail)
                     {
@@ -1295,7 +1526,14 @@ public class VimT
                         /* catch most common case first */
                         byte c = ptr.at(0);
                         if (c != NUL && c != CAR && c != NL)
+                        {
+                            /* Skip to just before the next NUL, CR or NL, 8 bytes at a time. */
+                            int i = BINDEX3(ptr.array, ptr.index + 1, ptr.index + 1 + size, NUL, CAR, NL);
+                            int n = (i < 0) ? size : i - ptr.index - 1;
+                            ptr = ptr.plus(n);
+                            size -= n;
                             continue;
+                        }
                         if (c == NUL)
                             ptr.be(0, NL);                  /* NULs are replaced by newlines! */
                         else if (c == NL)
@@ -1306,7 +1544,7 @@ public class VimT
                             {
                                 ptr.be(0, NUL);             /* end of line */
                                 int len = BDIFF(ptr, line_start) + 1;
-                                if (!ml_append(lnum, line_start, len, newfile))
+                                if (!ml_bulk_append(bulk, line_start, len))
                                 {
                                     error = true;
                                     break;
@@ -1333,7 +1571,14 @@ public class VimT
                     {
                         byte c = ptr.at(0);
                         if (c != NUL && c != NL)            /* catch most common case */
+                        {
+                            /* Skip to just before the next NUL or NL, 8 bytes at a time. */
+                            int i = BINDEX2(ptr.array, ptr.index + 1, ptr.index + 1 + size, NUL, NL);
+                            int n = (i < 0) ? size : i - ptr.index - 1;
+                            ptr = ptr.plus(n);
+                            size -= n;
                             continue;
+                        }
                         if (c == NUL)
                             ptr.be(0, NL);                      /* NULs are replaced by newlines! */
                         else
@@ -1371,7 +1616,7 @@ public class VimT
                                         ff_error = EOL_DOS;
                                     }
                                 }
-                                if (!ml_append(lnum, line_start, len, newfile))
+                                if (!ml_bulk_append(bulk, line_start, len))
                                 {
                                     error = true;
                                     break;
@@ -1421,7 +1666,7 @@ public class VimT
                 curbuf.b_p_eol[0] = false;
             ptr.be(0, NUL);
             int len = BDIFF(ptr, line_start) + 1;
-            if (!ml_append(lnum, line_start, len, newfile))
+            if (!ml_bulk_append(bulk, line_start, len))
                 error = true;
             else
             {
@@ -1431,6 +1676,9 @@ public class VimT
             }
         }
 
+        if (bulk != null && !ml_bulk_end(bulk))
+            error = true;
+
         if (set_options)
             save_file_ff(curbuf);                   /* remember the current file format */
 
@@ -1440,7 +1688,10 @@ public class VimT
             set_string_option_direct(u8("fenc"), -1, fenc, OPT_FREE|OPT_LOCAL, 0);
 
         if (!read_buffer && !read_stdin)
-            libc.close(fd);                              /* errors are ignored */
+        {
+            if (lazy == null)                       /* else the background reader closes it */
+                libc.close(fd);                          /* errors are ignored */
+        }
         else
         {
             int fdflags = libc.fcntl(fd, F_GETFD);
@@ -1460,7 +1711,8 @@ public class VimT
         /* need to delete the last line, which comes from the empty buffer */
         if (newfile && wasempty && (curbuf.b_ml.ml_flags & ML_EMPTY) == 0)
         {
-            ml_delete(curbuf.b_ml.ml_line_count, false);
+            if (!mapped)                            /* not included in a mapped file */
+                ml_delete(curbuf.b_ml.ml_line_count, false);
             --linecnt;
         }
         linecnt = curbuf.b_ml.ml_line_count - linecnt;
@@ -1485,6 +1737,8 @@ public class VimT
 
         if (got_int)
         {
+            if (lazy != null)
+                lazy_abort(lazy);
             if ((flags & READ_DUMMY) == 0)
             {
                 filemess(sfname, e_interr, 0);
@@ -1515,6 +1769,11 @@ public class VimT
                 msg_add_eol();
                 c = true;
             }
+            if (lazy != null && !lazy.ll_done)
+            {
+                STRCAT(ioBuff, u8("[loading]"));
+                c = true;
+            }
             if (ff_error == EOL_DOS)
             {
                 STRCAT(ioBuff, u8("[CR missing]"));
@@ -1598,6 +1857,10 @@ public class VimT
          */
         curbuf.b_no_eol_lnum = read_no_eol_lnum;
 
+        /* Lines read in the background are appended from now on. */
+        if (lazy != null)
+            lazy_attach(lazy);
+
         /* When reloading a buffer put the cursor at the first line that is different. */
         if ((flags & READ_KEEP_UNDO) != 0)
             u_find_first_changed();
@@ -1610,6 +1873,8 @@ public class VimT
             Bytes hash = new Bytes(UNDO_HASH_SIZE);
 
             sha256_finish(sha_ctx, hash);
+            if (!mapped && lazy == null)        /* otherwise not all of the text was hashed */
+                u_save_hash(curbuf, hash);
             u_read_undo(null, hash, fname);
         }
 
@@ -1645,128 +1910,1113 @@ public class VimT
     }
 
     /*
-     * From the current line count and characters read after that, estimate the line number where we are now.
-     * Used for error messages that include a line number.
+     * Start loading the file open on "fd" into buffer "buf" in the background.
+     * "ffp[0]" is the fileformat to use, EOL_UNKNOWN to detect it; set to the one used.
+     * Only done for a file with Unix or Dos line endings that doesn't start with a BOM,
+     * it's read like readfile() does without conversion.
+     * Returns after appending the first lines, the caller must add it to the list of
+     * loads with lazy_attach() when done with the buffer.
+     * Returns null when the file must be read normally.
      */
-    /*private*/ static long readfile_linenr(long linecnt, Bytes p, Bytes endp)
-        /* linecnt: line count before reading more bytes */
-        /* p: start of more bytes read */
-        /* endp: end of more bytes read */
+    /*private*/ static lazyload_C lazy_start(buffer_C buf, int fd, int[] ffp)
     {
-        long lnum = curbuf.b_ml.ml_line_count - linecnt + 1;
-        for (Bytes s = p; BLT(s, endp); s = s.plus(1))
-            if (s.at(0) == (byte)'\n')
-                lnum++;
-        return lnum;
+        int ff = ffp[0];
+        if (ff == EOL_MAC || (ff == EOL_UNKNOWN && vim_strchr(p_ffs[0], 'm') != null))
+            return null;
+
+        /* Look at the start of the file for a BOM and the line format. */
+        Bytes head = new Bytes(LAZY_BLOCK);
+        int n = read_eintr(fd, head, LAZY_BLOCK);
+        if (libc.lseek(fd, 0L, SEEK_SET) != 0 || n <= 0)
+            return null;
+
+        if (!buf.b_p_bin[0] && 2 <= n && check_for_bom(head, n, new int[1], FIO_ALL) != null)
+            return null;
+
+        if (ff == EOL_UNKNOWN)
+        {
+            /* Same guess as readfile(), but give up when there is no NL in the first block. */
+            int i;
+            for (i = 0; i < n && head.at(i) != NL; i++)
+                ;
+            if (i == n)
+                return null;
+            if (vim_strchr(p_ffs[0], 'x') == null || (vim_strchr(p_ffs[0], 'd') != null && 0 < i && head.at(i - 1) == CAR))
+                ff = EOL_DOS;
+            else
+                ff = EOL_UNIX;
+        }
+
+        int fdflags = libc.fcntl(fd, F_GETFD);
+        if (0 <= fdflags && (fdflags & FD_CLOEXEC) == 0)
+            libc.fcntl(fd, F_SETFD, fdflags | FD_CLOEXEC);
+
+        final lazyload_C ll = new lazyload_C();
+        ll.ll_buf = buf;
+        ll.ll_fd = fd;
+        ll.ll_dos = (ff == EOL_DOS);
+        ll.ll_bin = buf.b_p_bin[0];
+        ll.ll_queue = new ArrayBlockingQueue<lazybatch_C>(LAZY_QUEUE);
+        ll.ll_thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                lazy_read(ll);
+            }
+        });
+        ll.ll_thread.setDaemon(true);
+        ll.ll_thread.start();
+
+        /* The first lines are shown right away. */
+        for (lazybatch_C lb = null; lb == null; )
+        {
+            try
+            {
+                lb = ll.ll_queue.take();
+            }
+            catch (InterruptedException e)
+            {
+                continue;
+            }
+            lazy_append(ll, lb);
+        }
+
+        ffp[0] = ff;
+        return ll;
     }
 
     /*
-     * ... used for calling readfile()
+     * The reader thread: split the file into lines and queue them in batches.
+     * Only uses "ll", doesn't touch anything else.
      */
-    /*private*/ static void prep_exarg(exarg_C eap, buffer_C buf)
+    /*private*/ static void lazy_read(lazyload_C ll)
     {
-        eap.cmd = STRDUP(u8("e"));
+        Bytes ptr = null;                       /* incomplete line at end of previous block */
+        int linerest = 0;
 
-        eap.bad_char = buf.b_bad_char;
-        eap.force_bin = buf.b_p_bin[0] ? FORCE_BIN : FORCE_NOBIN;
-        eap.read_edit = false;
-        eap.forceit = false;
+        while (!ll.ll_stop)
+        {
+            Bytes buffer = new Bytes(LAZY_BLOCK + linerest + 1);
+            if (linerest != 0)
+                BCOPY(buffer, 0, ptr, 0, linerest);
+
+            int size = read_eintr(ll.ll_fd, buffer.plus(linerest), LAZY_BLOCK);
+            if (size < 0)
+            {
+                ll.ll_error = true;
+                size = 0;
+            }
+
+            byte[] a = buffer.array;
+            int end = linerest + size;
+            int[] start = new int[64];
+            int count = 0;
+
+            int line_start = 0;
+            for (int i = linerest; (i = BINDEX(a, i, end, NL)) != -1; i++)
+            {
+                if (count == start.length)
+                    start = Arrays.copyOf(start, count * 2);
+                start[count++] = line_start;
+                lazy_line(ll, a, line_start, i);
+                line_start = i + 1;
+            }
+
+            boolean last = (size == 0);
+            if (last && line_start < end
+                    /* In Dos format ignore a trailing CTRL-Z, unless 'binary' set. */
+                    && !(!ll.ll_bin && ll.ll_dos && a[line_start] == Ctrl_Z && line_start + 1 == end))
+            {
+                ll.ll_noeol = true;
+                if (count == start.length)
+                    start = Arrays.copyOf(start, count + 1);
+                start[count++] = line_start;
+                lazy_line(ll, a, line_start, end);
+            }
+
+            if (0 < count || last)
+            {
+                lazybatch_C lb = new lazybatch_C();
+                lb.lb_text = buffer;
+                lb.lb_start = start;
+                lb.lb_count = count;
+                lb.lb_last = last;
+                while (!ll.ll_stop)
+                {
+                    try
+                    {
+                        if (ll.ll_queue.offer(lb, LAZY_POLL, TimeUnit.MILLISECONDS))
+                            break;
+                    }
+                    catch (InterruptedException e)
+                    {
+                    }
+                }
+            }
+            if (last)
+                break;
+
+            ptr = buffer.plus(line_start);
+            linerest = end - line_start;
+        }
+
+        libc.close(ll.ll_fd);
     }
 
     /*
-     * Set default or forced 'fileformat' and 'binary'.
+     * Turn the line in "a[s]" to "a[e]", where "a[e]" is the NL or end of file, into the form
+     * used in the memline: CR before the NL removed for Dos format, NUL stored as NL.
      */
-    /*private*/ static void set_file_options(boolean set_options, exarg_C eap)
+    /*private*/ static void lazy_line(lazyload_C ll, byte[] a, int s, int e)
     {
-        /* set default 'fileformat' */
-        if (set_options && p_ffs[0].at(0) != NUL)
-            set_fileformat(default_fileformat(), OPT_LOCAL);
+        if (ll.ll_dos && s < e && a[e - 1] == CAR && e < a.length && a[e] == NL)
+            a[--e] = NUL;
+        a[e] = NUL;
 
-        /* set or reset 'binary' */
-        if (eap != null && eap.force_bin != 0)
+        for (int i = s; i < e; i++)
         {
-            boolean oldval = curbuf.b_p_bin[0];
-
-            curbuf.b_p_bin[0] = (eap.force_bin == FORCE_BIN);
-            set_options_bin(oldval, curbuf.b_p_bin[0], OPT_LOCAL);
+            if (a[i] == NUL)
+                a[i] = NL;
+            else if (a[i] < 0 && !ll.ll_bin && !ll.ll_illegal)
+            {
+                int l = us_ptr2len_len(new Bytes(a, i), e - i);
+                if (l == 1 || e - i < l)
+                    ll.ll_illegal = true;
+                else
+                    i += l - 1;
+            }
         }
     }
 
     /*
-     * Find next fileencoding to use from 'fileencodings'.
-     * "pp" points to fenc_next.  It's advanced to the next item.
-     * When there are no more items, an empty string is returned and *pp is set to null.
-     * When *pp is not set to null, the result is in allocated memory.
+     * Append the lines in "lb" to the buffer.
      */
-    /*private*/ static Bytes next_fenc(Bytes[] pp)
+    /*private*/ static void lazy_append(lazyload_C ll, lazybatch_C lb)
     {
-        if (pp[0].at(0) == NUL)
-        {
-            pp[0] = null;
-            return u8("");
-        }
+        buffer_C buf = ll.ll_buf;
 
-        Bytes r;
+        if (buf.b_ml.ml_line_lnum != 0)
+            ml_flush_line(buf);
+        for (int i = 0; i < lb.lb_count; i++)
+            ml_append_int(buf, ll.ll_lnum++, lb.lb_text.plus(lb.lb_start[i]), 0, true, false);
 
-        Bytes p = vim_strchr(pp[0], ',');
-        if (p == null)
+        if (lb.lb_last)
         {
-            r = enc_canonize(pp[0]);
-            pp[0] = pp[0].plus(strlen(pp[0]));
+            ll.ll_done = true;
+            if (buf.b_ml.ml_lazy == ll)
+            {
+                lazy_detach(ll);
+                lazy_flags(ll);
+            }
         }
+    }
+
+    /*
+     * Called by readfile() when done with the buffer.
+     */
+    /*private*/ static void lazy_attach(lazyload_C ll)
+    {
+        if (ll.ll_done)
+            lazy_flags(ll);
         else
         {
-            r = STRNDUP(pp[0], BDIFF(p, pp[0]));
-            pp[0] = p.plus(1);
-            if (r != null)
-                r = enc_canonize(r);
+            ll.ll_next = lazy_first;
+            lazy_first = ll;
+            ll.ll_buf.b_ml.ml_lazy = ll;
         }
+    }
 
-        return r;
+    /*private*/ static void lazy_detach(lazyload_C ll)
+    {
+        if (lazy_first == ll)
+            lazy_first = ll.ll_next;
+        else
+            for (lazyload_C p = lazy_first; p != null; p = p.ll_next)
+                if (p.ll_next == ll)
+                {
+                    p.ll_next = ll.ll_next;
+                    break;
+                }
+        ll.ll_buf.b_ml.ml_lazy = null;
     }
 
     /*
-     * Return true if a file appears to be read-only from the file permissions.
+     * Set what was found out at the end of the file, like readfile() does.
      */
-    /*private*/ static boolean check_file_readonly(Bytes fname, int perm)
-        /* fname: full path to file */
-        /* perm: known permissions on file */
+    /*private*/ static void lazy_flags(lazyload_C ll)
     {
-        return ((perm & 0222) == 0 || libC.access(fname, W_OK) != 0);
-    }
+        buffer_C buf = ll.ll_buf;
 
-    /*private*/ static Bytes err_readonly = u8("is read-only (cannot override: \"W\" in 'cpoptions')");
+        if (ll.ll_noeol)
+        {
+            buf.b_p_eol[0] = false;
+            buf.b_no_eol_lnum = buf.b_ml.ml_line_count;
+        }
+        /* Keep illegal bytes as they are, like the empty last item of 'fileencodings'. */
+        if (ll.ll_illegal)
+            buf.b_p_fenc[0] = u8("");
+        save_file_ff(buf);
+
+        if (ll.ll_error)
+            emsg2(u8("E485: Can't read file %s"), buf.b_fname);
+    }
 
     /*
-     * buf_write() - write to file "fname" lines "start" through "end"
-     *
-     * We do our own buffering here because fwrite() is so slow.
-     *
-     * If "forceit" is true, we don't care for errors when attempting backups.
-     * In case of an error everything possible is done to restore the original
-     * file.  But when "forceit" is true, we risk losing it.
-     *
-     * When "reset_changed" is true and "append" == false and "start" == 1 and
-     * "end" == curbuf.b_ml.ml_line_count, reset "curbuf.b_changed".
-     *
-     * This function must NOT use nameBuff (because it's called by autowrite()).
-     *
-     * return false for failure, true otherwise
+     * Stop loading "ll", keeping the lines appended so far.
      */
-    /*private*/ static boolean buf_write(buffer_C buf, Bytes fname, Bytes sfname, long start, long end, exarg_C eap, boolean append, boolean forceit, boolean reset_changed, boolean filtering)
-        /* eap: for forced 'ff' and 'fenc', can be null! */
-        /* append: append to the file */
+    /*private*/ static void lazy_abort(lazyload_C ll)
     {
-        boolean retval = true;
+        ll.ll_stop = true;
+        ll.ll_queue.clear();
+        if (ll.ll_buf.b_ml.ml_lazy == ll)
+            lazy_detach(ll);
+    }
 
-        boolean msg_save = msg_scroll;
-        boolean prev_got_int = got_int;
+    /*
+     * Append the lines read in the background so far, and make the lines of mapped files
+     * that were counted available, see ml_map_poll().
+     * Called while waiting for a typed character.
+     */
+    /*private*/ static void lazy_poll()
+    {
+        boolean appended = false;
 
-        long old_line_count = buf.b_ml.ml_line_count;
-        boolean whole = (start == 1 && end == old_line_count);  /* writing everything */
+        for (buffer_C buf = firstbuf; map_counting != 0 && buf != null; buf = buf.b_next)
+        {
+            long old_count = buf.b_ml.ml_line_count;
+            if (buf.b_ml.ml_map != null && ml_map_poll(buf))
+            {
+                lazy_redraw(buf, old_count);
+                appended = true;
+            }
+        }
 
-        if (fname == null || fname.at(0) == NUL)                     /* safety check */
-            return false;
+        for (lazyload_C ll = lazy_first, next; ll != null; ll = next)
+        {
+            next = ll.ll_next;
+
+            long old_count = ll.ll_lnum;
+            for (lazybatch_C lb; !ll.ll_done && (lb = ll.ll_queue.poll()) != null; )
+                lazy_append(ll, lb);
+            if (old_count != ll.ll_lnum || ll.ll_done)
+            {
+                lazy_redraw(ll.ll_buf, old_count);
+                appended = true;
+            }
+        }
+
+        /* Show the new line count, unless busy with something else. */
+        if (appended && State == NORMAL && !VIsual_active && exmode_active == 0 && stuff_empty())
+        {
+            if (must_redraw != 0)
+                update_screen(0);
+            redraw_statuslines();
+            showruler(false);
+            setcursor();
+            out_flush();
+        }
+    }
+
+    /*
+     * Lines were appended to "buf" after line "old_count": redraw the windows that showed the end.
+     */
+    /*private*/ static void lazy_redraw(buffer_C buf, long old_count)
+    {
+        for (window_C wp = firstwin; wp != null; wp = wp.w_next)
+            if (wp.w_buffer == buf)
+            {
+                if (old_count < wp.w_botline)
+                {
+                    wp.w_valid &= ~(VALID_BOTLINE | VALID_BOTLINE_AP);
+                    redraw_win_later(wp, NOT_VALID);
+                }
+                wp.w_redr_status = true;
+            }
+    }
+
+    /*
+     * Wait until all lines of "buf" have been loaded, or counted for a mapped file,
+     * for a command that needs the whole buffer.
+     * CTRL-C stops loading, the buffer is then made readonly, like for an interrupted read.
+     */
+    /*private*/ static void lazy_finish(buffer_C buf)
+    {
+        if (buf.b_ml.ml_map != null && !buf.b_ml.ml_map.mm_done)
+        {
+            long old_count = buf.b_ml.ml_line_count;
+            ml_map_finish(buf);
+            lazy_redraw(buf, old_count);
+        }
+
+        lazyload_C ll = buf.b_ml.ml_lazy;
+        if (ll == null)
+            return;
+
+        long old_count = ll.ll_lnum;
+        while (buf.b_ml.ml_lazy == ll)
+        {
+            lazybatch_C lb;
+            try
+            {
+                lb = ll.ll_queue.poll(LAZY_POLL, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                lb = null;
+            }
+
+            if (lb != null)
+                lazy_append(ll, lb);
+            else
+            {
+                ui_breakcheck();
+                if (got_int)
+                {
+                    lazy_abort(ll);
+                    buf.b_p_ro[0] = true;       /* must use "w!" now */
+                }
+            }
+        }
+        lazy_redraw(buf, old_count);
+    }
+
+    /*
+     * Following a file that is being appended to, like "tail -f", see ":follow".
+     */
+    /*private*/ static final long FOLLOW_POLL = 250L;       /* msec between checking the files */
+    /*private*/ static final int FOLLOW_READ = 0x400000;    /* most bytes read at a time */
+
+    /*private*/ static buffer_C follow_first;       /* buffers being followed */
+
+    /*
+     * ":follow[!]": append the lines written to the file of the current buffer while waiting for a typed character.
+     * With [!] stop following.
+     */
+    /*private*/ static final ex_func_C ex_follow = new ex_func_C()
+    {
+        public void ex(exarg_C eap)
+        {
+            buffer_C buf = curbuf;
+
+            follow_stop(buf);
+            if (eap.forceit)
+                return;
+
+            if (buf.b_ffname == null)
+            {
+                emsg(e_noname);
+                return;
+            }
+            if (buf.b_hex)                      /* the lines are not the text of the file */
+            {
+                emsg(u8("E889: Cannot follow a hex view"));
+                return;
+            }
+            if (bufIsChanged(buf))
+            {
+                emsg(e_nowrtmsg_nobang);
+                return;
+            }
+
+            lazy_finish(buf);
+            if (buf.b_ml.ml_lazy != null)       /* interrupted */
+                return;
+
+            stat_C st = new stat_C();
+            if (libC.stat(buf.b_ffname, st) < 0)
+            {
+                emsg2(u8("E211: File \"%s\" no longer available"), buf.b_fname);
+                return;
+            }
+            if (st.st_size() < buf.b_orig_size)
+            {
+                emsg2(u8("W11: Warning: File \"%s\" has changed since editing started"), buf.b_fname);
+                return;
+            }
+
+            int fd = libC.open(buf.b_ffname, O_RDONLY, 0);
+            if (fd < 0)
+            {
+                emsg2(e_notopen, buf.b_fname);
+                return;
+            }
+            long off = follow_line_start(fd, buf.b_orig_size, follow_sep(buf));
+            libc.close(fd);
+            if (off < 0)
+            {
+                emsg2(u8("E485: Can't read file %s"), buf.b_fname);
+                return;
+            }
+
+            /* Lines are appended without saving them for undo, the undo history can't be used after that. */
+            u_blockfree(buf);
+            u_clearall(buf);
+
+            buf.b_follow = true;
+            buf.b_follow_off = off;
+            buf.b_follow_part = (off < buf.b_orig_size || (buf.b_ml.ml_flags & ML_EMPTY) != 0);
+            buf.b_follow_size = buf.b_orig_size;
+            buf.b_follow_next = follow_first;
+            follow_first = buf;
+        }
+    };
+
+    /*
+     * The byte a line ends in for "buf", as readfile() splits the lines.
+     */
+    /*private*/ static byte follow_sep(buffer_C buf)
+    {
+        return (!buf.b_p_bin[0] && get_fileformat(buf) == EOL_MAC) ? CAR : NL;
+    }
+
+    /*
+     * Return the offset after the last "sep" in the first "size" bytes of "fd", 0 when there is none.
+     * Return -1 when reading fails.
+     */
+    /*private*/ static long follow_line_start(int fd, long size, byte sep)
+    {
+        Bytes buffer = new Bytes(0x10000);
+
+        for (long end = size; 0 < end; )
+        {
+            int len = (int)Math.min(end, 0x10000);
+            long start = end - len;
+            if (libc.lseek(fd, start, SEEK_SET) != start || read_eintr(fd, buffer, len) != len)
+                return -1;
+
+            byte[] a = buffer.array;
+            for (int i = len; 0 < i--; )
+                if (a[i] == sep)
+                    return start + i + 1;
+            end = start;
+        }
+
+        return 0;
+    }
+
+    /*private*/ static void follow_stop(buffer_C buf)
+    {
+        if (!buf.b_follow)
+            return;
+
+        if (follow_first == buf)
+            follow_first = buf.b_follow_next;
+        else
+            for (buffer_C p = follow_first; p != null; p = p.b_follow_next)
+                if (p.b_follow_next == buf)
+                {
+                    p.b_follow_next = buf.b_follow_next;
+                    break;
+                }
+        buf.b_follow_next = null;
+        buf.b_follow = false;
+    }
+
+    /*
+     * Append what was written to the file of "buf" since the last time.
+     * The incomplete last line is read again and replaced when more of it was written.
+     * Return true when lines were appended.
+     */
+    /*private*/ static boolean follow_read(buffer_C buf)
+    {
+        if (buf.b_saving || buf.b_ml.ml_lazy != null)
+            return false;
+
+        /* Stop when the buffer no longer is what was read from the file. */
+        if (buf.b_ffname == null || buf.b_ml.ml_mfp == null || bufIsChanged(buf) || buf.b_orig_size != buf.b_follow_size
+                || buf.b_hex)
+        {
+            follow_stop(buf);
+            return false;
+        }
+
+        stat_C st = new stat_C();
+        if (libC.stat(buf.b_ffname, st) < 0 || st.st_size() == buf.b_orig_size)
+            return false;
+        if (st.st_size() < buf.b_orig_size)
+        {
+            follow_stop(buf);
+            emsg2(u8("W11: Warning: File \"%s\" has changed since editing started"), buf.b_fname);
+            return false;
+        }
+
+        int fd = libC.open(buf.b_ffname, O_RDONLY, 0);
+        if (fd < 0)
+            return false;
+
+        long off = buf.b_follow_off;
+        int size = (int)Math.min(st.st_size() - off, FOLLOW_READ);
+        Bytes buffer = new Bytes(size + 1);
+        int len = 0;
+        if (libc.lseek(fd, off, SEEK_SET) == off)
+            for (int n; len < size && 0 < (n = read_eintr(fd, buffer.plus(len), size - len)); )
+                len += n;
+        libc.close(fd);
+        if (len == 0)
+            return false;
+
+        byte sep = follow_sep(buf);
+        boolean dos = (!buf.b_p_bin[0] && get_fileformat(buf) == EOL_DOS);
+        byte[] a = buffer.array;
+
+        if (buf.b_ml.ml_line_lnum != 0)
+            ml_flush_line(buf);
+
+        long old_count = buf.b_ml.ml_line_count;
+        long lnum = old_count;
+        int line_start = 0;
+        for (int e; line_start < len; line_start = e + 1)
+        {
+            e = BINDEX(a, line_start, len, sep);
+            if (e == -1)
+            {
+                /* The rest has no line break yet, unless a whole chunk was read without one. */
+                if (line_start != 0 || len < FOLLOW_READ)
+                    break;
+                e = len;
+            }
+            follow_line(a, line_start, e, dos);
+            ml_append_int(buf, lnum++, buffer.plus(line_start), 0, true, false);
+        }
+        line_start = Math.min(line_start, len);
+
+        boolean part = (line_start < len);
+        if (part)
+        {
+            follow_line(a, line_start, len, false);
+            ml_append_int(buf, lnum++, buffer.plus(line_start), 0, true, false);
+        }
+
+        /* Replace the incomplete line read last time, or the empty line of an empty buffer. */
+        if (buf.b_follow_part)
+            ml_delete_int(buf, old_count, false);
+
+        buf.b_follow_off = off + line_start;
+        buf.b_follow_part = part;
+        buf.b_p_eol[0] = !part;
+        buf.b_no_eol_lnum = part ? buf.b_ml.ml_line_count : 0;
+
+        buf.b_orig_size = off + len;
+        buf.b_follow_size = buf.b_orig_size;
+        buf.b_mtime = buf.b_mtime_read = st.st_mtime();
+        buf.b_orig_mode = st.st_mode();
+
+        return true;
+    }
+
+    /*
+     * Turn "a[s]" to "a[e]" into a line for the memline, like lazy_line() does.
+     * With "dos" the CR before the line break at "a[e]" is removed.
+     */
+    /*private*/ static void follow_line(byte[] a, int s, int e, boolean dos)
+    {
+        for (int i = s; (i = BINDEX(a, i, e, NUL)) != -1; i++)
+            a[i] = NL;
+        if (dos && s < e && a[e - 1] == CAR)
+            e--;
+        a[e] = NUL;
+    }
+
+    /*
+     * Append what was written to the followed files.
+     * Called while waiting for a typed character.
+     */
+    /*private*/ static void follow_poll()
+    {
+        /* Only while waiting for a Normal mode command, the cursor may be on the line that is replaced. */
+        if ((State != NORMAL && State != NORMAL_BUSY) || VIsual_active || exmode_active != 0 || !stuff_empty())
+            return;
+
+        boolean appended = false;
+
+        for (buffer_C buf = follow_first, next; buf != null; buf = next)
+        {
+            next = buf.b_follow_next;
+
+            long old_count = buf.b_ml.ml_line_count;
+            if (follow_read(buf))
+            {
+                follow_redraw(buf, old_count);
+                appended = true;
+            }
+        }
+
+        if (appended)
+        {
+            if (must_redraw != 0)
+                update_screen(0);
+            redraw_statuslines();
+            showruler(false);
+            setcursor();
+            out_flush();
+        }
+    }
+
+    /*
+     * Lines were appended to "buf" after line "old_count", which may have been replaced.
+     * Windows with the cursor in the last line keep it there and scroll to show it.
+     */
+    /*private*/ static void follow_redraw(buffer_C buf, long old_count)
+    {
+        lazy_redraw(buf, old_count - 1);
+
+        for (window_C wp = firstwin; wp != null; wp = wp.w_next)
+            if (wp.w_buffer == buf && old_count <= wp.w_cursor.lnum)
+            {
+                wp.w_cursor.lnum = buf.b_ml.ml_line_count;
+                wp.w_cursor.col = 0;
+                wp.w_cursor.coladd = 0;
+                wp.w_set_curswant = true;
+
+                window_C old_curwin = curwin;
+                buffer_C old_curbuf = curbuf;
+
+                curwin = wp;
+                curbuf = buf;
+                update_topline();
+                curwin = old_curwin;
+                curbuf = old_curbuf;
+            }
+    }
+
+    /*
+     * From the current line count and characters read after that, estimate the line number where we are now.
+     * Used for error messages that include a line number.
+     */
+    /*private*/ static long readfile_linenr(long linecnt, Bytes p, Bytes endp)
+        /* linecnt: line count before reading more bytes */
+        /* p: start of more bytes read */
+        /* endp: end of more bytes read */
+    {
+        long lnum = curbuf.b_ml.ml_line_count - linecnt + 1;
+        for (Bytes s = p; BLT(s, endp); s = s.plus(1))
+            if (s.at(0) == (byte)'\n')
+                lnum++;
+        return lnum;
+    }
+
+    /*
+     * Checking a big file for illegal UTF-8 on all processors, see readfile_check_par().
+     */
+    /*private*/ static final int CHECK_PAR_READ = 0x400000;     /* bytes read at a time from a big file */
+    /*private*/ static final int CHECK_PAR_CHUNK = 0x40000;     /* minimal bytes checked by one task */
+
+    /*private*/ static ForkJoinPool check_pool;
+    /*private*/ static boolean check_pool_tried;
+
+    /*
+     * Return the pool for checking in parallel, null when there is only one processor.
+     */
+    /*private*/ static ForkJoinPool readfile_pool()
+    {
+        if (!check_pool_tried)
+        {
+            int n = Runtime.getRuntime().availableProcessors();
+            if (1 < n)
+                check_pool = new ForkJoinPool(n);
+            check_pool_tried = true;
+        }
+        return check_pool;
+    }
+
+    /*
+     * Checks the bytes "p[start]" to "p[end]" for illegal UTF-8, like readfile() does.
+     * "found" is set to where the first illegal or incomplete sequence starts, "end" if there is none.
+     */
+    /*private*/ static final class checktask_C extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        Bytes       p;
+        int         start, end;
+        int         size;           /* bytes in "p", a sequence may not go beyond */
+        int         found;
+
+        /*private*/ checktask_C(Bytes p, int start, int end, int size)
+        {
+            this.p = p;
+            this.start = start;
+            this.end = end;
+            this.size = size;
+        }
+
+        protected void compute()
+        {
+            int i = start;
+            while (i < end)
+            {
+                if (0x80 <= char_u(p.at(i)))
+                {
+                    int l = us_ptr2len_len(p.plus(i), size - i);
+                    if (l == 1 || size - i < l || end < i + l)
+                        break;
+                    i += l;
+                }
+                else
+                {
+                    int j = BHIGH(p.array, p.index + i, p.index + end);
+                    i = (j < 0) ? end : j - p.index;
+                }
+            }
+            found = i;
+        }
+    }
+
+    /*
+     * Check "ptr[size]" for illegal UTF-8 in chunks that are done in parallel.
+     * Each chunk starts at a byte that isn't a continuation byte, so valid text is split between characters.
+     * Returns the offset up to which all is valid UTF-8, where readfile() continues checking one character
+     * at a time, to handle an illegal byte or an incomplete character at the end; 0 when "size" is too small
+     * to bother or there is only one processor.
+     */
+    /*private*/ static int readfile_check_par(Bytes ptr, int size)
+    {
+        ForkJoinPool pool = (2 * CHECK_PAR_CHUNK <= size) ? readfile_pool() : null;
+        if (pool == null)
+            return 0;
+
+        int count = Math.min(size / CHECK_PAR_CHUNK, 4 * pool.getParallelism());
+
+        final checktask_C[] tasks = new checktask_C[count];
+        for (int i = 0, start = 0; i < count; i++)
+        {
+            int end = (i == count - 1) ? size : Math.max(start, (int)((long)size * (i + 1) / count));
+            while (end < size && (char_u(ptr.at(end)) & 0xc0) == 0x80)
+                end++;
+            tasks[i] = new checktask_C(ptr, start, end, size);
+            start = end;
+        }
+
+        pool.invoke(new RecursiveAction()
+        {
+            protected void compute()
+            {
+                invokeAll(tasks);
+            }
+        });
+
+        for (checktask_C t : tasks)
+            if (t.found < t.end)
+                return t.found;
+
+        return size;
+    }
+
+    /*
+     * Reading the files of the argument list ahead, for "vim -o file ..." and ":argdo".
+     * A thread of prefetch_pool reads all bytes of a file, readfile() takes them instead of reading the file.
+     * When the bytes are valid UTF-8 without a NUL or CR, the thread also splits them into lines, which
+     * readfile() appends as they are when it finds Unix format; conversion, the 'fileformats' check and
+     * anything else that depends on options or autocommands stay with readfile() on the main thread.
+     */
+    /*private*/ static final int PREFETCH_FILE_MAX = 0x1000000; /* a bigger file is read by readfile() itself */
+    /*private*/ static final long PREFETCH_MAX = 0x8000000L;    /* bytes read ahead and not yet taken */
+    /*private*/ static final int PREFETCH_THREADS = 4;          /* reading waits for the disk, not the processor */
+
+    /*private*/ static ForkJoinPool prefetch_pool;
+
+    /*private*/ static final class prefetch_C extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        Bytes       pf_fname;       /* full name of the file */
+        AtomicLong  pf_budget;      /* bytes that may still be read ahead, shared with the other tasks */
+        long        pf_size;        /* size of the file when it was read */
+        long        pf_mtime;       /* last change time of the file when it was read */
+        Bytes       pf_data;        /* "pf_size" bytes of the file, null when it wasn't read */
+        int         pf_pos;         /* offset of the next byte for prefetch_read() */
+        int[]       pf_lines;       /* null or the offsets of the NLs in "pf_data", replaced with NULs */
+        int         pf_nlines;      /* number of offsets in "pf_lines" */
+
+        /*private*/ prefetch_C(Bytes fname, AtomicLong budget)
+        {
+            pf_fname = fname;
+            pf_budget = budget;
+        }
+
+        protected void compute()
+        {
+            stat_C st = new stat_C();
+            if (libC.stat(pf_fname, st) < 0 || !S_ISREG(st.st_mode()))
+                return;
+
+            long size = st.st_size();
+            if (PREFETCH_FILE_MAX < size || (0 < p_lzl[0] && p_lzl[0] * 1024 <= size))
+                return;
+            if (pf_budget.addAndGet(-size) < 0)
+            {
+                pf_budget.addAndGet(size);
+                return;
+            }
+
+            Bytes data = null;
+            int fd = libC.open(pf_fname, O_RDONLY, 0);
+            if (0 <= fd)
+            {
+                data = new Bytes((int)size + 1);
+                int len = 0;
+                while (len < size)
+                {
+                    int n = read_eintr(fd, data.plus(len), (int)size - len);
+                    if (n <= 0)
+                        break;
+                    len += n;
+                }
+                libc.close(fd);
+                if (len != size)
+                    data = null;
+            }
+
+            if (data == null)
+            {
+                pf_budget.addAndGet(size);
+                return;
+            }
+
+            pf_size = size;
+            pf_mtime = st.st_mtime();
+            pf_data = data;
+
+            prefetch_split(this);
+        }
+    }
+
+    /*
+     * Split the bytes read ahead into lines for readfile(), when it would only look for NLs:
+     * they are valid UTF-8, without a NUL or CR, and don't start with a BOM.
+     */
+    /*private*/ static void prefetch_split(prefetch_C pf)
+    {
+        Bytes data = pf.pf_data;
+        int size = (int)pf.pf_size;
+        byte[] a = data.array;
+
+        if (size == 0 || char_u(data.at(0)) == 0xef || 0 <= BINDEX2(a, data.index, data.index + size, NUL, CAR))
+            return;
+
+        checktask_C check = new checktask_C(data, 0, size, size);
+        check.invoke();
+        if (check.found < size)
+            return;
+
+        int[] lines = new int[Math.max(16, size / 64)];
+        int n = 0;
+        for (int i = data.index, end = data.index + size; 0 <= (i = BINDEX(a, i, end, NL)); i++)
+        {
+            if (n == lines.length)
+                lines = Arrays.copyOf(lines, 2 * n);
+            lines[n++] = i - data.index;
+            a[i] = NUL;
+        }
+
+        if (0 < n)
+        {
+            pf.pf_lines = lines;
+            pf.pf_nlines = n;
+        }
+    }
+
+    /*
+     * Undo prefetch_split(), for when readfile() reads the bytes itself.
+     */
+    /*private*/ static void prefetch_unsplit(prefetch_C pf)
+    {
+        if (pf.pf_lines != null)
+        {
+            for (int i = 0; i < pf.pf_nlines; i++)
+                pf.pf_data.be(pf.pf_lines[i], NL);
+            pf.pf_lines = null;
+            pf.pf_nlines = 0;
+        }
+    }
+
+    /*
+     * Start reading the files of arguments "from" to "to" (exclusive) of "gap" ahead.
+     * Only for buffers that were not loaded yet, and when there is more than one file.
+     */
+    /*private*/ static void arg_prefetch(Growing<aentry_C> gap, int from, int to)
+    {
+        if (gap.ga_len < to)
+            to = gap.ga_len;
+        if (to - from < 2)
+            return;
+
+        if (prefetch_pool == null)
+            prefetch_pool = new ForkJoinPool(Math.max(PREFETCH_THREADS, Runtime.getRuntime().availableProcessors()));
+
+        AtomicLong budget = new AtomicLong(PREFETCH_MAX);
+        aentry_C[] files = gap.ga_data;
+        for (int i = from; i < to; i++)
+        {
+            buffer_C buf = buflist_findnr(files[i].ae_fnum);
+            if (buf == null || buf.b_ffname == null || buf.b_ml.ml_mfp != null || buf.b_prefetch != null)
+                continue;
+
+            buf.b_prefetch = new prefetch_C(STRDUP(buf.b_ffname), budget);
+            prefetch_pool.execute(buf.b_prefetch);
+        }
+    }
+
+    /*
+     * Done with a list command, e.g. because it was aborted: forget what was read ahead
+     * for the buffers that were not loaded, so that it can be freed.
+     */
+    /*private*/ static void arg_prefetch_end()
+    {
+        for (buffer_C buf = firstbuf; buf != null; buf = buf.b_next)
+            if (buf.b_prefetch != null)
+            {
+                buf.b_prefetch.cancel(false);
+                buf.b_prefetch = null;
+            }
+    }
+
+    /*
+     * Take the bytes read ahead for "buf", when they are still what is in its file, as found by stat() in readfile().
+     * Waits for the read to finish.  Returns null when readfile() must read the file itself.
+     */
+    /*private*/ static prefetch_C prefetch_take(buffer_C buf)
+    {
+        prefetch_C pf = buf.b_prefetch;
+        buf.b_prefetch = null;
+        if (pf == null)
+            return null;
+
+        pf.quietlyJoin();
+        if (!pf.isCompletedNormally() || pf.pf_data == null)
+            return null;
+
+        /* The bytes are kept until the lines are read, make room for other files now. */
+        pf.pf_budget.addAndGet(pf.pf_size);
+
+        if (buf.b_ffname == null || STRCMP(pf.pf_fname, buf.b_ffname) != 0 || pf.pf_size != buf.b_orig_size || pf.pf_mtime != buf.b_mtime)
+            return null;
+
+        return pf;
+    }
+
+    /*
+     * Version of read_direct() for readfile() that copies from the bytes read ahead.
+     */
+    /*private*/ static int prefetch_read(prefetch_C pf, Bytes buf, int bufsize)
+    {
+        int n = (int)Math.min(bufsize, pf.pf_size - pf.pf_pos);
+        BCOPY(buf, 0, pf.pf_data, pf.pf_pos, n);
+        pf.pf_pos += n;
+        return n;
+    }
+
+    /*
+     * ... used for calling readfile()
+     */
+    /*private*/ static void prep_exarg(exarg_C eap, buffer_C buf)
+    {
+        eap.cmd = STRDUP(u8("e"));
+
+        eap.bad_char = buf.b_bad_char;
+        eap.force_bin = buf.b_p_bin[0] ? FORCE_BIN : FORCE_NOBIN;
+        eap.read_edit = false;
+        eap.forceit = false;
+    }
+
+    /*
+     * Set default or forced 'fileformat' and 'binary'.
+     */
+    /*private*/ static void set_file_options(boolean set_options, exarg_C eap)
+    {
+        /* set default 'fileformat' */
+        if (set_options && p_ffs[0].at(0) != NUL)
+            set_fileformat(default_fileformat(), OPT_LOCAL);
+
+        /* set or reset 'binary' */
+        if (eap != null && eap.force_bin != 0)
+        {
+            boolean oldval = curbuf.b_p_bin[0];
+
+            curbuf.b_p_bin[0] = (eap.force_bin == FORCE_BIN);
+            set_options_bin(oldval, curbuf.b_p_bin[0], OPT_LOCAL);
+        }
+    }
+
+    /*
+     * Find next fileencoding to use from 'fileencodings'.
+     * "pp" points to fenc_next.  It's advanced to the next item.
+     * When there are no more items, an empty string is returned and *pp is set to null.
+     * When *pp is not set to null, the result is in allocated memory.
+     */
+    /*private*/ static Bytes next_fenc(Bytes[] pp)
+    {
+        if (pp[0].at(0) == NUL)
+        {
+            pp[0] = null;
+            return u8("");
+        }
+
+        Bytes r;
+
+        Bytes p = vim_strchr(pp[0], ',');
+        if (p == null)
+        {
+            r = enc_canonize(pp[0]);
+            pp[0] = pp[0].plus(strlen(pp[0]));
+        }
+        else
+        {
+            r = STRNDUP(pp[0], BDIFF(p, pp[0]));
+            pp[0] = p.plus(1);
+            if (r != null)
+                r = enc_canonize(r);
+        }
+
+        return r;
+    }
+
+    /*
+     * Return true if a file appears to be read-only from the file permissions.
+     */
+    /*private*/ static boolean check_file_readonly(Bytes fname, int perm)
+        /* fname: full path to file */
+        /* perm: known permissions on file */
+    {
+        return ((perm & 0222) == 0 || libC.access(fname, W_OK) != 0);
+    }
+
+    /*private*/ static Bytes err_readonly = u8("is read-only (cannot override: \"W\" in 'cpoptions')");
+
+    /*
+     * buf_write() - write to file "fname" lines "start" through "end"
+     *
+     * We do our own buffering here because fwrite() is so slow.
+     *
+     * If "forceit" is true, we don't care for errors when attempting backups.
+     * In case of an error everything possible is done to restore the original
+     * file.  But when "forceit" is true, we risk losing it.
+     *
+     * When "reset_changed" is true and "append" == false and "start" == 1 and
+     * "end" == curbuf.b_ml.ml_line_count, reset "curbuf.b_changed".
+     *
+     * This function must NOT use nameBuff (because it's called by autowrite()).
+     *
+     * return false for failure, true otherwise
+     */
+    /*private*/ static boolean buf_write(buffer_C buf, Bytes fname, Bytes sfname, long start, long end, exarg_C eap, boolean append, boolean forceit, boolean reset_changed, boolean filtering)
+        /* eap: for forced 'ff' and 'fenc', can be null! */
+        /* append: append to the file */
+    {
+        boolean retval = true;
+
+        boolean msg_save = msg_scroll;
+        boolean prev_got_int = got_int;
+
+        lazy_finish(buf);
+        /* A previous write in the background must be done, for the timestamp and 'modified'. */
+        bgwrite_finish(buf);
+
+        long old_line_count = buf.b_ml.ml_line_count;
+        boolean whole = (start == 1 && end == old_line_count);  /* writing everything */
+
+        if (fname == null || fname.at(0) == NUL)                     /* safety check */
+            return false;
 
         if (buf.b_ml.ml_mfp == null)
         {
@@ -2005,6 +3255,8 @@ public class VimT
         Bytes errmsg = null;
         Bytes errnum = null;
 
+        bgwrite_C bg = null;                    /* writing in the background */
+
         bw_info_C write_info = new bw_info_C(); /* info for buf_write_bytes() */
         write_info.bw_conv_buf = null;          /* must init bw_conv_buf before jumping to "fail" */
         write_info.bw_conv_error = false;
@@ -2164,6 +3416,31 @@ public class VimT
                     notconverted = true;
                 }
 
+                /*
+                 * A hex dump is written as the bytes it shows, see 'hexview'.  When the lines are
+                 * still taken from the file and the changes don't add or remove bytes, only the
+                 * changed lines are written into the file.  Otherwise the file is truncated,
+                 * thus the lines must not be taken from it anymore.
+                 */
+                boolean hex = (buf.b_hex && !filtering);
+                boolean patch = false;
+                if (hex && buf.b_ml.ml_hex != null && overwriting && !newfile && !append)
+                {
+                    patch = (whole && reset_changed && ml_hex_patchable(buf));
+                    if (!patch)
+                        ml_hex_unview(buf);
+                }
+
+                /*
+                 * With 'backgroundwrite' a ":w" or ":up" of the whole buffer writes a new file next
+                 * to "fname", which is renamed over it when done.  When that is not possible,
+                 * e.g. for a link or a file owned by someone else, write the file directly.
+                 */
+                if (p_bgw[0] && eap != null && (eap.cmdidx == CMD_write || eap.cmdidx == CMD_update)
+                        && reset_changed && whole && !append && !filtering && !exiting
+                        && !device && !file_readonly && !converted && !patch)
+                    bg = bgwrite_open(buf, fname, newfile, perm, overwriting);
+
                 /*
                  * Open the file "wfname" for writing.
                  * We may try to open the file twice: If we can't write to the
@@ -2172,9 +3449,9 @@ public class VimT
                  * (this may happen when the user reached his quotum for number of files).
                  * Appending will fail if the file does not exist and forceit is false.
                  */
-                int fd;
-                while ((fd = libC.open(wfname,
-                    O_WRONLY | (append ? (forceit ? (O_APPEND | O_CREAT) : O_APPEND) : (O_CREAT | O_TRUNC)),
+                int fd = (bg != null) ? bg.bg_fd : -1;
+                while (bg == null && (fd = libC.open(wfname,
+                    O_WRONLY | (patch ? 0 : append ? (forceit ? (O_APPEND | O_CREAT) : O_APPEND) : (O_CREAT | O_TRUNC)),
                     (perm < 0) ? 0666 : (perm & 0777))) < 0)
                 {
                     stat_C st = new stat_C();
@@ -2217,6 +3494,7 @@ public class VimT
                 errmsg = null;
 
                 write_info.bw_fd = fd;
+                write_info.bw_bg = bg;
 
                 write_info.bw_buf = buffer;
                 long nchars = 0;
@@ -2248,7 +3526,7 @@ public class VimT
                 }
                 write_info.bw_start_lnum = start;
 
-                write_undo_file = (buf.b_p_udf[0] && overwriting && !append && !filtering && reset_changed);
+                write_undo_file = (buf.b_p_udf[0] && overwriting && !append && !filtering && reset_changed && !hex);
                 if (write_undo_file)
                     /* Prepare for computing the hash value of the text. */
                     sha256_start(sha_ctx);
@@ -2256,10 +3534,65 @@ public class VimT
                 write_info.bw_len = bufsize;
                 write_info.bw_flags = wb_flags;
                 int fileformat = get_fileformat_force(buf, eap);
+                long lnum = start;
+
+                if (hex)
+                {
+                    long n = patch ? ml_hex_write(buf, fd) : buf_write_hex(write_info, buf, start, end);
+                    if (n < 0)
+                        end = 0;
+                    else
+                        nchars += n;
+                    lnum = end + 1;                 /* skip the loops below */
+                }
+
+                /*
+                 * Without conversion and with Unix line breaks, copy whole lines out of the memline,
+                 * as many as fit in a big buffer, and write that at once.  See ml_get_text().
+                 * The last line is left to the loop below, it may be written without an EOL.
+                 */
+                if (wb_flags == 0 && fileformat == EOL_UNIX && lnum < end)
+                {
+                    Bytes bulk = new Bytes(BULKSIZE);
+                    long[] lp = { start };
+                    write_info.bw_buf = bulk;
+                    while (lp[0] < end)
+                    {
+                        int n = ml_get_text(buf, lp, end - 1, bulk, BULKSIZE);
+                        if (n == 0)
+                            break;                  /* a very long line, done below */
+                        if (write_undo_file)
+                            sha256_update(sha_ctx, bulk, n);
+
+                        /* Replace newlines with NULs and the NULs after the lines with NLs. */
+                        byte[] a = bulk.array;
+                        for (int i = 0; (i = BINDEX2(a, i, n, NUL, NL)) != -1; i++)
+                            a[i] = (a[i] == NUL) ? NL : NUL;
+
+                        write_info.bw_len = n;
+                        if (buf_write_bytes(write_info) == false)
+                        {
+                            end = 0;                /* write error: break loop */
+                            break;
+                        }
+                        nchars += n;
+                        lnum = lp[0];
+
+                        ui_breakcheck();
+                        if (got_int)
+                        {
+                            end = 0;                /* Interrupted, break loop */
+                            break;
+                        }
+                    }
+                    write_info.bw_buf = buffer;
+                    write_info.bw_len = bufsize;
+                    write_info.bw_start_lnum = lnum;
+                }
+
                 Bytes s = buffer;
                 int len = 0;
-                long lnum;
-                for (lnum = start; lnum <= end; lnum++)
+                for ( ; lnum <= end; lnum++)
                 {
                     /*
                      * The next while loop is done once for each character written.
@@ -2349,35 +3682,46 @@ public class VimT
                     nchars += len;
                 }
 
-                /* On many journalling file systems there is a bug that causes both the
-                 * original and the backup file to be lost when halting the system right
-                 * after writing the file.  That's because only the meta-data is
-                 * journalled.  Syncing the file slows down the system, but assures it has
-                 * been written to disk and we don't lose it.
-                 * For a device do try the fsync() but don't complain if it does not work (could be a pipe).
-                 * If the 'fsync' option is false, don't fsync().  Useful for laptops. */
-                if (p_fs[0] && libc.fsync(fd) != 0 && !device)
+                if (bg != null)
                 {
-                    errmsg = u8("E667: Fsync failed");
-                    end = 0;
+                    /* The thread syncs, closes and renames the file, see bgwrite_done() for the rest. */
+                    if (end == 0)
+                        bgwrite_abort(bg);
+                    else
+                        bgwrite_end(bg);
                 }
+                else
+                {
+                    /* On many journalling file systems there is a bug that causes both the
+                     * original and the backup file to be lost when halting the system right
+                     * after writing the file.  That's because only the meta-data is
+                     * journalled.  Syncing the file slows down the system, but assures it has
+                     * been written to disk and we don't lose it.
+                     * For a device do try the fsync() but don't complain if it does not work (could be a pipe).
+                     * If the 'fsync' option is false, don't fsync().  Useful for laptops. */
+                    if (p_fs[0] && libc.fsync(fd) != 0 && !device)
+                    {
+                        errmsg = u8("E667: Fsync failed");
+                        end = 0;
+                    }
 
-                /* When creating a new file, set its owner/group to that of the original file.
-                 * Get the new device and inode number. */
-                if (!buf.b_dev_valid)
-                    /* Set the inode when creating a new file. */
-                    buf_setino(buf);
+                    /* When creating a new file, set its owner/group to that of the original file.
+                     * Get the new device and inode number. */
+                    if (!buf.b_dev_valid)
+                        /* Set the inode when creating a new file. */
+                        buf_setino(buf);
 
-                if (libc.close(fd) != 0)
-                {
-                    errmsg = u8("E512: Close failed");
-                    end = 0;
-                }
+                    if (libc.close(fd) != 0)
+                    {
+                        errmsg = u8("E512: Close failed");
+                        end = 0;
+                    }
 
-                if (made_writable)
-                    perm &= ~0200;          /* reset 'w' bit for security reasons */
-                if (0 <= perm)              /* set perm of new file same as old file */
-                    mch_setperm(wfname, perm);
+                    if (made_writable)
+                        perm &= ~0200;          /* reset 'w' bit for security reasons */
+                    if (0 <= perm)              /* set perm of new file same as old file */
+                        mch_setperm(wfname, perm);
+                }
 
                 if (BNE(wfname, fname))
                     libC.unlink(wfname);
@@ -2448,10 +3792,18 @@ public class VimT
                     if (msg_add_fileformat(fileformat))
                         c = true;
                     msg_add_lines(c, lnum, nchars);     /* add line/char count */
+                    if (bg != null)
+                        bg.bg_msg = STRNDUP(ioBuff, strlen(ioBuff) + 10);
                     if (!shortmess(SHM_WRITE))
                     {
                         if (append)
                             STRCAT(ioBuff, shortmess(SHM_WRI) ? u8(" [a]") : u8(" appended"));
+                        else if (bg != null)
+                        {
+                            /* Say "written" when it is, see bgwrite_done(). */
+                            STRCAT(bg.bg_msg, shortmess(SHM_WRI) ? u8(" [w]") : u8(" written"));
+                            STRCAT(ioBuff, shortmess(SHM_WRI) ? u8(" [w...]") : u8(" writing"));
+                        }
                         else
                             STRCAT(ioBuff, shortmess(SHM_WRI) ? u8(" [w]") : u8(" written"));
                     }
@@ -2461,7 +3813,7 @@ public class VimT
 
                 /* When written everything correctly: reset 'modified'.
                  * Unless not writing to the original file and '+' is not in 'cpoptions'. */
-                if (reset_changed && whole && !append
+                if (reset_changed && whole && !append && bg == null
                         && !write_info.bw_conv_error
                         && (overwriting || vim_strbyte(p_cpo[0], CPO_PLUS) != null))
                 {
@@ -2478,7 +3830,7 @@ public class VimT
                  * If written to the current file, update the timestamp of the swap file
                  * and reset the BF_WRITE_MASK flags.  Also sets buf.b_mtime.
                  */
-                if (overwriting)
+                if (overwriting && bg == null)
                 {
                     ml_timestamp(buf);
                     if (append)
@@ -2487,94 +3839,457 @@ public class VimT
                         buf.b_flags &= ~BF_WRITE_MASK;
                 }
 
-                break nofail;
-            }
+                break nofail;
+            }
+
+            /*
+             * Finish up.  We get here either after failure or success.
+             */
+            --no_wait_return;           /* may wait for return now */
+        }
+
+        /* Done saving, we accept changed buffer warnings again.
+         * When writing in the background, not until the file has been renamed. */
+        if (bg == null || errmsg != null)
+            buf.b_saving = false;
+
+        if (errmsg != null)
+        {
+            int numlen = (errnum != null) ? strlen(errnum) : 0;
+
+            int attr = hl_attr(HLF_E);          /* set highlight for error messages */
+            msg_add_fname(fname);               /* put file name in ioBuff with quotes */
+            if (IOSIZE <= strlen(ioBuff) + strlen(errmsg) + numlen)
+                ioBuff.be(IOSIZE - strlen(errmsg) - numlen - 1, NUL);
+            /* If the error message has the form "is ...", put the error number in front of the file name. */
+            if (errnum != null)
+            {
+                BCOPY(ioBuff, numlen, ioBuff, 0, strlen(ioBuff) + 1);
+                BCOPY(ioBuff, errnum, numlen);
+            }
+            STRCAT(ioBuff, errmsg);
+            emsg(ioBuff);
+
+            retval = false;
+            if (end == 0)
+            {
+                msg_puts_attr(u8("\nWARNING: Original file may be lost or damaged\n"), attr | MSG_HIST);
+                msg_puts_attr(u8("don't quit the editor until the file is successfully written!"), attr | MSG_HIST);
+
+                stat_C st_old = new stat_C();
+
+                /* Update the timestamp to avoid an "overwrite changed file" prompt when writing again. */
+                if (0 <= libC.stat(fname, st_old))
+                {
+                    buf_store_time(buf, st_old);
+                    buf.b_mtime_read = buf.b_mtime;
+                }
+            }
+        }
+        msg_scroll = msg_save;
+
+        /*
+         * When writing the whole file and 'undofile' is set, also write the undo file.
+         */
+        if (retval == true && write_undo_file)
+        {
+            Bytes hash = new Bytes(UNDO_HASH_SIZE);
+
+            sha256_finish(sha_ctx, hash);
+            u_save_hash(buf, hash);
+            u_write_undo(null, false, buf, hash);
+        }
+
+        if (!should_abort(retval))
+        {
+            curbuf.b_no_eol_lnum = 0;   /* in case it was set by the previous read */
+
+            /*
+             * Apply POST autocommands.
+             * Careful: The autocommands may call buf_write() recursively!
+             */
+            aco_save_C aco = new aco_save_C();
+            aucmd_prepbuf(aco, buf);
+
+            if (append)
+                apply_autocmds_exarg(EVENT_FILEAPPENDPOST, fname, fname, false, curbuf, eap);
+            else if (filtering)
+                apply_autocmds_exarg(EVENT_FILTERWRITEPOST, null, fname, false, curbuf, eap);
+            else if (reset_changed && whole)
+                apply_autocmds_exarg(EVENT_BUFWRITEPOST, fname, fname, false, curbuf, eap);
+            else
+                apply_autocmds_exarg(EVENT_FILEWRITEPOST, fname, fname, false, curbuf, eap);
+
+            /* restore curwin/curbuf and a few other things */
+            aucmd_restbuf(aco);
+
+            if (aborting())     /* autocmds may abort script processing */
+                retval = false;
+        }
+
+        got_int |= prev_got_int;
+
+        return retval;
+    }
+
+    /*
+     * Writing a file in the background, see 'backgroundwrite'.
+     * buf_write() collects the text in direct buffers, which a thread writes to a new file
+     * next to the original.  That one is synced, closed and renamed over the original, thus
+     * the file is either the old or the new text.  Meanwhile the buffer can be edited.
+     */
+    /*private*/ static final int BGW_CHUNK = 0x100000;      /* bytes collected in one buffer */
+    /*private*/ static final int BGW_CHUNKS = 4;            /* most buffers used for one write */
+    /*private*/ static final long BGW_POLL = 50L;           /* msec between checking for done writes */
+
+    /*private*/ static final class bgwrite_C
+    {
+        buffer_C    bg_buf;                 /* buffer being written */
+        Bytes       bg_fname;               /* file written to */
+        Bytes       bg_tmpname;             /* new file, renamed to "bg_fname" when done */
+        int         bg_fd;                  /* file descriptor of "bg_tmpname" */
+        int         bg_perm;                /* permissions of the new file, -1 for default */
+        boolean     bg_fsync;               /* 'fsync' when started */
+        boolean     bg_overwriting;         /* writing the file of the buffer */
+        long        bg_changedtick;         /* b_changedtick when the text was collected */
+        Bytes       bg_msg;                 /* message for when it's done */
+
+        ByteBuffer  bg_chunk;               /* buffer being filled */
+        int         bg_nchunks;             /* number of buffers allocated, up to BGW_CHUNKS */
+        ArrayBlockingQueue<ByteBuffer> bg_queue;    /* filled buffers, an empty one stops the writer */
+        ArrayBlockingQueue<ByteBuffer> bg_free;     /* written buffers, to be used again */
+        Thread      bg_thread;
+        volatile boolean bg_abort;          /* remove the new file, keep the original */
+        volatile boolean bg_done;           /* thread has finished */
+        volatile Bytes bg_errmsg;           /* set when writing failed */
+
+        bgwrite_C   bg_next;                /* next in "bgwrite_first" list */
+
+        /*private*/ bgwrite_C()
+        {
+        }
+    }
+
+    /*private*/ static bgwrite_C bgwrite_first;     /* writes that have not been reported */
+
+    /*
+     * Return the name of the new file for "fname": "dir/name" -> "dir/.name.bgw".
+     * When "c" is not 'w' it replaces the last letter, for when the first name is in use.
+     */
+    /*private*/ static Bytes bgwrite_tmpname(Bytes fname, int c)
+    {
+        Bytes tmpname = STRNDUP(fname, strlen(fname) + 5);
+
+        Bytes p = gettail(tmpname);
+        BCOPY(p, 1, p, 0, strlen(p) + 1);
+        p.be(0, (byte)'.');
+        STRCAT(p, u8(".bgw"));
+        p.be(strlen(p) - 1, (byte)c);
+
+        return tmpname;
+    }
+
+    /*
+     * Start writing "fname" for "buf" in the background.
+     * Not for a link or a file of another user or group, renaming would change that.
+     * Returns null when the file has to be written directly.
+     */
+    /*private*/ static bgwrite_C bgwrite_open(buffer_C buf, Bytes fname, boolean newfile, int perm, boolean overwriting)
+    {
+        if (!newfile)
+        {
+            stat_C st = new stat_C();
+            if (libC.lstat(fname, st) != 0 || !S_ISREG(st.st_mode()) || 1 < st.st_nlink()
+                    || st.st_uid() != libc.getuid() || st.st_gid() != libc.getgid())
+                return null;
+        }
+
+        Bytes tmpname = null;
+        int fd = -1;
+        for (int c = 'w'; fd < 0 && c <= 'z'; c++)
+        {
+            tmpname = bgwrite_tmpname(fname, c);
+            fd = libC.open(tmpname, O_WRONLY | O_CREAT | O_EXCL, (perm < 0) ? 0666 : (perm & 0777));
+            if (fd < 0 && libC.errno() != EEXIST)
+                break;
+        }
+        if (fd < 0)
+            return null;
+
+        final bgwrite_C bg = new bgwrite_C();
+        bg.bg_buf = buf;
+        bg.bg_fname = STRDUP(fname);
+        bg.bg_tmpname = tmpname;
+        bg.bg_fd = fd;
+        bg.bg_perm = perm;
+        bg.bg_fsync = p_fs[0];
+        bg.bg_overwriting = overwriting;
+        bg.bg_queue = new ArrayBlockingQueue<ByteBuffer>(BGW_CHUNKS + 1);
+        bg.bg_free = new ArrayBlockingQueue<ByteBuffer>(BGW_CHUNKS);
+        bg.bg_thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                bgwrite_run(bg);
+            }
+        });
+        bg.bg_thread.setDaemon(true);
+        bg.bg_thread.start();
+
+        return bg;
+    }
+
+    /*
+     * Add "len" bytes of "buf" to the text to be written.
+     * Used by buf_write_bytes(), the thread starts writing each buffer that is full.
+     * When all BGW_CHUNKS buffers are in use, wait for the thread to write one.
+     * Returns false when the thread is gone.
+     */
+    /*private*/ static boolean bgwrite_add(bgwrite_C bg, Bytes buf, int len)
+    {
+        while (0 < len)
+        {
+            if (bg.bg_chunk == null)
+            {
+                while (bg.bg_chunk == null)
+                {
+                    if (bg.bg_nchunks < BGW_CHUNKS && bg.bg_free.isEmpty())
+                    {
+                        bg.bg_chunk = ByteBuffer.allocateDirect(BGW_CHUNK);
+                        bg.bg_nchunks++;
+                    }
+                    else
+                    {
+                        try
+                        {
+                            bg.bg_chunk = bg.bg_free.poll(BGW_POLL, TimeUnit.MILLISECONDS);
+                        }
+                        catch (InterruptedException _e)
+                        {
+                        }
+                        if (bg.bg_chunk == null && !bg.bg_thread.isAlive())
+                            return false;
+                    }
+                }
+                bg.bg_chunk.clear();
+            }
+
+            int n = Math.min(len, bg.bg_chunk.remaining());
+            bg.bg_chunk.put(buf.array, buf.index, n);
+            buf = buf.plus(n);
+            len -= n;
+
+            if (!bg.bg_chunk.hasRemaining())
+            {
+                bg.bg_chunk.flip();
+                bg.bg_queue.add(bg.bg_chunk);
+                bg.bg_chunk = null;
+            }
+        }
+
+        return true;
+    }
+
+    /*
+     * All text has been collected: let the thread finish and remember to report it.
+     */
+    /*private*/ static void bgwrite_end(bgwrite_C bg)
+    {
+        if (bg.bg_chunk != null && 0 < bg.bg_chunk.position())
+        {
+            bg.bg_chunk.flip();
+            bg.bg_queue.add(bg.bg_chunk);
+        }
+        bg.bg_chunk = null;
+        bg.bg_queue.add(ByteBuffer.allocate(0));
+
+        bg.bg_changedtick = bg.bg_buf.b_changedtick;
+
+        bg.bg_next = bgwrite_first;
+        bgwrite_first = bg;
+    }
+
+    /*
+     * Writing failed or was interrupted before all text was collected: remove the new file.
+     */
+    /*private*/ static void bgwrite_abort(bgwrite_C bg)
+    {
+        bg.bg_abort = true;
+        bg.bg_chunk = null;
+        bg.bg_queue.add(ByteBuffer.allocate(0));
 
-            /*
-             * Finish up.  We get here either after failure or success.
-             */
-            --no_wait_return;           /* may wait for return now */
+        for (boolean joined = false; !joined; )
+        {
+            try
+            {
+                bg.bg_thread.join();
+                joined = true;
+            }
+            catch (InterruptedException _e)
+            {
+            }
         }
+    }
 
-        /* Done saving, we accept changed buffer warnings again. */
-        buf.b_saving = false;
+    /*
+     * The thread writing the file.
+     */
+    /*private*/ static void bgwrite_run(bgwrite_C bg)
+    {
+        Bytes errmsg = null;
 
-        if (errmsg != null)
+        for ( ; ; )
         {
-            int numlen = (errnum != null) ? strlen(errnum) : 0;
-
-            int attr = hl_attr(HLF_E);          /* set highlight for error messages */
-            msg_add_fname(fname);               /* put file name in ioBuff with quotes */
-            if (IOSIZE <= strlen(ioBuff) + strlen(errmsg) + numlen)
-                ioBuff.be(IOSIZE - strlen(errmsg) - numlen - 1, NUL);
-            /* If the error message has the form "is ...", put the error number in front of the file name. */
-            if (errnum != null)
+            ByteBuffer chunk;
+            try
             {
-                BCOPY(ioBuff, numlen, ioBuff, 0, strlen(ioBuff) + 1);
-                BCOPY(ioBuff, errnum, numlen);
+                chunk = bg.bg_queue.take();
             }
-            STRCAT(ioBuff, errmsg);
-            emsg(ioBuff);
-
-            retval = false;
-            if (end == 0)
+            catch (InterruptedException _e)
             {
-                msg_puts_attr(u8("\nWARNING: Original file may be lost or damaged\n"), attr | MSG_HIST);
-                msg_puts_attr(u8("don't quit the editor until the file is successfully written!"), attr | MSG_HIST);
-
-                stat_C st_old = new stat_C();
+                continue;
+            }
+            if (!chunk.hasRemaining())
+                break;
 
-                /* Update the timestamp to avoid an "overwrite changed file" prompt when writing again. */
-                if (0 <= libC.stat(fname, st_old))
+            for (ByteBuffer bb = chunk; errmsg == null && !bg.bg_abort && bb.hasRemaining(); )
+            {
+                long n = libc.write(bg.bg_fd, bb, bb.remaining());
+                if (0 < n)
                 {
-                    buf_store_time(buf, st_old);
-                    buf.b_mtime_read = buf.b_mtime;
+                    bb.position(bb.position() + (int)n);
+                    bb = bb.slice();
                 }
+                else if (n == 0 || libC.errno() != EINTR)
+                    errmsg = u8("E514: write error (file system full?)");
             }
+            bg.bg_free.add(chunk);
         }
-        msg_scroll = msg_save;
 
-        /*
-         * When writing the whole file and 'undofile' is set, also write the undo file.
-         */
-        if (retval == true && write_undo_file)
-        {
-            Bytes hash = new Bytes(UNDO_HASH_SIZE);
+        /* Like buf_write() does, see there why. */
+        if (errmsg == null && !bg.bg_abort && bg.bg_fsync && libc.fsync(bg.bg_fd) != 0)
+            errmsg = u8("E667: Fsync failed");
+        if (libc.close(bg.bg_fd) != 0 && errmsg == null)
+            errmsg = u8("E512: Close failed");
+        if (errmsg == null && !bg.bg_abort && 0 <= bg.bg_perm)
+            mch_setperm(bg.bg_tmpname, bg.bg_perm);
+        if (errmsg == null && !bg.bg_abort && libC.rename(bg.bg_tmpname, bg.bg_fname) != 0)
+            errmsg = u8("E514: write error, rename failed");
+
+        if (errmsg != null || bg.bg_abort)
+            libC.unlink(bg.bg_tmpname);
+
+        bg.bg_errmsg = errmsg;
+        bg.bg_done = true;
+    }
 
-            sha256_finish(sha_ctx, hash);
-            u_write_undo(null, false, buf, hash);
-        }
+    /*
+     * The thread for "bg" has finished: do what buf_write() does after writing a file and report it.
+     */
+    /*private*/ static void bgwrite_done(bgwrite_C bg)
+    {
+        if (bgwrite_first == bg)
+            bgwrite_first = bg.bg_next;
+        else
+            for (bgwrite_C p = bgwrite_first; p != null; p = p.bg_next)
+                if (p.bg_next == bg)
+                {
+                    p.bg_next = bg.bg_next;
+                    break;
+                }
 
-        if (!should_abort(retval))
+        buffer_C buf = bg.bg_buf;
+        if (buf_valid(buf) && buf.b_ml.ml_mfp != null)
         {
-            curbuf.b_no_eol_lnum = 0;   /* in case it was set by the previous read */
+            buf.b_saving = false;
 
-            /*
-             * Apply POST autocommands.
-             * Careful: The autocommands may call buf_write() recursively!
-             */
-            aco_save_C aco = new aco_save_C();
-            aucmd_prepbuf(aco, buf);
+            if (bg.bg_errmsg == null)
+            {
+                /* The renamed file has another inode. */
+                buf_setino(buf);
 
-            if (append)
-                apply_autocmds_exarg(EVENT_FILEAPPENDPOST, fname, fname, false, curbuf, eap);
-            else if (filtering)
-                apply_autocmds_exarg(EVENT_FILTERWRITEPOST, null, fname, false, curbuf, eap);
-            else if (reset_changed && whole)
-                apply_autocmds_exarg(EVENT_BUFWRITEPOST, fname, fname, false, curbuf, eap);
-            else
-                apply_autocmds_exarg(EVENT_FILEWRITEPOST, fname, fname, false, curbuf, eap);
+                if (bg.bg_overwriting)
+                {
+                    ml_timestamp(buf);
+                    buf.b_flags &= ~BF_WRITE_MASK;
+                }
 
-            /* restore curwin/curbuf and a few other things */
-            aucmd_restbuf(aco);
+                /* Reset 'modified' when the buffer was not changed while writing. */
+                if (bg.bg_changedtick == buf.b_changedtick
+                        && (bg.bg_overwriting || vim_strbyte(p_cpo[0], CPO_PLUS) != null))
+                {
+                    unchanged(buf, true);
+                    if (last_changedtick + 1 == buf.b_changedtick && last_changedtick_buf == buf)
+                        last_changedtick = buf.b_changedtick;
+                    u_unchanged(buf);
+                    u_update_save_nr(buf);
+                }
+            }
+        }
 
-            if (aborting())     /* autocmds may abort script processing */
-                retval = false;
+        if (bg.bg_errmsg != null)
+        {
+            msg_add_fname(bg.bg_fname);
+            STRCAT(ioBuff, bg.bg_errmsg);
+            emsg(ioBuff);
         }
+        else
+            set_keep_msg(msg_trunc_attr(bg.bg_msg, false, 0), 0);
+    }
 
-        got_int |= prev_got_int;
+    /*
+     * Report the writes that are done, called while waiting for a character.
+     */
+    /*private*/ static void bgwrite_poll()
+    {
+        boolean done = false;
 
-        return retval;
+        for (bgwrite_C bg = bgwrite_first, next; bg != null; bg = next)
+        {
+            next = bg.bg_next;
+            if (bg.bg_done)
+            {
+                bgwrite_done(bg);
+                done = true;
+            }
+        }
+
+        /* Show that 'modified' was reset, unless busy with something else. */
+        if (done && State == NORMAL && !VIsual_active && exmode_active == 0 && stuff_empty())
+        {
+            if (must_redraw != 0)
+                update_screen(0);
+            redraw_statuslines();
+            showruler(false);
+            setcursor();
+            out_flush();
+        }
+    }
+
+    /*
+     * Wait until the writes of "buf" are done, of all buffers when "buf" is null.
+     * Used when the result matters: before writing again, checking 'modified' and exiting.
+     */
+    /*private*/ static void bgwrite_finish(buffer_C buf)
+    {
+        for (bgwrite_C bg = bgwrite_first, next; bg != null; bg = next)
+        {
+            next = bg.bg_next;
+            if (buf == null || bg.bg_buf == buf)
+            {
+                while (!bg.bg_done)
+                {
+                    try
+                    {
+                        bg.bg_thread.join();
+                    }
+                    catch (InterruptedException _e)
+                    {
+                    }
+                }
+                bgwrite_done(bg);
+            }
+        }
     }
 
     /*
@@ -2711,6 +4426,48 @@ public class VimT
         return (1 < t1 - t2 || 1 < t2 - t1);
     }
 
+    /*
+     * Write lines "start" to "end" of hex dump "buf" as the bytes they show, see hex_decode().
+     * Returns the number of bytes written, -1 for a write error or when interrupted.
+     */
+    /*private*/ static long buf_write_hex(bw_info_C ip, buffer_C buf, long start, long end)
+    {
+        Bytes bulk = new Bytes(BULKSIZE);
+        int len = 0;
+        long nchars = 0;
+
+        ip.bw_flags = FIO_NOCONVERT;
+        for (long lnum = start; lnum <= end; lnum++)
+        {
+            Bytes p = ml_get_buf(buf, lnum, false);
+            int need = strlen(p) / 2;
+            if (bulk.size() - len < need)
+            {
+                ip.bw_buf = bulk;
+                ip.bw_len = len;
+                if (0 < len && buf_write_bytes(ip) == false)
+                    return -1;
+                nchars += len;
+                len = 0;
+                if (bulk.size() < need)
+                    bulk = new Bytes(need);
+
+                ui_breakcheck();
+                if (got_int)
+                    return -1;
+            }
+            ip.bw_start_lnum = lnum;
+            len += hex_decode(p, bulk.array, len);
+        }
+
+        ip.bw_buf = bulk;
+        ip.bw_len = len;
+        if (0 < len && buf_write_bytes(ip) == false)
+            return -1;
+
+        return nchars + len;
+    }
+
     /*
      * Call write() to write a number of bytes to the file.
      * Handles encryption and 'encoding' conversion.
@@ -2833,6 +4590,9 @@ public class VimT
             }
         }
 
+        if (ip.bw_bg != null)
+            return bgwrite_add(ip.bw_bg, buf, len);
+
         int wlen = write_eintr(ip.bw_fd, buf, len);
         return (wlen < len) ? false : true;
     }
@@ -3121,6 +4881,200 @@ public class VimT
 
     /*private*/ static boolean already_warned;
 
+    /*
+     * With 'watchfiles' the directories of the files of the buffers are watched (with inotify on Linux)
+     * by a thread that remembers the names of the files that were created, changed or deleted.
+     * check_timestamps() then only does a stat() for the buffers of those files, instead of for all of them.
+     */
+    /*private*/ static final class watchdir_C
+    {
+        Path        wd_dir;
+        WatchKey    wd_key;
+        int         wd_count;           /* number of buffers with a file in "wd_dir" */
+        Set<String> wd_changed;         /* names of the files that something happened to */
+        volatile int wd_lost;           /* incremented when events were lost or "wd_dir" can't be watched */
+
+        /*private*/ watchdir_C()
+        {
+        }
+    }
+
+    /*private*/ static WatchService filewatch_service;
+    /*private*/ static boolean filewatch_failed;
+    /*private*/ static ConcurrentHashMap<Path, watchdir_C> filewatch_dirs = new ConcurrentHashMap<Path, watchdir_C>();
+    /*private*/ static Charset filewatch_charset;   /* how file names are turned into a Path */
+
+    /*
+     * Return true when check_timestamps() doesn't need to check "buf",
+     * because 'watchfiles' is set and nothing happened to its file since the last check.
+     */
+    /*private*/ static boolean filewatch_unchanged(buffer_C buf)
+    {
+        if (!p_wfs[0] || buf.b_ffname == null)
+            return false;
+
+        /* buf_check_timestamp() ignores the buffer now, keep any event for later. */
+        if (buf.b_ml.ml_mfp == null || buf.b_saving || _1_busy)
+            return true;
+
+        if (buf.b_watch_fname == null || STRCMP(buf.b_watch_fname, buf.b_ffname) != 0)
+        {
+            filewatch_add(buf);
+            return false;                   /* check it once now, later changes give an event */
+        }
+
+        watchdir_C wd = buf.b_watch;
+        if (wd == null)                     /* the file can't be watched */
+            return false;
+
+        boolean changed = wd.wd_changed.remove(buf.b_watch_name);
+        int lost = wd.wd_lost;
+        if (lost != buf.b_watch_lost)
+        {
+            buf.b_watch_lost = lost;
+            changed = true;
+        }
+        if (!wd.wd_key.isValid())
+            changed = true;
+
+        return !changed;
+    }
+
+    /*
+     * Start watching the directory of the file of "buf".
+     * Not when the file is a symbolic link or has other names (hard links),
+     * then it can be changed without an event for the name in this directory.
+     */
+    /*private*/ static void filewatch_add(buffer_C buf)
+    {
+        filewatch_drop(buf);
+        buf.b_watch_fname = STRDUP(buf.b_ffname);
+
+        stat_C st = new stat_C();
+        if (libC.lstat(buf.b_ffname, st) == 0 && (!S_ISREG(st.st_mode()) || 1 < st.st_nlink()))
+            return;
+
+        if (filewatch_service == null)
+        {
+            if (filewatch_failed)
+                return;
+
+            try
+            {
+                filewatch_service = FileSystems.getDefault().newWatchService();
+            }
+            catch (IOException | UnsupportedOperationException _e)
+            {
+                filewatch_failed = true;
+                return;
+            }
+
+            try
+            {
+                filewatch_charset = Charset.forName(System.getProperty("sun.jnu.encoding"));
+            }
+            catch (Exception _e)
+            {
+                filewatch_charset = Charset.defaultCharset();
+            }
+
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    filewatch_run();
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try
+        {
+            Path path = Paths.get(new String(buf.b_ffname.array, buf.b_ffname.index, strlen(buf.b_ffname), filewatch_charset));
+            Path dir = path.getParent(), tail = path.getFileName();
+            if (dir == null || tail == null)
+                return;
+
+            watchdir_C wd = filewatch_dirs.get(dir);
+            if (wd == null || !wd.wd_key.isValid())
+            {
+                wd = new watchdir_C();
+                wd.wd_dir = dir;
+                wd.wd_changed = ConcurrentHashMap.newKeySet();
+                wd.wd_key = dir.register(filewatch_service, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                filewatch_dirs.put(dir, wd);
+            }
+            wd.wd_count++;
+
+            buf.b_watch = wd;
+            buf.b_watch_name = tail.toString();
+            buf.b_watch_lost = wd.wd_lost;
+            wd.wd_changed.remove(buf.b_watch_name);
+        }
+        catch (IOException | InvalidPathException _e)
+        {
+            /* not watched, always checked */
+        }
+    }
+
+    /*
+     * Stop watching for the file of "buf", and its directory when it was the last one there.
+     */
+    /*private*/ static void filewatch_drop(buffer_C buf)
+    {
+        watchdir_C wd = buf.b_watch;
+        if (wd != null && --wd.wd_count == 0)
+        {
+            wd.wd_key.cancel();
+            filewatch_dirs.remove(wd.wd_dir, wd);
+        }
+
+        buf.b_watch = null;
+        buf.b_watch_name = null;
+        buf.b_watch_fname = null;
+    }
+
+    /*
+     * The thread that takes the events from "filewatch_service".
+     * Only the names are remembered, the buffers are looked at by filewatch_unchanged().
+     */
+    /*private*/ static void filewatch_run()
+    {
+        for ( ; ; )
+        {
+            WatchKey key;
+            try
+            {
+                key = filewatch_service.take();
+            }
+            catch (InterruptedException _e)
+            {
+                continue;
+            }
+            catch (ClosedWatchServiceException _e)
+            {
+                return;
+            }
+
+            watchdir_C wd = filewatch_dirs.get((Path)key.watchable());
+            for (WatchEvent<?> ev : key.pollEvents())
+            {
+                if (wd == null || wd.wd_key != key)
+                    continue;
+                if (ev.kind() == StandardWatchEventKinds.OVERFLOW)
+                    wd.wd_lost++;
+                else
+                    wd.wd_changed.add(ev.context().toString());
+            }
+
+            /* When the directory went away, its files have to be checked every time. */
+            if (!key.reset() && wd != null && wd.wd_key == key)
+                wd.wd_lost++;
+        }
+    }
+
     /*
      * Check if any not hidden buffer has been changed.
      * Postpone the check if there are characters in the stuff buffer,
@@ -3155,8 +5109,8 @@ public class VimT
             already_warned = false;
             for (buffer_C buf = firstbuf; buf != null; )
             {
-                /* Only check buffers in a window. */
-                if (0 < buf.b_nwindows)
+                /* Only check buffers in a window.  With 'watchfiles' only when something happened to the file. */
+                if (0 < buf.b_nwindows && !filewatch_unchanged(buf))
                 {
                     int n = buf_check_timestamp(buf);
                     if (didit < n)
@@ -3242,8 +5196,8 @@ public class VimT
         int orig_mode = buf.b_orig_mode;
 
         /* If there is no file name, the buffer is not loaded, 'buftype' is set,
-         * we are in the middle of a save or being called recursively: ignore this buffer. */
-        if (buf.b_ffname == null || buf.b_ml.ml_mfp == null || buf.b_saving || _1_busy)
+         * we are in the middle of a save, following the file or being called recursively: ignore this buffer. */
+        if (buf.b_ffname == null || buf.b_ml.ml_mfp == null || buf.b_saving || buf.b_follow || _1_busy)
             return 0;
 
         int retval = 0;
@@ -5737,6 +7691,36 @@ public class VimT
         return ret;
     }
 
+    /*private*/ static ByteBuffer read_direct_buf;     /* used by read_direct() for every read */
+
+    /*
+     * Version of read_eintr() for readfile().
+     * Reads into a direct buffer that is kept for the next time, which read() is given as is,
+     * and copies from there, instead of a heap array that is copied to native memory and back.
+     * Only to be used by the main thread.
+     */
+    /*private*/ static int read_direct(int fd, Bytes buf, int bufsize)
+    {
+        if (read_direct_buf == null || read_direct_buf.capacity() < bufsize)
+            read_direct_buf = ByteBuffer.allocateDirect(Math.max(bufsize, 0x10000));
+
+        ByteBuffer bb = read_direct_buf;
+        int ret;
+
+        for ( ; ; )
+        {
+            bb.clear();
+            ret = (int)libc.read(fd, bb, bufsize);
+            if (0 <= ret || libC.errno() != EINTR)
+                break;
+        }
+
+        if (0 < ret)
+            bb.get(buf.array, buf.index, ret);
+
+        return ret;
+    }
+
     /*
      * Version of write() that retries when interrupted by EINTR (possibly by a SIGWINCH).
      */
@@ -145,7 +145,8 @@ public class VimU
     /*private*/ static final class bufinfo_C
     {
         buffer_C    bi_buf;
-        file_C      bi_fp;
+        int         bi_fd;
+        ByteBuffer  bi_buffer;          /* bytes to be written, or read but not yet used */
 
         /*private*/ bufinfo_C()
         {
@@ -288,6 +289,9 @@ public class VimU
      */
     /*private*/ static boolean u_savecommon(long top, long bot, long newbot, boolean reload)
     {
+        /* Changes are only made when all lines have been loaded, see 'lazyload'. */
+        lazy_finish(curbuf);
+
         if (!reload)
         {
             /* When making changes is not allowed, return false.
@@ -555,6 +559,14 @@ public class VimU
      */
     /*private*/ static void u_compute_hash(Bytes hash)
     {
+        /* Reuse the hash computed when the file was read or written, when the text didn't change since. */
+        if (curbuf.b_u_hash != null && curbuf.b_u_hash_tick == curbuf.b_text_tick
+                && (curbuf.b_ml.ml_flags & ML_LINE_DIRTY) == 0)
+        {
+            BCOPY(hash, curbuf.b_u_hash, UNDO_HASH_SIZE);
+            return;
+        }
+
         context_sha256_C ctx = new context_sha256_C();
 
         sha256_start(ctx);
@@ -564,6 +576,26 @@ public class VimU
             sha256_update(ctx, p, strlen(p) + 1);
         }
         sha256_finish(ctx, hash);
+
+        u_save_hash(curbuf, hash);
+    }
+
+    /*
+     * Remember "hash[UNDO_HASH_SIZE]", the hash of the text of "buf" as computed by u_compute_hash(),
+     * or while reading or writing all of the file, for as long as the text doesn't change.
+     */
+    /*private*/ static void u_save_hash(buffer_C buf, Bytes hash)
+    {
+        if (buf.b_ml.ml_line_lnum != 0 && (buf.b_ml.ml_flags & ML_LINE_DIRTY) != 0)
+        {
+            buf.b_u_hash = null;        /* the changed line is not in the blocks yet */
+            return;
+        }
+
+        if (buf.b_u_hash == null)
+            buf.b_u_hash = new Bytes(UNDO_HASH_SIZE);
+        BCOPY(buf.b_u_hash, hash, UNDO_HASH_SIZE);
+        buf.b_u_hash_tick = buf.b_text_tick;
     }
 
     /*
@@ -643,7 +675,67 @@ public class VimU
      */
     /*private*/ static boolean undo_write(bufinfo_C bi, Bytes ptr, int len)
     {
-        return (libC.fwrite(ptr, len, 1, bi.bi_fp) == 1);
+        ByteBuffer bb = bi.bi_buffer;
+
+        while (0 < len)
+        {
+            if (!bb.hasRemaining() && undo_flush(bi) == false)
+                return false;
+
+            int n = Math.min(len, bb.remaining());
+            bb.put(ptr.array, ptr.index, n);
+            ptr = ptr.plus(n);
+            len -= n;
+        }
+
+        return true;
+    }
+
+    /*private*/ static final int UNDO_BUFSIZE = 0x10000;
+
+    /*private*/ static ByteBuffer undo_direct_buf;     /* "bi_buffer" for every undo file */
+
+    /*
+     * Return the direct buffer that undo_write() collects into and undo_read() reads through,
+     * so that the file is written and read in big chunks instead of a few bytes at a time.
+     * Only one undo file is open at any time.
+     */
+    /*private*/ static ByteBuffer undo_buffer()
+    {
+        if (undo_direct_buf == null)
+            undo_direct_buf = ByteBuffer.allocateDirect(UNDO_BUFSIZE);
+
+        undo_direct_buf.clear();
+        return undo_direct_buf;
+    }
+
+    /*
+     * Write the bytes collected in "bi.bi_buffer" to the undo file.
+     * Returns true or false.
+     */
+    /*private*/ static boolean undo_flush(bufinfo_C bi)
+    {
+        ByteBuffer chunk = bi.bi_buffer;
+        boolean ok = true;
+
+        chunk.flip();
+        for (ByteBuffer bb = chunk; bb.hasRemaining(); )
+        {
+            long n = libc.write(bi.bi_fd, bb, bb.remaining());
+            if (0 < n)
+            {
+                bb.position(bb.position() + (int)n);
+                bb = bb.slice();
+            }
+            else if (n == 0 || libC.errno() != EINTR)
+            {
+                ok = false;
+                break;
+            }
+        }
+        chunk.clear();
+
+        return ok;
     }
 
     /*
@@ -662,12 +754,15 @@ public class VimU
      */
     /*private*/ static boolean undo_write_bytes(bufinfo_C bi, long nr, int len)
     {
-        Bytes buf = new Bytes(8);
+        ByteBuffer bb = bi.bi_buffer;
 
-        for (int i = len - 1, j = 0; 0 <= i; --i)
-            buf.be(j++, (byte)((nr >>> (i << 3)) & 0xff));
+        if (bb.remaining() < len && undo_flush(bi) == false)
+            return false;
+
+        for (int i = len - 1; 0 <= i; --i)
+            bb.put((byte)((nr >>> (i << 3)) & 0xff));
 
-        return undo_write(bi, buf, len);
+        return true;
     }
 
     /*
@@ -680,24 +775,63 @@ public class VimU
         return undo_write_bytes(bi, (uhp != null) ? uhp.uh_seq : 0, 4);
     }
 
+    /*
+     * Read the next part of the undo file into "bi.bi_buffer".
+     * Returns false at the end of the file or for an error.
+     */
+    /*private*/ static boolean undo_fill(bufinfo_C bi)
+    {
+        ByteBuffer bb = bi.bi_buffer;
+        long n;
+
+        for ( ; ; )
+        {
+            bb.clear();
+            n = libc.read(bi.bi_fd, bb, bb.capacity());
+            if (0 <= n || libC.errno() != EINTR)
+                break;
+        }
+        bb.limit((0 < n) ? (int)n : 0);
+
+        return (0 < n);
+    }
+
+    /*
+     * Like get4c(), get2c(), getc() and get8c(), but from "bi.bi_buffer".
+     */
     /*private*/ static int undo_read_4c(bufinfo_C bi)
     {
-        return get4c(bi.bi_fp);
+        /* Use long rather than int otherwise result is undefined when left-shift sets the MSB. */
+        long n = undo_read_byte(bi);
+        n = (n << 8) + undo_read_byte(bi);
+        n = (n << 8) + undo_read_byte(bi);
+        n = (n << 8) + undo_read_byte(bi);
+        return (int)n;
     }
 
     /*private*/ static int undo_read_2c(bufinfo_C bi)
     {
-        return get2c(bi.bi_fp);
+        int n = undo_read_byte(bi);
+        n = (n << 8) + undo_read_byte(bi);
+        return n;
     }
 
     /*private*/ static int undo_read_byte(bufinfo_C bi)
     {
-        return libc.getc(bi.bi_fp);
+        ByteBuffer bb = bi.bi_buffer;
+
+        if (!bb.hasRemaining() && undo_fill(bi) == false)
+            return EOF;
+
+        return (bb.get() & 0xff);
     }
 
     /*private*/ static long undo_read_time(bufinfo_C bi)
     {
-        return get8c(bi.bi_fp);
+        long n = 0;
+        for (int i = 0; i < 8; i++)
+            n = (n << 8) + undo_read_byte(bi);
+        return n;
     }
 
     /*
@@ -706,8 +840,17 @@ public class VimU
      */
     /*private*/ static boolean undo_read(bufinfo_C bi, Bytes buffer, int size)
     {
-        if (libC.fread(buffer, size, 1, bi.bi_fp) != 1)
-            return false;
+        ByteBuffer bb = bi.bi_buffer;
+
+        for (int done = 0; done < size; )
+        {
+            if (!bb.hasRemaining() && undo_fill(bi) == false)
+                return false;
+
+            int n = Math.min(size - done, bb.remaining());
+            bb.get(buffer.array, buffer.index + done, n);
+            done += n;
+        }
 
         return true;
     }
@@ -737,10 +880,9 @@ public class VimU
     /*private*/ static boolean serialize_header(bufinfo_C bi, Bytes hash)
     {
         buffer_C buf = bi.bi_buf;
-        file_C fp = bi.bi_fp;
 
         /* Start writing, first the magic marker and undo info version. */
-        if (libC.fwrite(UF_START_MAGIC, UF_START_MAGIC_LEN, 1, fp) != 1)
+        if (undo_write(bi, UF_START_MAGIC, UF_START_MAGIC_LEN) == false)
             return false;
 
         /* If the buffer is encrypted then all text bytes following will be
@@ -1121,15 +1263,6 @@ public class VimU
                 && libc.fchown(fd, -1, st_old.st_gid()) != 0)
             mch_setperm(file_name, (perm & 0707) | ((perm & 07) << 3));
 
-        file_C fp = libC.fdopen(fd, u8("w"));
-        if (fp == null)
-        {
-            emsg2(e_not_open, file_name);
-            libc.close(fd);
-            libC.unlink(file_name);
-            return;
-        }
-
         /* Undo must be synced. */
         u_sync(true);
 
@@ -1139,7 +1272,8 @@ public class VimU
              * Write the header.  Initializes encryption, if enabled.
              */
             bi.bi_buf = buf;
-            bi.bi_fp = fp;
+            bi.bi_fd = fd;
+            bi.bi_buffer = undo_buffer();
             if (serialize_header(bi, hash) == false)
                 break write_error;
 
@@ -1171,11 +1305,12 @@ public class VimU
                     uhp = uhp.uh_next.ptr;
             }
 
-            if (undo_write_bytes(bi, UF_HEADER_END_MAGIC, 2) == true)
+            if (undo_write_bytes(bi, UF_HEADER_END_MAGIC, 2) == true && undo_flush(bi) == true)
                 write_ok = true;
         }
 
-        libc.fclose(fp);
+        if (libc.close(fd) != 0)
+            write_ok = false;
         if (!write_ok)
             emsg2(u8("E829: write error in undo file: %s"), file_name);
     }
@@ -1227,15 +1362,17 @@ public class VimU
 
         bufinfo_C bi = new bufinfo_C();
 
-        file_C fp = libC.fopen(file_name, u8("r"));
-        if (fp == null)
+        int fd = libC.open(file_name, O_RDONLY, 0);
+        if (fd < 0)
         {
             if (name != null || 0 < p_verbose[0])
                 emsg2(u8("E822: Cannot open undo file for reading: %s"), file_name);
             return;
         }
         bi.bi_buf = curbuf;
-        bi.bi_fp = fp;
+        bi.bi_fd = fd;
+        bi.bi_buffer = undo_buffer();
+        bi.bi_buffer.limit(0);
 
         theend:
         {
@@ -1243,13 +1380,13 @@ public class VimU
              * Read the undo file header.
              */
             Bytes magic_buf = new Bytes(UF_START_MAGIC_LEN);
-            if (libC.fread(magic_buf, UF_START_MAGIC_LEN, 1, fp) != 1
+            if (undo_read(bi, magic_buf, UF_START_MAGIC_LEN) == false
                         || MEMCMP(magic_buf, UF_START_MAGIC, UF_START_MAGIC_LEN) != 0)
             {
                 emsg2(u8("E823: Not an undo file: %s"), file_name);
                 break theend;
             }
-            long version = get2c(fp);
+            long version = undo_read_2c(bi);
             if (version == UF_VERSION_CRYPT)
             {
                 emsg2(u8("E827: Undo file is encrypted: %s"), file_name);
@@ -1432,8 +1569,7 @@ public class VimU
                 smsg(u8("Finished reading undo file %s"), file_name);
         }
 
-        if (fp != null)
-            libc.fclose(fp);
+        libc.close(fd);
     }
 
     /*
@@ -1959,8 +2095,19 @@ public class VimU
 
             boolean empty_buffer = false;   /* buffer became empty */
 
+            /* The lines of a hex view are replaced where they are, deleting would copy all of them into the memfile. */
+            boolean replaced = (curbuf.b_ml.ml_hex != null && oldsize == newsize);
+            if (replaced)
+            {
+                newarray = new Bytes[oldsize];
+                for (int i = 0; i < oldsize; i++)
+                {
+                    newarray[i] = STRDUP(ml_get(top + 1 + i));
+                    ml_replace(top + 1 + i, uep.ue_array[i], true);
+                }
+            }
             /* delete the lines between top and bot and save them in "newarray" */
-            if (0 < oldsize)
+            else if (0 < oldsize)
             {
                 newarray = new Bytes[oldsize];
 
@@ -1981,7 +2128,7 @@ public class VimU
 
             /* insert the lines in u_array between top and bot */
             long lnum = top;
-            for (int i = 0; i < newsize; i++, lnum++)
+            for (int i = replaced ? newsize : 0; i < newsize; i++, lnum++)
             {
                 /*
                  * If the file is empty, there is an empty line 1 that we
@@ -2670,4 +2817,48 @@ public class VimU
             list_append_dict(list, dict);
         }
     }
+
+    /*
+     * For buf_memstat(): put the number of undo headers, entries, lines and bytes of "buf" in "ms".
+     * The tree is only walked again after it changed.
+     */
+    /*private*/ static void u_memstat(buffer_C buf, memstat_C ms)
+    {
+        if (buf.b_u_stat == null || buf.b_u_stat_tick != buf.b_changedtick
+                || buf.b_u_stat_seq != buf.b_u_seq_cur || buf.b_u_stat_numhead != buf.b_u_numhead)
+        {
+            buf.b_u_stat = new long[3];
+            u_count_tree(buf.b_u_oldhead, buf.b_u_stat);
+            buf.b_u_stat_tick = buf.b_changedtick;
+            buf.b_u_stat_seq = buf.b_u_seq_cur;
+            buf.b_u_stat_numhead = buf.b_u_numhead;
+        }
+
+        ms.ms_undo_headers = buf.b_u_numhead;
+        ms.ms_undo_entries = buf.b_u_stat[0];
+        ms.ms_undo_lines = buf.b_u_stat[1];
+        ms.ms_undo_bytes = buf.b_u_stat[2];
+    }
+
+    /*
+     * Add the entries, lines and bytes of the undo blocks at "first_uhp" to "stat".
+     * Recursive, like u_eval_tree().
+     */
+    /*private*/ static void u_count_tree(u_header_C first_uhp, long[] stat)
+    {
+        for (u_header_C uhp = first_uhp; uhp != null; uhp = uhp.uh_prev.ptr)
+        {
+            for (u_entry_C uep = uhp.uh_entry; uep != null; uep = uep.ue_next)
+            {
+                stat[0]++;
+                stat[1] += uep.ue_size;
+                for (int i = 0; i < uep.ue_size; i++)
+                    if (uep.ue_array[i] != null)
+                        stat[2] += strlen(uep.ue_array[i]) + 1;
+            }
+
+            if (uhp.uh_alt_next.ptr != null)
+                u_count_tree(uhp.uh_alt_next.ptr, stat);
+        }
+    }
 }
@@ -1033,6 +1033,21 @@ public class VimX
         syn_stack_free_block(block);
     }
 
+    /*
+     * For buf_memstat(): put the number of syntax states of "block" and the entries on their stacks in "ms".
+     */
+    /*private*/ static void syn_memstat(synblock_C block, memstat_C ms)
+    {
+        ms.ms_syn_states = 0;
+        ms.ms_syn_stack = 0;
+        if (block.b_sst_array != null)
+            for (synstate_C p = block.b_sst_first; p != null; p = p.sst_next)
+            {
+                ms.ms_syn_states++;
+                ms.ms_syn_stack += p.sst_stacksize;
+            }
+    }
+
     /*
      * Allocate the syntax state stack for syn_buf when needed.
      * If the number of entries in b_sst_array[] is much too big or a bit too small, reallocate it.
@@ -360,6 +360,9 @@ public class VimY
         new cmdname_C(u8("for"),           ex_while,
                                            EXTRA|NOTRLCOM|SBOXOK|CMDWIN,
                                            ADDR_LINES),
+        new cmdname_C(u8("follow"),        ex_follow,
+                                           BANG|TRLBAR|CMDWIN,
+                                           ADDR_LINES),
         new cmdname_C(u8("function"),      ex_function,
                                            EXTRA|BANG|CMDWIN,
                                            ADDR_LINES),
@@ -489,6 +492,9 @@ public class VimY
         new cmdname_C(u8("messages"),      ex_messages,
                                            TRLBAR|CMDWIN,
                                            ADDR_LINES),
+        new cmdname_C(u8("memstat"),       ex_memstat,
+                                           BANG|TRLBAR|CMDWIN,
+                                           ADDR_LINES),
         new cmdname_C(u8("mode"),          ex_mode,
                                            WORD1|TRLBAR|CMDWIN,
                                            ADDR_LINES),
@@ -573,6 +579,9 @@ public class VimY
         new cmdname_C(u8("read"),          ex_read,
                                            BANG|RANGE|FILE1|ARGOPT|TRLBAR|ZEROR|CMDWIN|MODIFY,
                                            ADDR_LINES),
+        new cmdname_C(u8("recover"),       ex_recover,
+                                           BANG|FILE1|TRLBAR,
+                                           ADDR_LINES),
         new cmdname_C(u8("redo"),          ex_redo,
                                            TRLBAR|CMDWIN,
                                            ADDR_LINES),